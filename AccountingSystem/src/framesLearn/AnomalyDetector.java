@@ -0,0 +1,212 @@
+package framesLearn;
+
+import java.util.*;
+
+// Flags amounts that are unusual for their transaction type, such as an
+// extra zero typed into an expense. Each type keeps a running mean and
+// variance of log10(amount) (Welford) and a t-digest of the amounts, both in
+// constant memory, so a new row is scored against everything seen so far
+// without rescanning the ledger. An amount is flagged when it is more than
+// Z_LIMIT standard deviations out in log space (an extra zero is a shift of
+// 1) and also beyond the outer quantiles of the digest.
+class AnomalyDetector {
+    
+    // Types with fewer rows than this are never flagged
+    static final int MIN_HISTORY = 20;
+    static final double Z_LIMIT = 3.5;
+    static final double TAIL = 0.005;
+    
+    private static class Stats {
+        long count;
+        double mean;
+        double m2;
+        final TDigest digest = new TDigest();
+        
+        void add(double x) {
+            count++;
+            double delta = x - mean;
+            mean += delta / count;
+            m2 += delta * (x - mean);
+        }
+        
+        // Exact inverse of add for the moments; the digest keeps the amount
+        void remove(double x) {
+            if (count <= 1) {
+                count = 0;
+                mean = 0;
+                m2 = 0;
+                return;
+            }
+            count--;
+            double delta = x - mean;
+            mean -= delta / count;
+            m2 = Math.max(0, m2 - delta * (x - mean));
+        }
+        
+        double deviation() {
+            return count > 1 ? Math.sqrt(m2 / (count - 1)) : 0;
+        }
+    }
+    
+    // Merging t-digest (Dunning): amounts are buffered and merged into about
+    // COMPRESSION centroids, small near the tails, so the outer quantiles stay
+    // accurate in constant memory
+    static class TDigest {
+        private static final double COMPRESSION = 100;
+        private static final int BUFFER = 500;
+        
+        private double[] means = new double[0];
+        private double[] weights = new double[0];
+        private final double[] buffer = new double[BUFFER];
+        private int buffered;
+        private double total;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        
+        void add(double x) {
+            buffer[buffered++] = x;
+            total++;
+            min = Math.min(min, x);
+            max = Math.max(max, x);
+            if (buffered == BUFFER) {
+                merge();
+            }
+        }
+        
+        double quantile(double q) {
+            merge();
+            int n = means.length;
+            if (n == 0) {
+                return Double.NaN;
+            }
+            double target = q * total;
+            double cumulative = 0;
+            double previousCenter = 0;
+            double previousMean = min;
+            for (int i = 0; i < n; i++) {
+                double center = cumulative + weights[i] / 2;
+                if (target < center) {
+                    double span = center - previousCenter;
+                    return span <= 0 ? means[i] : previousMean + (means[i] - previousMean) * (target - previousCenter) / span;
+                }
+                cumulative += weights[i];
+                previousCenter = center;
+                previousMean = means[i];
+            }
+            double span = total - previousCenter;
+            return span <= 0 ? max : previousMean + (max - previousMean) * (target - previousCenter) / span;
+        }
+        
+        private void merge() {
+            if (buffered == 0) {
+                return;
+            }
+            Arrays.sort(buffer, 0, buffered);
+            int n = means.length + buffered;
+            double[] m = new double[n];
+            double[] w = new double[n];
+            // Both inputs are sorted, so one merge pass orders them
+            int a = 0;
+            int b = 0;
+            for (int i = 0; i < n; i++) {
+                if (b >= buffered || (a < means.length && means[a] <= buffer[b])) {
+                    m[i] = means[a];
+                    w[i] = weights[a++];
+                } else {
+                    m[i] = buffer[b++];
+                    w[i] = 1;
+                }
+            }
+            buffered = 0;
+            
+            double[] mergedMeans = new double[n];
+            double[] mergedWeights = new double[n];
+            int out = 0;
+            double before = 0;
+            double mean = m[0];
+            double weight = w[0];
+            for (int i = 1; i < n; i++) {
+                double proposed = weight + w[i];
+                if (scale((before + proposed) / total) - scale(before / total) <= 1) {
+                    mean += (m[i] - mean) * w[i] / proposed;
+                    weight = proposed;
+                } else {
+                    mergedMeans[out] = mean;
+                    mergedWeights[out++] = weight;
+                    before += weight;
+                    mean = m[i];
+                    weight = w[i];
+                }
+            }
+            mergedMeans[out] = mean;
+            mergedWeights[out++] = weight;
+            means = Arrays.copyOf(mergedMeans, out);
+            weights = Arrays.copyOf(mergedWeights, out);
+        }
+        
+        // k1 scale function: one unit of k per centroid
+        private static double scale(double q) {
+            return COMPRESSION / (2 * Math.PI) * Math.asin(2 * Math.min(1, Math.max(0, q)) - 1);
+        }
+    }
+    
+    private final Map<String, Stats> stats = new HashMap<>();
+    // Flagged row ids and why; only flagged rows take memory
+    private final Map<String, String> flags = new HashMap<>();
+    
+    public void observe(String type, double amount) {
+        Stats s = stats.computeIfAbsent(type, t -> new Stats());
+        s.add(logAmount(amount));
+        s.digest.add(Math.abs(amount));
+    }
+    
+    public void forget(String type, double amount) {
+        Stats s = stats.get(type);
+        if (s != null) {
+            s.remove(logAmount(amount));
+        }
+    }
+    
+    // Why the amount is unusual for its type, or null if it is not; call before observe
+    public String score(String type, double amount) {
+        Stats s = stats.get(type);
+        if (s == null || s.count < MIN_HISTORY) {
+            return null;
+        }
+        double deviation = s.deviation();
+        double z = deviation > 0 ? (logAmount(amount) - s.mean) / deviation : 0;
+        if (Math.abs(z) < Z_LIMIT) {
+            return null;
+        }
+        double value = Math.abs(amount);
+        double low = s.digest.quantile(TAIL);
+        double high = s.digest.quantile(1 - TAIL);
+        if (value >= low && value <= high) {
+            return null;
+        }
+        return String.format("R%,.2f is %.1f standard deviations %s the usual %s amount (median R%,.2f, %s R%,.2f)",
+            amount, Math.abs(z), z > 0 ? "above" : "below", type, s.digest.quantile(0.5),
+            z > 0 ? "99.5th percentile" : "0.5th percentile", z > 0 ? high : low);
+    }
+    
+    public void flag(String id, String reason) {
+        flags.put(id, reason);
+    }
+    
+    public void unflag(String id) {
+        flags.remove(id);
+    }
+    
+    public String getFlag(String id) {
+        return flags.get(id);
+    }
+    
+    public int getFlagCount() {
+        return flags.size();
+    }
+    
+    // Amounts are compared on a log scale, where a slipped digit is a fixed shift
+    private static double logAmount(double amount) {
+        return Math.log10(Math.max(0.01, Math.abs(amount)));
+    }
+}
@@ -3,21 +3,37 @@ package framesLearn;
 import javax.swing.*;
 import javax.swing.Timer;
 import javax.swing.border.*;
+import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartPanel;
 import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.plot.CategoryPlot;
 import org.jfree.chart.plot.PiePlot;
+import org.jfree.data.category.DefaultCategoryDataset;
 import org.jfree.data.general.DefaultPieDataset;
+import org.jfree.data.general.PieDataset;
 
 public class Application extends JFrame {
     
+    private static final long serialVersionUID = 1L;
+    
     // Colors
     private final Color PRIMARY_COLOR     = new Color(0, 122, 204);
     private final Color SECONDARY_COLOR   = new Color(255, 179, 71);
@@ -26,9 +42,80 @@ public class Application extends JFrame {
     private final Color HIGHLIGHT_COLOR   = new Color(0, 180, 255);
     private final Color POSITIVE_COLOR    = new Color(34, 197, 94);
     private final Color NEGATIVE_COLOR    = new Color(239, 68, 68);
+    
+    // Inputs of the scenario model and their default distributions, in the
+    // order ScenarioEngine.Model reads them; blank ones come from the ledger
+    private static final String[][] SCENARIO_INPUTS = {
+        {"Cost Price", "90/100/115"},
+        {"Selling Price", "140..160"},
+        {"Fixed Costs", "5000~500"},
+        {"Selling Price per Unit", "45..55"},
+        {"Variable Cost per Unit", "28/30/35"},
+        {"Total Revenue", ""},
+        {"Total Expenses", ""},
+        {"Cost of Goods Sold", ""},
+        {"Liabilities", "9000..11000"},
+        {"Owner's Equity", "15000~1000"}
+    };
+    // Outputs of the scenario model, in the order ScenarioEngine.Model writes them
+    private static final String[] SCENARIO_OUTPUTS = {
+        "Break-Even Units", "Markup %", "Gross Profit Margin %", "Net Profit Margin %", "Net Income", "Assets"
+    };
+    // Unusual amounts logged one by one per import; the rest are only counted
+    private static final int MAX_LOGGED_ANOMALIES = 20;
+    private static final String DEFAULT_ENTITY = "Main";
+    // Results of the calculations panel, in display order
+    private static final String[] CALCULATIONS = {
+        "Net Income", "Gross Profit", "Gross Profit Margin", "Net Profit Margin", "Markup %",
+        "COGS", "Inventory Turnover", "AR Turnover", "Break-Even Sales", "Assets"
+    };
 
     // Data
-    private List<Transaction> transactions = new ArrayList<>();
+    // One shard per legal entity; the fields below are the active entity's
+    private EntityLedgers entities = new EntityLedgers(new ChangeFeed(), new AuditLog());
+    // Set once a shutdown hook flushes the audit journal
+    private boolean auditJournalHooked;
+    private EntityLedgers.Shard activeEntity;
+    // Keyword rules that categorize imported and new rows, shared by all entities
+    private CategoryRules categoryRules = CategoryRules.NONE;
+    // Exchange rates for foreign rows and reports; the ledger itself books in ZAR
+    private FxRates fx = FxRates.NONE;
+    private String reportingCurrency = FxRates.BASE;
+    private JLabel headerTitleLabel;
+    private Ledger transactions;
+    // When set, the ledger lives off-heap and transactions stays empty
+    private OffHeapLedger offHeapLedger;
+    // Inventory rows of the off-heap ledger by date, so inventory figures
+    // read only the days they cover rather than every off-heap row
+    private final QueryIndex offHeapInventory = new QueryIndex();
+    // Closed periods moved out of the ledger into compressed archives
+    private List<PeriodArchive> archives;
+    // Type x month x VAT rate totals over all of the above, kept current on every change
+    private RollupCube rollup;
+    // Recurring templates; their occurrences are computed, never stored
+    private RecurringSchedule recurring;
+    // Budget actuals per type and month, updated alongside the rollup
+    private BudgetRules budgets;
+    // In-memory ledger rows by type and date, for ad-hoc queries
+    private QueryIndex queryIndex;
+    // Running amount statistics per type, for flagging unusual new rows
+    private AnomalyDetector anomalies;
+    // Income and expense models, refitted from the rollup on every refresh
+    private CashFlowForecast forecast;
+    // Month-end and year-end closes; rows dated up to the last one are locked
+    private PeriodClose closes;
+    // Invoices, payments and aging of the accounts receivable
+    private Receivables receivables;
+    private CashFlowForecast.Projection shownProjection;
+    private String shownForecastCurrency;
+    private long forecastVersion;
+    // Refits run one at a time on one thread; a newer request cancels one still waiting
+    private final ExecutorService forecastExecutor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "cash-flow-forecast");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> pendingForecast;
     private List<User> users = new ArrayList<>();
     private User currentUser;
     private double currentBalance = 0;
@@ -39,18 +126,45 @@ public class Application extends JFrame {
     
     // UI Components
     private JTabbedPane tabbedPane;
+    // Tab placeholders whose content has not been built yet
+    private final Map<Component, Supplier<JComponent>> pendingTabs = new HashMap<>();
+    private JPanel dashboardPanel;
+    private ChartPanel balanceChartPanel;
+    private ChartPanel forecastChartPanel;
+    private JComboBox<Integer> forecastHorizonBox;
     private JTable transactionsTable;
-    private DefaultTableModel transactionsModel;
+    private TransactionTableModel transactionsModel;
+    private TransactionSorter transactionsSorter;
+    private JButton undoButton;
+    private JButton redoButton;
     private JLabel balanceLabel;
     private JTextArea consoleArea;
     private JProgressBar loadingBar;
     private JPanel calculationsPanel;
+    private JComboBox<InventoryValuation.CostingMethod> costingMethodBox;
+    private Map<String, JTextField> scenarioInputFields = new LinkedHashMap<>();
+    private JSpinner scenarioIterationsSpinner;
+    private JComboBox<String> scenarioOutputBox;
+    private JLabel scenarioStatusLabel;
+    private DefaultTableModel scenarioBandsModel;
+    private DefaultTableModel scenarioSensitivityModel;
+    private DefaultCategoryDataset scenarioHistogram;
+    private ScenarioEngine.Result scenarioResult;
+    private DefaultTableModel matchedModel;
+    private DefaultTableModel unmatchedModel;
+    private DefaultTableModel ambiguousModel;
+    private JLabel reconciliationSummaryLabel;
+    private DefaultTableModel agingModel;
+    private JLabel receivablesSummaryLabel;
+    private Timer dayRolloverTimer;
+    private JSpinner reconciliationWindowSpinner;
     
     // Date format
     private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
     
     public Application() {
-        setTitle("E-19 Accounting System - ZAR");
+        useEntity(createEntity(DEFAULT_ENTITY));
+        updateTitle();
         setSize(1000, 700);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
@@ -63,6 +177,30 @@ public class Application extends JFrame {
         initializeSampleData();
     }
     
+    private EntityLedgers.Shard createEntity(String name) {
+        EntityLedgers.Shard shard = entities.create(name);
+        // Shards that are not active can be loaded on other threads
+        shard.budgets.addListener(alert -> SwingUtilities.invokeLater(
+            () -> logToConsole("ALERT: " + alert + " (" + shard.getEntity() + ")")));
+        return shard;
+    }
+    
+    private void useEntity(EntityLedgers.Shard shard) {
+        activeEntity = shard;
+        transactions = shard.transactions;
+        archives = shard.archives;
+        rollup = shard.rollup;
+        recurring = shard.recurring;
+        budgets = shard.budgets;
+        queryIndex = shard.queryIndex;
+        anomalies = shard.anomalies;
+        forecast = shard.forecast;
+        closes = shard.closes;
+        receivables = shard.receivables;
+        shownProjection = null;
+        forecastVersion++;
+    }
+    
     private void initFadeAnimation() {
         fadeTimer = new Timer(10, e -> {
             if (isVisible()) {
@@ -161,7 +299,7 @@ public class Application extends JFrame {
                     initUI();
                     refreshTransactions();
                     logToConsole("System Initialized. Welcome, " + currentUser.getUsername() + ".");
-                    logToConsole("System ready. Current balance: R" + String.format("%,.2f", currentBalance));
+                    logToConsole("System ready. Current balance: " + money(currentBalance));
                     
                     fadeAlpha = 0f;
                     fadeTimer.start();
@@ -185,6 +323,11 @@ public class Application extends JFrame {
         transactions.add(new Transaction("INV-001", "2023-10-01", "Opening Inventory", 5000.00, "Inventory", 0));
         transactions.add(new Transaction("INV-002", "2023-10-15", "Inventory Purchase", 3000.00, "Inventory", 0));
         transactions.add(new Transaction("INV-003", "2023-10-31", "Closing Inventory", 2000.00, "Inventory", 0));
+        
+        for (Transaction t : transactions) {
+            activeEntity.rowAdded(t);
+        }
+        transactions.clearHistory();
     }
     
     private void showLoginDialog() {
@@ -297,10 +440,10 @@ public class Application extends JFrame {
         headerPanel.setBackground(DARK_BG);
         headerPanel.setBorder(new MatteBorder(0, 0, 2, 0, PRIMARY_COLOR));
         
-        JLabel titleLabel = new JLabel("E-19 ACCOUNTING SYSTEM - ZAR", SwingConstants.CENTER);
-        titleLabel.setFont(new Font("Arial", Font.BOLD, 24));
-        titleLabel.setForeground(SECONDARY_COLOR);
-        headerPanel.add(titleLabel, BorderLayout.CENTER);
+        headerTitleLabel = new JLabel("E-19 ACCOUNTING SYSTEM - " + reportingCurrency, SwingConstants.CENTER);
+        headerTitleLabel.setFont(new Font("Arial", Font.BOLD, 24));
+        headerTitleLabel.setForeground(SECONDARY_COLOR);
+        headerPanel.add(headerTitleLabel, BorderLayout.CENTER);
         
         JPanel userPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 5));
         userPanel.setBackground(DARK_BG);
@@ -333,11 +476,20 @@ public class Application extends JFrame {
         tabbedPane.setBackground(DARK_BG);
         tabbedPane.setForeground(Color.BLACK);
         
-        tabbedPane.addTab("DASHBOARD", createDashboardPanel());
-        tabbedPane.addTab("TRANSACTIONS", createTransactionsPanel());
-        tabbedPane.addTab("REPORTS", createReportsPanel());
-        tabbedPane.addTab("FINANCIAL CALCULATIONS", createCalculationsPanel());
+        transactionsModel = new TransactionTableModel(transactions);
+        createTransactionsTable();
+        
+        // Tabs are built when first selected, so only the dashboard delays the first frame.
+        // The console is built up front because everything logs to it.
+        addLazyTab("DASHBOARD", this::createDashboardPanel);
+        addLazyTab("TRANSACTIONS", this::createTransactionsPanel);
+        addLazyTab("REPORTS", this::createReportsPanel);
+        addLazyTab("RECONCILIATION", this::createReconciliationPanel);
+        addLazyTab("RECEIVABLES", this::createReceivablesPanel);
+        addLazyTab("FINANCIAL CALCULATIONS", this::createCalculationsPanel);
         tabbedPane.addTab("CONSOLE", createConsolePanel());
+        tabbedPane.addChangeListener(e -> buildTab(tabbedPane.getSelectedIndex()));
+        buildTab(tabbedPane.getSelectedIndex());
         
         add(tabbedPane, BorderLayout.CENTER);
         
@@ -380,8 +532,30 @@ public class Application extends JFrame {
         });
     }
     
+    private void addLazyTab(String title, Supplier<JComponent> content) {
+        JPanel placeholder = new JPanel(new BorderLayout());
+        placeholder.setBackground(DARK_BG);
+        pendingTabs.put(placeholder, content);
+        tabbedPane.addTab(title, placeholder);
+    }
+    
+    // Builds the tab's content if it has not been built yet
+    private void buildTab(int index) {
+        if (index < 0) {
+            return;
+        }
+        Component placeholder = tabbedPane.getComponentAt(index);
+        Supplier<JComponent> content = pendingTabs.remove(placeholder);
+        if (content != null) {
+            JPanel panel = (JPanel) placeholder;
+            panel.add(content.get(), BorderLayout.CENTER);
+            panel.revalidate();
+            panel.repaint();
+        }
+    }
+    
     private void updateBalanceDisplay() {
-        String formattedBalance = String.format("BALANCE: R%,.2f", currentBalance);
+        String formattedBalance = "BALANCE: " + money(currentBalance);
         balanceLabel.setText(formattedBalance);
         
         if (currentBalance >= 0) {
@@ -409,7 +583,100 @@ public class Application extends JFrame {
         JPanel centerPanel = new JPanel(new GridLayout(1, 2, 15, 15));
         centerPanel.setBackground(DARK_BG);
         
-        DefaultPieDataset dataset = new DefaultPieDataset();
+        JPanel chartsPanel = new JPanel(new GridLayout(2, 1, 15, 15));
+        chartsPanel.setBackground(DARK_BG);
+        JLabel chartPlaceholder = createChartPlaceholder();
+        chartsPanel.add(chartPlaceholder);
+        
+        JPanel forecastPanel = new JPanel(new BorderLayout(0, 5));
+        forecastPanel.setBackground(DARK_BG);
+        JPanel horizonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 5, 0));
+        horizonPanel.setBackground(DARK_BG);
+        JLabel horizonLabel = new JLabel("Months ahead:");
+        horizonLabel.setForeground(Color.WHITE);
+        forecastHorizonBox = new JComboBox<>(new Integer[]{3, 6, 9, 12});
+        forecastHorizonBox.setSelectedItem(6);
+        forecastHorizonBox.setBackground(LIGHT_BG);
+        forecastHorizonBox.setForeground(Color.WHITE);
+        forecastHorizonBox.addActionListener(e -> updateForecast());
+        horizonPanel.add(horizonLabel);
+        horizonPanel.add(forecastHorizonBox);
+        forecastPanel.add(horizonPanel, BorderLayout.NORTH);
+        JLabel forecastPlaceholder = createChartPlaceholder();
+        forecastPanel.add(forecastPlaceholder, BorderLayout.CENTER);
+        chartsPanel.add(forecastPanel);
+        centerPanel.add(chartsPanel);
+        
+        JTable dashboardTable = new JTable(transactionsModel);
+        styleTable(dashboardTable);
+        highlightAnomalies(dashboardTable);
+        
+        JScrollPane scrollPane = new JScrollPane(dashboardTable);
+        scrollPane.setBorder(BorderFactory.createLineBorder(PRIMARY_COLOR, 1));
+        centerPanel.add(scrollPane);
+        
+        panel.add(centerPanel, BorderLayout.CENTER);
+        dashboardPanel = panel;
+        
+        // Setting up the charts is the slow part of the dashboard, so it runs off the EDT
+        new Thread(() -> {
+            JFreeChart balanceChart = createBalanceChart();
+            JFreeChart forecastChart = createForecastChart();
+            SwingUtilities.invokeLater(() -> {
+                balanceChartPanel = replaceWithChart(chartsPanel, chartPlaceholder, balanceChart, 0);
+                forecastChartPanel = replaceWithChart(forecastPanel, forecastPlaceholder, forecastChart, BorderLayout.CENTER);
+                refreshTransactions();
+            });
+        }, "chart-setup").start();
+        
+        return panel;
+    }
+    
+    private JLabel createChartPlaceholder() {
+        JLabel placeholder = new JLabel("Loading chart...", SwingConstants.CENTER);
+        placeholder.setForeground(Color.WHITE);
+        placeholder.setBorder(BorderFactory.createLineBorder(PRIMARY_COLOR, 1));
+        return placeholder;
+    }
+    
+    private ChartPanel replaceWithChart(JPanel parent, Component placeholder, JFreeChart chart, Object constraints) {
+        // The buffered panel paints a cached image and only redraws the chart
+        // when it fires a change (e.g. a new dataset) or the panel is resized
+        ChartPanel chartPanel = new ChartPanel(chart, true);
+        chartPanel.setBackground(DARK_BG);
+        chartPanel.setBorder(BorderFactory.createLineBorder(PRIMARY_COLOR, 1));
+        parent.remove(placeholder);
+        if (constraints instanceof Integer) {
+            parent.add(chartPanel, ((Integer) constraints).intValue());
+        } else {
+            parent.add(chartPanel, constraints);
+        }
+        parent.revalidate();
+        parent.repaint();
+        return chartPanel;
+    }
+    
+    private JFreeChart createForecastChart() {
+        JFreeChart chart = ChartFactory.createLineChart("Projected Balance", "", "ZAR", new DefaultCategoryDataset());
+        CategoryPlot plot = chart.getCategoryPlot();
+        plot.setBackgroundPaint(DARK_BG);
+        plot.setRangeGridlinePaint(Color.GRAY);
+        Stroke dashed = new BasicStroke(1f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10f, new float[]{4f, 4f}, 0f);
+        plot.getRenderer().setSeriesPaint(0, SECONDARY_COLOR);
+        plot.getRenderer().setSeriesPaint(1, NEGATIVE_COLOR);
+        plot.getRenderer().setSeriesStroke(1, dashed);
+        plot.getRenderer().setSeriesPaint(2, POSITIVE_COLOR);
+        plot.getRenderer().setSeriesStroke(2, dashed);
+        plot.getDomainAxis().setTickLabelPaint(Color.WHITE);
+        plot.getRangeAxis().setTickLabelPaint(Color.WHITE);
+        plot.getRangeAxis().setLabelPaint(Color.WHITE);
+        chart.setBackgroundPaint(DARK_BG);
+        chart.getTitle().setPaint(SECONDARY_COLOR);
+        return chart;
+    }
+    
+    private JFreeChart createBalanceChart() {
+        DefaultPieDataset<String> dataset = new DefaultPieDataset<>();
         dataset.setValue("Income", 0);
         dataset.setValue("Expenses", 0);
         
@@ -421,7 +688,8 @@ public class Application extends JFrame {
             false
         );
         
-        PiePlot plot = (PiePlot) chart.getPlot();
+        @SuppressWarnings("unchecked")
+        PiePlot<String> plot = (PiePlot<String>) chart.getPlot();
         plot.setSectionPaint("Income", POSITIVE_COLOR);
         plot.setSectionPaint("Expenses", NEGATIVE_COLOR);
         plot.setBackgroundPaint(DARK_BG);
@@ -429,29 +697,7 @@ public class Application extends JFrame {
         plot.setLabelPaint(Color.WHITE);
         chart.setBackgroundPaint(DARK_BG);
         chart.getTitle().setPaint(SECONDARY_COLOR);
-        
-        ChartPanel chartPanel = new ChartPanel(chart);
-        chartPanel.setBackground(DARK_BG);
-        chartPanel.setBorder(BorderFactory.createLineBorder(PRIMARY_COLOR, 1));
-        centerPanel.add(chartPanel);
-        
-        String[] columns = {"ID", "DATE", "DESCRIPTION", "AMOUNT (ZAR)", "TYPE", "VAT"};
-        transactionsModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
-        transactionsTable = new JTable(transactionsModel);
-        styleTable(transactionsTable);
-        
-        JScrollPane scrollPane = new JScrollPane(transactionsTable);
-        scrollPane.setBorder(BorderFactory.createLineBorder(PRIMARY_COLOR, 1));
-        centerPanel.add(scrollPane);
-        
-        panel.add(centerPanel, BorderLayout.CENTER);
-        
-        return panel;
+        return chart;
     }
     
     private JPanel createTransactionsPanel() {
@@ -467,9 +713,42 @@ public class Application extends JFrame {
         addButton.setForeground(Color.BLACK);
         
         JButton deleteButton = createStyledButton("DELETE SELECTED");
-        deleteButton.addActionListener(e -> deleteSelectedTransaction());
+        deleteButton.addActionListener(e -> deleteSelectedTransactions());
         deleteButton.setForeground(Color.BLACK);
         
+        JButton recategorizeButton = createStyledButton("RECATEGORIZE SELECTED");
+        recategorizeButton.addActionListener(e -> recategorizeSelectedTransactions());
+        recategorizeButton.setForeground(Color.BLACK);
+        
+        JButton recurringButton = createStyledButton("ADD RECURRING");
+        recurringButton.addActionListener(e -> showRecurringTemplateDialog());
+        recurringButton.setForeground(Color.BLACK);
+        
+        undoButton = createStyledButton("UNDO");
+        undoButton.addActionListener(e -> undoLastChange());
+        undoButton.setForeground(Color.BLACK);
+        
+        redoButton = createStyledButton("REDO");
+        redoButton.addActionListener(e -> redoLastChange());
+        redoButton.setForeground(Color.BLACK);
+        
+        panel.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(
+            KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK), "undo");
+        panel.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(
+            KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK), "redo");
+        panel.getActionMap().put("undo", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                undoLastChange();
+            }
+        });
+        panel.getActionMap().put("redo", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                redoLastChange();
+            }
+        });
+        
         JButton exportButton = createStyledButton("EXPORT TO CSV");
         exportButton.addActionListener(e -> exportToCSV());
         exportButton.setForeground(Color.BLACK);
@@ -478,21 +757,30 @@ public class Application extends JFrame {
         importButton.addActionListener(e -> importFromCSV());
         importButton.setForeground(Color.BLACK);
         
+        JButton rulesButton = createStyledButton("LOAD CATEGORY RULES");
+        rulesButton.addActionListener(e -> loadCategoryRules());
+        rulesButton.setForeground(Color.BLACK);
+        
+        JButton offHeapButton = createStyledButton("USE OFF-HEAP STORAGE");
+        offHeapButton.addActionListener(e -> {
+            if (switchToOffHeapStorage()) {
+                offHeapButton.setEnabled(false);
+            }
+        });
+        offHeapButton.setForeground(Color.BLACK);
+        
         toolbar.add(addButton);
+        toolbar.add(recurringButton);
         toolbar.add(deleteButton);
+        toolbar.add(recategorizeButton);
+        toolbar.add(undoButton);
+        toolbar.add(redoButton);
         toolbar.add(exportButton);
         toolbar.add(importButton);
+        toolbar.add(rulesButton);
+        toolbar.add(offHeapButton);
         panel.add(toolbar, BorderLayout.NORTH);
         
-        transactionsModel = new DefaultTableModel(new String[]{"ID", "DATE", "DESCRIPTION", "AMOUNT (ZAR)", "TYPE", "VAT %"}, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
-        transactionsTable = new JTable(transactionsModel);
-        styleTable(transactionsTable);
-        
         JScrollPane scrollPane = new JScrollPane(transactionsTable);
         scrollPane.setBorder(BorderFactory.createLineBorder(PRIMARY_COLOR, 1));
         panel.add(scrollPane, BorderLayout.CENTER);
@@ -500,6 +788,26 @@ public class Application extends JFrame {
         return panel;
     }
     
+    // Built with the frame rather than the tab, since edits made from other tabs re-sort it
+    private void createTransactionsTable() {
+        transactionsTable = new JTable(transactionsModel);
+        styleTable(transactionsTable);
+        highlightAnomalies(transactionsTable);
+        transactionsSorter = new TransactionSorter(transactionsModel, transactionsTable);
+        transactionsTable.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int viewRow = transactionsTable.rowAtPoint(e.getPoint());
+                if (e.getClickCount() == 2 && viewRow >= 0) {
+                    int modelRow = transactionsModel.convertRowIndexToModel(viewRow);
+                    if (transactionsModel.isRecurringRow(modelRow)) {
+                        showAddTransactionDialog(transactionsModel.getRecurringRow(modelRow));
+                    }
+                }
+            }
+        });
+    }
+    
     private JPanel createReportsPanel() {
         JPanel panel = new JPanel(new BorderLayout());
         panel.setBackground(DARK_BG);
@@ -511,7 +819,7 @@ public class Application extends JFrame {
         titleLabel.setBorder(new EmptyBorder(0, 0, 20, 0));
         panel.add(titleLabel, BorderLayout.NORTH);
         
-        JPanel buttonPanel = new JPanel(new GridLayout(4, 1, 10, 10));
+        JPanel buttonPanel = new JPanel(new GridLayout(17, 1, 10, 10));
         buttonPanel.setBackground(DARK_BG);
         
         JButton incomeReportBtn = createStyledButton("INCOME REPORT");
@@ -533,13 +841,486 @@ public class Application extends JFrame {
         buttonPanel.add(incomeReportBtn);
         buttonPanel.add(expenseReportBtn);
         buttonPanel.add(summaryReportBtn);
+        JButton archivePeriodBtn = createStyledButton("ARCHIVE CLOSED PERIOD");
+        archivePeriodBtn.addActionListener(e -> archiveClosedPeriod());
+        archivePeriodBtn.setForeground(Color.BLACK);
+        
+        JButton closePeriodBtn = createStyledButton("CLOSE PERIOD");
+        closePeriodBtn.addActionListener(e -> closePeriod());
+        closePeriodBtn.setForeground(Color.BLACK);
+        
+        JButton openArchiveBtn = createStyledButton("OPEN PERIOD ARCHIVE");
+        openArchiveBtn.addActionListener(e -> openPeriodArchive());
+        openArchiveBtn.setForeground(Color.BLACK);
+        
+        JButton drillDownBtn = createStyledButton("MONTHLY DRILL-DOWN");
+        drillDownBtn.addActionListener(e -> showDrillDown());
+        drillDownBtn.setForeground(Color.BLACK);
+        
+        JButton queryBtn = createStyledButton("QUERY");
+        queryBtn.addActionListener(e -> showQueryDialog());
+        queryBtn.setForeground(Color.BLACK);
+        
+        JButton budgetsBtn = createStyledButton("BUDGETS");
+        budgetsBtn.addActionListener(e -> showBudgetsDialog());
+        budgetsBtn.setForeground(Color.BLACK);
+        
+        JButton entitiesBtn = createStyledButton("ENTITIES");
+        entitiesBtn.addActionListener(e -> showEntitiesDialog());
+        entitiesBtn.setForeground(Color.BLACK);
+        
+        JButton consolidatedBtn = createStyledButton("CONSOLIDATED REPORT");
+        consolidatedBtn.addActionListener(e -> showConsolidatedReport());
+        consolidatedBtn.setForeground(Color.BLACK);
+        
+        JButton changeFeedBtn = createStyledButton("CHANGE FEED");
+        changeFeedBtn.addActionListener(e -> showChangeFeedDialog());
+        changeFeedBtn.setForeground(Color.BLACK);
+        
+        JButton auditLogBtn = createStyledButton("AUDIT LOG");
+        auditLogBtn.addActionListener(e -> showAuditLogDialog());
+        auditLogBtn.setForeground(Color.BLACK);
+        
+        JButton fxRatesBtn = createStyledButton("LOAD FX RATES");
+        fxRatesBtn.addActionListener(e -> loadFxRates());
+        fxRatesBtn.setForeground(Color.BLACK);
+        
+        JButton currencyBtn = createStyledButton("REPORTING CURRENCY");
+        currencyBtn.addActionListener(e -> chooseReportingCurrency());
+        currencyBtn.setForeground(Color.BLACK);
+        
+        JButton pdfReportBtn = createStyledButton("EXPORT PDF REPORT");
+        pdfReportBtn.addActionListener(e -> exportPdfReport());
+        pdfReportBtn.setForeground(Color.BLACK);
+        
         buttonPanel.add(vatReportBtn);
+        buttonPanel.add(drillDownBtn);
+        buttonPanel.add(queryBtn);
+        buttonPanel.add(budgetsBtn);
+        buttonPanel.add(entitiesBtn);
+        buttonPanel.add(consolidatedBtn);
+        buttonPanel.add(changeFeedBtn);
+        buttonPanel.add(auditLogBtn);
+        buttonPanel.add(fxRatesBtn);
+        buttonPanel.add(currencyBtn);
+        buttonPanel.add(pdfReportBtn);
+        buttonPanel.add(closePeriodBtn);
+        buttonPanel.add(archivePeriodBtn);
+        buttonPanel.add(openArchiveBtn);
         
         panel.add(buttonPanel, BorderLayout.CENTER);
         
         return panel;
     }
     
+    private JPanel createReconciliationPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(DARK_BG);
+        panel.setBorder(new EmptyBorder(10, 10, 10, 10));
+        
+        JPanel toolbar = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 10));
+        toolbar.setBackground(DARK_BG);
+        
+        JLabel windowLabel = new JLabel("Date window (days):");
+        windowLabel.setForeground(Color.WHITE);
+        
+        reconciliationWindowSpinner = new JSpinner(new SpinnerNumberModel(3, 0, 30, 1));
+        reconciliationWindowSpinner.setBackground(LIGHT_BG);
+        reconciliationWindowSpinner.setBorder(new LineBorder(PRIMARY_COLOR, 1));
+        
+        JButton loadStatementButton = createStyledButton("LOAD BANK STATEMENT");
+        loadStatementButton.addActionListener(e -> reconcileBankStatement());
+        loadStatementButton.setForeground(Color.BLACK);
+        
+        reconciliationSummaryLabel = new JLabel("No statement loaded");
+        reconciliationSummaryLabel.setForeground(SECONDARY_COLOR);
+        reconciliationSummaryLabel.setFont(new Font("Arial", Font.BOLD, 14));
+        
+        toolbar.add(windowLabel);
+        toolbar.add(reconciliationWindowSpinner);
+        toolbar.add(loadStatementButton);
+        toolbar.add(reconciliationSummaryLabel);
+        panel.add(toolbar, BorderLayout.NORTH);
+        
+        matchedModel = new DefaultTableModel(new String[]{"LINE", "BANK DATE", "BANK DESCRIPTION", "AMOUNT", "LEDGER ID", "LEDGER DATE", "LEDGER DESCRIPTION", "SCORE"}, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        unmatchedModel = new DefaultTableModel(new String[]{"SOURCE", "DATE", "DESCRIPTION", "AMOUNT"}, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        ambiguousModel = new DefaultTableModel(new String[]{"LINE", "BANK DATE", "BANK DESCRIPTION", "AMOUNT", "CANDIDATES"}, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        
+        JTabbedPane resultTabs = new JTabbedPane();
+        resultTabs.setBackground(DARK_BG);
+        resultTabs.setForeground(Color.BLACK);
+        resultTabs.addTab("MATCHED", createReconciliationTable(matchedModel));
+        resultTabs.addTab("UNMATCHED", createReconciliationTable(unmatchedModel));
+        resultTabs.addTab("AMBIGUOUS", createReconciliationTable(ambiguousModel));
+        panel.add(resultTabs, BorderLayout.CENTER);
+        
+        return panel;
+    }
+    
+    private JPanel createReceivablesPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(DARK_BG);
+        panel.setBorder(new EmptyBorder(10, 10, 10, 10));
+        
+        JPanel toolbar = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 10));
+        toolbar.setBackground(DARK_BG);
+        
+        JButton addInvoiceButton = createStyledButton("ADD INVOICE");
+        addInvoiceButton.addActionListener(e -> showAddInvoiceDialog());
+        addInvoiceButton.setForeground(Color.BLACK);
+        
+        JButton paymentButton = createStyledButton("RECEIVE PAYMENT");
+        paymentButton.addActionListener(e -> showReceivePaymentDialog());
+        paymentButton.setForeground(Color.BLACK);
+        
+        JButton importButton = createStyledButton("IMPORT CSV");
+        importButton.addActionListener(e -> importReceivables());
+        importButton.setForeground(Color.BLACK);
+        
+        receivablesSummaryLabel = new JLabel();
+        receivablesSummaryLabel.setForeground(SECONDARY_COLOR);
+        receivablesSummaryLabel.setFont(new Font("Arial", Font.BOLD, 14));
+        
+        toolbar.add(addInvoiceButton);
+        toolbar.add(paymentButton);
+        toolbar.add(importButton);
+        toolbar.add(receivablesSummaryLabel);
+        panel.add(toolbar, BorderLayout.NORTH);
+        
+        List<String> columns = new ArrayList<>();
+        columns.add("CUSTOMER");
+        for (Receivables.Bucket bucket : Receivables.Bucket.values()) {
+            columns.add(bucket.toString().toUpperCase());
+        }
+        columns.add("TOTAL");
+        agingModel = new DefaultTableModel(columns.toArray(), 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        panel.add(createReconciliationTable(agingModel), BorderLayout.CENTER);
+        
+        // Aging moves on at midnight without anything else happening
+        dayRolloverTimer = new Timer(60_000, e -> {
+            if (LocalDate.now().isAfter(receivables.getAsOf())) {
+                refreshReceivables();
+            }
+        });
+        dayRolloverTimer.start();
+        refreshReceivables();
+        return panel;
+    }
+    
+    // Ages the receivables to today and shows the aging per customer
+    private void refreshReceivables() {
+        LocalDate today = LocalDate.now();
+        receivables.advanceTo(today);
+        if (agingModel == null) {
+            return;
+        }
+        // Balances as of today, at today's rate
+        long day = today.toEpochDay();
+        agingModel.setRowCount(0);
+        for (Map.Entry<String, double[]> customer : receivables.getAging().entrySet()) {
+            Object[] row = new Object[agingModel.getColumnCount()];
+            row[0] = customer.getKey();
+            double total = 0;
+            for (int i = 0; i < customer.getValue().length; i++) {
+                row[i + 1] = money(customer.getValue()[i], day);
+                total += customer.getValue()[i];
+            }
+            row[row.length - 1] = money(total, day);
+            agingModel.addRow(row);
+        }
+        Object[] totalRow = new Object[agingModel.getColumnCount()];
+        totalRow[0] = "TOTAL";
+        for (Receivables.Bucket bucket : Receivables.Bucket.values()) {
+            totalRow[bucket.ordinal() + 1] = money(receivables.getBucketTotal(bucket), day);
+        }
+        totalRow[totalRow.length - 1] = money(receivables.getOutstanding(), day);
+        agingModel.addRow(totalRow);
+        
+        LocalDate from = today.minusDays(Receivables.TURNOVER_DAYS - 1);
+        double average = receivables.averageBalance(from, today);
+        double creditSales = receivables.creditSales(from, today);
+        receivablesSummaryLabel.setText(String.format("Outstanding %s | Last %d days: credit sales %s, average AR %s, turnover %s",
+            money(receivables.getOutstanding(), day), Receivables.TURNOVER_DAYS, money(creditSales, day), money(average, day),
+            average > 0 ? String.format("%,.2f", calculateARTurnover(creditSales, average)) : "N/A"));
+    }
+    
+    private void showAddInvoiceDialog() {
+        JTextField idField = new JTextField("INV-" + (receivables.getInvoiceCount() + 1001));
+        JTextField customerField = new JTextField();
+        JTextField dateField = new JTextField(LocalDate.now().toString());
+        JSpinner termsSpinner = new JSpinner(new SpinnerNumberModel(30, 0, 365, 1));
+        JTextField amountField = new JTextField();
+        
+        JPanel panel = new JPanel(new GridLayout(5, 2, 10, 10));
+        panel.setBackground(DARK_BG);
+        panel.add(new JLabel("Invoice ID:"));
+        panel.add(idField);
+        panel.add(new JLabel("Customer:"));
+        panel.add(customerField);
+        panel.add(new JLabel("Date (YYYY-MM-DD):"));
+        panel.add(dateField);
+        panel.add(new JLabel("Terms (days):"));
+        panel.add(termsSpinner);
+        panel.add(new JLabel("Amount (R):"));
+        panel.add(amountField);
+        for (Component comp : panel.getComponents()) {
+            if (comp instanceof JLabel) {
+                ((JLabel) comp).setForeground(Color.WHITE);
+            }
+        }
+        
+        if (JOptionPane.showConfirmDialog(this, panel, "Add Invoice", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        try {
+            Receivables.Invoice invoice = receivables.addInvoice(idField.getText().trim(), customerField.getText().trim(),
+                LocalDate.parse(dateField.getText().trim()), (int) termsSpinner.getValue(),
+                Double.parseDouble(amountField.getText().replace("R", "").trim()));
+            refreshReceivables();
+            logToConsole(String.format("Invoiced %s R%,.2f (%s, due %s)", invoice.getCustomer(), invoice.getAmount(),
+                invoice.getId(), invoice.getDue()));
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Invalid amount format", "Error", JOptionPane.ERROR_MESSAGE);
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Invalid date: " + e.getParsedString(), "Error", JOptionPane.ERROR_MESSAGE);
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    private void showReceivePaymentDialog() {
+        JTextField idField = new JTextField("PAY-" + System.currentTimeMillis() % 100000);
+        JTextField customerField = new JTextField();
+        JTextField dateField = new JTextField(LocalDate.now().toString());
+        JTextField amountField = new JTextField();
+        JTextField invoiceField = new JTextField();
+        
+        JPanel panel = new JPanel(new GridLayout(5, 2, 10, 10));
+        panel.setBackground(DARK_BG);
+        panel.add(new JLabel("Payment ID:"));
+        panel.add(idField);
+        panel.add(new JLabel("Customer:"));
+        panel.add(customerField);
+        panel.add(new JLabel("Date (YYYY-MM-DD):"));
+        panel.add(dateField);
+        panel.add(new JLabel("Amount (R):"));
+        panel.add(amountField);
+        panel.add(new JLabel("Invoice (blank for oldest first):"));
+        panel.add(invoiceField);
+        for (Component comp : panel.getComponents()) {
+            if (comp instanceof JLabel) {
+                ((JLabel) comp).setForeground(Color.WHITE);
+            }
+        }
+        
+        if (JOptionPane.showConfirmDialog(this, panel, "Receive Payment", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        try {
+            String customer = customerField.getText().trim();
+            String invoiceId = invoiceField.getText().trim();
+            List<Receivables.Allocation> allocations = receivables.receivePayment(idField.getText().trim(), customer,
+                LocalDate.parse(dateField.getText().trim()), Double.parseDouble(amountField.getText().replace("R", "").trim()),
+                invoiceId.isEmpty() ? null : invoiceId);
+            refreshReceivables();
+            for (Receivables.Allocation allocation : allocations) {
+                logToConsole(String.format("Allocated R%,.2f of %s to %s", allocation.getAmount(),
+                    allocation.getPaymentId(), allocation.getInvoiceId()));
+            }
+            if (receivables.getCredit(customer) > 0) {
+                logToConsole(String.format("%s has R%,.2f credit for future invoices", customer, receivables.getCredit(customer)));
+            }
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Invalid amount format", "Error", JOptionPane.ERROR_MESSAGE);
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Invalid date: " + e.getParsedString(), "Error", JOptionPane.ERROR_MESSAGE);
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    private void importReceivables() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Import Receivables (Kind,ID,Customer,Date,Amount,Terms or Invoice)");
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = fileChooser.getSelectedFile();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            List<String> errors = new ArrayList<>();
+            int applied = receivables.importCSV(br, errors::add);
+            refreshReceivables();
+            logToConsole(String.format("Imported %,d invoices and payments from %s", applied, file.getName()));
+            for (String line : errors.subList(0, Math.min(errors.size(), MAX_LOGGED_ANOMALIES))) {
+                logToConsole("Error parsing line: " + line);
+            }
+            if (errors.size() > MAX_LOGGED_ANOMALIES) {
+                logToConsole("... and " + (errors.size() - MAX_LOGGED_ANOMALIES) + " more lines that could not be applied");
+            }
+        } catch (IOException e) {
+            logToConsole("Import failed: " + e.getMessage());
+            JOptionPane.showMessageDialog(this, "Import failed: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    private JScrollPane createReconciliationTable(DefaultTableModel model) {
+        JTable table = new JTable(model);
+        styleTable(table);
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setBorder(BorderFactory.createLineBorder(PRIMARY_COLOR, 1));
+        return scrollPane;
+    }
+    
+    private void reconcileBankStatement() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Load Bank Statement (Date,Description,Amount)");
+        
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        
+        File file = fileChooser.getSelectedFile();
+        int windowDays = (int) reconciliationWindowSpinner.getValue();
+        // Off-heap rows are copied out by the worker, through a cursor later changes do not move
+        List<Transaction> occurrences = recurring.occurrences(null, LocalDate.now());
+        OffHeapLedger.Cursor offHeapRows = offHeapLedger != null ? offHeapLedger.cursor() : null;
+        int offHeapCount = offHeapRows != null ? offHeapRows.size() : 0;
+        List<Transaction> snapshot = offHeapRows == null ? transactions.snapshot() : null;
+        int ledgerSize = occurrences.size() + (offHeapRows != null ? offHeapCount : snapshot.size());
+        FxRates rates = fx;
+        String currency = reportingCurrency;
+        reconciliationSummaryLabel.setText("Reconciling " + file.getName() + "...");
+        logToConsole("Reconciling bank statement " + file.getName() + " against " + ledgerSize + " transactions");
+        
+        new Thread(() -> {
+            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                long start = System.currentTimeMillis();
+                List<Transaction> ledger = reportRows(occurrences, offHeapRows != null ? offHeapRows.toTransactions(offHeapCount) : snapshot);
+                List<String> errors = new ArrayList<>();
+                List<BankReconciliation.StatementLine> statement = BankReconciliation.loadStatement(br, errors);
+                BankReconciliation.Result result = new BankReconciliation(windowDays).reconcile(ledger, statement);
+                ReconciliationRows rows = new ReconciliationRows(result, rates, currency);
+                long elapsed = System.currentTimeMillis() - start;
+                SwingUtilities.invokeLater(() -> showReconciliation(file, statement.size(), errors, result, rows, elapsed));
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> {
+                    reconciliationSummaryLabel.setText("Reconciliation failed");
+                    logToConsole("Reconciliation failed: " + e.getMessage());
+                    JOptionPane.showMessageDialog(this, 
+                        "Reconciliation failed: " + e.getMessage(), 
+                        "Error", 
+                        JOptionPane.ERROR_MESSAGE);
+                });
+            }
+        }).start();
+    }
+    
+    // The rows of the reconciliation tables, built off the EDT
+    private static class ReconciliationRows {
+        private final List<Object[]> matched = new ArrayList<>();
+        private final List<Object[]> unmatched = new ArrayList<>();
+        private final List<Object[]> ambiguous = new ArrayList<>();
+        
+        ReconciliationRows(BankReconciliation.Result result, FxRates fx, String currency) {
+            for (BankReconciliation.Match match : result.getMatched()) {
+                BankReconciliation.StatementLine line = match.getLine();
+                Transaction t = match.getTransaction();
+                matched.add(new Object[]{
+                    line.getLineNumber(),
+                    line.getDate(),
+                    line.getDescription(),
+                    FxRates.format(currency, fx.fromBase(currency, line.getEpochDay(), line.getAmount())),
+                    t.getId(),
+                    t.getDate(),
+                    t.getDescription(),
+                    String.format("%.2f", match.getScore())
+                });
+            }
+            
+            for (BankReconciliation.StatementLine line : result.getUnmatchedStatement()) {
+                unmatched.add(new Object[]{
+                    "Bank line " + line.getLineNumber(),
+                    line.getDate(),
+                    line.getDescription(),
+                    FxRates.format(currency, fx.fromBase(currency, line.getEpochDay(), line.getAmount()))
+                });
+            }
+            for (Transaction t : result.getUnmatchedLedger()) {
+                unmatched.add(new Object[]{
+                    "Ledger " + t.getId(),
+                    t.getDate(),
+                    t.getDescription(),
+                    FxRates.format(currency, fx.fromBase(currency, t.getEpochDay(), BankReconciliation.signedCents(t) / 100.0))
+                });
+            }
+            
+            for (BankReconciliation.Ambiguity ambiguity : result.getAmbiguous()) {
+                BankReconciliation.StatementLine line = ambiguity.getLine();
+                StringBuilder candidates = new StringBuilder();
+                for (Transaction t : ambiguity.getCandidates()) {
+                    if (candidates.length() > 0) {
+                        candidates.append(", ");
+                    }
+                    candidates.append(t.getId());
+                }
+                ambiguous.add(new Object[]{
+                    line.getLineNumber(),
+                    line.getDate(),
+                    line.getDescription(),
+                    FxRates.format(currency, fx.fromBase(currency, line.getEpochDay(), line.getAmount())),
+                    candidates.toString()
+                });
+            }
+        }
+    }
+    
+    private void showReconciliation(File file, int lineCount, List<String> errors, BankReconciliation.Result result,
+                                    ReconciliationRows rows, long elapsed) {
+        matchedModel.setRowCount(0);
+        unmatchedModel.setRowCount(0);
+        ambiguousModel.setRowCount(0);
+        rows.matched.forEach(matchedModel::addRow);
+        rows.unmatched.forEach(unmatchedModel::addRow);
+        rows.ambiguous.forEach(ambiguousModel::addRow);
+        
+        reconciliationSummaryLabel.setText(String.format("%,d matched | %,d bank unmatched | %,d ledger unmatched | %,d ambiguous",
+            result.getMatched().size(), result.getUnmatchedStatement().size(),
+            result.getUnmatchedLedger().size(), result.getAmbiguous().size()));
+        
+        for (String error : errors.subList(0, Math.min(errors.size(), MAX_LOGGED_ANOMALIES))) {
+            logToConsole("Error parsing statement " + error);
+        }
+        if (errors.size() > MAX_LOGGED_ANOMALIES) {
+            logToConsole("... and " + (errors.size() - MAX_LOGGED_ANOMALIES) + " more statement lines that could not be read");
+        }
+        if (result.getUnparsedLedgerCount() > 0) {
+            logToConsole("Skipped " + result.getUnparsedLedgerCount() + " ledger transactions with invalid dates");
+        }
+        logToConsole("Reconciled " + lineCount + " statement lines from " + file.getName() + " in " + elapsed + " ms");
+    }
+    
     private JPanel createCalculationsPanel() {
         JPanel mainPanel = new JPanel(new BorderLayout());
         mainPanel.setBackground(DARK_BG);
@@ -555,8 +1336,14 @@ public class Application extends JFrame {
         calculationsPanel.setBackground(DARK_BG);
         calculationsPanel.setLayout(new BoxLayout(calculationsPanel, BoxLayout.Y_AXIS));
         
+        JPanel calculationsContent = new JPanel();
+        calculationsContent.setBackground(DARK_BG);
+        calculationsContent.setLayout(new BoxLayout(calculationsContent, BoxLayout.Y_AXIS));
+        calculationsContent.add(calculationsPanel);
+        calculationsContent.add(createScenarioPanel());
+        
         // Create a scroll pane for the calculations panel
-        JScrollPane scrollPane = new JScrollPane(calculationsPanel);
+        JScrollPane scrollPane = new JScrollPane(calculationsContent);
         scrollPane.setBorder(BorderFactory.createLineBorder(PRIMARY_COLOR, 1));
         scrollPane.getVerticalScrollBar().setUnitIncrement(16);
         mainPanel.add(scrollPane, BorderLayout.CENTER);
@@ -595,9 +1382,30 @@ public class Application extends JFrame {
         buttonPanel.setBackground(DARK_BG);
         buttonPanel.setBorder(new EmptyBorder(10, 0, 0, 0));
         
+        costingMethodBox = new JComboBox<>(InventoryValuation.CostingMethod.values());
+        costingMethodBox.setBackground(LIGHT_BG);
+        costingMethodBox.setForeground(Color.WHITE);
+        costingMethodBox.setFont(new Font("Arial", Font.PLAIN, 14));
+        costingMethodBox.addActionListener(e -> {
+            if (activeEntity.stockMovements != null) {
+                valueStockMovements(activeEntity);
+            }
+        });
+        
+        JButton loadStockBtn = createStyledButton("LOAD STOCK MOVEMENTS");
+        loadStockBtn.addActionListener(e -> importStockMovements());
+        loadStockBtn.setForeground(Color.BLACK);
+        
+        JButton clearStockBtn = createStyledButton("CLEAR STOCK MOVEMENTS");
+        clearStockBtn.addActionListener(e -> clearStockMovements());
+        clearStockBtn.setForeground(Color.BLACK);
+        
         JButton calculateBtn = createStyledButton("CALCULATE ALL");
         calculateBtn.addActionListener(e -> performAllCalculations());
         calculateBtn.setForeground(Color.BLACK);
+        buttonPanel.add(costingMethodBox);
+        buttonPanel.add(loadStockBtn);
+        buttonPanel.add(clearStockBtn);
         buttonPanel.add(calculateBtn);
         
         mainPanel.add(buttonPanel, BorderLayout.SOUTH);
@@ -605,6 +1413,251 @@ public class Application extends JFrame {
         return mainPanel;
     }
     
+    // Scenario inputs live outside calculationsPanel so CALCULATE ALL leaves them alone
+    private JPanel createScenarioPanel() {
+        JPanel sectionPanel = new JPanel();
+        sectionPanel.setBackground(DARK_BG);
+        sectionPanel.setLayout(new BoxLayout(sectionPanel, BoxLayout.Y_AXIS));
+        sectionPanel.setBorder(new CompoundBorder(
+            new MatteBorder(1, 0, 0, 0, PRIMARY_COLOR),
+            new EmptyBorder(10, 10, 10, 10)
+        ));
+        
+        JLabel sectionTitle = new JLabel("Scenario Analysis (Monte Carlo)");
+        sectionTitle.setFont(new Font("Arial", Font.BOLD, 16));
+        sectionTitle.setForeground(PRIMARY_COLOR);
+        sectionTitle.setBorder(new EmptyBorder(0, 0, 5, 0));
+        sectionTitle.setAlignmentX(Component.LEFT_ALIGNMENT);
+        sectionPanel.add(sectionTitle);
+        
+        JLabel hintLabel = new JLabel("Enter 150 (fixed), 120..180 (uniform), 120/150/180 (triangular) or 150~20 (normal). Blank ledger inputs vary the ledger value by ±10%.");
+        hintLabel.setForeground(Color.LIGHT_GRAY);
+        hintLabel.setFont(new Font("Arial", Font.PLAIN, 12));
+        hintLabel.setBorder(new EmptyBorder(0, 0, 10, 0));
+        hintLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        sectionPanel.add(hintLabel);
+        
+        JPanel inputPanel = new JPanel(new GridLayout(0, 4, 10, 5));
+        inputPanel.setBackground(DARK_BG);
+        inputPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        for (String[] input : SCENARIO_INPUTS) {
+            JLabel label = new JLabel(input[0] + ":");
+            label.setForeground(Color.WHITE);
+            label.setFont(new Font("Arial", Font.PLAIN, 14));
+            JTextField field = createStyledTextField();
+            field.setText(input[1]);
+            scenarioInputFields.put(input[0], field);
+            inputPanel.add(label);
+            inputPanel.add(field);
+        }
+        sectionPanel.add(inputPanel);
+        
+        JPanel runPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 10));
+        runPanel.setBackground(DARK_BG);
+        runPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        
+        JLabel iterationsLabel = new JLabel("Simulations:");
+        iterationsLabel.setForeground(Color.WHITE);
+        scenarioIterationsSpinner = new JSpinner(new SpinnerNumberModel(200000, 10000, 5000000, 50000));
+        scenarioIterationsSpinner.setBorder(new LineBorder(PRIMARY_COLOR, 1));
+        
+        JButton runButton = createStyledButton("RUN SCENARIOS");
+        runButton.addActionListener(e -> runScenarios(runButton));
+        runButton.setForeground(Color.BLACK);
+        
+        JLabel chartLabel = new JLabel("Chart:");
+        chartLabel.setForeground(Color.WHITE);
+        scenarioOutputBox = new JComboBox<>(SCENARIO_OUTPUTS);
+        scenarioOutputBox.setBackground(LIGHT_BG);
+        scenarioOutputBox.setForeground(Color.WHITE);
+        scenarioOutputBox.addActionListener(e -> showScenarioOutput());
+        
+        scenarioStatusLabel = new JLabel(" ");
+        scenarioStatusLabel.setForeground(SECONDARY_COLOR);
+        
+        runPanel.add(iterationsLabel);
+        runPanel.add(scenarioIterationsSpinner);
+        runPanel.add(runButton);
+        runPanel.add(chartLabel);
+        runPanel.add(scenarioOutputBox);
+        runPanel.add(scenarioStatusLabel);
+        sectionPanel.add(runPanel);
+        
+        String[] bandColumns = new String[ScenarioEngine.PERCENTILES.length + 3];
+        bandColumns[0] = "OUTPUT";
+        bandColumns[1] = "MEAN";
+        for (int i = 0; i < ScenarioEngine.PERCENTILES.length; i++) {
+            bandColumns[i + 2] = String.format("P%.0f", ScenarioEngine.PERCENTILES[i]);
+        }
+        bandColumns[bandColumns.length - 1] = "UNDEFINED";
+        scenarioBandsModel = new DefaultTableModel(bandColumns, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        scenarioSensitivityModel = new DefaultTableModel(new String[]{"INPUT (P10 / P90)", "LOW INPUT", "HIGH INPUT", "OUTPUT AT LOW", "OUTPUT AT HIGH", "SWING"}, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        
+        JTable bandsTable = new JTable(scenarioBandsModel);
+        styleTable(bandsTable);
+        JScrollPane bandsScroll = new JScrollPane(bandsTable);
+        bandsScroll.setBorder(BorderFactory.createLineBorder(PRIMARY_COLOR, 1));
+        bandsScroll.setPreferredSize(new Dimension(600, 130));
+        bandsScroll.setAlignmentX(Component.LEFT_ALIGNMENT);
+        sectionPanel.add(bandsScroll);
+        
+        JTable sensitivityTable = new JTable(scenarioSensitivityModel);
+        styleTable(sensitivityTable);
+        JScrollPane sensitivityScroll = new JScrollPane(sensitivityTable);
+        sensitivityScroll.setBorder(BorderFactory.createLineBorder(PRIMARY_COLOR, 1));
+        sensitivityScroll.setPreferredSize(new Dimension(600, 180));
+        sensitivityScroll.setAlignmentX(Component.LEFT_ALIGNMENT);
+        sectionPanel.add(Box.createVerticalStrut(10));
+        sectionPanel.add(sensitivityScroll);
+        
+        scenarioHistogram = new DefaultCategoryDataset();
+        JFreeChart chart = ChartFactory.createBarChart("Scenario Distribution", "", "Simulations", scenarioHistogram);
+        CategoryPlot plot = chart.getCategoryPlot();
+        plot.setBackgroundPaint(DARK_BG);
+        plot.setRangeGridlinePaint(Color.GRAY);
+        plot.getRenderer().setSeriesPaint(0, PRIMARY_COLOR);
+        plot.getDomainAxis().setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+        plot.getDomainAxis().setTickLabelPaint(Color.WHITE);
+        plot.getRangeAxis().setTickLabelPaint(Color.WHITE);
+        plot.getRangeAxis().setLabelPaint(Color.WHITE);
+        chart.setBackgroundPaint(DARK_BG);
+        chart.getTitle().setPaint(SECONDARY_COLOR);
+        
+        ChartPanel chartPanel = new ChartPanel(chart, true);
+        chartPanel.setBackground(DARK_BG);
+        chartPanel.setBorder(BorderFactory.createLineBorder(PRIMARY_COLOR, 1));
+        chartPanel.setPreferredSize(new Dimension(600, 320));
+        chartPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        sectionPanel.add(Box.createVerticalStrut(10));
+        sectionPanel.add(chartPanel);
+        
+        return sectionPanel;
+    }
+    
+    private void runScenarios(JButton runButton) {
+        String[] names = scenarioInputFields.keySet().toArray(new String[0]);
+        ScenarioEngine.Distribution[] distributions = new ScenarioEngine.Distribution[names.length];
+        
+        // Blank ledger-derived inputs vary around the current ledger figures, in the reporting currency
+        LedgerTotals totals = reportingTotals();
+        // COGS from the same stock figures as the calculations panel
+        EntityLedgers.InventoryScan inventory = inventoryFigures();
+        double cogs = fx.fromBase(reportingCurrency, LocalDate.now().toEpochDay(),
+            calculateCOGS(inventory.getOpening(), inventory.getPurchases(), inventory.getClosing()));
+        Map<String, Double> ledgerValues = new HashMap<>();
+        ledgerValues.put("Total Revenue", totals.getIncome());
+        ledgerValues.put("Total Expenses", totals.getExpense());
+        ledgerValues.put("Cost of Goods Sold", cogs);
+        
+        try {
+            for (int i = 0; i < names.length; i++) {
+                String text = scenarioInputFields.get(names[i]).getText().trim();
+                if (text.isEmpty() && ledgerValues.containsKey(names[i])) {
+                    double value = ledgerValues.get(names[i]);
+                    distributions[i] = ScenarioEngine.Distribution.uniform(value * 0.9, value * 1.1);
+                } else {
+                    distributions[i] = ScenarioEngine.Distribution.parse(text);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        // Inputs: cost price, selling price, fixed costs, unit price, unit variable cost, revenue, expenses, COGS,
+        // liabilities, owner's equity
+        ScenarioEngine.Model model = (in, out) -> {
+            out[0] = in[3] > in[4] ? calculateBreakEvenSales(in[2], in[3], in[4]) : Double.POSITIVE_INFINITY;
+            out[1] = calculateMarkupPercentage(in[0], in[1]);
+            out[2] = calculateGrossProfitMargin(calculateGrossProfit(in[5], in[7]), in[5]);
+            double netIncome = calculateNetIncome(in[5], in[6]);
+            out[3] = calculateNetProfitMargin(netIncome, in[5]);
+            out[4] = netIncome;
+            out[5] = calculateAssets(in[8], in[9]);
+        };
+        
+        int iterations = (int) scenarioIterationsSpinner.getValue();
+        ScenarioEngine engine = new ScenarioEngine(names, distributions, SCENARIO_OUTPUTS, model);
+        runButton.setEnabled(false);
+        scenarioStatusLabel.setText(String.format("Running %,d simulations...", iterations));
+        
+        new Thread(() -> {
+            long start = System.currentTimeMillis();
+            ScenarioEngine.Result result = engine.run(iterations, System.nanoTime());
+            long elapsed = System.currentTimeMillis() - start;
+            SwingUtilities.invokeLater(() -> {
+                runButton.setEnabled(true);
+                scenarioResult = result;
+                scenarioStatusLabel.setText(String.format("%,d simulations in %,d ms", iterations, elapsed));
+                
+                scenarioBandsModel.setRowCount(0);
+                for (ScenarioEngine.OutputSummary output : result.getOutputs()) {
+                    Object[] row = new Object[ScenarioEngine.PERCENTILES.length + 3];
+                    row[0] = output.getName();
+                    row[1] = formatScenarioValue(output.getName(), output.getMean());
+                    for (int i = 0; i < ScenarioEngine.PERCENTILES.length; i++) {
+                        row[i + 2] = formatScenarioValue(output.getName(), output.getPercentiles()[i]);
+                    }
+                    row[row.length - 1] = String.format("%,d", output.getUndefinedCount());
+                    scenarioBandsModel.addRow(row);
+                }
+                showScenarioOutput();
+                logToConsole("Scenario analysis completed: " + scenarioStatusLabel.getText());
+            });
+        }).start();
+    }
+    
+    private void showScenarioOutput() {
+        if (scenarioResult == null) {
+            return;
+        }
+        int output = scenarioOutputBox.getSelectedIndex();
+        ScenarioEngine.OutputSummary summary = scenarioResult.getOutputs()[output];
+        
+        scenarioSensitivityModel.setRowCount(0);
+        List<ScenarioEngine.Sensitivity> sensitivities = new ArrayList<>(scenarioResult.getSensitivities());
+        sensitivities.sort((a, b) -> Double.compare(b.getSwing(output), a.getSwing(output)));
+        for (ScenarioEngine.Sensitivity s : sensitivities) {
+            scenarioSensitivityModel.addRow(new Object[]{
+                s.getInput(),
+                String.format("%,.2f", s.getLowInput()),
+                String.format("%,.2f", s.getHighInput()),
+                formatScenarioValue(summary.getName(), s.getLowOutput(output)),
+                formatScenarioValue(summary.getName(), s.getHighOutput(output)),
+                formatScenarioValue(summary.getName(), s.getSwing(output))
+            });
+        }
+        
+        scenarioHistogram.clear();
+        long[] histogram = summary.getHistogram();
+        for (int bin = 0; bin < histogram.length; bin++) {
+            scenarioHistogram.addValue(histogram[bin], summary.getName(), summary.getBinLabel(bin));
+        }
+    }
+    
+    private String formatScenarioValue(String output, double value) {
+        if (!Double.isFinite(value)) {
+            return "n/a";
+        }
+        if (output.endsWith("%")) {
+            return String.format("%,.2f%%", value);
+        }
+        if (output.equals("Break-Even Units")) {
+            return String.format("%,.2f units", value);
+        }
+        return money(value);
+    }
+    
     private void addCalculationSection(String title, String[] formulas) {
         JPanel sectionPanel = new JPanel();
         sectionPanel.setBackground(DARK_BG);
@@ -653,37 +1706,47 @@ public class Application extends JFrame {
         calculationsPanel.add(sectionPanel);
     }
     
-    private void performAllCalculations() {
-        // Get all inventory transactions
-        double openingInventory = 0;
-        double purchases = 0;
-        double closingInventory = 0;
-        
-        for (Transaction t : transactions) {
-            if (t.getType().equals("Inventory")) {
-                if (t.getDescription().contains("Opening")) {
-                    openingInventory = t.getAmount();
-                } else if (t.getDescription().contains("Purchase")) {
-                    purchases = t.getAmount();
-                } else if (t.getDescription().contains("Closing")) {
-                    closingInventory = t.getAmount();
-                }
-            }
+    // Opening stock, purchases and closing stock of the active entity in ZAR
+    private EntityLedgers.InventoryScan inventoryFigures() {
+        if (activeEntity.inventoryValuation != null) {
+            // Lot-based valuation of the loaded stock movements
+            EntityLedgers.InventoryScan valued = new EntityLedgers.InventoryScan();
+            valued.opening = activeEntity.inventoryValuation.getOpeningValue();
+            valued.purchases = activeEntity.inventoryValuation.getPurchases();
+            valued.closing = activeEntity.inventoryValuation.getClosingValue();
+            return valued;
         }
-        
-        // Calculate total revenue and expenses
-        double totalRevenue = 0;
-        double totalExpenses = 0;
-        double salesRevenue = 0;
-        
+        if (offHeapLedger != null || closes.isClosed()) {
+            // Only the open period's rows; the stock opens at the last close's value
+            List<Transaction> rows = offHeapLedger != null
+                ? EntityLedgers.openRows(offHeapInventory, closes, "Inventory") : activeEntity.openRows("Inventory");
+            return EntityLedgers.scanInventory(rows, closes.getCarriedInventory());
+        }
+        // Fall back to the inventory transactions in the ledger
+        EntityLedgers.InventoryScan scan = new EntityLedgers.InventoryScan();
+        int row = 0;
         for (Transaction t : transactions) {
-            if (t.getType().equals("Income")) {
-                totalRevenue += t.getAmount();
-                salesRevenue += t.getAmount();
-            } else if (t.getType().equals("Expense")) {
-                totalExpenses += t.getAmount();
-            }
+            scan.add(row++, t);
         }
+        return scan;
+    }
+    
+    private void performAllCalculations() {
+        EntityLedgers.InventoryScan inventory = inventoryFigures();
+        double openingInventory = inventory.getOpening();
+        double purchases = inventory.getPurchases();
+        double closingInventory = inventory.getClosing();
+        
+        // Calculate total revenue and expenses, in the reporting currency; stock
+        // and receivables at today's rate
+        LedgerTotals totals = reportingTotals();
+        LocalDate today = LocalDate.now();
+        double rate = fx.fromBase(reportingCurrency, today.toEpochDay(), 1);
+        receivables.advanceTo(today);
+        LocalDate turnoverFrom = today.minusDays(Receivables.TURNOVER_DAYS - 1);
+        EntityLedgers.Summary figures = new EntityLedgers.Summary(activeEntity.getEntity(), totals,
+            openingInventory * rate, purchases * rate, closingInventory * rate,
+            receivables.creditSales(turnoverFrom, today) * rate, receivables.averageBalance(turnoverFrom, today) * rate);
         
         // Calculate all formulas and update UI
         for (Component comp : calculationsPanel.getComponents()) {
@@ -698,70 +1761,7 @@ public class Application extends JFrame {
                                 String calculationName = field.getName();
                                 
                                 try {
-                                    double result = 0;
-                                    String formattedResult = "";
-                                    
-                                    switch (calculationName) {
-                                        case "Net Income":
-                                            result = calculateNetIncome(totalRevenue, totalExpenses);
-                                            formattedResult = String.format("R%,.2f", result);
-                                            break;
-                                        case "Gross Profit":
-                                            double cogs = calculateCOGS(openingInventory, purchases, closingInventory);
-                                            result = calculateGrossProfit(salesRevenue, cogs);
-                                            formattedResult = String.format("R%,.2f", result);
-                                            break;
-                                        case "Gross Profit Margin":
-                                            double cogsForMargin = calculateCOGS(openingInventory, purchases, closingInventory);
-                                            double grossProfit = calculateGrossProfit(salesRevenue, cogsForMargin);
-                                            result = calculateGrossProfitMargin(grossProfit, salesRevenue);
-                                            formattedResult = String.format("%,.2f%%", result);
-                                            break;
-                                        case "Net Profit Margin":
-                                            double netIncome = calculateNetIncome(totalRevenue, totalExpenses);
-                                            result = calculateNetProfitMargin(netIncome, totalRevenue);
-                                            formattedResult = String.format("%,.2f%%", result);
-                                            break;
-                                        case "Markup %":
-                                            double costPrice = 100;
-                                            double sellingPrice = 150;
-                                            result = calculateMarkupPercentage(costPrice, sellingPrice);
-                                            formattedResult = String.format("%,.2f%%", result);
-                                            break;
-                                        case "COGS":
-                                            result = calculateCOGS(openingInventory, purchases, closingInventory);
-                                            formattedResult = String.format("R%,.2f", result);
-                                            break;
-                                        case "Inventory Turnover":
-                                            double cogsForTurnover = calculateCOGS(openingInventory, purchases, closingInventory);
-                                            double avgInventory = (openingInventory + closingInventory) / 2;
-                                            result = calculateInventoryTurnover(cogsForTurnover, avgInventory);
-                                            formattedResult = String.format("%,.2f", result);
-                                            break;
-                                        case "AR Turnover":
-                                            double netCreditSales = salesRevenue * 0.8;
-                                            double avgAccountsReceivable = 2000;
-                                            result = calculateARTurnover(netCreditSales, avgAccountsReceivable);
-                                            formattedResult = String.format("%,.2f", result);
-                                            break;
-                                        case "Break-Even Sales":
-                                            double fixedCosts = 5000;
-                                            double sellingPricePerUnit = 50;
-                                            double variableCostPerUnit = 30;
-                                            result = calculateBreakEvenSales(fixedCosts, sellingPricePerUnit, variableCostPerUnit);
-                                            formattedResult = String.format("%,.2f units", result);
-                                            break;
-                                        case "Assets":
-                                            double liabilities = 10000;
-                                            double ownersEquity = 15000;
-                                            result = calculateAssets(liabilities, ownersEquity);
-                                            formattedResult = String.format("R%,.2f", result);
-                                            break;
-                                        default:
-                                            formattedResult = "N/A";
-                                    }
-                                    
-                                    field.setText(formattedResult);
+                                    field.setText(formatCalculation(calculationName, figures));
                                 } catch (Exception e) {
                                     field.setText("Error in calculation");
                                     logToConsole("Error calculating " + calculationName + ": " + e.getMessage());
@@ -776,6 +1776,203 @@ public class Application extends JFrame {
         logToConsole("All financial calculations completed");
     }
     
+    // Base value of a scenario input (the mode, midpoint or mean) as entered on
+    // the scenario panel; its default before the panel is opened or while the
+    // entry does not parse
+    private double scenarioBase(String input) {
+        String text = null;
+        for (String[] defaults : SCENARIO_INPUTS) {
+            if (defaults[0].equals(input)) {
+                text = defaults[1];
+            }
+        }
+        JTextField field = scenarioInputFields.get(input);
+        if (field != null && !field.getText().trim().isEmpty()) {
+            try {
+                return ScenarioEngine.Distribution.parse(field.getText().trim()).base();
+            } catch (IllegalArgumentException e) {
+                // Falls back to the default
+            }
+        }
+        return ScenarioEngine.Distribution.parse(text).base();
+    }
+    
+    // One result of the calculations panel, from an entity's or the group's
+    // figures in the reporting currency
+    private String formatCalculation(String calculationName, EntityLedgers.Summary figures) {
+        LedgerTotals totals = figures.getTotals();
+        double openingInventory = figures.getOpeningInventory();
+        double purchases = figures.getPurchases();
+        double closingInventory = figures.getClosingInventory();
+        double totalRevenue = totals.getIncome();
+        double totalExpenses = totals.getExpense();
+        double salesRevenue = totals.getIncome();
+        double result;
+        
+        switch (calculationName) {
+            case "Net Income":
+                result = calculateNetIncome(totalRevenue, totalExpenses);
+                return money(result);
+            case "Gross Profit":
+                double cogs = calculateCOGS(openingInventory, purchases, closingInventory);
+                result = calculateGrossProfit(salesRevenue, cogs);
+                return money(result);
+            case "Gross Profit Margin":
+                double cogsForMargin = calculateCOGS(openingInventory, purchases, closingInventory);
+                double grossProfit = calculateGrossProfit(salesRevenue, cogsForMargin);
+                result = calculateGrossProfitMargin(grossProfit, salesRevenue);
+                return String.format("%,.2f%%", result);
+            case "Net Profit Margin":
+                double netIncome = calculateNetIncome(totalRevenue, totalExpenses);
+                result = calculateNetProfitMargin(netIncome, totalRevenue);
+                return String.format("%,.2f%%", result);
+            case "Markup %":
+                double costPrice = scenarioBase("Cost Price");
+                double sellingPrice = scenarioBase("Selling Price");
+                result = calculateMarkupPercentage(costPrice, sellingPrice);
+                return String.format("%,.2f%%", result);
+            case "COGS":
+                result = calculateCOGS(openingInventory, purchases, closingInventory);
+                return money(result);
+            case "Inventory Turnover":
+                double cogsForTurnover = calculateCOGS(openingInventory, purchases, closingInventory);
+                double avgInventory = (openingInventory + closingInventory) / 2;
+                result = calculateInventoryTurnover(cogsForTurnover, avgInventory);
+                return String.format("%,.2f", result);
+            case "AR Turnover":
+                // Invoices and average receivable of the receivables subledger over the last year
+                double netCreditSales = figures.getCreditSales();
+                double avgAccountsReceivable = figures.getAverageReceivable();
+                if (avgAccountsReceivable <= 0) {
+                    return "N/A";
+                }
+                result = calculateARTurnover(netCreditSales, avgAccountsReceivable);
+                return String.format("%,.2f", result);
+            case "Break-Even Sales":
+                double fixedCosts = scenarioBase("Fixed Costs");
+                double sellingPricePerUnit = scenarioBase("Selling Price per Unit");
+                double variableCostPerUnit = scenarioBase("Variable Cost per Unit");
+                if (sellingPricePerUnit <= variableCostPerUnit) {
+                    return "N/A";
+                }
+                result = calculateBreakEvenSales(fixedCosts, sellingPricePerUnit, variableCostPerUnit);
+                return String.format("%,.2f units", result);
+            case "Assets":
+                double liabilities = scenarioBase("Liabilities");
+                double ownersEquity = scenarioBase("Owner's Equity");
+                result = calculateAssets(liabilities, ownersEquity);
+                return money(result);
+            default:
+                return "N/A";
+        }
+    }
+    
+    private void importStockMovements() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Load Stock Movements (Date,Item,Movement,Quantity,UnitCost)");
+        
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        
+        activeEntity.stockMovements = fileChooser.getSelectedFile();
+        valueStockMovements(activeEntity);
+    }
+    
+    // Values an entity's movement file with the selected costing method. The
+    // file is read again rather than held in memory, so a change of method
+    // costs one more pass but memory stays bounded by the open lots.
+    private void valueStockMovements(EntityLedgers.Shard entity) {
+        File file = entity.stockMovements;
+        InventoryValuation.CostingMethod method = (InventoryValuation.CostingMethod) costingMethodBox.getSelectedItem();
+        logToConsole("Valuing stock movements from " + file.getName() + " using " + method + "...");
+        
+        // Movement files can be millions of lines, so value them off the EDT
+        new Thread(() -> {
+            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                InventoryValuation.Result result = InventoryValuation.fromCSV(br, method).getResult();
+                SwingUtilities.invokeLater(() -> {
+                    // Cleared, replaced or re-valued with another method meanwhile
+                    if (entity.stockMovements != file || costingMethodBox.getSelectedItem() != method) {
+                        return;
+                    }
+                    entity.inventoryValuation = result;
+                    logToConsole(String.format("Valued %,d movements across %,d items (%s): COGS R%,.2f, closing stock R%,.2f",
+                        result.getMovementCount(), result.getItemCount(), result.getMethod(),
+                        result.getCOGS(), result.getClosingValue()));
+                    if (result.getRejectedCount() > 0) {
+                        logToConsole("Skipped " + result.getRejectedCount() + " malformed stock movement lines");
+                    }
+                    if (result.getOutOfOrderCount() > 0) {
+                        logToConsole("Warning: " + result.getOutOfOrderCount() + " stock movements were not in date order");
+                    }
+                    if (result.getShortfallQuantity() > 0) {
+                        logToConsole(String.format("Warning: sales exceeded stock on hand by %,.2f units", result.getShortfallQuantity()));
+                    }
+                    if (entity == activeEntity) {
+                        performAllCalculations();
+                    }
+                });
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> {
+                    logToConsole("Stock valuation failed: " + e.getMessage());
+                    JOptionPane.showMessageDialog(this, 
+                        "Stock valuation failed: " + e.getMessage(), 
+                        "Error", 
+                        JOptionPane.ERROR_MESSAGE);
+                });
+            }
+        }).start();
+    }
+    
+    // Back to the inventory rows of the ledger
+    private void clearStockMovements() {
+        if (activeEntity.stockMovements == null) {
+            logToConsole("No stock movements loaded for " + activeEntity.getEntity());
+            return;
+        }
+        logToConsole("Cleared stock movements from " + activeEntity.stockMovements.getName());
+        activeEntity.stockMovements = null;
+        activeEntity.inventoryValuation = null;
+        performAllCalculations();
+    }
+    
+    private void loadCategoryRules() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Load Category Rules (Keyword,Type,VatRate)");
+        
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        
+        File file = fileChooser.getSelectedFile();
+        new Thread(() -> {
+            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                List<String> errors = new ArrayList<>();
+                CategoryRules rules = CategoryRules.fromCSV(br, errors::add);
+                SwingUtilities.invokeLater(() -> {
+                    categoryRules = rules;
+                    logToConsole(String.format("Loaded %,d category rules from %s (%,d automaton states)",
+                        rules.size(), file.getName(), rules.getStateCount()));
+                    for (String line : errors.subList(0, Math.min(errors.size(), MAX_LOGGED_ANOMALIES))) {
+                        logToConsole("Invalid rule: " + line);
+                    }
+                    if (errors.size() > MAX_LOGGED_ANOMALIES) {
+                        logToConsole("... and " + (errors.size() - MAX_LOGGED_ANOMALIES) + " more invalid rules");
+                    }
+                });
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> {
+                    logToConsole("Loading category rules failed: " + e.getMessage());
+                    JOptionPane.showMessageDialog(this, 
+                        "Loading category rules failed: " + e.getMessage(), 
+                        "Error", 
+                        JOptionPane.ERROR_MESSAGE);
+                });
+            }
+        }, "category-rules").start();
+    }
+    
     private void importFromCSV() {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("Import Transactions");
@@ -787,6 +1984,12 @@ public class Application extends JFrame {
                 String line;
                 boolean headerSkipped = false;
                 int importedCount = 0;
+                int flaggedCount = 0;
+                int categorizedCount = 0;
+                int recurringVersion = recurring.getModCount();
+                // In-memory rows go into the ledger together, as one undo step
+                LedgerBatch batch = offHeapLedger == null ? activeEntity.batch("Import " + file.getName()) : null;
+                Map<String, String> flagged = new LinkedHashMap<>();
                 
                 while ((line = br.readLine()) != null) {
                     if (!headerSkipped) {
@@ -795,25 +1998,72 @@ public class Application extends JFrame {
                     }
                     
                     String[] values = line.split(",");
-                    if (values.length >= 6) {
+                    // Type and VAT rate may be left out when a category rule supplies them
+                    if (values.length >= 6 || (values.length >= 4 && categoryRules.size() > 0)) {
                         try {
                             String id = values[0].trim();
                             String date = values[1].trim();
                             String description = values[2].trim();
                             double amount = Double.parseDouble(values[3].trim());
-                            String type = values[4].trim();
-                            int vatRate = Integer.parseInt(values[5].trim());
+                            String type;
+                            int vatRate;
+                            CategoryRules.Rule rule = categoryRules.match(description);
+                            if (rule != null) {
+                                type = rule.getType();
+                                vatRate = rule.getVatRate();
+                                categorizedCount++;
+                            } else if (values.length >= 6) {
+                                type = values[4].trim();
+                                vatRate = Integer.parseInt(values[5].trim());
+                            } else {
+                                throw new IllegalArgumentException("No category rule matches " + description);
+                            }
                             
-                            transactions.add(new Transaction(id, date, description, amount, type, vatRate));
+                            // A Currency column books the amount in ZAR at the rate of its date
+                            Transaction t = fx.book(id, date, description, amount, type, vatRate, FxRates.currencyOf(values, 6));
+                            amount = t.getAmount();
+                            if (closes.isLocked(t)) {
+                                logToConsole("Skipped, dated in the period closed through " + closes.getClosedThrough() + ": " + line);
+                                continue;
+                            }
+                            // Scored against the rows before it; in memory, those already in the
+                            // ledger, off-heap also the earlier lines of this file
+                            String reason = anomalies.score(type, amount);
+                            if (batch != null) {
+                                batch.add(t);
+                            } else {
+                                offHeapLedger.append(t);
+                                offHeapRowAdded(t, ChangeFeed.Kind.ADD);
+                            }
+                            if (reason != null) {
+                                flagged.put(id, reason);
+                            }
                             importedCount++;
-                        } catch (NumberFormatException e) {
+                        } catch (IllegalArgumentException e) {
                             logToConsole("Error parsing line: " + line);
                         }
                     }
                 }
                 
+                if (batch != null) {
+                    batch.apply();
+                }
+                // Flagged once the rows are in the ledger
+                for (Map.Entry<String, String> entry : flagged.entrySet()) {
+                    anomalies.flag(entry.getKey(), entry.getValue());
+                    if (++flaggedCount <= MAX_LOGGED_ANOMALIES) {
+                        logToConsole("ANOMALY: " + entry.getKey() + " " + entry.getValue());
+                    }
+                }
+                ledgerRowsAppended(recurringVersion);
                 refreshTransactions();
                 logToConsole("Imported " + importedCount + " transactions from: " + file.getName());
+                if (categorizedCount > 0) {
+                    logToConsole(String.format("Categorized %,d of them by rule", categorizedCount));
+                }
+                if (flaggedCount > MAX_LOGGED_ANOMALIES) {
+                    logToConsole("... and " + (flaggedCount - MAX_LOGGED_ANOMALIES) + " more unusual amounts, shown in red in the table");
+                }
                 JOptionPane.showMessageDialog(this, 
                     "Successfully imported " + importedCount + " transactions", 
                     "Import Complete", 
@@ -957,6 +2207,26 @@ public class Application extends JFrame {
         table.getTableHeader().setFont(new Font("Arial", Font.BOLD, 14));
     }
     
+    // Shows rows flagged on ingest in red, with the reason as a tooltip
+    private void highlightAnomalies(JTable table) {
+        table.setDefaultRenderer(Object.class, new DefaultTableCellRenderer() {
+            @Override
+            public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                           boolean hasFocus, int row, int column) {
+                super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+                String reason = anomalies.getFlagCount() == 0 ? null
+                    : anomalies.getFlag(String.valueOf(table.getModel().getValueAt(row, 0)));
+                // setForeground also becomes the colour of unselected cells painted
+                // later, so it is set for every unselected cell, not just flagged ones
+                if (!isSelected) {
+                    setForeground(reason != null ? NEGATIVE_COLOR : table.getForeground());
+                }
+                setToolTipText(reason);
+                return this;
+            }
+        });
+    }
+    
     private void logToConsole(String message) {
         SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
         String timestamp = timeFormat.format(new Date());
@@ -965,12 +2235,17 @@ public class Application extends JFrame {
     }
     
     private void showAddTransactionDialog() {
-        JPanel panel = new JPanel(new GridLayout(6, 2, 10, 10));
+        showAddTransactionDialog(null);
+    }
+    
+    // With an occurrence, the dialog is prefilled from it and saving materializes it in the ledger
+    private void showAddTransactionDialog(Transaction occurrence) {
+        JPanel panel = new JPanel(new GridLayout(7, 2, 10, 10));
         panel.setBackground(DARK_BG);
         panel.setBorder(new EmptyBorder(20, 20, 20, 20));
         
         JTextField idField = createStyledTextField();
-        idField.setText("TRX-" + (transactions.size() + 1001));
+        idField.setText(occurrence != null ? occurrence.getId() : "TRX-" + (ledgerSize() + 1001));
         idField.setEditable(false);
         
         JTextField dateField = createStyledTextField();
@@ -980,24 +2255,51 @@ public class Application extends JFrame {
         JTextField amountField = createStyledTextField();
         amountField.setText("R");
         
-        JComboBox<String> typeField = new JComboBox<>(new String[]{"Income", "Expense", "Inventory"});
+        JComboBox<String> typeField = new JComboBox<>(CategoryRules.TYPES);
         typeField.setBackground(LIGHT_BG);
         typeField.setForeground(Color.WHITE);
         typeField.setFont(new Font("Arial", Font.PLAIN, 14));
         
-        JSpinner vatSpinner = new JSpinner(new SpinnerNumberModel(15, 0, 20, 1));
+        JSpinner vatSpinner = new JSpinner(new SpinnerNumberModel(15, 0, CategoryRules.MAX_VAT_RATE, 1));
         vatSpinner.setBackground(LIGHT_BG);
         vatSpinner.setForeground(Color.WHITE);
         vatSpinner.setBorder(new LineBorder(PRIMARY_COLOR, 1));
         
+        JComboBox<String> currencyField = new JComboBox<>(fx.getCurrencies().toArray(new String[0]));
+        currencyField.setBackground(LIGHT_BG);
+        currencyField.setForeground(Color.WHITE);
+        currencyField.setFont(new Font("Arial", Font.PLAIN, 14));
+        
+        // A matching category rule fills in the type and VAT rate, which can still be changed
+        descField.addFocusListener(new FocusAdapter() {
+            @Override
+            public void focusLost(FocusEvent e) {
+                CategoryRules.Rule rule = categoryRules.match(descField.getText());
+                if (rule != null) {
+                    typeField.setSelectedItem(rule.getType());
+                    vatSpinner.setValue(rule.getVatRate());
+                }
+            }
+        });
+        
+        if (occurrence != null) {
+            dateField.setText(occurrence.getDate());
+            descField.setText(occurrence.getDescription());
+            amountField.setText(String.format("R%.2f", occurrence.getAmount()));
+            typeField.setSelectedItem(occurrence.getType());
+            vatSpinner.setValue(Math.max(0, Math.min(20, occurrence.getVatRate())));
+        }
+        
         panel.add(new JLabel("Transaction ID:"));
         panel.add(idField);
         panel.add(new JLabel("Date (YYYY-MM-DD):"));
         panel.add(dateField);
         panel.add(new JLabel("Description:"));
         panel.add(descField);
-        panel.add(new JLabel("Amount (ZAR):"));
+        panel.add(new JLabel("Amount:"));
         panel.add(amountField);
+        panel.add(new JLabel("Currency:"));
+        panel.add(currencyField);
         panel.add(new JLabel("Type:"));
         panel.add(typeField);
         panel.add(new JLabel("VAT Rate (%):"));
@@ -1010,7 +2312,7 @@ public class Application extends JFrame {
         }
         
         int result = JOptionPane.showConfirmDialog(
-            this, panel, "Add Transaction",
+            this, panel, occurrence != null ? "Edit Recurring Transaction" : "Add Transaction",
             JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE
         );
         
@@ -1026,93 +2328,804 @@ public class Application extends JFrame {
                 String type = (String) typeField.getSelectedItem();
                 int vatRate = (int) vatSpinner.getValue();
                 
-                transactions.add(new Transaction(id, date, description, amount, type, vatRate));
+                // Booked in ZAR at the rate of its date
+                String currency = (String) currencyField.getSelectedItem();
+                Transaction t = fx.book(id, date, description, amount, type, vatRate, currency);
+                amount = t.getAmount();
+                closes.checkOpen(t);
+                if (occurrence != null) {
+                    closes.checkOpen(occurrence);
+                }
+                int recurringVersion = recurring.getModCount();
+                transactions.beginStep((occurrence != null ? "Edit " : "Add ") + id);
+                String reason = anomalies.score(type, amount);
+                ChangeFeed.Kind kind = occurrence != null ? ChangeFeed.Kind.EDIT : ChangeFeed.Kind.ADD;
+                if (offHeapLedger != null) {
+                    offHeapLedger.append(t);
+                    offHeapRowAdded(t, kind);
+                } else {
+                    transactions.add(t);
+                    activeEntity.rowAdded(t, kind);
+                }
+                ledgerRowsAppended(recurringVersion);
                 refreshTransactions();
-                logToConsole("Added transaction: " + description + " (R" + amount + ") with VAT " + vatRate + "%");
+                if (occurrence != null) {
+                    logToConsole("Materialized recurring transaction " + id + ": " + description + " (R" + amount + ")");
+                } else {
+                    logToConsole("Added transaction: " + description + " (R" + amount + (t.isForeign()
+                        ? String.format(", %s %.2f", currency, t.getForeignAmount()) : "") + ") with VAT " + vatRate + "%");
+                }
+                if (reason != null) {
+                    anomalies.flag(id, reason);
+                    logToConsole("ANOMALY: " + id + " " + reason);
+                }
             } catch (NumberFormatException e) {
                 JOptionPane.showMessageDialog(this, "Invalid amount format", "Error", JOptionPane.ERROR_MESSAGE);
+            } catch (IllegalArgumentException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             }
         }
     }
     
-    private void deleteSelectedTransaction() {
-        int selectedRow = transactionsTable.getSelectedRow();
-        if (selectedRow != -1) {
-            String id = (String) transactionsTable.getValueAt(selectedRow, 0);
-            transactions.remove(selectedRow);
-            refreshTransactions();
-            logToConsole("Deleted transaction: " + id);
-        } else {
-            JOptionPane.showMessageDialog(this, "No transaction selected", "Error", JOptionPane.ERROR_MESSAGE);
-        }
-    }
-    
-    private void exportToCSV() {
-        JFileChooser fileChooser = new JFileChooser();
-        fileChooser.setDialogTitle("Export Transactions");
+    private void showRecurringTemplateDialog() {
+        JPanel panel = new JPanel(new GridLayout(8, 2, 10, 10));
+        panel.setBackground(DARK_BG);
+        panel.setBorder(new EmptyBorder(20, 20, 20, 20));
         
-        if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-            File file = fileChooser.getSelectedFile();
-            if (!file.getName().toLowerCase().endsWith(".csv")) {
-                file = new File(file.getAbsolutePath() + ".csv");
+        JTextField idField = createStyledTextField();
+        idField.setText(recurring.nextId());
+        idField.setEditable(false);
+        
+        JTextField descField = createStyledTextField();
+        JTextField amountField = createStyledTextField();
+        amountField.setText("R");
+        
+        JComboBox<String> typeField = new JComboBox<>(CategoryRules.TYPES);
+        typeField.setBackground(LIGHT_BG);
+        typeField.setForeground(Color.WHITE);
+        typeField.setFont(new Font("Arial", Font.PLAIN, 14));
+        
+        JSpinner vatSpinner = new JSpinner(new SpinnerNumberModel(15, 0, CategoryRules.MAX_VAT_RATE, 1));
+        vatSpinner.setBackground(LIGHT_BG);
+        vatSpinner.setForeground(Color.WHITE);
+        vatSpinner.setBorder(new LineBorder(PRIMARY_COLOR, 1));
+        
+        JComboBox<RecurringSchedule.Frequency> frequencyField = new JComboBox<>(RecurringSchedule.Frequency.values());
+        frequencyField.setSelectedItem(RecurringSchedule.Frequency.MONTHLY);
+        frequencyField.setBackground(LIGHT_BG);
+        frequencyField.setForeground(Color.WHITE);
+        frequencyField.setFont(new Font("Arial", Font.PLAIN, 14));
+        
+        JTextField startField = createStyledTextField();
+        startField.setText(dateFormat.format(new Date()));
+        JTextField endField = createStyledTextField();
+        
+        panel.add(new JLabel("Template ID:"));
+        panel.add(idField);
+        panel.add(new JLabel("Description:"));
+        panel.add(descField);
+        panel.add(new JLabel("Amount (ZAR):"));
+        panel.add(amountField);
+        panel.add(new JLabel("Type:"));
+        panel.add(typeField);
+        panel.add(new JLabel("VAT Rate (%):"));
+        panel.add(vatSpinner);
+        panel.add(new JLabel("Frequency:"));
+        panel.add(frequencyField);
+        panel.add(new JLabel("Start (YYYY-MM-DD):"));
+        panel.add(startField);
+        panel.add(new JLabel("End (blank for none):"));
+        panel.add(endField);
+        
+        for (Component comp : panel.getComponents()) {
+            if (comp instanceof JLabel) {
+                ((JLabel) comp).setForeground(Color.WHITE);
             }
-            
-            try (PrintWriter writer = new PrintWriter(file)) {
-                writer.println("ID,Date,Description,Amount (ZAR),Type,VAT Rate");
-                for (Transaction t : transactions) {
-                    writer.println(t.toCSV());
+        }
+        
+        int result = JOptionPane.showConfirmDialog(
+            this, panel, "Add Recurring Transaction",
+            JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE
+        );
+        
+        if (result == JOptionPane.OK_OPTION) {
+            try {
+                double amount = Double.parseDouble(amountField.getText().replace("R", "").trim());
+                LocalDate start = LocalDate.parse(startField.getText().trim());
+                String endText = endField.getText().trim();
+                LocalDate end = endText.isEmpty() ? null : LocalDate.parse(endText);
+                if (closes.isLocked(start.toEpochDay())) {
+                    throw new IllegalArgumentException("Start " + start + " is in the period closed through " + closes.getClosedThrough());
                 }
-                logToConsole("Exported transactions to: " + file.getName());
-                JOptionPane.showMessageDialog(this, "Export completed successfully", "Success", JOptionPane.INFORMATION_MESSAGE);
-            } catch (IOException e) {
-                logToConsole("Export failed: " + e.getMessage());
-                JOptionPane.showMessageDialog(this, "Export failed: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                
+                RecurringSchedule.Template template = new RecurringSchedule.Template(idField.getText(),
+                    descField.getText(), amount, (String) typeField.getSelectedItem(), (int) vatSpinner.getValue(),
+                    (RecurringSchedule.Frequency) frequencyField.getSelectedItem(), start, end);
+                recurring.addTemplate(template);
+                refreshRecurringRows();
+                refreshTransactions();
+                logToConsole(String.format("Added recurring transaction %s: %s, %s R%,.2f from %s%s (%d due so far)",
+                    template.getId(), template.getDescription(), template.getFrequency(), amount, start,
+                    end != null ? " to " + end : "", transactionsModel.getRecurringRowCount()));
+            } catch (NumberFormatException e) {
+                JOptionPane.showMessageDialog(this, "Invalid amount format", "Error", JOptionPane.ERROR_MESSAGE);
+            } catch (DateTimeParseException e) {
+                JOptionPane.showMessageDialog(this, "Invalid date: " + e.getParsedString(), "Error", JOptionPane.ERROR_MESSAGE);
+            } catch (IllegalArgumentException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             }
         }
     }
     
-    private void generateReport(String reportType) {
-        double totalIncome = 0;
-        double totalExpense = 0;
-        double totalVAT = 0;
+    private void deleteSelectedTransactions() {
+        int[] selectedRows = transactionsTable.getSelectedRows();
+        if (selectedRows.length == 0) {
+            JOptionPane.showMessageDialog(this, "No transaction selected", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
         
-        for (Transaction t : transactions) {
-            if (t.getType().equals("Income")) {
-                totalIncome += t.getAmount();
-            } else if (t.getType().equals("Expense")) {
-                totalExpense += t.getAmount();
-                totalVAT += (t.getAmount() * t.getVatRate() / 100);
+        List<String> occurrences = new ArrayList<>();
+        SortedMap<Integer, Transaction> selected = selectedLedgerRows(selectedRows, occurrences);
+        if (selected == null) {
+            return;
+        }
+        if (!occurrences.isEmpty()) {
+            String what = occurrences.size() == 1 ? "recurring transaction " + occurrences.get(0)
+                : occurrences.size() + " recurring transactions";
+            int choice = JOptionPane.showConfirmDialog(this,
+                "Skip " + what + "?\nOther occurrences are not affected.",
+                "Skip Occurrence", JOptionPane.YES_NO_OPTION);
+            if (choice == JOptionPane.YES_OPTION) {
+                occurrences.forEach(recurring::skip);
+                refreshRecurringRows();
+                if (selected.isEmpty()) {
+                    refreshTransactions();
+                }
+                logToConsole(occurrences.size() == 1 ? "Skipped recurring transaction: " + occurrences.get(0)
+                    : "Skipped " + occurrences.size() + " recurring transactions");
             }
         }
+        if (selected.isEmpty()) {
+            return;
+        }
+        if (offHeapLedger != null) {
+            deleteOffHeapRows(selected);
+            return;
+        }
+        if (selected.size() > 1 && JOptionPane.showConfirmDialog(this, "Delete " + selected.size() + " transactions?",
+                "Delete Transactions", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) {
+            return;
+        }
         
-        String report;
-        switch (reportType) {
-            case "Income":
-                report = "INCOME REPORT\n" +
-                         "================\n" +
-                         "Total Income: R" + String.format("%,.2f", totalIncome) + "\n" +
-                         "Number of Transactions: " + transactions.stream().filter(t -> t.getType().equals("Income")).count() + "\n" +
+        String label = selected.size() == 1 ? "Delete " + selected.get(selected.firstKey()).getId()
+            : "Delete " + selected.size() + " transactions";
+        int recurringVersion = recurring.getModCount();
+        LedgerBatch batch = activeEntity.batch(label);
+        for (int position : selected.keySet()) {
+            batch.deleteAt(position);
+        }
+        LedgerBatch.Result result = batch.apply();
+        ledgerRowsChanged(recurringVersion);
+        refreshTransactions();
+        logToConsole(result.getDeleted() == 1 ? "Deleted transaction: " + selected.get(selected.firstKey()).getId()
+            : String.format("Deleted %,d transactions", result.getDeleted()));
+    }
+    
+    // Off-heap deletions cannot be undone, so even one is confirmed
+    private void deleteOffHeapRows(SortedMap<Integer, Transaction> selected) {
+        String what = selected.size() == 1 ? "transaction " + selected.get(selected.firstKey()).getId()
+            : selected.size() + " transactions";
+        if (JOptionPane.showConfirmDialog(this, "Delete " + what + "?\nDeletions from off-heap storage cannot be undone.",
+                "Delete Transactions", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) {
+            return;
+        }
+        int recurringVersion = recurring.getModCount();
+        for (int position : selected.keySet()) {
+            offHeapLedger.delete(position);
+        }
+        offHeapLedger.compact();
+        for (Transaction t : selected.values()) {
+            ledgerRowRemoved(t);
+            if (t.getType().equals("Inventory")) {
+                // The cursor made a new object, so the indexed one is found by its fields
+                for (Transaction indexed : offHeapInventory.range("Inventory", t.getEpochDay(), t.getEpochDay())) {
+                    if (indexed.getId().equals(t.getId()) && indexed.getAmount() == t.getAmount()
+                            && indexed.getDescription().equals(t.getDescription())) {
+                        offHeapInventory.remove(indexed);
+                        break;
+                    }
+                }
+            }
+        }
+        ledgerRowsChanged(recurringVersion);
+        refreshTransactions();
+        logToConsole("Deleted " + what + " from off-heap storage");
+    }
+    
+    private void recategorizeSelectedTransactions() {
+        if (offHeapLedger != null) {
+            JOptionPane.showMessageDialog(this, "Transactions can only be recategorized in the in-memory ledger", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        int[] selectedRows = transactionsTable.getSelectedRows();
+        List<String> occurrences = new ArrayList<>();
+        SortedMap<Integer, Transaction> selected = selectedRows.length > 0 ? selectedLedgerRows(selectedRows, occurrences) : null;
+        if (selected == null) {
+            if (selectedRows.length == 0) {
+                JOptionPane.showMessageDialog(this, "No transaction selected", "Error", JOptionPane.ERROR_MESSAGE);
+            }
+            return;
+        }
+        if (selected.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Recurring occurrences take their type and VAT rate from the template",
+                "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        JPanel panel = new JPanel(new GridLayout(2, 2, 10, 10));
+        panel.setBackground(DARK_BG);
+        JComboBox<String> typeField = new JComboBox<>();
+        typeField.addItem("(unchanged)");
+        for (String type : CategoryRules.TYPES) {
+            typeField.addItem(type);
+        }
+        JSpinner vatSpinner = new JSpinner(new SpinnerNumberModel(15, 0, CategoryRules.MAX_VAT_RATE, 1));
+        JCheckBox vatBox = new JCheckBox("VAT Rate (%):");
+        vatBox.setBackground(DARK_BG);
+        vatBox.setForeground(Color.WHITE);
+        JLabel typeLabel = new JLabel("Type:");
+        typeLabel.setForeground(Color.WHITE);
+        panel.add(typeLabel);
+        panel.add(typeField);
+        panel.add(vatBox);
+        panel.add(vatSpinner);
+        
+        if (JOptionPane.showConfirmDialog(this, panel, "Recategorize " + selected.size() + " Transactions",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        String type = typeField.getSelectedIndex() > 0 ? (String) typeField.getSelectedItem() : null;
+        Integer vatRate = vatBox.isSelected() ? (Integer) vatSpinner.getValue() : null;
+        if (type == null && vatRate == null) {
+            return;
+        }
+        
+        Set<Transaction> rows = Collections.newSetFromMap(new IdentityHashMap<>());
+        rows.addAll(selected.values());
+        int recurringVersion = recurring.getModCount();
+        LedgerBatch.Result result = activeEntity.batch("Recategorize " + selected.size() + " transactions")
+            .update(rows::contains, type, vatRate)
+            .apply();
+        ledgerRowsChanged(recurringVersion);
+        refreshTransactions();
+        logToConsole(String.format("Recategorized %,d transactions%s%s", result.getUpdated(),
+            type != null ? " as " + type : "", vatRate != null ? " at " + vatRate + "% VAT" : ""));
+    }
+    
+    // The ledger rows behind the selected table rows, by ledger position; IDs of
+    // selected recurring occurrences go to occurrences. Returns null, after
+    // saying why, if the rows cannot be changed.
+    private SortedMap<Integer, Transaction> selectedLedgerRows(int[] selectedRows, List<String> occurrences) {
+        SortedMap<Integer, Transaction> selected = new TreeMap<>();
+        int recurringCount = transactionsModel.getRecurringRowCount();
+        int locked = 0;
+        for (int viewRow : selectedRows) {
+            int modelRow = transactionsModel.convertRowIndexToModel(viewRow);
+            if (closes.isLocked(transactionsModel.rows().getEpochDay(modelRow))) {
+                locked++;
+            } else if (transactionsModel.isRecurringRow(modelRow)) {
+                occurrences.add(transactionsModel.getRecurringRow(modelRow).getId());
+            } else if (offHeapLedger == null) {
+                int position = modelRow - recurringCount;
+                selected.put(position, transactions.get(position));
+            } else {
+                int position = modelRow - recurringCount;
+                selected.put(position, offHeapLedger.cursor().moveTo(position).toTransaction());
+            }
+        }
+        if (locked > 0) {
+            JOptionPane.showMessageDialog(this, (locked == 1 ? "1 selected transaction is" : locked + " selected transactions are")
+                + " in the period closed through " + closes.getClosedThrough(), "Error", JOptionPane.ERROR_MESSAGE);
+            return null;
+        }
+        return selected;
+    }
+    
+    // Keeps the rollup and recurring occurrences in line with the in-memory ledger
+    private void ledgerRowAdded(Transaction t) {
+        activeEntity.rowAdded(t);
+    }
+    
+    private void ledgerRowRemoved(Transaction t) {
+        activeEntity.rowRemoved(t);
+    }
+    
+    // Off-heap rows are removed through ledgerRowRemoved, as the query index
+    // holds none of them
+    private void offHeapRowAdded(Transaction t, ChangeFeed.Kind kind) {
+        activeEntity.publish(kind, t);
+        if (t.getType().equals("Inventory")) {
+            offHeapInventory.add(t);
+        }
+        rollup.add(t.getType(), t.getDate(), t.getAmount(), t.getVatRate());
+        recurring.rowAdded(t.getId());
+        budgets.add(t.getType(), t.getDate(), t.getAmount());
+        anomalies.observe(t.getType(), t.getAmount());
+    }
+    
+    // After rows were appended; materialized occurrences change the recurring rows too
+    private void ledgerRowsAppended(int recurringVersion) {
+        if (recurring.getModCount() != recurringVersion) {
+            refreshRecurringRows();
+        } else {
+            transactionsSorter.rowsAppended();
+        }
+    }
+    
+    private void ledgerRowsChanged(int recurringVersion) {
+        if (recurring.getModCount() != recurringVersion) {
+            refreshRecurringRows();
+        } else {
+            transactionsSorter.rowsChanged();
+        }
+    }
+    
+    // Occurrences due up to today
+    private void refreshRecurringRows() {
+        transactionsModel.setRecurring(recurring.occurrences(null, LocalDate.now()));
+        transactionsSorter.rowsChanged();
+    }
+    
+    private void undoLastChange() {
+        Ledger.Step step = transactions.undo();
+        if (step == null) {
+            logToConsole("Nothing to undo");
+            return;
+        }
+        int recurringVersion = recurring.getModCount();
+        for (Transaction t : step.getAdded()) {
+            ledgerRowRemoved(t);
+        }
+        for (Transaction t : step.getRemoved()) {
+            ledgerRowAdded(t);
+        }
+        ledgerRowsChanged(recurringVersion);
+        refreshTransactions();
+        logToConsole("Undone: " + step.getLabel());
+    }
+    
+    private void redoLastChange() {
+        Ledger.Step step = transactions.redo();
+        if (step == null) {
+            logToConsole("Nothing to redo");
+            return;
+        }
+        int recurringVersion = recurring.getModCount();
+        for (Transaction t : step.getRemoved()) {
+            ledgerRowRemoved(t);
+        }
+        for (Transaction t : step.getAdded()) {
+            ledgerRowAdded(t);
+        }
+        ledgerRowsChanged(recurringVersion);
+        refreshTransactions();
+        logToConsole("Redone: " + step.getLabel());
+    }
+    
+    private int ledgerSize() {
+        return offHeapLedger != null ? offHeapLedger.size() : transactions.size();
+    }
+    
+    // Moves the ledger into off-heap storage, optionally backed by memory-mapped files
+    private boolean switchToOffHeapStorage() {
+        int choice = JOptionPane.showConfirmDialog(this,
+            "Back the off-heap ledger with memory-mapped files?\n" +
+            "Choose Yes for ledgers larger than physical memory.",
+            "Off-Heap Storage", JOptionPane.YES_NO_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
+        if (choice == JOptionPane.CANCEL_OPTION || choice == JOptionPane.CLOSED_OPTION) {
+            return false;
+        }
+        
+        File directory = null;
+        if (choice == JOptionPane.YES_OPTION) {
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setDialogTitle("Ledger Storage Directory");
+            fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+                return false;
+            }
+            directory = fileChooser.getSelectedFile();
+        }
+        
+        OffHeapLedger ledger = new OffHeapLedger(directory);
+        int skipped = 0;
+        for (Transaction t : transactions) {
+            try {
+                ledger.append(t);
+                if (t.getType().equals("Inventory")) {
+                    offHeapInventory.add(t);
+                }
+            } catch (IllegalArgumentException e) {
+                logToConsole("Not moved off-heap (" + e.getMessage() + "): " + t.getId());
+                ledgerRowRemoved(t);
+                skipped++;
+            }
+        }
+        
+        offHeapLedger = ledger;
+        transactions.clear();
+        transactions.clearHistory();
+        queryIndex.rebuild(transactions);
+        transactionsModel.setOffHeapLedger(ledger);
+        transactionsSorter.rowsChanged();
+        refreshTransactions();
+        logToConsole("Moved " + ledger.size() + " transactions to off-heap storage" +
+            (ledger.isFileBacked() ? " in " + directory.getAbsolutePath() : "") +
+            (skipped > 0 ? " (" + skipped + " skipped)" : ""));
+        return true;
+    }
+    
+    private void exportToCSV() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Export Transactions");
+        
+        if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            File file = fileChooser.getSelectedFile();
+            if (!file.getName().toLowerCase().endsWith(".csv")) {
+                file = new File(file.getAbsolutePath() + ".csv");
+            }
+            
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+                 PrintWriter writer = new PrintWriter(new OutputStreamWriter(out))) {
+                // Amount is in Currency, which is left out for ZAR rows
+                writer.println("ID,Date,Description,Amount,Type,VAT Rate,Currency");
+                if (offHeapLedger != null) {
+                    // Rows are copied straight from off-heap storage into the stream
+                    writer.flush();
+                    offHeapLedger.writeCSV(out);
+                }
+                for (Transaction t : transactions) {
+                    writer.println(t.toCSV());
+                }
+                logToConsole("Exported transactions to: " + file.getName());
+                JOptionPane.showMessageDialog(this, "Export completed successfully", "Success", JOptionPane.INFORMATION_MESSAGE);
+            } catch (IOException e) {
+                logToConsole("Export failed: " + e.getMessage());
+                JOptionPane.showMessageDialog(this, "Export failed: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+    
+    private void exportPdfReport() {
+        PdfReportGenerator.ReportType type = (PdfReportGenerator.ReportType) JOptionPane.showInputDialog(this,
+            "Report:", "Export PDF Report", JOptionPane.QUESTION_MESSAGE, null,
+            PdfReportGenerator.ReportType.values(), PdfReportGenerator.ReportType.TRANSACTIONS);
+        if (type == null) {
+            return;
+        }
+        
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Export " + type.getTitle());
+        if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File chosen = fileChooser.getSelectedFile();
+        File file = chosen.getName().toLowerCase().endsWith(".pdf") ? chosen : new File(chosen.getAbsolutePath() + ".pdf");
+        
+        // The calculation fields only exist once their tab has been built
+        buildTab(tabbedPane.indexOfTab("FINANCIAL CALCULATIONS"));
+        if (type == PdfReportGenerator.ReportType.SUMMARY) {
+            performAllCalculations();
+        }
+        PdfReportGenerator generator = new PdfReportGenerator(reportRows(transactions.snapshot()), offHeapLedger,
+            reportingTotals(), collectCalculationResults(), fx, reportingCurrency);
+        
+        JProgressBar progressBar = new JProgressBar(0, 1000);
+        progressBar.setStringPainted(true);
+        progressBar.setForeground(PRIMARY_COLOR);
+        progressBar.setBackground(LIGHT_BG);
+        progressBar.setString("Starting...");
+        
+        JButton cancelButton = new JButton("Cancel");
+        cancelButton.addActionListener(e -> generator.cancel());
+        
+        JPanel progressPanel = new JPanel(new BorderLayout(10, 10));
+        progressPanel.setBackground(DARK_BG);
+        progressPanel.setBorder(new EmptyBorder(15, 15, 15, 15));
+        progressPanel.add(progressBar, BorderLayout.CENTER);
+        progressPanel.add(cancelButton, BorderLayout.EAST);
+        
+        JDialog progressDialog = new JDialog(this, "Writing " + type.getTitle(), false);
+        progressDialog.setContentPane(progressPanel);
+        progressDialog.setSize(450, 90);
+        progressDialog.setLocationRelativeTo(this);
+        progressDialog.setVisible(true);
+        logToConsole("Writing " + type.getTitle() + " to " + file.getName() + "...");
+        
+        new Thread(() -> {
+            try {
+                long start = System.currentTimeMillis();
+                generator.generate(type, file, (done, total) -> SwingUtilities.invokeLater(() -> {
+                    progressBar.setValue(total == 0 ? 1000 : (int) (done * 1000 / total));
+                    progressBar.setString(String.format("%,d of %,d rows", done, total));
+                }));
+                long elapsed = System.currentTimeMillis() - start;
+                SwingUtilities.invokeLater(() -> {
+                    progressDialog.dispose();
+                    if (generator.isCancelled()) {
+                        file.delete();
+                        logToConsole("PDF report cancelled");
+                    } else {
+                        logToConsole("Exported " + type.getTitle() + " to " + file.getName() + " in " + elapsed + " ms");
+                        JOptionPane.showMessageDialog(this, "PDF report written to " + file.getName(), "Success", JOptionPane.INFORMATION_MESSAGE);
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                SwingUtilities.invokeLater(() -> {
+                    progressDialog.dispose();
+                    logToConsole("PDF report failed: " + e.getMessage());
+                    JOptionPane.showMessageDialog(this, "PDF report failed: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                });
+            }
+        }).start();
+    }
+    
+    // Current contents of the calculation result fields, in display order
+    private Map<String, String> collectCalculationResults() {
+        Map<String, String> results = new LinkedHashMap<>();
+        for (Component comp : calculationsPanel.getComponents()) {
+            if (comp instanceof JPanel) {
+                for (Component formulaComp : ((JPanel) comp).getComponents()) {
+                    if (formulaComp instanceof JPanel) {
+                        for (Component fieldComp : ((JPanel) formulaComp).getComponents()) {
+                            if (fieldComp instanceof JTextField && !((JTextField) fieldComp).getText().isEmpty()) {
+                                results.put(fieldComp.getName(), ((JTextField) fieldComp).getText());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return results;
+    }
+    
+    private void archiveClosedPeriod() {
+        if (offHeapLedger != null) {
+            JOptionPane.showMessageDialog(this, "Closed periods can only be archived from the in-memory ledger", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        String input = JOptionPane.showInputDialog(this, "Archive all transactions dated on or before (YYYY-MM-DD):", "Archive Closed Period", JOptionPane.QUESTION_MESSAGE);
+        if (input == null) {
+            return;
+        }
+        
+        LocalDate cutoff;
+        try {
+            cutoff = LocalDate.parse(input.trim());
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Invalid date: " + input, "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        // Rows in a closed period cannot be edited, so they stay as snapshotted while the archive is written
+        if (!closes.isLocked(cutoff.toEpochDay())) {
+            JOptionPane.showMessageDialog(this, "Only closed periods can be archived: " + (closes.isClosed()
+                ? "the ledger is closed through " + closes.getClosedThrough() : "no period has been closed yet"),
+                "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        List<Transaction> closed = new ArrayList<>();
+        for (Transaction t : transactions) {
+            try {
+                if (!LocalDate.parse(t.getDate()).isAfter(cutoff)) {
+                    closed.add(t);
+                }
+            } catch (DateTimeParseException e) {
+                // Undated rows stay in the open ledger
+            }
+        }
+        if (closed.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "No transactions on or before " + cutoff, "Archive Closed Period", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Save Period Archive");
+        fileChooser.setSelectedFile(new File("ledger-to-" + cutoff + ".e19a"));
+        if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = fileChooser.getSelectedFile();
+        logToConsole("Archiving " + closed.size() + " transactions up to " + cutoff + "...");
+        EntityLedgers.Shard entity = activeEntity;
+        
+        new Thread(() -> {
+            try {
+                PeriodArchive archive = PeriodArchive.write(closed, file);
+                long csvBytes = 0;
+                for (Transaction t : closed) {
+                    csvBytes += t.toCSV().length() + 1;
+                }
+                long finalCsvBytes = csvBytes;
+                SwingUtilities.invokeLater(() -> {
+                    Set<Transaction> archived = Collections.newSetFromMap(new IdentityHashMap<>());
+                    archived.addAll(closed);
+                    // Still all in the ledger, unless it was archived meanwhile or moved off-heap
+                    long present = entity.transactions.snapshot().stream().filter(archived::contains).count();
+                    if (present != archived.size()) {
+                        file.delete();
+                        logToConsole("Archive discarded: the ledger changed while " + file.getName() + " was written");
+                        JOptionPane.showMessageDialog(this, "The ledger changed while the archive was written; nothing was archived",
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                        return;
+                    }
+                    for (Transaction t : closed) {
+                        entity.publish(ChangeFeed.Kind.ARCHIVE, t);
+                    }
+                    entity.transactions.removeIf(archived::contains);
+                    entity.transactions.clearHistory();
+                    entity.queryIndex.rebuild(entity.transactions);
+                    entity.archives.add(archive);
+                    if (entity == activeEntity) {
+                        transactionsSorter.rowsChanged();
+                        refreshTransactions();
+                    }
+                    logToConsole(String.format("Archived %,d transactions to %s: %,d bytes in %d blocks (%.1fx smaller than CSV)",
+                        archive.getRowCount(), file.getName(), archive.getCompressedBytes(), archive.getBlockCount(),
+                        (double) finalCsvBytes / Math.max(1, archive.getCompressedBytes())));
+                });
+            } catch (IOException | IllegalArgumentException e) {
+                SwingUtilities.invokeLater(() -> {
+                    logToConsole("Archive failed: " + e.getMessage());
+                    JOptionPane.showMessageDialog(this, "Archive failed: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                });
+            }
+        }).start();
+    }
+    
+    // Month-end or year-end close: snapshots the balances, locks the period and
+    // carries the balances forward into the next one
+    private void closePeriod() {
+        LocalDate suggested = closes.isClosed()
+            ? closes.getClosedThrough().plusMonths(1).withDayOfMonth(1)
+            : LocalDate.now().withDayOfMonth(1).minusMonths(1);
+        JComboBox<PeriodClose.Kind> kindField = new JComboBox<>(PeriodClose.Kind.values());
+        JTextField throughField = new JTextField(suggested.withDayOfMonth(suggested.lengthOfMonth()).toString());
+        
+        JPanel panel = new JPanel(new GridLayout(3, 2, 10, 10));
+        panel.setBackground(DARK_BG);
+        panel.add(new JLabel("Closed through:"));
+        panel.add(new JLabel(closes.isClosed() ? closes.getClosedThrough().toString() : "Nothing closed yet"));
+        panel.add(new JLabel("Close:"));
+        panel.add(kindField);
+        panel.add(new JLabel("Through (YYYY-MM-DD):"));
+        panel.add(throughField);
+        for (Component comp : panel.getComponents()) {
+            if (comp instanceof JLabel) {
+                ((JLabel) comp).setForeground(Color.WHITE);
+            }
+        }
+        
+        if (JOptionPane.showConfirmDialog(this, panel, "Close Period", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        try {
+            LocalDate through = LocalDate.parse(throughField.getText().trim());
+            PeriodClose.Close close = closes.close((PeriodClose.Kind) kindField.getSelectedItem(), through,
+                rollup, recurring, closingInventoryThrough(through));
+            // Undo cannot reach back into a closed period
+            transactions.clearHistory();
+            refreshTransactions();
+            
+            // Balances as of the close, at the rate of its last day
+            long day = through.toEpochDay();
+            StringBuilder balances = new StringBuilder();
+            close.getBalances().forEach((type, amount) ->
+                balances.append(String.format("%n  %s: %s", type, money(amount, day))));
+            String summary = String.format("%s close through %s%n" +
+                    "Period income: %s%nPeriod expenses: %s%n" +
+                    "Carried forward: %s net, %s VAT%nClosing inventory: %s%nBalances by type:%s",
+                close.getKind(), through, money(close.getPeriod().getIncome(), day), money(close.getPeriod().getExpense(), day),
+                money(close.getClosing().getNet(), day), money(close.getClosing().getVAT(), day),
+                money(close.getClosingInventory(), day), balances);
+            logToConsole(String.format("%s close through %s: %s net carried forward; earlier rows are locked",
+                close.getKind(), through, money(close.getClosing().getNet(), day)));
+            JOptionPane.showMessageDialog(this, summary, "Period Closed", JOptionPane.INFORMATION_MESSAGE);
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Invalid date: " + e.getParsedString(), "Error", JOptionPane.ERROR_MESSAGE);
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    // Value of the last closing stock count dated in the period being closed,
+    // or the stock carried into it when the period has none
+    private double closingInventoryThrough(LocalDate through) {
+        LocalDate from = closes.getOpenFrom();
+        long fromDay = from != null ? from.toEpochDay() : Integer.MIN_VALUE + 1L;
+        long throughDay = through.toEpochDay();
+        double closing = closes.getCarriedInventory();
+        QueryIndex index = offHeapLedger != null ? offHeapInventory : queryIndex;
+        for (Transaction t : index.range("Inventory", fromDay, throughDay)) {
+            if (t.getDescription().contains("Closing")) {
+                closing = t.getAmount();
+            }
+        }
+        return closing;
+    }
+    
+    private void openPeriodArchive() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Open Period Archive");
+        
+        if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            File file = fileChooser.getSelectedFile();
+            try {
+                PeriodArchive archive = PeriodArchive.open(file);
+                if (archive.getRowCount() > 0 && closes.isLocked(archive.getFirstDate().toEpochDay())) {
+                    throw new IOException("it starts in the period closed through " + closes.getClosedThrough());
+                }
+                // Archives written this session are already in their entity's totals, and
+                // a copy of an open archive has the same content under another name
+                for (EntityLedgers.Shard shard : entities.getShards()) {
+                    for (PeriodArchive open : shard.archives) {
+                        if (open.getContentId() == archive.getContentId()) {
+                            throw new IOException(file.getName() + " is already open as " + open.getFile().getName()
+                                + " in " + shard.getEntity());
+                        }
+                    }
+                }
+                archives.add(archive);
+                rollup.merge(archive.getCube());
+                refreshTransactions();
+                logToConsole(String.format("Opened archive %s: %,d transactions from %s to %s",
+                    file.getName(), archive.getRowCount(), archive.getFirstDate(), archive.getLastDate()));
+            } catch (IOException | RuntimeException e) {
+                // A damaged footer can fail anywhere in decoding
+                logToConsole("Cannot open archive: " + e.getMessage());
+                JOptionPane.showMessageDialog(this, "Cannot open archive: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+    
+    private void generateReport(String reportType) {
+        LedgerTotals totals = reportingTotals();
+        double totalIncome = totals.getIncome();
+        double totalExpense = totals.getExpense();
+        double totalVAT = totals.getVAT();
+        long incomeCount = totals.getIncomeCount();
+        long expenseCount = totals.getExpenseCount();
+        
+        String report;
+        switch (reportType) {
+            case "Income":
+                report = "INCOME REPORT\n" +
+                         "================\n" +
+                         "Total Income: " + money(totalIncome) + "\n" +
+                         "Number of Transactions: " + incomeCount + "\n" +
                          "Generated on: " + dateFormat.format(new Date());
                 break;
             case "Expense":
                 report = "EXPENSE REPORT\n" +
                          "================\n" +
-                         "Total Expenses: R" + String.format("%,.2f", totalExpense) + "\n" +
-                         "Number of Transactions: " + transactions.stream().filter(t -> t.getType().equals("Expense")).count() + "\n" +
+                         "Total Expenses: " + money(totalExpense) + "\n" +
+                         "Number of Transactions: " + expenseCount + "\n" +
                          "Generated on: " + dateFormat.format(new Date());
                 break;
             case "Summary":
                 report = "FINANCIAL SUMMARY\n" +
                          "================\n" +
-                         "Total Income: R" + String.format("%,.2f", totalIncome) + "\n" +
-                         "Total Expenses: R" + String.format("%,.2f", totalExpense) + "\n" +
-                         "Net Balance: R" + String.format("%,.2f", (totalIncome - totalExpense)) + "\n" +
+                         "Total Income: " + money(totalIncome) + "\n" +
+                         "Total Expenses: " + money(totalExpense) + "\n" +
+                         "Net Balance: " + money(totalIncome - totalExpense) + "\n" +
                          "Generated on: " + dateFormat.format(new Date());
                 break;
             case "VAT":
                 report = "VAT REPORT\n" +
                          "================\n" +
-                         "Total VAT Collected: R" + String.format("%,.2f", totalVAT) + "\n" +
+                         "Total VAT Collected: " + money(totalVAT) + "\n" +
                          "Generated on: " + dateFormat.format(new Date());
                 break;
             default:
@@ -1123,65 +3136,954 @@ public class Application extends JFrame {
         JOptionPane.showMessageDialog(this, report, reportType + " Report", JOptionPane.INFORMATION_MESSAGE);
     }
     
-    private void refreshTransactions() {
-        transactionsModel.setRowCount(0);
+    // Totals across the in-memory ledger, off-heap storage and closed-period archives:
+    // the balances carried by the last period close plus the open period
+    private LedgerTotals computeTotals() {
+        LedgerTotals totals = closes.carried();
+        totals.merge(rollup.totals());
+        totals.merge(recurring.totals(closes.getOpenFrom(), LocalDate.now()));
+        return totals;
+    }
+    
+    // computeTotals in the reporting currency, each month converted at its average rate
+    private LedgerTotals reportingTotals() {
+        if (reportingCurrency.equals(FxRates.BASE)) {
+            return computeTotals();
+        }
+        RollupCube cube = new RollupCube();
+        cube.merge(rollup);
+        closes.addHistoryTo(cube);
+        recurring.addTo(cube, closes.getOpenFrom(), LocalDate.now());
+        return fx.convert(cube.byMonth(), reportingCurrency);
+    }
+    
+    // An amount in the reporting currency
+    private String money(double amount) {
+        return FxRates.format(reportingCurrency, amount);
+    }
+    
+    // A ZAR amount of one day in the reporting currency, at that day's rate
+    private String money(double amount, long epochDay) {
+        return money(fx.fromBase(reportingCurrency, epochDay, amount));
+    }
+    
+    // One month's ZAR totals in the reporting currency, at the month's average rate
+    private LedgerTotals reportingTotals(int month, LedgerTotals totals) {
+        SortedMap<Integer, LedgerTotals> byMonth = new TreeMap<>();
+        byMonth.put(month, totals);
+        return fx.convert(byMonth, reportingCurrency);
+    }
+    
+    private void updateTitle() {
+        String title = "E-19 Accounting System - " + reportingCurrency;
+        setTitle(activeEntity.getEntity().equals(DEFAULT_ENTITY) ? title : title + " - " + activeEntity.getEntity());
+        if (headerTitleLabel != null) {
+            headerTitleLabel.setText("E-19 ACCOUNTING SYSTEM - " + reportingCurrency);
+        }
+    }
+    
+    private void loadFxRates() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Load Exchange Rates (Date,Currency,Rate in ZAR)");
         
-        double totalIncome = 0;
-        double totalExpense = 0;
-        double totalVAT = 0;
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
         
-        for (Transaction t : transactions) {
-            transactionsModel.addRow(new Object[]{
-                t.getId(),
-                t.getDate(),
-                t.getDescription(),
-                String.format("R%,.2f", t.getAmount()),
-                t.getType(),
-                t.getVatRate() + "%"
-            });
+        File file = fileChooser.getSelectedFile();
+        new Thread(() -> {
+            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                List<String> errors = new ArrayList<>();
+                FxRates rates = FxRates.fromCSV(br, errors::add);
+                SwingUtilities.invokeLater(() -> {
+                    fx = rates;
+                    List<String> currencies = rates.getCurrencies();
+                    logToConsole("Loaded exchange rates from " + file.getName() + " for "
+                        + String.join(", ", currencies.subList(1, currencies.size())));
+                    for (String line : errors.subList(0, Math.min(errors.size(), MAX_LOGGED_ANOMALIES))) {
+                        logToConsole("Invalid rate: " + line);
+                    }
+                    if (errors.size() > MAX_LOGGED_ANOMALIES) {
+                        logToConsole("... and " + (errors.size() - MAX_LOGGED_ANOMALIES) + " more invalid rates");
+                    }
+                    if (!rates.isKnown(reportingCurrency)) {
+                        reportingCurrency = FxRates.BASE;
+                        updateTitle();
+                    }
+                    refreshTransactions();
+                });
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> {
+                    logToConsole("Loading exchange rates failed: " + e.getMessage());
+                    JOptionPane.showMessageDialog(this, 
+                        "Loading exchange rates failed: " + e.getMessage(), 
+                        "Error", 
+                        JOptionPane.ERROR_MESSAGE);
+                });
+            }
+        }, "fx-rates").start();
+    }
+    
+    private void chooseReportingCurrency() {
+        List<String> currencies = fx.getCurrencies();
+        if (currencies.size() == 1) {
+            JOptionPane.showMessageDialog(this, "Load exchange rates to report in another currency", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        Object choice = JOptionPane.showInputDialog(this, "Report totals in:", "Reporting Currency",
+            JOptionPane.PLAIN_MESSAGE, null, currencies.toArray(), reportingCurrency);
+        if (choice == null || choice.equals(reportingCurrency)) {
+            return;
+        }
+        reportingCurrency = (String) choice;
+        updateTitle();
+        refreshTransactions();
+        logToConsole("Reporting in " + reportingCurrency + (reportingCurrency.equals(FxRates.BASE) ? ""
+            : ", each month at its average rate"));
+    }
+    
+    // The rows reports list: recurring occurrences due so far, then the given ledger rows
+    private List<Transaction> reportRows(List<Transaction> ledger) {
+        return reportRows(recurring.occurrences(null, LocalDate.now()), ledger);
+    }
+    
+    private static List<Transaction> reportRows(List<Transaction> occurrences, List<Transaction> ledger) {
+        if (occurrences.isEmpty()) {
+            return ledger;
+        }
+        return new AbstractList<Transaction>() {
+            @Override
+            public Transaction get(int index) {
+                return index < occurrences.size() ? occurrences.get(index) : ledger.get(index - occurrences.size());
+            }
             
-            if (t.getType().equals("Income")) {
-                totalIncome += t.getAmount();
-            } else if (t.getType().equals("Expense")) {
-                totalExpense += t.getAmount();
-                totalVAT += (t.getAmount() * t.getVatRate() / 100);
+            @Override
+            public int size() {
+                return occurrences.size() + ledger.size();
+            }
+        };
+    }
+    
+    // Monthly totals from the rollup; selecting a month breaks it down by VAT rate
+    private void showDrillDown() {
+        RollupCube cube = new RollupCube();
+        cube.merge(rollup);
+        closes.addHistoryTo(cube);
+        recurring.addTo(cube, closes.getOpenFrom(), LocalDate.now());
+        
+        DefaultTableModel monthModel = new DefaultTableModel(
+            new String[]{"MONTH", "INCOME", "EXPENSES", "VAT", "NET", "TRANSACTIONS"}, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        DefaultTableModel rateModel = new DefaultTableModel(
+            new String[]{"VAT RATE", "INCOME", "EXPENSES", "VAT", "TRANSACTIONS"}, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        
+        List<Integer> months = new ArrayList<>();
+        // Each month in the reporting currency at its own average rate
+        for (Map.Entry<Integer, LedgerTotals> entry : cube.byMonth().entrySet()) {
+            LedgerTotals totals = reportingTotals(entry.getKey(), entry.getValue());
+            months.add(entry.getKey());
+            monthModel.addRow(new Object[]{
+                RollupCube.monthLabel(entry.getKey()),
+                money(totals.getIncome()),
+                money(totals.getExpense()),
+                money(totals.getVAT()),
+                money(totals.getNet()),
+                totals.getIncomeCount() + totals.getExpenseCount()
+            });
+        }
+        
+        JTable monthTable = new JTable(monthModel);
+        styleTable(monthTable);
+        monthTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        JTable rateTable = new JTable(rateModel);
+        styleTable(rateTable);
+        
+        JLabel rateLabel = new JLabel("All months by VAT rate");
+        rateLabel.setForeground(SECONDARY_COLOR);
+        Runnable showRates = () -> {
+            int row = monthTable.getSelectedRow();
+            Integer month = row >= 0 ? months.get(row) : null;
+            rateLabel.setText(month != null ? RollupCube.monthLabel(month) + " by VAT rate" : "All months by VAT rate");
+            rateModel.setRowCount(0);
+            SortedMap<Integer, LedgerTotals> byRate = new TreeMap<>();
+            for (int m : month != null ? List.of(month) : months) {
+                cube.byVatRate(m).forEach((vatRate, totals) ->
+                    byRate.computeIfAbsent(vatRate, k -> new LedgerTotals()).merge(reportingTotals(m, totals)));
+            }
+            for (Map.Entry<Integer, LedgerTotals> entry : byRate.entrySet()) {
+                LedgerTotals totals = entry.getValue();
+                rateModel.addRow(new Object[]{
+                    entry.getKey() + "%",
+                    money(totals.getIncome()),
+                    money(totals.getExpense()),
+                    money(totals.getVAT()),
+                    totals.getIncomeCount() + totals.getExpenseCount()
+                });
+            }
+        };
+        monthTable.getSelectionModel().addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting()) {
+                showRates.run();
+            }
+        });
+        showRates.run();
+        
+        JPanel ratePanel = new JPanel(new BorderLayout(0, 5));
+        ratePanel.setBackground(DARK_BG);
+        ratePanel.add(rateLabel, BorderLayout.NORTH);
+        ratePanel.add(new JScrollPane(rateTable), BorderLayout.CENTER);
+        
+        JPanel panel = new JPanel(new GridLayout(2, 1, 0, 10));
+        panel.setBackground(DARK_BG);
+        panel.setPreferredSize(new Dimension(700, 450));
+        panel.add(new JScrollPane(monthTable));
+        panel.add(ratePanel);
+        
+        logToConsole("Opened monthly drill-down (" + cube.getCellCount() + " rollup cells)");
+        JOptionPane.showMessageDialog(this, panel, "Monthly Drill-Down", JOptionPane.PLAIN_MESSAGE);
+    }
+    
+    private void showQueryDialog() {
+        JTextField queryField = createStyledTextField();
+        queryField.setText("select count, sum, avg where type = Expense and date in " + LocalDate.now().getYear() + " group by month");
+        
+        DefaultTableModel resultModel = new DefaultTableModel() {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        JTable resultTable = new JTable(resultModel);
+        styleTable(resultTable);
+        
+        JLabel statusLabel = new JLabel("Fields: id, date, description, amount, type, vat. Conditions are joined with AND.");
+        statusLabel.setForeground(Color.WHITE);
+        
+        JButton runButton = createStyledButton("RUN");
+        runButton.setForeground(Color.BLACK);
+        ActionListener run = e -> {
+            LedgerQuery query;
+            try {
+                query = LedgerQuery.parse(queryField.getText());
+            } catch (IllegalArgumentException ex) {
+                statusLabel.setText(ex.getMessage());
+                return;
+            }
+            // Partitions are copied out of the index here; filtering and aggregation run off the EDT
+            List<TransactionSorter.Rows> partitions = query.read(queryIndex);
+            TransactionSorter.Rows unindexed = transactionsModel.unindexedRows();
+            runButton.setEnabled(false);
+            statusLabel.setText("Running...");
+            long start = System.nanoTime();
+            new Thread(() -> {
+                LedgerQuery.Result result = query.execute(partitions, unindexed);
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                SwingUtilities.invokeLater(() -> {
+                    resultModel.setDataVector(result.getRows().toArray(new Object[0][]), result.getColumns());
+                    runButton.setEnabled(true);
+                    statusLabel.setText(String.format("%,d of %,d rows read matched in %d ms", result.getMatched(), result.getExamined(), millis));
+                    logToConsole("Query plan: " + query.explain());
+                });
+            }, "ledger-query").start();
+        };
+        runButton.addActionListener(run);
+        queryField.addActionListener(run);
+        
+        JPanel queryPanel = new JPanel(new BorderLayout(10, 0));
+        queryPanel.setBackground(DARK_BG);
+        queryPanel.add(queryField, BorderLayout.CENTER);
+        queryPanel.add(runButton, BorderLayout.EAST);
+        
+        JPanel panel = new JPanel(new BorderLayout(0, 10));
+        panel.setBackground(DARK_BG);
+        panel.setPreferredSize(new Dimension(800, 400));
+        panel.add(queryPanel, BorderLayout.NORTH);
+        panel.add(new JScrollPane(resultTable), BorderLayout.CENTER);
+        panel.add(statusLabel, BorderLayout.SOUTH);
+        
+        JOptionPane.showMessageDialog(this, panel, "Query", JOptionPane.PLAIN_MESSAGE);
+    }
+    
+    private void showBudgetsDialog() {
+        DefaultTableModel budgetModel = new DefaultTableModel(
+            new String[]{"CATEGORY", "MONTH", "LIMIT", "THRESHOLDS", "ACTUAL", "USED"}, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        // Budgets for every month show the current month
+        LocalDate today = LocalDate.now();
+        int currentMonth = today.getYear() * 12 + today.getMonthValue() - 1;
+        Runnable showBudgets = () -> {
+            budgetModel.setRowCount(0);
+            for (BudgetRules.Budget budget : budgets.getBudgets()) {
+                int month = budget.getMonth() != null ? budget.getMonth() : currentMonth;
+                double actual = budgets.getActual(budget.getCategory(), month);
+                budgetModel.addRow(new Object[]{
+                    budget.getCategory(),
+                    budget.getMonth() != null ? RollupCube.monthLabel(month) : "Every month",
+                    money(fx.fromBaseInMonth(reportingCurrency, month, budget.getLimit())),
+                    Arrays.stream(budget.getThresholds()).mapToObj(t -> t + "%").collect(Collectors.joining(", ")),
+                    money(fx.fromBaseInMonth(reportingCurrency, month, actual)),
+                    String.format("%.0f%%", actual * 100 / budget.getLimit())
+                });
+            }
+        };
+        showBudgets.run();
+        
+        JTable budgetTable = new JTable(budgetModel);
+        styleTable(budgetTable);
+        budgetTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        
+        JButton addButton = createStyledButton("ADD BUDGET");
+        addButton.setForeground(Color.BLACK);
+        addButton.addActionListener(e -> {
+            if (showAddBudgetDialog()) {
+                showBudgets.run();
+            }
+        });
+        
+        JButton removeButton = createStyledButton("REMOVE SELECTED");
+        removeButton.setForeground(Color.BLACK);
+        removeButton.addActionListener(e -> {
+            int row = budgetTable.getSelectedRow();
+            if (row >= 0) {
+                BudgetRules.Budget budget = budgets.getBudgets().get(row);
+                budgets.removeBudget(budget);
+                logToConsole("Removed budget " + budget);
+                showBudgets.run();
+            }
+        });
+        
+        JPanel toolbar = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 0));
+        toolbar.setBackground(DARK_BG);
+        toolbar.add(addButton);
+        toolbar.add(removeButton);
+        
+        JPanel panel = new JPanel(new BorderLayout(0, 10));
+        panel.setBackground(DARK_BG);
+        panel.setPreferredSize(new Dimension(700, 350));
+        panel.add(toolbar, BorderLayout.NORTH);
+        panel.add(new JScrollPane(budgetTable), BorderLayout.CENTER);
+        
+        JOptionPane.showMessageDialog(this, panel, "Budgets", JOptionPane.PLAIN_MESSAGE);
+    }
+    
+    private boolean showAddBudgetDialog() {
+        JPanel panel = new JPanel(new GridLayout(4, 2, 10, 10));
+        panel.setBackground(DARK_BG);
+        panel.setBorder(new EmptyBorder(20, 20, 20, 20));
+        
+        JComboBox<String> categoryField = new JComboBox<>(CategoryRules.TYPES);
+        categoryField.setSelectedItem("Expense");
+        categoryField.setBackground(LIGHT_BG);
+        categoryField.setForeground(Color.WHITE);
+        categoryField.setFont(new Font("Arial", Font.PLAIN, 14));
+        
+        JTextField monthField = createStyledTextField();
+        JTextField limitField = createStyledTextField();
+        limitField.setText("R");
+        JTextField thresholdsField = createStyledTextField();
+        thresholdsField.setText("80, 100");
+        
+        panel.add(new JLabel("Category:"));
+        panel.add(categoryField);
+        panel.add(new JLabel("Month (YYYY-MM, blank for every month):"));
+        panel.add(monthField);
+        panel.add(new JLabel("Limit (ZAR):"));
+        panel.add(limitField);
+        panel.add(new JLabel("Alert thresholds (%):"));
+        panel.add(thresholdsField);
+        
+        for (Component comp : panel.getComponents()) {
+            if (comp instanceof JLabel) {
+                ((JLabel) comp).setForeground(Color.WHITE);
+            }
+        }
+        
+        int result = JOptionPane.showConfirmDialog(
+            this, panel, "Add Budget",
+            JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE
+        );
+        
+        if (result == JOptionPane.OK_OPTION) {
+            try {
+                String monthText = monthField.getText().trim();
+                Integer month = null;
+                if (!monthText.isEmpty()) {
+                    YearMonth yearMonth = YearMonth.parse(monthText);
+                    month = yearMonth.getYear() * 12 + yearMonth.getMonthValue() - 1;
+                }
+                double limit = Double.parseDouble(limitField.getText().replace("R", "").trim());
+                int[] thresholds = Arrays.stream(thresholdsField.getText().split(","))
+                    .map(String::trim).filter(t -> !t.isEmpty()).mapToInt(Integer::parseInt).toArray();
+                
+                BudgetRules.Budget budget = new BudgetRules.Budget((String) categoryField.getSelectedItem(), month, limit, thresholds);
+                logToConsole(String.format("Added budget %s: R%,.2f", budget, limit));
+                budgets.addBudget(budget);
+                return true;
+            } catch (NumberFormatException e) {
+                JOptionPane.showMessageDialog(this, "Invalid limit or threshold", "Error", JOptionPane.ERROR_MESSAGE);
+            } catch (DateTimeParseException e) {
+                JOptionPane.showMessageDialog(this, "Invalid month: " + e.getParsedString(), "Error", JOptionPane.ERROR_MESSAGE);
+            } catch (IllegalArgumentException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+        return false;
+    }
+    
+    private void showEntitiesDialog() {
+        DefaultTableModel entityModel = new DefaultTableModel(new String[]{"ENTITY", "TRANSACTIONS", "STATUS"}, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        List<EntityLedgers.Shard> shown = new ArrayList<>();
+        Runnable showEntities = () -> {
+            entityModel.setRowCount(0);
+            shown.clear();
+            for (EntityLedgers.Shard shard : entities.getShards()) {
+                shown.add(shard);
+                // A loading shard belongs to its loader thread
+                entityModel.addRow(new Object[]{
+                    shard.getEntity(),
+                    shard.isLoading() ? "" : String.format("%,d", shard.transactions.size()),
+                    shard == activeEntity ? "Active" : shard.isLoading() ? "Loading" : ""
+                });
+            }
+        };
+        showEntities.run();
+        
+        JTable entityTable = new JTable(entityModel);
+        styleTable(entityTable);
+        entityTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        
+        JButton newButton = createStyledButton("NEW ENTITY");
+        newButton.setForeground(Color.BLACK);
+        newButton.addActionListener(e -> {
+            String name = JOptionPane.showInputDialog(this, "Entity name:", "New Entity", JOptionPane.QUESTION_MESSAGE);
+            if (name != null && !name.trim().isEmpty()) {
+                try {
+                    createEntity(name.trim());
+                    logToConsole("Created entity " + name.trim());
+                    showEntities.run();
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        });
+        
+        JButton loadButton = createStyledButton("LOAD CSV");
+        loadButton.setForeground(Color.BLACK);
+        loadButton.addActionListener(e -> {
+            int row = entityTable.getSelectedRow();
+            if (row >= 0) {
+                loadEntity(shown.get(row));
+                showEntities.run();
+            }
+        });
+        
+        JButton generateButton = createStyledButton("GENERATE");
+        generateButton.setForeground(Color.BLACK);
+        generateButton.addActionListener(e -> {
+            int row = entityTable.getSelectedRow();
+            if (row >= 0) {
+                generateEntity(shown.get(row));
+                showEntities.run();
+            }
+        });
+        
+        JButton switchButton = createStyledButton("SWITCH TO");
+        switchButton.setForeground(Color.BLACK);
+        switchButton.addActionListener(e -> {
+            int row = entityTable.getSelectedRow();
+            if (row >= 0) {
+                switchEntity(shown.get(row));
+                showEntities.run();
+            }
+        });
+        
+        JButton refreshButton = createStyledButton("REFRESH");
+        refreshButton.setForeground(Color.BLACK);
+        refreshButton.addActionListener(e -> showEntities.run());
+        
+        JPanel toolbar = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 0));
+        toolbar.setBackground(DARK_BG);
+        toolbar.add(newButton);
+        toolbar.add(loadButton);
+        toolbar.add(generateButton);
+        toolbar.add(switchButton);
+        toolbar.add(refreshButton);
+        
+        JPanel panel = new JPanel(new BorderLayout(0, 10));
+        panel.setBackground(DARK_BG);
+        panel.setPreferredSize(new Dimension(600, 300));
+        panel.add(toolbar, BorderLayout.NORTH);
+        panel.add(new JScrollPane(entityTable), BorderLayout.CENTER);
+        
+        JOptionPane.showMessageDialog(this, panel, "Entities", JOptionPane.PLAIN_MESSAGE);
+    }
+    
+    // Loads a CSV file into an entity that is not active, on its own thread
+    private void loadEntity(EntityLedgers.Shard shard) {
+        if (shard == activeEntity) {
+            JOptionPane.showMessageDialog(this, "Use IMPORT CSV to load into the active entity", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Load Transactions into " + shard.getEntity());
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        if (!entities.startLoad(shard)) {
+            JOptionPane.showMessageDialog(this, shard.getEntity() + " is already loading", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        File file = fileChooser.getSelectedFile();
+        logToConsole("Loading " + file.getName() + " into " + shard.getEntity() + "...");
+        
+        new Thread(() -> {
+            List<String> errors = new ArrayList<>();
+            long start = System.nanoTime();
+            try {
+                int loaded = entities.load(shard, file, fx, errors::add);
+                long ms = (System.nanoTime() - start) / 1_000_000;
+                SwingUtilities.invokeLater(() -> {
+                    for (String line : errors) {
+                        logToConsole("Error parsing line: " + line);
+                    }
+                    logToConsole(String.format("Loaded %,d transactions into %s from %s in %d ms",
+                        loaded, shard.getEntity(), file.getName(), ms));
+                });
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> logToConsole("Loading " + shard.getEntity() + " failed: " + e.getMessage()));
+            }
+        }, "entity-load").start();
+    }
+    
+    // Fills an entity that is not active with seeded synthetic rows, for trying out large ledgers
+    private void generateEntity(EntityLedgers.Shard shard) {
+        if (shard == activeEntity) {
+            JOptionPane.showMessageDialog(this, "Switch to another entity before generating into this one", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        String input = JOptionPane.showInputDialog(this, "Rows to generate, optionally followed by a seed:", "1000000 42");
+        if (input == null) {
+            return;
+        }
+        long rows;
+        long seed;
+        try {
+            String[] parts = input.trim().split("\\s+");
+            rows = Long.parseLong(parts[0]);
+            seed = parts.length > 1 ? Long.parseLong(parts[1]) : 42;
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Invalid number: " + input, "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (!entities.startLoad(shard)) {
+            JOptionPane.showMessageDialog(this, shard.getEntity() + " is already loading", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        logToConsole(String.format("Generating %,d transactions into %s (seed %d)...", rows, shard.getEntity(), seed));
+        
+        new Thread(() -> {
+            long start = System.nanoTime();
+            entities.generate(shard, new LedgerGenerator(seed, LocalDate.of(2020, 1, 1), 5, 0), rows);
+            long ms = (System.nanoTime() - start) / 1_000_000;
+            SwingUtilities.invokeLater(() -> logToConsole(String.format("Generated %,d transactions into %s in %d ms",
+                rows, shard.getEntity(), ms)));
+        }, "entity-generate").start();
+    }
+    
+    private void switchEntity(EntityLedgers.Shard shard) {
+        if (shard == activeEntity) {
+            return;
+        }
+        if (offHeapLedger != null) {
+            JOptionPane.showMessageDialog(this, "Entities can only be switched with the in-memory ledger", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (shard.isLoading()) {
+            JOptionPane.showMessageDialog(this, shard.getEntity() + " is still loading", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        useEntity(shard);
+        transactionsModel.setTransactions(transactions);
+        refreshRecurringRows();
+        refreshTransactions();
+        refreshReceivables();
+        updateTitle();
+        logToConsole(String.format("Switched to entity %s: %,d transactions", shard.getEntity(), transactions.size()));
+        // Its movements may have been valued with another costing method
+        if (shard.stockMovements != null && shard.inventoryValuation != null
+                && shard.inventoryValuation.getMethod() != costingMethodBox.getSelectedItem()) {
+            valueStockMovements(shard);
+        }
+    }
+    
+    // Starts publishing ledger changes to a feed file, or shows the running feed and stops it
+    private void showChangeFeedDialog() {
+        ChangeFeed feed = entities.getFeed();
+        if (feed.isOpen()) {
+            IOException failure = feed.getFailure();
+            String status = String.format("Publishing to %s%nNext sequence: %,d%nWritten: %,d events in %,d batches%s",
+                feed.getFile().getAbsolutePath(), feed.getNextSequence(), feed.getWrittenCount(), feed.getBatchCount(),
+                failure != null ? String.format("%nWriting stopped: %s%nDropped: %,d events (stop and restart the feed to resume)",
+                    failure.getMessage(), feed.getDroppedCount()) : "");
+            Object[] options = {"STOP", "CLOSE"};
+            int choice = JOptionPane.showOptionDialog(this, status, "Change Feed", JOptionPane.DEFAULT_OPTION,
+                JOptionPane.INFORMATION_MESSAGE, null, options, options[1]);
+            if (choice == 0) {
+                try {
+                    feed.close();
+                    logToConsole(String.format("Change feed stopped after sequence %,d", feed.getNextSequence() - 1));
+                } catch (IOException e) {
+                    logToConsole("Change feed close failed: " + e.getMessage());
+                }
+            }
+            return;
+        }
+        
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Change Feed File");
+        fileChooser.setSelectedFile(new File("ledger-changes.jsonl"));
+        if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = fileChooser.getSelectedFile();
+        try {
+            feed.setFailureListener(e -> SwingUtilities.invokeLater(() ->
+                logToConsole("ALERT: Change feed stopped writing to " + file.getName() + ": " + e.getMessage())));
+            feed.open(file);
+            logToConsole(String.format("Publishing changes to %s from sequence %,d", file.getName(), feed.getNextSequence()));
+        } catch (IOException | RuntimeException e) {
+            JOptionPane.showMessageDialog(this, "Could not open change feed: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    // Shows the audit log's size and latest sealed root, verifies it in full or
+    // over a date range, and journals it to a file or checks a journal file
+    private void showAuditLogDialog() {
+        AuditLog audit = entities.getAudit();
+        int blocks = audit.getBlockCount();
+        File journal = audit.getJournalFile();
+        IOException failure = audit.getJournalFailure();
+        String status = String.format("Entries: %,d%nSealed blocks: %,d (%,d entries each)%nLatest root: %s%nJournal: %s%s",
+            audit.size(), blocks, AuditLog.BLOCK_SIZE, blocks > 0 ? audit.getRoot(blocks - 1) : "none yet",
+            journal != null ? journal.getAbsolutePath() : "none",
+            failure != null ? "\nJournal stopped: " + failure.getMessage() : "");
+        Object[] options = {"VERIFY ALL", "VERIFY RANGE", journal != null ? "STOP JOURNAL" : "START JOURNAL",
+            "VERIFY JOURNAL FILE", "CLOSE"};
+        int choice = JOptionPane.showOptionDialog(this, status, "Audit Log", JOptionPane.DEFAULT_OPTION,
+            JOptionPane.INFORMATION_MESSAGE, null, options, options[4]);
+        if (choice == 2) {
+            toggleAuditJournal(audit);
+        } else if (choice == 3) {
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setDialogTitle("Verify Audit Journal");
+            if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                File file = fileChooser.getSelectedFile();
+                verifyAuditLog("journal " + file.getName(), () -> {
+                    try {
+                        return AuditLog.verifyJournal(file);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        } else if (choice == 0) {
+            verifyAuditLog("all entries", audit::verifyAll);
+        } else if (choice == 1) {
+            String input = JOptionPane.showInputDialog(this, "Entries recorded from and to (YYYY-MM-DD YYYY-MM-DD):",
+                "Verify Range", JOptionPane.QUESTION_MESSAGE);
+            if (input == null) {
+                return;
+            }
+            String[] dates = input.trim().split("\\s+");
+            try {
+                LocalDate from = LocalDate.parse(dates[0]);
+                LocalDate to = LocalDate.parse(dates[dates.length - 1]);
+                ZoneId zone = ZoneId.systemDefault();
+                long start = from.atStartOfDay(zone).toInstant().toEpochMilli();
+                long end = to.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+                verifyAuditLog("entries recorded from " + from + " to " + to, () -> audit.verifyRecorded(start, end));
+            } catch (DateTimeParseException e) {
+                JOptionPane.showMessageDialog(this, "Invalid date: " + input, "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+    
+    // Starts a journal of the audit log in a new file, or stops the running one
+    private void toggleAuditJournal(AuditLog audit) {
+        if (audit.getJournalFile() != null) {
+            try {
+                audit.stopJournal();
+                logToConsole("Audit journal stopped");
+            } catch (IOException e) {
+                logToConsole("Audit journal close failed: " + e.getMessage());
+            }
+            return;
+        }
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Audit Journal File (new, or a journal to continue)");
+        fileChooser.setSelectedFile(new File("audit-journal.tsv"));
+        if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = fileChooser.getSelectedFile();
+        try {
+            long held = audit.startJournal(file);
+            if (!auditJournalHooked) {
+                // Entries of the open block are only flushed when it seals or the journal stops
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        audit.stopJournal();
+                    } catch (IOException e) {
+                        System.err.println("Audit journal close failed: " + e.getMessage());
+                    }
+                }, "audit-journal-close"));
+                auditJournalHooked = true;
+            }
+            logToConsole(String.format("Journaling the audit log to %s after the %,d entries it held; %,d entries now",
+                file.getName(), held, audit.size()));
+        } catch (IOException | RuntimeException e) {
+            JOptionPane.showMessageDialog(this, "Could not start audit journal: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
+    private void verifyAuditLog(String scope, Supplier<AuditLog.Result> check) {
+        logToConsole("Verifying audit log, " + scope + "...");
+        new Thread(() -> {
+            long start = System.nanoTime();
+            AuditLog.Result result;
+            try {
+                result = check.get();
+            } catch (UncheckedIOException e) {
+                SwingUtilities.invokeLater(() -> {
+                    logToConsole("Audit verification failed: " + e.getCause().getMessage());
+                    JOptionPane.showMessageDialog(this, e.getCause().getMessage(), "Audit Log", JOptionPane.ERROR_MESSAGE);
+                });
+                return;
+            }
+            double millis = (System.nanoTime() - start) / 1e6;
+            SwingUtilities.invokeLater(() -> {
+                if (result.isIntact()) {
+                    logToConsole(String.format("Audit log intact: %,d entries, %,d hashes in %.1f ms",
+                        result.getEntryCount(), result.getHashCount(), millis));
+                } else {
+                    logToConsole("ALERT: Audit log tampered at entries " + result.getBroken());
+                    JOptionPane.showMessageDialog(this, "The audit log does not match its hashes from entry " +
+                        result.getBroken().get(0) + " on", "Audit Log", JOptionPane.ERROR_MESSAGE);
+                }
+            });
+        }, "audit-verify").start();
+    }
+    
+    // Totals and calculations per entity and for the group, aggregated per shard in parallel
+    private void showConsolidatedReport() {
+        if (offHeapLedger != null) {
+            JOptionPane.showMessageDialog(this, "Entities can only be consolidated with the in-memory ledger", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        for (EntityLedgers.Shard shard : entities.getShards()) {
+            if (shard.isLoading()) {
+                logToConsole("Consolidation leaves out " + shard.getEntity() + ", which is still loading");
             }
         }
+        Supplier<List<EntityLedgers.Summary>> consolidation = entities.consolidation(LocalDate.now(), fx, reportingCurrency);
+        
+        new Thread(() -> {
+            long start = System.nanoTime();
+            List<EntityLedgers.Summary> summaries = consolidation.get();
+            EntityLedgers.Summary group = EntityLedgers.Summary.combine("CONSOLIDATED", summaries);
+            long ms = (System.nanoTime() - start) / 1_000_000;
+            SwingUtilities.invokeLater(() -> {
+                logToConsole(String.format("Consolidated %d entities in %d ms", summaries.size(), ms));
+                showConsolidation(summaries, group);
+            });
+        }, "entity-consolidation").start();
+    }
+    
+    private void showConsolidation(List<EntityLedgers.Summary> summaries, EntityLedgers.Summary group) {
+        List<EntityLedgers.Summary> columns = new ArrayList<>(summaries);
+        columns.add(group);
+        List<String> headers = new ArrayList<>();
+        headers.add("FIGURE");
+        for (EntityLedgers.Summary summary : columns) {
+            headers.add(summary.getEntity().toUpperCase());
+        }
+        DefaultTableModel reportModel = new DefaultTableModel(headers.toArray(), 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        
+        List<String> figures = new ArrayList<>(Arrays.asList("Total Income", "Total Expenses", "Total VAT", "Net Balance"));
+        figures.addAll(Arrays.asList(CALCULATIONS));
+        for (String figure : figures) {
+            Object[] row = new Object[columns.size() + 1];
+            row[0] = figure;
+            for (int i = 0; i < columns.size(); i++) {
+                EntityLedgers.Summary s = columns.get(i);
+                LedgerTotals totals = s.getTotals();
+                switch (figure) {
+                    case "Total Income":
+                        row[i + 1] = money(totals.getIncome());
+                        break;
+                    case "Total Expenses":
+                        row[i + 1] = money(totals.getExpense());
+                        break;
+                    case "Total VAT":
+                        row[i + 1] = money(totals.getVAT());
+                        break;
+                    case "Net Balance":
+                        row[i + 1] = money(totals.getNet());
+                        break;
+                    default:
+                        row[i + 1] = formatCalculation(figure, s);
+                }
+            }
+            reportModel.addRow(row);
+        }
+        
+        JTable reportTable = new JTable(reportModel);
+        styleTable(reportTable);
+        JScrollPane scrollPane = new JScrollPane(reportTable);
+        scrollPane.setPreferredSize(new Dimension(Math.min(1000, 220 + 150 * columns.size()), 380));
+        
+        logToConsole("Generated Consolidated report");
+        JOptionPane.showMessageDialog(this, scrollPane, "Consolidated Report", JOptionPane.PLAIN_MESSAGE);
+    }
+    
+    private void refreshTransactions() {
+        LedgerTotals totals = reportingTotals();
+        double totalIncome = totals.getIncome();
+        double totalExpense = totals.getExpense();
+        double totalVAT = totals.getVAT();
         
         targetBalance = totalIncome - totalExpense;
         if (!balanceAnimationTimer.isRunning()) {
             balanceAnimationTimer.start();
         }
         
-        Component dashboard = tabbedPane.getComponentAt(0);
-        if (dashboard instanceof JPanel) {
-            JPanel dashboardPanel = (JPanel) dashboard;
+        if (dashboardPanel != null) {
             Component[] components = dashboardPanel.getComponents();
             if (components.length > 0 && components[0] instanceof JPanel) {
                 JPanel summaryPanel = (JPanel) components[0];
                 if (summaryPanel.getComponentCount() >= 4) {
-                    ((JLabel) ((JPanel) summaryPanel.getComponent(0)).getComponent(1)).setText(String.format("R%,.2f", totalIncome));
-                    ((JLabel) ((JPanel) summaryPanel.getComponent(1)).getComponent(1)).setText(String.format("R%,.2f", totalExpense));
-                    ((JLabel) ((JPanel) summaryPanel.getComponent(2)).getComponent(1)).setText(String.format("R%,.2f", targetBalance));
-                    ((JLabel) ((JPanel) summaryPanel.getComponent(3)).getComponent(1)).setText(String.format("R%,.2f", totalVAT));
+                    ((JLabel) ((JPanel) summaryPanel.getComponent(0)).getComponent(1)).setText(money(totalIncome));
+                    ((JLabel) ((JPanel) summaryPanel.getComponent(1)).getComponent(1)).setText(money(totalExpense));
+                    ((JLabel) ((JPanel) summaryPanel.getComponent(2)).getComponent(1)).setText(money(targetBalance));
+                    ((JLabel) ((JPanel) summaryPanel.getComponent(3)).getComponent(1)).setText(money(totalVAT));
                 }
             }
-            
-            for (Component comp : dashboardPanel.getComponents()) {
-                if (comp instanceof JPanel) {
-                    JPanel centerPanel = (JPanel) comp;
-                    for (Component chartComp : centerPanel.getComponents()) {
-                        if (chartComp instanceof ChartPanel) {
-                            ChartPanel chartPanel = (ChartPanel) chartComp;
-                            DefaultPieDataset dataset = new DefaultPieDataset();
-                            dataset.setValue("Income", totalIncome);
-                            dataset.setValue("Expenses", totalExpense);
-                            ((PiePlot) chartPanel.getChart().getPlot()).setDataset(dataset);
-                        }
-                    }
+        }
+        
+        if (balanceChartPanel != null) {
+            // Made from a DefaultPieDataset<String> by createBalanceChart
+            @SuppressWarnings("unchecked")
+            PiePlot<String> plot = (PiePlot<String>) balanceChartPanel.getChart().getPlot();
+            // A new dataset redraws the cached chart image, so only set one on a change
+            if (!hasValue(plot.getDataset(), "Income", totalIncome)
+                    || !hasValue(plot.getDataset(), "Expenses", totalExpense)) {
+                DefaultPieDataset<String> dataset = new DefaultPieDataset<>();
+                dataset.setValue("Income", totalIncome);
+                dataset.setValue("Expenses", totalExpense);
+                plot.setDataset(dataset);
+            }
+        }
+        updateUndoButtons();
+        updateForecast();
+    }
+    
+    // Every ledger change ends in refreshTransactions, which calls this
+    private void updateUndoButtons() {
+        if (undoButton != null) {
+            undoButton.setEnabled(transactions.canUndo());
+            redoButton.setEnabled(transactions.canRedo());
+        }
+    }
+    
+    // Refits the forecast off the EDT from the rollup, recurring occurrences included,
+    // each month converted to the reporting currency at its average rate; only the
+    // latest request runs if several are waiting, and only it updates the chart
+    private void updateForecast() {
+        if (forecastChartPanel == null) {
+            return;
+        }
+        RollupCube cube = new RollupCube();
+        cube.merge(rollup);
+        closes.addHistoryTo(cube);
+        recurring.addTo(cube, closes.getOpenFrom(), LocalDate.now());
+        Map<String, SortedMap<Integer, Double>> series = new HashMap<>();
+        for (String type : new String[]{"Income", "Expense"}) {
+            SortedMap<Integer, Double> months = new TreeMap<>();
+            cube.monthlyAmounts(type).forEach((month, amount) ->
+                months.put(month, fx.fromBaseInMonth(reportingCurrency, month, amount)));
+            series.put(type, months);
+        }
+        // targetBalance is already in the reporting currency
+        double balance = targetBalance;
+        String currency = reportingCurrency;
+        int horizon = (Integer) forecastHorizonBox.getSelectedItem();
+        long requested = ++forecastVersion;
+        CashFlowForecast model = forecast;
+        
+        if (pendingForecast != null) {
+            pendingForecast.cancel(false);
+        }
+        pendingForecast = forecastExecutor.submit(() -> {
+            CashFlowForecast.Projection projection;
+            try {
+                projection = model.project(series, balance, horizon);
+            } catch (RuntimeException e) {
+                // The Future would swallow it
+                SwingUtilities.invokeLater(() -> logToConsole("Forecast failed: " + e));
+                return;
+            }
+            SwingUtilities.invokeLater(() -> {
+                if (requested == forecastVersion && !(Objects.equals(projection, shownProjection)
+                        && currency.equals(shownForecastCurrency))) {
+                    shownProjection = projection;
+                    shownForecastCurrency = currency;
+                    showForecast(projection, currency);
                 }
+            });
+        });
+    }
+    
+    private void showForecast(CashFlowForecast.Projection projection, String currency) {
+        DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+        if (projection != null) {
+            for (int i = 0; i < projection.getMonthCount(); i++) {
+                String month = RollupCube.monthLabel(projection.getFirstMonth() + i);
+                dataset.addValue(projection.getBalance(i), "Projected", month);
+                dataset.addValue(projection.getLower(i), "Lower 95%", month);
+                dataset.addValue(projection.getUpper(i), "Upper 95%", month);
             }
         }
+        forecastChartPanel.getChart().getCategoryPlot().getRangeAxis().setLabel(currency);
+        forecastChartPanel.getChart().getCategoryPlot().setDataset(dataset);
+    }
+    
+    private static boolean hasValue(PieDataset<?> dataset, String key, double value) {
+        int item = dataset != null ? dataset.getKeys().indexOf(key) : -1;
+        Number current = item >= 0 ? dataset.getValue(item) : null;
+        return current != null && current.doubleValue() == value;
     }
     
     public static void main(String[] args) {
@@ -1205,14 +4107,28 @@ public class Application extends JFrame {
         private double amount;
         private String type;
         private int vatRate;
+        private String currency;
+        private double foreignAmount;
+        private int epochDay = UNPARSED_DATE;
+        
+        private static final int UNPARSED_DATE = Integer.MAX_VALUE;
+        private static final int INVALID_DATE = Integer.MIN_VALUE;
         
         public Transaction(String id, String date, String description, double amount, String type, int vatRate) {
+            this(id, date, description, amount, type, vatRate, FxRates.BASE, amount);
+        }
+        
+        // amount is in ZAR, foreignAmount the amount in currency as entered
+        public Transaction(String id, String date, String description, double amount, String type, int vatRate,
+                           String currency, double foreignAmount) {
             this.id = id;
             this.date = date;
             this.description = description;
             this.amount = amount;
             this.type = type;
             this.vatRate = vatRate;
+            this.currency = currency;
+            this.foreignAmount = foreignAmount;
         }
         
         public String getId() { return id; }
@@ -1221,8 +4137,32 @@ public class Application extends JFrame {
         public double getAmount() { return amount; }
         public String getType() { return type; }
         public int getVatRate() { return vatRate; }
+        public String getCurrency() { return currency; }
+        public double getForeignAmount() { return foreignAmount; }
         
+        public boolean isForeign() {
+            return !FxRates.BASE.equals(currency);
+        }
+        
+        // Parsed once and cached; unparseable dates sort before all others
+        public long getEpochDay() {
+            int day = epochDay;
+            if (day == UNPARSED_DATE) {
+                try {
+                    day = (int) LocalDate.parse(date).toEpochDay();
+                } catch (DateTimeParseException e) {
+                    day = INVALID_DATE;
+                }
+                epochDay = day;
+            }
+            return day;
+        }
+        
+        // Foreign rows give the amount in their currency, in a seventh column
         public String toCSV() {
+            if (isForeign()) {
+                return String.format("%s,%s,%s,%.2f,%s,%d,%s", id, date, description, foreignAmount, type, vatRate, currency);
+            }
             return String.format("%s,%s,%s,%.2f,%s,%d", id, date, description, amount, type, vatRate);
         }
     }
@@ -0,0 +1,710 @@
+package framesLearn;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import framesLearn.Application.Transaction;
+
+// Tamper-evident record of every ledger change. Each entry's SHA-256 hash
+// covers the entry and the previous entry's hash, so changing, dropping or
+// reordering an entry breaks the chain from there on. Every BLOCK_SIZE
+// entries the block is sealed with the Merkle root of its entry hashes; the
+// sealed roots are what an auditor keeps. The entries recorded in a time
+// range are checked by rehashing only those entries plus O(log n) stored
+// tree nodes per block, and the whole log is checked block by block in
+// parallel.
+//
+// The log can also be journaled to a file: every entry as a line, and each
+// block's root after its last entry. The journal is flushed as each block is
+// sealed, so a root reaches the disk with the entries it covers; from then
+// on only the block's tree is kept in memory and its entries are read back
+// from the file to verify it. Starting a journal in an existing journal file
+// continues it after its last entry, and verifyJournal checks a journal file
+// on its own, e.g. in a later session.
+class AuditLog {
+    
+    static final int BLOCK_SIZE = 1024;
+    private static final int HASH_BYTES = 32;
+    
+    public static class Entry {
+        private final long sequence;
+        private final long timestamp;
+        private final ChangeFeed.Kind kind;
+        private final String entity;
+        private final Transaction row;
+        private final byte[] hash;
+        
+        Entry(long sequence, long timestamp, ChangeFeed.Kind kind, String entity, Transaction row, byte[] hash) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.kind = kind;
+            this.entity = entity;
+            this.row = row;
+            this.hash = hash;
+        }
+        
+        public long getSequence() { return sequence; }
+        public long getTimestamp() { return timestamp; }
+        public ChangeFeed.Kind getKind() { return kind; }
+        public String getEntity() { return entity; }
+        public Transaction getRow() { return row; }
+        public byte[] getHash() { return hash.clone(); }
+    }
+    
+    // A sealed block: the interior nodes of its Merkle tree in heap order
+    // (node 1 is the root, node i has children 2i and 2i + 1, and the leaves
+    // are the entry hashes), the root as sealed, where its chain ends, and
+    // its entries until they are released to a journal file
+    private static class Block {
+        final long firstSequence;
+        final long firstTimestamp;
+        final long lastTimestamp;
+        final byte[] lastHash;
+        final byte[] nodes;
+        final byte[] root;
+        // Null once released; file and offset are set before
+        volatile Entry[] entries;
+        File file;
+        long offset;
+        
+        Block(Entry[] entries, byte[] nodes) {
+            this.firstSequence = entries[0].sequence;
+            this.firstTimestamp = entries[0].timestamp;
+            this.lastTimestamp = entries[BLOCK_SIZE - 1].timestamp;
+            this.lastHash = entries[BLOCK_SIZE - 1].hash;
+            this.nodes = nodes;
+            this.root = Arrays.copyOfRange(nodes, HASH_BYTES, 2 * HASH_BYTES);
+            this.entries = entries;
+        }
+        
+        // The entries are on disk from the line at offset on
+        void release(File file, long offset) {
+            this.file = file;
+            this.offset = offset;
+            entries = null;
+        }
+    }
+    
+    // A journal file as read back: its blocks, released to the file, when
+    // kept; the entries after its last root; and the first entry of each
+    // block that does not verify
+    private static class Journal {
+        final List<Block> blocks = new ArrayList<>();
+        final Entry[] open = new Entry[BLOCK_SIZE];
+        int openCount;
+        long openOffset;
+        int sealedCount;
+        long entries;
+        long length;
+        byte[] lastHash = new byte[HASH_BYTES];
+        long lastTimestamp;
+        final List<Long> broken = new ArrayList<>();
+    }
+    
+    // Outcome of a verification
+    public static class Result {
+        private final long entries;
+        private final long hashes;
+        private final List<Long> broken;
+        
+        Result(long entries, long hashes, List<Long> broken) {
+            this.entries = entries;
+            this.hashes = hashes;
+            this.broken = broken;
+        }
+        
+        public boolean isIntact() { return broken.isEmpty(); }
+        public long getEntryCount() { return entries; }
+        // Hashes computed or read from the tree, the cost of the check
+        public long getHashCount() { return hashes; }
+        // Sequence numbers of the first failing entry of each failing block
+        public List<Long> getBroken() { return broken; }
+    }
+    
+    // Used under the lock by record
+    private final MessageDigest digest = digest();
+    private final List<Block> sealed = new ArrayList<>();
+    private Entry[] open = new Entry[BLOCK_SIZE];
+    private int openCount;
+    private byte[] lastHash = new byte[HASH_BYTES];
+    private long lastTimestamp;
+    private File journalFile;
+    private OutputStream journal;
+    private long journalLength;
+    // Where the open block's first entry starts in the journal
+    private long openOffset;
+    // Why the journal stopped, if a write failed
+    private IOException journalFailure;
+    
+    public synchronized void append(ChangeFeed.Kind kind, String entity, Transaction row) {
+        record(kind, entity, row, System.currentTimeMillis());
+    }
+    
+    // Chains one entry, journals it when a journal is open, and seals the
+    // block when it is full
+    private void record(ChangeFeed.Kind kind, String entity, Transaction row, long time) {
+        long sequence = (long) sealed.size() * BLOCK_SIZE + openCount + 1;
+        // Kept in order, so time ranges can be found by binary search
+        long timestamp = Math.max(lastTimestamp, time);
+        byte[] hash = hash(digest, lastHash, sequence, timestamp, kind, entity, row);
+        Entry entry = new Entry(sequence, timestamp, kind, entity, row, hash);
+        if (journal != null) {
+            try {
+                if (openCount == 0) {
+                    openOffset = journalLength;
+                }
+                write(entryLine(entry));
+            } catch (IOException e) {
+                failJournal(e);
+            }
+        }
+        open[openCount++] = entry;
+        lastHash = hash;
+        lastTimestamp = timestamp;
+        if (openCount < BLOCK_SIZE) {
+            return;
+        }
+        
+        byte[] nodes = new byte[BLOCK_SIZE * HASH_BYTES];
+        buildTree(digest, leaves(open), nodes);
+        Block block = new Block(open, nodes);
+        sealed.add(block);
+        open = new Entry[BLOCK_SIZE];
+        openCount = 0;
+        if (journal != null) {
+            try {
+                write(rootLine(sealed.size() - 1, block.root));
+                journal.flush();
+                block.release(journalFile, openOffset);
+            } catch (IOException e) {
+                failJournal(e);
+            }
+        }
+    }
+    
+    // Journals the log to the file from now on. A new or empty file gets the
+    // entries so far. An existing journal is read and checked first; if it is
+    // an earlier journal of this log, the entries since are added to it,
+    // otherwise the entries so far are chained again after its last one, as
+    // if recorded after it. Returns the number of entries the file already held.
+    public synchronized long startJournal(File file) throws IOException {
+        if (journal != null) {
+            throw new IllegalStateException("The audit log is already journaled to " + journalFile.getName());
+        }
+        Journal loaded = null;
+        if (file.length() > 0) {
+            loaded = readJournal(file, true);
+            if (!loaded.broken.isEmpty()) {
+                throw new IOException(file.getName() + " does not verify from entry " + loaded.broken.get(0));
+            }
+            if (loaded.length != file.length()) {
+                throw new IOException(file.getName() + " ends in an incomplete line");
+            }
+        }
+        List<Entry> recorded = new ArrayList<>();
+        try {
+            // Entries the file already holds are recorded again unchanged, so are skipped
+            long held = loaded != null && loaded.entries <= size()
+                && Arrays.equals(hashAt(loaded.entries), loaded.lastHash) ? loaded.entries : 0;
+            for (int b = (int) (held / BLOCK_SIZE); b < sealed.size(); b++) {
+                Entry[] entries = entriesOf(sealed.get(b));
+                if (entries == null) {
+                    throw new IOException(sealed.get(b).file.getName() + " no longer holds audit entries from "
+                        + sealed.get(b).firstSequence);
+                }
+                recorded.addAll(Arrays.asList(entries));
+            }
+            recorded.addAll(Arrays.asList(open).subList(0, openCount));
+            recorded.removeIf(e -> e.sequence <= held);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file, loaded != null));
+        
+        sealed.clear();
+        open = new Entry[BLOCK_SIZE];
+        openCount = 0;
+        lastHash = new byte[HASH_BYTES];
+        lastTimestamp = 0;
+        journalLength = 0;
+        if (loaded != null) {
+            sealed.addAll(loaded.blocks);
+            System.arraycopy(loaded.open, 0, open, 0, loaded.openCount);
+            openCount = loaded.openCount;
+            openOffset = loaded.openOffset;
+            lastHash = loaded.lastHash;
+            lastTimestamp = loaded.lastTimestamp;
+            journalLength = loaded.length;
+        }
+        journal = out;
+        journalFile = file;
+        journalFailure = null;
+        for (Entry e : recorded) {
+            record(e.kind, e.entity, e.row, e.timestamp);
+        }
+        if (journal != null) {
+            try {
+                journal.flush();
+            } catch (IOException e) {
+                failJournal(e);
+            }
+        }
+        if (journal == null) {
+            // The entries are all still in the log, just not in the file
+            throw journalFailure;
+        }
+        return loaded != null ? loaded.entries : 0;
+    }
+    
+    // Flushes the entries of the open block too, and closes the file. The
+    // blocks already released stay in it and are read from it to verify them.
+    public synchronized void stopJournal() throws IOException {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.flush();
+        } finally {
+            closeJournal();
+        }
+    }
+    
+    // The file being journaled to, or null
+    public synchronized File getJournalFile() {
+        return journal != null ? journalFile : null;
+    }
+    
+    public synchronized IOException getJournalFailure() {
+        return journalFailure;
+    }
+    
+    // Hash of the entry with the sequence number; zeros before the first
+    private byte[] hashAt(long sequence) {
+        if (sequence == 0) {
+            return new byte[HASH_BYTES];
+        }
+        int b = (int) ((sequence - 1) / BLOCK_SIZE);
+        Entry[] entries = b < sealed.size() ? entriesOf(sealed.get(b)) : open;
+        return entries != null ? entries[(int) ((sequence - 1) % BLOCK_SIZE)].hash : null;
+    }
+    
+    private void write(String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        journal.write(bytes);
+        journalLength += bytes.length;
+    }
+    
+    private void failJournal(IOException e) {
+        journalFailure = e;
+        closeJournal();
+    }
+    
+    private void closeJournal() {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            if (journalFailure == null) {
+                journalFailure = e;
+            }
+        }
+        journal = null;
+    }
+    
+    // Checks a journal file without the log that wrote it: rehashes the chain
+    // and rebuilds the tree of every complete block against the root written
+    // after it. A complete block without its root counts as broken.
+    public static Result verifyJournal(File file) throws IOException {
+        Journal journal = readJournal(file, false);
+        return new Result(journal.entries, journal.entries + (long) journal.sealedCount * (BLOCK_SIZE - 1), journal.broken);
+    }
+    
+    // Reads and checks a journal; keepBlocks keeps each intact block's tree,
+    // released to the file. Offsets count the "\n" line ends it is written with.
+    private static Journal readJournal(File file, boolean keepBlocks) throws IOException {
+        MessageDigest digest = digest();
+        Journal journal = new Journal();
+        Entry[] block = journal.open;
+        int count = 0;
+        byte[] previous = new byte[HASH_BYTES];
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                long offset = journal.length;
+                journal.length += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                Entry entry = count < BLOCK_SIZE ? parseEntry(line) : null;
+                if (entry != null) {
+                    if (count == 0) {
+                        journal.openOffset = offset;
+                    }
+                    block[count++] = entry;
+                    journal.lastTimestamp = entry.timestamp;
+                    continue;
+                }
+                String[] fields = line.split("\t", -1);
+                try {
+                    if (fields[0].equals("R") && fields.length == 3 && count == BLOCK_SIZE
+                            && Integer.parseInt(fields[1]) == journal.sealedCount) {
+                        Long bad = verifyChain(digest, previous, block, 0, BLOCK_SIZE);
+                        byte[] nodes = new byte[BLOCK_SIZE * HASH_BYTES];
+                        if (bad == null) {
+                            buildTree(digest, leaves(block), nodes);
+                            if (!Arrays.equals(Arrays.copyOfRange(nodes, HASH_BYTES, 2 * HASH_BYTES), unhex(fields[2]))) {
+                                bad = block[0].sequence;
+                            }
+                        }
+                        if (bad != null) {
+                            journal.broken.add(bad);
+                        } else if (keepBlocks) {
+                            Block sealed = new Block(block.clone(), nodes);
+                            sealed.release(file, journal.openOffset);
+                            journal.blocks.add(sealed);
+                        }
+                        previous = block[BLOCK_SIZE - 1].hash;
+                        journal.entries += BLOCK_SIZE;
+                        journal.sealedCount++;
+                        count = 0;
+                        continue;
+                    }
+                } catch (IllegalArgumentException e) {
+                    // Reported below with the line number
+                }
+                throw new IOException("Line " + lineNumber + " of " + file.getName() + " is not the expected journal record");
+            }
+        }
+        if (count == BLOCK_SIZE) {
+            journal.broken.add(block[0].sequence);
+        } else {
+            Long bad = verifyChain(digest, previous, block, 0, count);
+            if (bad != null) {
+                journal.broken.add(bad);
+            }
+        }
+        journal.openCount = count;
+        journal.lastHash = count > 0 ? block[count - 1].hash : previous;
+        journal.entries += count;
+        return journal;
+    }
+    
+    // The block's entries, read back from its journal once released; null if
+    // the file no longer holds a block of journal entries there
+    private static Entry[] entriesOf(Block block) {
+        Entry[] entries = block.entries;
+        if (entries != null) {
+            return entries;
+        }
+        try (FileChannel channel = FileChannel.open(block.file.toPath(), StandardOpenOption.READ)) {
+            channel.position(block.offset);
+            BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+            entries = new Entry[BLOCK_SIZE];
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                String line = in.readLine();
+                entries[i] = line != null ? parseEntry(line) : null;
+                if (entries[i] == null) {
+                    return null;
+                }
+            }
+            return entries;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read audit entries from " + block.file.getName(), e);
+        }
+    }
+    
+    // E, sequence, time, kind, entity, the row's fields and the hash, tab separated;
+    // the amount as the hash reads it
+    private static String entryLine(Entry e) {
+        Transaction row = e.row;
+        return "E\t" + e.sequence + "\t" + e.timestamp + "\t" + e.kind + "\t" + escape(e.entity)
+            + "\t" + escape(row.getId()) + "\t" + escape(row.getDate()) + "\t" + escape(row.getDescription())
+            + "\t" + row.getAmount() + "\t" + escape(row.getType()) + "\t" + row.getVatRate() + "\t" + hex(e.hash) + "\n";
+    }
+    
+    // An entry line, or null if the line is not one
+    private static Entry parseEntry(String line) {
+        String[] fields = line.split("\t", -1);
+        if (!fields[0].equals("E") || fields.length != 12) {
+            return null;
+        }
+        try {
+            Transaction row = new Transaction(unescape(fields[5]), unescape(fields[6]), unescape(fields[7]),
+                Double.parseDouble(fields[8]), unescape(fields[9]), Integer.parseInt(fields[10]));
+            return new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                ChangeFeed.Kind.valueOf(fields[3]), unescape(fields[4]), row, unhex(fields[11]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
+    private static String rootLine(int block, byte[] root) {
+        return "R\t" + block + "\t" + hex(root) + "\n";
+    }
+    
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+    
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuilder out = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                c = text.charAt(++i);
+                c = c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c;
+            }
+            out.append(c);
+        }
+        return out.toString();
+    }
+    
+    public synchronized long size() {
+        return (long) sealed.size() * BLOCK_SIZE + openCount;
+    }
+    
+    public synchronized int getBlockCount() {
+        return sealed.size();
+    }
+    
+    // Sealed Merkle root of a block, as hex
+    public synchronized String getRoot(int block) {
+        return hex(sealed.get(block).root);
+    }
+    
+    // Checks the entries recorded, by the log's clock, in [from, to) against
+    // the sealed roots. The range is by recording time, not transaction date:
+    // entries are in recording order along the chain, so this is what a
+    // binary search finds. Each touched block costs the range's entries plus
+    // the tree nodes beside it; entries still in the open block are checked
+    // along the chain only.
+    public Result verifyRecorded(long from, long to) {
+        List<Block> blocks;
+        Entry[] tail;
+        int tailCount;
+        synchronized (this) {
+            blocks = new ArrayList<>(sealed);
+            tail = open;
+            tailCount = openCount;
+        }
+        MessageDigest digest = digest();
+        long[] hashes = new long[1];
+        long checked = 0;
+        List<Long> broken = new ArrayList<>();
+        for (int b = firstBlock(blocks, from); b < blocks.size() && blocks.get(b).firstTimestamp < to; b++) {
+            Block block = blocks.get(b);
+            Entry[] entries = entriesOf(block);
+            if (entries == null) {
+                broken.add(block.firstSequence);
+                continue;
+            }
+            int lo = lowerBound(entries, BLOCK_SIZE, from);
+            int hi = lowerBound(entries, BLOCK_SIZE, to);
+            if (lo >= hi) {
+                continue;
+            }
+            // The chain inside the range; entries outside it are covered by the tree
+            byte[] previous = lo > 0 ? entries[lo - 1].hash : chainStart(blocks, b);
+            Long bad = verifyChain(digest, previous, entries, lo, hi);
+            hashes[0] += hi - lo;
+            if (bad == null && !Arrays.equals(rangeRoot(digest, block, entries, 1, 0, BLOCK_SIZE, lo, hi, hashes), block.root)) {
+                bad = entries[lo].sequence;
+            }
+            if (bad != null) {
+                broken.add(bad);
+            }
+            checked += hi - lo;
+        }
+        int lo = lowerBound(tail, tailCount, from);
+        int hi = lowerBound(tail, tailCount, to);
+        if (lo < hi) {
+            byte[] previous = lo > 0 ? tail[lo - 1].hash : chainStart(blocks, blocks.size());
+            Long bad = verifyChain(digest, previous, tail, lo, hi);
+            if (bad != null) {
+                broken.add(bad);
+            }
+            hashes[0] += hi - lo;
+            checked += hi - lo;
+        }
+        return new Result(checked, hashes[0], broken);
+    }
+    
+    // Rehashes every entry and rebuilds every block root, blocks in parallel
+    public Result verifyAll() {
+        List<Block> blocks;
+        Entry[] tail;
+        int tailCount;
+        synchronized (this) {
+            blocks = new ArrayList<>(sealed);
+            tail = open;
+            tailCount = openCount;
+        }
+        List<Long> broken = IntStream.range(0, blocks.size()).parallel()
+            .mapToObj(b -> verifyBlock(blocks, b))
+            .filter(Objects::nonNull)
+            .sorted()
+            .collect(Collectors.toList());
+        Long bad = verifyChain(digest(), chainStart(blocks, blocks.size()), tail, 0, tailCount);
+        if (bad != null) {
+            broken.add(bad);
+        }
+        long entries = (long) blocks.size() * BLOCK_SIZE + tailCount;
+        // Each block rehashes its entries and its BLOCK_SIZE - 1 tree nodes
+        return new Result(entries, entries + (long) blocks.size() * (BLOCK_SIZE - 1), broken);
+    }
+    
+    // Sequence number of the first bad entry of the block, or null if it is intact
+    private static Long verifyBlock(List<Block> blocks, int b) {
+        MessageDigest digest = digest();
+        Block block = blocks.get(b);
+        Entry[] entries = entriesOf(block);
+        if (entries == null) {
+            return block.firstSequence;
+        }
+        Long bad = verifyChain(digest, chainStart(blocks, b), entries, 0, BLOCK_SIZE);
+        if (bad != null) {
+            return bad;
+        }
+        // The chain held, so the stored hashes are the recomputed leaves
+        byte[] nodes = new byte[BLOCK_SIZE * HASH_BYTES];
+        buildTree(digest, leaves(entries), nodes);
+        return Arrays.equals(Arrays.copyOfRange(nodes, HASH_BYTES, 2 * HASH_BYTES), block.root)
+            ? null : block.firstSequence;
+    }
+    
+    // Rehashes entries[lo, hi) along the chain from previous; the sequence
+    // number of the first entry that does not match, or null
+    private static Long verifyChain(MessageDigest digest, byte[] previous, Entry[] entries, int lo, int hi) {
+        for (int i = lo; i < hi; i++) {
+            Entry e = entries[i];
+            if (!Arrays.equals(hash(digest, previous, e.sequence, e.timestamp, e.kind, e.entity, e.row), e.hash)) {
+                return e.sequence;
+            }
+            previous = e.hash;
+        }
+        return null;
+    }
+    
+    // Root of the block's tree from the range's leaves and the stored nodes that
+    // lie wholly outside the range
+    private static byte[] rangeRoot(MessageDigest digest, Block block, Entry[] entries, int node, int start, int end,
+                                    int lo, int hi, long[] hashes) {
+        hashes[0]++;
+        if (end - start == 1) {
+            return entries[start].hash;
+        }
+        if (end <= lo || start >= hi) {
+            return Arrays.copyOfRange(block.nodes, node * HASH_BYTES, (node + 1) * HASH_BYTES);
+        }
+        int mid = (start + end) >>> 1;
+        // Both children first: each may use the digest itself
+        byte[] left = rangeRoot(digest, block, entries, 2 * node, start, mid, lo, hi, hashes);
+        byte[] right = rangeRoot(digest, block, entries, 2 * node + 1, mid, end, lo, hi, hashes);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+    
+    private static byte[][] leaves(Entry[] entries) {
+        byte[][] leaves = new byte[entries.length][];
+        for (int i = 0; i < entries.length; i++) {
+            leaves[i] = entries[i].hash;
+        }
+        return leaves;
+    }
+    
+    // Fills the interior nodes from the leaves, bottom up
+    private static void buildTree(MessageDigest digest, byte[][] leaves, byte[] nodes) {
+        for (int node = BLOCK_SIZE - 1; node >= 1; node--) {
+            for (int child = 2 * node; child <= 2 * node + 1; child++) {
+                if (child >= BLOCK_SIZE) {
+                    digest.update(leaves[child - BLOCK_SIZE]);
+                } else {
+                    digest.update(nodes, child * HASH_BYTES, HASH_BYTES);
+                }
+            }
+            byte[] hash = digest.digest();
+            System.arraycopy(hash, 0, nodes, node * HASH_BYTES, HASH_BYTES);
+        }
+    }
+    
+    // Hash the chain of block b starts from; zeros for the first block
+    private static byte[] chainStart(List<Block> blocks, int b) {
+        return b == 0 ? new byte[HASH_BYTES] : blocks.get(b - 1).lastHash;
+    }
+    
+    // First block that may hold entries at or after the time
+    private static int firstBlock(List<Block> blocks, long from) {
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks.get(mid).lastTimestamp < from) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    // First index in entries[0, count) recorded at or after the time
+    private static int lowerBound(Entry[] entries, int count, long time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries[mid].timestamp < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    private static byte[] hash(MessageDigest digest, byte[] previous, long sequence, long timestamp,
+                               ChangeFeed.Kind kind, String entity, Transaction row) {
+        digest.update(previous);
+        String content = sequence + "|" + timestamp + "|" + kind + "|" + entity + "|" + row.getId() + "|" + row.getDate()
+            + "|" + row.getDescription() + "|" + row.getAmount() + "|" + row.getType() + "|" + row.getVatRate();
+        return digest.digest(content.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static byte[] unhex(String text) {
+        if (text.length() != 2 * HASH_BYTES) {
+            throw new IllegalArgumentException("Not a hash: " + text);
+        }
+        byte[] bytes = new byte[HASH_BYTES];
+        for (int i = 0; i < HASH_BYTES; i++) {
+            bytes[i] = (byte) Integer.parseInt(text.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+    
+    static String hex(byte[] bytes) {
+        StringBuilder out = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            out.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+        }
+        return out.toString();
+    }
+}
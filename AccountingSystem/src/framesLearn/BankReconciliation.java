@@ -0,0 +1,358 @@
+package framesLearn;
+
+import java.io.*;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import framesLearn.Application.Transaction;
+
+// Matches bank statement lines against ledger transactions.
+// Both sides are hash-partitioned on the signed amount in cents, so every
+// line that could compete for the same transaction lands in the same
+// partition and the partitions can be matched independently on all cores.
+class BankReconciliation {
+    
+    // Candidates whose scores are closer than this are reported as ambiguous
+    private static final double AMBIGUITY_MARGIN = 0.05;
+    // Score lost per day between the statement date and the ledger date
+    private static final double DAY_PENALTY = 0.01;
+    // The amount field at the end of a line: quoted, unquoted with thousands
+    // separators ("1,234.50"), or plain
+    private static final Pattern AMOUNT = Pattern.compile(
+        ",\\s*(\"[^\"]*\"|[-R ]*\\d{1,3}(?:,\\d{3})+(?:\\.\\d*)?|[^,]*)\\s*$");
+    
+    private final int windowDays;
+    
+    public BankReconciliation(int windowDays) {
+        this.windowDays = windowDays;
+    }
+    
+    // Reads "Date,Description,Amount" lines (header first). Credits are positive and
+    // debits negative; commas inside the description are kept, and the amount may
+    // have thousands separators.
+    public static List<StatementLine> loadStatement(Reader reader, List<String> errors) throws IOException {
+        BufferedReader br = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        List<StatementLine> lines = new ArrayList<>();
+        String line;
+        int lineNumber = 0;
+        
+        while ((line = br.readLine()) != null) {
+            lineNumber++;
+            if (lineNumber == 1 || line.trim().isEmpty()) {
+                continue;
+            }
+            
+            int firstComma = line.indexOf(',');
+            Matcher amount = AMOUNT.matcher(line);
+            if (firstComma < 0 || !amount.find(firstComma + 1)) {
+                errors.add("Line " + lineNumber + ": " + line);
+                continue;
+            }
+            
+            try {
+                String date = line.substring(0, firstComma).trim();
+                String description = line.substring(firstComma + 1, amount.start()).trim();
+                String amountText = amount.group(1).replaceAll("[\"R ,]", "");
+                long epochDay = LocalDate.parse(date).toEpochDay();
+                lines.add(new StatementLine(lineNumber, date, epochDay, description, toCents(Double.parseDouble(amountText))));
+            } catch (NumberFormatException | DateTimeParseException e) {
+                errors.add("Line " + lineNumber + ": " + line);
+            }
+        }
+        return lines;
+    }
+    
+    public Result reconcile(List<Transaction> ledger, List<StatementLine> statement) {
+        int partitionCount = Math.max(1, Runtime.getRuntime().availableProcessors() * 4);
+        
+        List<List<LedgerEntry>> ledgerPartitions = new ArrayList<>(partitionCount);
+        List<List<StatementLine>> statementPartitions = new ArrayList<>(partitionCount);
+        for (int p = 0; p < partitionCount; p++) {
+            ledgerPartitions.add(new ArrayList<>());
+            statementPartitions.add(new ArrayList<>());
+        }
+        
+        List<LedgerEntry> entries = IntStream.range(0, ledger.size()).parallel()
+            .mapToObj(i -> LedgerEntry.of(ledger.get(i)))
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+        int unparsedLedger = ledger.size() - entries.size();
+        
+        for (LedgerEntry entry : entries) {
+            ledgerPartitions.get(partitionOf(entry.cents, partitionCount)).add(entry);
+        }
+        for (StatementLine line : statement) {
+            statementPartitions.get(partitionOf(line.cents, partitionCount)).add(line);
+        }
+        
+        List<PartitionResult> partials = IntStream.range(0, partitionCount).parallel()
+            .mapToObj(p -> matchPartition(ledgerPartitions.get(p), statementPartitions.get(p)))
+            .collect(Collectors.toList());
+        
+        Result result = new Result(unparsedLedger);
+        for (PartitionResult partial : partials) {
+            result.matched.addAll(partial.matched);
+            result.unmatchedStatement.addAll(partial.unmatchedStatement);
+            result.unmatchedLedger.addAll(partial.unmatchedLedger);
+            result.ambiguous.addAll(partial.ambiguous);
+        }
+        
+        result.matched.sort(Comparator.comparingInt(m -> m.getLine().getLineNumber()));
+        result.unmatchedStatement.sort(Comparator.comparingInt(StatementLine::getLineNumber));
+        result.ambiguous.sort(Comparator.comparingInt(a -> a.getLine().getLineNumber()));
+        return result;
+    }
+    
+    private PartitionResult matchPartition(List<LedgerEntry> ledger, List<StatementLine> statement) {
+        PartitionResult result = new PartitionResult();
+        
+        // Build side: amount -> ledger entries ordered by date
+        Map<Long, List<LedgerEntry>> index = new HashMap<>();
+        for (LedgerEntry entry : ledger) {
+            index.computeIfAbsent(entry.cents, k -> new ArrayList<>()).add(entry);
+        }
+        for (List<LedgerEntry> bucket : index.values()) {
+            bucket.sort(Comparator.comparingLong(e -> e.epochDay));
+        }
+        
+        // Probe side, oldest statement lines first so earlier lines claim earlier entries
+        statement.sort(Comparator.comparingLong(StatementLine::getEpochDay).thenComparingInt(StatementLine::getLineNumber));
+        for (StatementLine line : statement) {
+            List<LedgerEntry> bucket = index.get(line.cents);
+            List<LedgerEntry> candidates = new ArrayList<>();
+            if (bucket != null) {
+                for (int i = firstOnOrAfter(bucket, line.epochDay - windowDays); i < bucket.size(); i++) {
+                    LedgerEntry entry = bucket.get(i);
+                    if (entry.epochDay > line.epochDay + windowDays) {
+                        break;
+                    }
+                    // An entry an ambiguous line competes for is left to that line
+                    if (!entry.claimed && !entry.contested) {
+                        candidates.add(entry);
+                    }
+                }
+            }
+            
+            if (candidates.isEmpty()) {
+                result.unmatchedStatement.add(line);
+                continue;
+            }
+            
+            if (candidates.size() == 1) {
+                LedgerEntry only = candidates.get(0);
+                only.claimed = true;
+                result.matched.add(new Match(line, only.transaction, score(line, only)));
+                continue;
+            }
+            
+            LedgerEntry best = null;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            double secondScore = Double.NEGATIVE_INFINITY;
+            for (LedgerEntry candidate : candidates) {
+                double s = score(line, candidate);
+                if (s > bestScore) {
+                    secondScore = bestScore;
+                    bestScore = s;
+                    best = candidate;
+                } else if (s > secondScore) {
+                    secondScore = s;
+                }
+            }
+            
+            if (bestScore - secondScore < AMBIGUITY_MARGIN) {
+                List<Transaction> options = new ArrayList<>(candidates.size());
+                for (LedgerEntry candidate : candidates) {
+                    candidate.contested = true;
+                    options.add(candidate.transaction);
+                }
+                result.ambiguous.add(new Ambiguity(line, options));
+            } else {
+                best.claimed = true;
+                result.matched.add(new Match(line, best.transaction, bestScore));
+            }
+        }
+        
+        // Entries left contested by an ambiguous line are reported with that line instead
+        for (LedgerEntry entry : ledger) {
+            if (!entry.claimed && !entry.contested) {
+                result.unmatchedLedger.add(entry.transaction);
+            }
+        }
+        return result;
+    }
+    
+    private double score(StatementLine line, LedgerEntry entry) {
+        return similarity(line.getTokens(), entry.getTokens()) - DAY_PENALTY * Math.abs(line.epochDay - entry.epochDay);
+    }
+    
+    // Dice coefficient over lower-case word tokens
+    static double similarity(Set<String> a, Set<String> b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return 0;
+        }
+        int common = 0;
+        for (String token : a) {
+            if (b.contains(token)) {
+                common++;
+            }
+        }
+        return 2.0 * common / (a.size() + b.size());
+    }
+    
+    static Set<String> tokenize(String text) {
+        Set<String> tokens = new HashSet<>();
+        for (String token : text.toLowerCase().split("[^a-z0-9]+")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+    
+    private static int firstOnOrAfter(List<LedgerEntry> bucket, long epochDay) {
+        int low = 0;
+        int high = bucket.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (bucket.get(mid).epochDay < epochDay) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    private static int partitionOf(long cents, int partitionCount) {
+        return (Long.hashCode(cents) & 0x7fffffff) % partitionCount;
+    }
+    
+    static long toCents(double amount) {
+        return Math.round(amount * 100);
+    }
+    
+    // Income arrives in the bank as a credit, everything else leaves as a debit
+    static long signedCents(Transaction t) {
+        long cents = toCents(t.getAmount());
+        return t.getType().equals("Income") ? cents : -cents;
+    }
+    
+    private static class LedgerEntry {
+        private final Transaction transaction;
+        private final long cents;
+        private final long epochDay;
+        private Set<String> tokens;
+        private boolean claimed;
+        private boolean contested;
+        
+        private LedgerEntry(Transaction transaction, long cents, long epochDay) {
+            this.transaction = transaction;
+            this.cents = cents;
+            this.epochDay = epochDay;
+        }
+        
+        static LedgerEntry of(Transaction t) {
+            try {
+                return new LedgerEntry(t, signedCents(t), LocalDate.parse(t.getDate()).toEpochDay());
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+        
+        Set<String> getTokens() {
+            if (tokens == null) {
+                tokens = tokenize(transaction.getDescription());
+            }
+            return tokens;
+        }
+    }
+    
+    private static class PartitionResult {
+        private final List<Match> matched = new ArrayList<>();
+        private final List<StatementLine> unmatchedStatement = new ArrayList<>();
+        private final List<Transaction> unmatchedLedger = new ArrayList<>();
+        private final List<Ambiguity> ambiguous = new ArrayList<>();
+    }
+    
+    public static class StatementLine {
+        private final int lineNumber;
+        private final String date;
+        private final long epochDay;
+        private final String description;
+        private final long cents;
+        private Set<String> tokens;
+        
+        StatementLine(int lineNumber, String date, long epochDay, String description, long cents) {
+            this.lineNumber = lineNumber;
+            this.date = date;
+            this.epochDay = epochDay;
+            this.description = description;
+            this.cents = cents;
+        }
+        
+        public int getLineNumber() { return lineNumber; }
+        public String getDate() { return date; }
+        public long getEpochDay() { return epochDay; }
+        public String getDescription() { return description; }
+        public double getAmount() { return cents / 100.0; }
+        
+        Set<String> getTokens() {
+            if (tokens == null) {
+                tokens = tokenize(description);
+            }
+            return tokens;
+        }
+    }
+    
+    public static class Match {
+        private final StatementLine line;
+        private final Transaction transaction;
+        private final double score;
+        
+        Match(StatementLine line, Transaction transaction, double score) {
+            this.line = line;
+            this.transaction = transaction;
+            this.score = score;
+        }
+        
+        public StatementLine getLine() { return line; }
+        public Transaction getTransaction() { return transaction; }
+        public double getScore() { return score; }
+    }
+    
+    public static class Ambiguity {
+        private final StatementLine line;
+        private final List<Transaction> candidates;
+        
+        Ambiguity(StatementLine line, List<Transaction> candidates) {
+            this.line = line;
+            this.candidates = candidates;
+        }
+        
+        public StatementLine getLine() { return line; }
+        public List<Transaction> getCandidates() { return candidates; }
+    }
+    
+    public static class Result {
+        private final List<Match> matched = new ArrayList<>();
+        private final List<StatementLine> unmatchedStatement = new ArrayList<>();
+        private final List<Transaction> unmatchedLedger = new ArrayList<>();
+        private final List<Ambiguity> ambiguous = new ArrayList<>();
+        private final int unparsedLedgerCount;
+        
+        Result(int unparsedLedgerCount) {
+            this.unparsedLedgerCount = unparsedLedgerCount;
+        }
+        
+        public List<Match> getMatched() { return matched; }
+        public List<StatementLine> getUnmatchedStatement() { return unmatchedStatement; }
+        public List<Transaction> getUnmatchedLedger() { return unmatchedLedger; }
+        public List<Ambiguity> getAmbiguous() { return ambiguous; }
+        public int getUnparsedLedgerCount() { return unparsedLedgerCount; }
+    }
+}
@@ -0,0 +1,222 @@
+package framesLearn;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+import framesLearn.Application.Transaction;
+
+// Budgets per category and month with alert thresholds. Actuals are kept in
+// one accumulator per (category, month) and budgets are indexed by the same
+// key, plus a per-category list for budgets that apply to every month. Adding
+// or removing a row updates one accumulator and checks only the budgets on
+// its key, so the cost of an edit does not depend on the size of the ledger.
+// Categories are the transaction types; rows in opened archives are not
+// counted.
+class BudgetRules {
+    
+    public interface AlertListener {
+        void budgetAlert(Alert alert);
+    }
+    
+    public static class Budget {
+        private final String category;
+        private final Integer month;
+        private final long limitCents;
+        private final int[] thresholds;
+        
+        // month is a RollupCube month index, or null for every month;
+        // thresholds are percentages of the limit
+        public Budget(String category, Integer month, double limit, int... thresholds) {
+            if (limit <= 0) {
+                throw new IllegalArgumentException("Budget limit must be positive");
+            }
+            if (thresholds.length == 0) {
+                throw new IllegalArgumentException("At least one threshold is required");
+            }
+            this.category = category;
+            this.month = month;
+            this.limitCents = Math.round(limit * 100);
+            this.thresholds = thresholds.clone();
+            Arrays.sort(this.thresholds);
+            if (this.thresholds[0] <= 0) {
+                throw new IllegalArgumentException("Thresholds must be positive percentages");
+            }
+        }
+        
+        public String getCategory() { return category; }
+        public Integer getMonth() { return month; }
+        public double getLimit() { return limitCents / 100.0; }
+        public int[] getThresholds() { return thresholds.clone(); }
+        
+        // Number of thresholds reached by an actual amount
+        int level(long cents) {
+            int level = 0;
+            while (level < thresholds.length && cents * 100 >= limitCents * thresholds[level]) {
+                level++;
+            }
+            return level;
+        }
+        
+        @Override
+        public String toString() {
+            return category + " " + (month == null ? "monthly" : RollupCube.monthLabel(month));
+        }
+    }
+    
+    public static class Alert {
+        private final Budget budget;
+        private final int month;
+        private final double actual;
+        private final int threshold;
+        private final boolean cleared;
+        
+        Alert(Budget budget, int month, double actual, int threshold, boolean cleared) {
+            this.budget = budget;
+            this.month = month;
+            this.actual = actual;
+            this.threshold = threshold;
+            this.cleared = cleared;
+        }
+        
+        public Budget getBudget() { return budget; }
+        public int getMonth() { return month; }
+        public double getActual() { return actual; }
+        public int getThreshold() { return threshold; }
+        // True when the actual fell back below the threshold
+        public boolean isCleared() { return cleared; }
+        
+        @Override
+        public String toString() {
+            return String.format("Budget %s %s: R%,.2f of R%,.2f is %s %d%%", budget.getCategory(),
+                RollupCube.monthLabel(month), actual, budget.getLimit(), cleared ? "back below" : "over", threshold);
+        }
+    }
+    
+    // Actuals and budgets of one category
+    private static class Category {
+        final Map<Integer, long[]> actuals = new HashMap<>();
+        final Map<Integer, List<Budget>> monthBudgets = new HashMap<>();
+        final List<Budget> everyMonth = new ArrayList<>();
+    }
+    
+    private final Map<String, Category> categories = new HashMap<>();
+    private final List<Budget> budgets = new ArrayList<>();
+    private final List<AlertListener> listeners = new ArrayList<>();
+    
+    public void addListener(AlertListener listener) {
+        listeners.add(listener);
+    }
+    
+    // Alerts for thresholds the current actuals already exceed are fired straight away
+    public void addBudget(Budget budget) {
+        Category category = category(budget.getCategory());
+        if (budget.getMonth() != null) {
+            category.monthBudgets.computeIfAbsent(budget.getMonth(), m -> new ArrayList<>()).add(budget);
+            check(budget, budget.getMonth(), 0, cents(category, budget.getMonth()));
+        } else {
+            category.everyMonth.add(budget);
+            for (Map.Entry<Integer, long[]> entry : new TreeMap<>(category.actuals).entrySet()) {
+                check(budget, entry.getKey(), 0, entry.getValue()[0]);
+            }
+        }
+        budgets.add(budget);
+    }
+    
+    public void removeBudget(Budget budget) {
+        Category category = categories.get(budget.getCategory());
+        if (category != null && budgets.remove(budget)) {
+            if (budget.getMonth() != null) {
+                category.monthBudgets.get(budget.getMonth()).remove(budget);
+            } else {
+                category.everyMonth.remove(budget);
+            }
+        }
+    }
+    
+    public List<Budget> getBudgets() {
+        return Collections.unmodifiableList(budgets);
+    }
+    
+    // Actual amount of a category in a month
+    public double getActual(String category, int month) {
+        Category c = categories.get(category);
+        return c == null ? 0 : cents(c, month) / 100.0;
+    }
+    
+    // Months with actuals in the budget's category, or just the budget's month
+    public SortedSet<Integer> getMonths(Budget budget) {
+        if (budget.getMonth() != null) {
+            return new TreeSet<>(Collections.singleton(budget.getMonth()));
+        }
+        Category category = categories.get(budget.getCategory());
+        SortedSet<Integer> months = new TreeSet<>(category == null ? Collections.emptySet() : category.actuals.keySet());
+        months.remove(RollupCube.UNKNOWN_MONTH);
+        return months;
+    }
+    
+    public void add(Transaction t) {
+        update(t.getType(), RollupCube.monthIndex(t.getEpochDay()), Math.round(t.getAmount() * 100));
+    }
+    
+    public void remove(Transaction t) {
+        update(t.getType(), RollupCube.monthIndex(t.getEpochDay()), -Math.round(t.getAmount() * 100));
+    }
+    
+    public void add(String type, String date, double amount) {
+        long epochDay;
+        try {
+            epochDay = LocalDate.parse(date).toEpochDay();
+        } catch (DateTimeParseException e) {
+            epochDay = Long.MIN_VALUE;
+        }
+        update(type, RollupCube.monthIndex(epochDay), Math.round(amount * 100));
+    }
+    
+    private void update(String type, int month, long cents) {
+        Category category = category(type);
+        long[] actual = category.actuals.computeIfAbsent(month, m -> new long[1]);
+        long before = actual[0];
+        actual[0] += cents;
+        if (actual[0] == 0) {
+            category.actuals.remove(month);
+        }
+        if (month == RollupCube.UNKNOWN_MONTH) {
+            return;
+        }
+        
+        List<Budget> monthBudgets = category.monthBudgets.get(month);
+        if (monthBudgets != null) {
+            for (Budget budget : monthBudgets) {
+                check(budget, month, before, before + cents);
+            }
+        }
+        for (Budget budget : category.everyMonth) {
+            check(budget, month, before, before + cents);
+        }
+    }
+    
+    // Fires one alert for the highest threshold crossed between the two amounts
+    private void check(Budget budget, int month, long before, long after) {
+        int from = budget.level(before);
+        int to = budget.level(after);
+        if (from == to || month == RollupCube.UNKNOWN_MONTH) {
+            return;
+        }
+        boolean cleared = to < from;
+        int threshold = cleared ? budget.thresholds[to] : budget.thresholds[to - 1];
+        Alert alert = new Alert(budget, month, after / 100.0, threshold, cleared);
+        for (AlertListener listener : listeners) {
+            listener.budgetAlert(alert);
+        }
+    }
+    
+    private Category category(String type) {
+        return categories.computeIfAbsent(type, t -> new Category());
+    }
+    
+    private static long cents(Category category, int month) {
+        long[] actual = category.actuals.get(month);
+        return actual == null ? 0 : actual[0];
+    }
+}
@@ -0,0 +1,225 @@
+package framesLearn;
+
+import java.util.*;
+
+// Cash-flow forecast from the monthly income and expense series. Each
+// category gets an additive Holt-Winters model (Holt's linear trend until
+// there are two years of history to estimate the seasonal pattern) and the
+// models are fitted in parallel. A model keeps its smoothing state after
+// every month, so when the series change it refits from the first changed
+// month only; a new transaction in the latest month costs one step.
+class CashFlowForecast {
+    
+    static final int SEASON = 12;
+    private static final double ALPHA = 0.3;
+    private static final double BETA = 0.1;
+    private static final double GAMMA = 0.2;
+    // Two-sided 95% normal quantile
+    private static final double Z = 1.96;
+    
+    // Projected closing balance per month with a 95% band
+    public static class Projection {
+        private final int firstMonth;
+        private final double[] balance;
+        private final double[] lower;
+        private final double[] upper;
+        
+        Projection(int firstMonth, double[] balance, double[] lower, double[] upper) {
+            this.firstMonth = firstMonth;
+            this.balance = balance;
+            this.lower = lower;
+            this.upper = upper;
+        }
+        
+        // RollupCube month index of the first projected month
+        public int getFirstMonth() { return firstMonth; }
+        public int getMonthCount() { return balance.length; }
+        public double getBalance(int i) { return balance[i]; }
+        public double getLower(int i) { return lower[i]; }
+        public double getUpper(int i) { return upper[i]; }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Projection)) {
+                return false;
+            }
+            Projection other = (Projection) o;
+            return firstMonth == other.firstMonth && Arrays.equals(balance, other.balance)
+                && Arrays.equals(lower, other.lower) && Arrays.equals(upper, other.upper);
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * firstMonth + Arrays.hashCode(balance);
+        }
+    }
+    
+    private static class Model {
+        private int firstMonth;
+        private double[] values = new double[0];
+        private boolean seasonal;
+        // Smoothing state before the first month, from the initialization window
+        private double initLevel;
+        private double initTrend;
+        private double[] initSeason = new double[SEASON];
+        // State after each month and the running sum of squared one-step errors;
+        // entries [0, fitted) are valid for values
+        private double[] level = new double[0];
+        private double[] trend = new double[0];
+        private double[] season = new double[0];
+        private double[] sse = new double[0];
+        private int fitted;
+        
+        void update(int first, double[] series) {
+            boolean nowSeasonal = series.length >= 2 * SEASON;
+            int from = first == firstMonth && nowSeasonal == seasonal ? firstChange(values, series) : 0;
+            if (from < initWindow(nowSeasonal)) {
+                from = 0;
+            }
+            firstMonth = first;
+            values = series;
+            seasonal = nowSeasonal;
+            fitted = Math.min(fitted, from);
+            fit();
+        }
+        
+        private void fit() {
+            int n = values.length;
+            if (level.length != n) {
+                level = Arrays.copyOf(level, n);
+                trend = Arrays.copyOf(trend, n);
+                season = Arrays.copyOf(season, n);
+                sse = Arrays.copyOf(sse, n);
+            }
+            if (fitted == 0 && n > 0) {
+                initialize();
+            }
+            for (int t = fitted; t < n; t++) {
+                double prevLevel = t == 0 ? initLevel : level[t - 1];
+                double prevTrend = t == 0 ? initTrend : trend[t - 1];
+                double prevSeason = !seasonal ? 0 : t < SEASON ? initSeason[t] : season[t - SEASON];
+                double error = values[t] - (prevLevel + prevTrend + prevSeason);
+                
+                level[t] = ALPHA * (values[t] - prevSeason) + (1 - ALPHA) * (prevLevel + prevTrend);
+                trend[t] = BETA * (level[t] - prevLevel) + (1 - BETA) * prevTrend;
+                season[t] = seasonal ? GAMMA * (values[t] - prevLevel - prevTrend) + (1 - GAMMA) * prevSeason : 0;
+                // Months used to initialize the model would score it against itself
+                sse[t] = (t == 0 ? 0 : sse[t - 1]) + (t >= initWindow(seasonal) ? error * error : 0);
+            }
+            fitted = n;
+        }
+        
+        private void initialize() {
+            if (seasonal) {
+                double first = mean(values, 0, SEASON);
+                initTrend = (mean(values, SEASON, 2 * SEASON) - first) / SEASON;
+                initLevel = first - initTrend * (SEASON + 1) / 2;
+                for (int i = 0; i < SEASON; i++) {
+                    initSeason[i] = values[i] - first;
+                }
+            } else {
+                initTrend = values.length > 1 ? values[1] - values[0] : 0;
+                initLevel = values[0] - initTrend;
+            }
+        }
+        
+        double mean(int h) {
+            int n = values.length;
+            if (n == 0) {
+                return 0;
+            }
+            double mean = level[n - 1] + h * trend[n - 1] + (seasonal ? season[n - SEASON + (h - 1) % SEASON] : 0);
+            // Income and expenses do not go negative
+            return Math.max(0, mean);
+        }
+        
+        // Variance of the h-step error for additive Holt-Winters (Hyndman et al.)
+        double variance(int h) {
+            int errors = values.length - initWindow(seasonal);
+            if (errors <= 0) {
+                return 0;
+            }
+            double sigma2 = sse[values.length - 1] / errors;
+            double sum = 1;
+            for (int j = 1; j < h; j++) {
+                double c = ALPHA * (1 + j * BETA) + (seasonal && j % SEASON == 0 ? GAMMA : 0);
+                sum += c * c;
+            }
+            return sigma2 * sum;
+        }
+        
+        private static int initWindow(boolean seasonal) {
+            return seasonal ? 2 * SEASON : 2;
+        }
+        
+        private static int firstChange(double[] a, double[] b) {
+            int n = Math.min(a.length, b.length);
+            for (int i = 0; i < n; i++) {
+                if (Double.compare(a[i], b[i]) != 0) {
+                    return i;
+                }
+            }
+            return n;
+        }
+        
+        private static double mean(double[] values, int from, int to) {
+            double sum = 0;
+            for (int i = from; i < to; i++) {
+                sum += values[i];
+            }
+            return sum / (to - from);
+        }
+    }
+    
+    private final Map<String, Model> models = new HashMap<>();
+    
+    // Projects the balance horizon months past the last month with data. series holds
+    // the amount per month of each category; Income adds to the balance, the rest
+    // subtract. Returns null when there is no data.
+    public synchronized Projection project(Map<String, SortedMap<Integer, Double>> series, double balance, int horizon) {
+        int end = Integer.MIN_VALUE;
+        for (SortedMap<Integer, Double> months : series.values()) {
+            if (!months.isEmpty()) {
+                end = Math.max(end, months.lastKey());
+            }
+        }
+        models.keySet().retainAll(series.keySet());
+        if (end == Integer.MIN_VALUE) {
+            models.clear();
+            return null;
+        }
+        
+        // Every series runs to the same last month, with zeros for months without rows
+        List<Runnable> fits = new ArrayList<>();
+        for (Map.Entry<String, SortedMap<Integer, Double>> entry : series.entrySet()) {
+            SortedMap<Integer, Double> months = entry.getValue();
+            int first = months.isEmpty() ? end : months.firstKey();
+            double[] values = new double[end - first + 1];
+            for (Map.Entry<Integer, Double> month : months.entrySet()) {
+                values[month.getKey() - first] = month.getValue();
+            }
+            Model model = models.computeIfAbsent(entry.getKey(), c -> new Model());
+            fits.add(() -> model.update(first, values));
+        }
+        fits.parallelStream().forEach(Runnable::run);
+        
+        double[] projected = new double[horizon];
+        double[] lower = new double[horizon];
+        double[] upper = new double[horizon];
+        double mean = balance;
+        // Months and categories are treated as independent, which narrows the band somewhat
+        double variance = 0;
+        for (int h = 1; h <= horizon; h++) {
+            for (Map.Entry<String, Model> entry : models.entrySet()) {
+                Model model = entry.getValue();
+                mean += (entry.getKey().equals("Income") ? 1 : -1) * model.mean(h);
+                variance += model.variance(h);
+            }
+            double margin = Z * Math.sqrt(variance);
+            projected[h - 1] = mean;
+            lower[h - 1] = mean - margin;
+            upper[h - 1] = mean + margin;
+        }
+        return new Projection(end + 1, projected, lower, upper);
+    }
+}
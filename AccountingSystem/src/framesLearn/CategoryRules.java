@@ -0,0 +1,212 @@
+package framesLearn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Consumer;
+
+// Keyword and merchant rules that assign a type and VAT rate from a
+// transaction description. All keywords are compiled into one Aho-Corasick
+// automaton whose failure links are folded into a dense transition table, so
+// a description is matched against every rule in a single pass of one table
+// lookup per character, however many rules there are. Matching ignores case
+// and only counts whole words. Where several rules match, the longest keyword
+// wins, then the rule listed first.
+class CategoryRules {
+    
+    public static final CategoryRules NONE = new CategoryRules(Collections.emptyList());
+    // The transaction types a rule may assign, and the VAT rates the ledger accepts
+    public static final String[] TYPES = {"Income", "Expense", "Inventory"};
+    public static final int MAX_VAT_RATE = 20;
+    
+    public static class Rule {
+        private final String keyword;
+        private final String type;
+        private final int vatRate;
+        
+        public Rule(String keyword, String type, int vatRate) {
+            if (keyword.trim().isEmpty()) {
+                throw new IllegalArgumentException("A rule needs a keyword");
+            }
+            // Any case is accepted, so "expense" is stored as "Expense"
+            String known = null;
+            for (String t : TYPES) {
+                if (t.equalsIgnoreCase(type.trim())) {
+                    known = t;
+                }
+            }
+            if (known == null) {
+                throw new IllegalArgumentException("Type of rule " + keyword + " must be one of " + String.join(", ", TYPES));
+            }
+            if (vatRate < 0 || vatRate > MAX_VAT_RATE) {
+                throw new IllegalArgumentException("VAT rate of rule " + keyword + " must be 0-" + MAX_VAT_RATE + "%");
+            }
+            this.keyword = keyword.trim();
+            this.type = known;
+            this.vatRate = vatRate;
+        }
+        
+        public String getKeyword() { return keyword; }
+        public String getType() { return type; }
+        public int getVatRate() { return vatRate; }
+    }
+    
+    private final List<Rule> rules;
+    // Character classes: 0 for characters in no keyword, upper and lower case alike
+    private final int[] asciiClass = new int[128];
+    private final Map<Character, Integer> otherClass = new HashMap<>();
+    private final int alphabet;
+    // next[state * alphabet + class], failure transitions included
+    private final int[] next;
+    // Rule ending at a state, or -1
+    private final int[] ruleAt;
+    // The state itself if a rule ends there, else the nearest such state on its
+    // failure chain, else 0 (the root)
+    private final int[] emit;
+    // The next state on the failure chain where a rule ends, or 0
+    private final int[] shorter;
+    private final int[] depth;
+    
+    public CategoryRules(List<Rule> rules) {
+        this.rules = new ArrayList<>(rules);
+        int classes = 1;
+        int states = 1;
+        for (Rule rule : this.rules) {
+            String keyword = rule.keyword;
+            for (int i = 0; i < keyword.length(); i++) {
+                char c = Character.toLowerCase(keyword.charAt(i));
+                if (classOf(c) == 0) {
+                    if (c < 128) {
+                        asciiClass[c] = classes;
+                        asciiClass[Character.toUpperCase(c)] = classes;
+                    } else {
+                        otherClass.put(c, classes);
+                    }
+                    classes++;
+                }
+            }
+            states += keyword.length();
+        }
+        alphabet = classes;
+        
+        // The trie, with 0 standing for a missing child: the root is nobody's child
+        int[] trie = new int[states * alphabet];
+        int[] ruleAt = new int[states];
+        int[] depth = new int[states];
+        Arrays.fill(ruleAt, -1);
+        int count = 1;
+        for (int r = 0; r < this.rules.size(); r++) {
+            String keyword = this.rules.get(r).keyword;
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                int slot = state * alphabet + classOf(Character.toLowerCase(keyword.charAt(i)));
+                if (trie[slot] == 0) {
+                    depth[count] = depth[state] + 1;
+                    trie[slot] = count++;
+                }
+                state = trie[slot];
+            }
+            if (ruleAt[state] < 0) {
+                ruleAt[state] = r;
+            }
+        }
+        
+        // Shared prefixes leave the upper bound partly unused
+        next = Arrays.copyOf(trie, count * alphabet);
+        this.ruleAt = Arrays.copyOf(ruleAt, count);
+        this.depth = Arrays.copyOf(depth, count);
+        
+        // Breadth first, so a state's failure target is complete before the state
+        int[] fail = new int[count];
+        emit = new int[count];
+        shorter = new int[count];
+        int[] queue = new int[count];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = 0;
+        while (head < tail) {
+            int state = queue[head++];
+            for (int c = 1; c < alphabet; c++) {
+                int slot = state * alphabet + c;
+                int child = next[slot];
+                int fallback = state == 0 ? 0 : next[fail[state] * alphabet + c];
+                if (child == 0) {
+                    next[slot] = fallback;
+                    continue;
+                }
+                fail[child] = fallback;
+                shorter[child] = emit[fallback];
+                emit[child] = this.ruleAt[child] >= 0 ? child : emit[fallback];
+                queue[tail++] = child;
+            }
+        }
+    }
+    
+    // Reads "Keyword,Type,VatRate" lines after a header; lines that are not
+    // valid rules go to errors with the reason
+    public static CategoryRules fromCSV(BufferedReader in, Consumer<String> errors) throws IOException {
+        List<Rule> rules = new ArrayList<>();
+        String line = in.readLine();
+        while ((line = in.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String[] values = line.split(",");
+            try {
+                if (values.length < 3) {
+                    throw new IllegalArgumentException("Expected Keyword,Type,VatRate");
+                }
+                rules.add(new Rule(values[0], values[1], Integer.parseInt(values[2].trim())));
+            } catch (NumberFormatException e) {
+                errors.accept(line + " (VAT rate is not a number)");
+            } catch (IllegalArgumentException e) {
+                errors.accept(line + " (" + e.getMessage() + ")");
+            }
+        }
+        return new CategoryRules(rules);
+    }
+    
+    public int size() {
+        return rules.size();
+    }
+    
+    public int getStateCount() {
+        return emit.length;
+    }
+    
+    // The best rule for a description, or null if none matches
+    public Rule match(CharSequence description) {
+        if (rules.isEmpty()) {
+            return null;
+        }
+        int best = -1;
+        int bestLength = 0;
+        int state = 0;
+        int length = description.length();
+        for (int i = 0; i < length; i++) {
+            state = next[state * alphabet + classOf(description.charAt(i))];
+            // Longest first down the chain; the first whole word is the best ending here
+            for (int s = emit[state]; s != 0; s = shorter[s]) {
+                int start = i + 1 - depth[s];
+                if ((start == 0 || !Character.isLetterOrDigit(description.charAt(start - 1)))
+                        && (i + 1 == length || !Character.isLetterOrDigit(description.charAt(i + 1)))) {
+                    int rule = ruleAt[s];
+                    if (depth[s] > bestLength || (depth[s] == bestLength && rule < best)) {
+                        best = rule;
+                        bestLength = depth[s];
+                    }
+                    break;
+                }
+            }
+        }
+        return best >= 0 ? rules.get(best) : null;
+    }
+    
+    private int classOf(char c) {
+        if (c < 128) {
+            return asciiClass[c];
+        }
+        Integer cls = otherClass.get(Character.toLowerCase(c));
+        return cls != null ? cls : 0;
+    }
+}
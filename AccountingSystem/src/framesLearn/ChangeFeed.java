@@ -0,0 +1,504 @@
+package framesLearn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+
+import framesLearn.Application.Transaction;
+
+// Change feed of ledger mutations for downstream tools. Every add, edit,
+// delete and archive gets the next sequence number and is queued in memory,
+// which is all the insert path pays for. A writer thread appends queued
+// events in batches to an append-only file of JSON lines. Consumers keep the
+// byte offset they have read up to (or look one up by sequence number) and
+// resume from there with a Reader, so they only ever read the changes.
+//
+// Publishing while no file is open does nothing. Reopening an existing file
+// continues its sequence; a line cut off by a crash is dropped first.
+//
+// At most MAX_PENDING events wait in memory: beyond that, publish blocks
+// until the writer catches up. If a write fails the writer stops, queued
+// events are discarded and later ones are only counted as dropped, until
+// the feed is closed and opened again.
+class ChangeFeed implements Closeable {
+    
+    public enum Kind { ADD, EDIT, DELETE, ARCHIVE }
+    
+    private static final int BATCH_EVENTS = 4096;
+    private static final long FLUSH_MILLIS = 100;
+    private static final int MAX_PENDING = 16 * BATCH_EVENTS;
+    
+    public static class Event {
+        private final long sequence;
+        private final long timestamp;
+        private final Kind kind;
+        private final String entity;
+        private final String id;
+        private final String date;
+        private final String description;
+        private final double amount;
+        private final String type;
+        private final int vatRate;
+        private final String currency;
+        private final double foreignAmount;
+        
+        Event(long sequence, long timestamp, Kind kind, String entity, String id, String date,
+              String description, double amount, String type, int vatRate, String currency, double foreignAmount) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.kind = kind;
+            this.entity = entity;
+            this.id = id;
+            this.date = date;
+            this.description = description;
+            this.amount = amount;
+            this.type = type;
+            this.vatRate = vatRate;
+            this.currency = currency;
+            this.foreignAmount = foreignAmount;
+        }
+        
+        public long getSequence() { return sequence; }
+        public long getTimestamp() { return timestamp; }
+        public Kind getKind() { return kind; }
+        public String getEntity() { return entity; }
+        public String getId() { return id; }
+        public String getDate() { return date; }
+        public String getDescription() { return description; }
+        public double getAmount() { return amount; }
+        public String getType() { return type; }
+        public int getVatRate() { return vatRate; }
+        public String getCurrency() { return currency; }
+        public double getForeignAmount() { return foreignAmount; }
+        
+        void appendJson(StringBuilder out) {
+            out.append("{\"seq\":").append(sequence)
+                .append(",\"ts\":").append(timestamp)
+                .append(",\"op\":\"").append(kind).append('"');
+            appendField(out, "entity", entity);
+            appendField(out, "id", id);
+            appendField(out, "date", date);
+            appendField(out, "description", description);
+            out.append(",\"amount\":").append(String.format(Locale.ROOT, "%.2f", amount));
+            appendField(out, "type", type);
+            out.append(",\"vat\":").append(vatRate);
+            // amount is in ZAR; foreign_amount in currency as entered
+            appendField(out, "currency", currency);
+            out.append(",\"foreign_amount\":").append(String.format(Locale.ROOT, "%.2f", foreignAmount)).append("}\n");
+        }
+        
+        // Reads a line written by appendJson
+        static Event parse(String line) {
+            Map<String, String> fields = new HashMap<>();
+            int i = 1;
+            while (i < line.length() && line.charAt(i) == '"') {
+                int keyEnd = line.indexOf('"', i + 1);
+                String key = line.substring(i + 1, keyEnd);
+                i = keyEnd + 2;
+                StringBuilder value = new StringBuilder();
+                if (line.charAt(i) == '"') {
+                    for (i++; line.charAt(i) != '"'; i++) {
+                        char c = line.charAt(i);
+                        if (c == '\\') {
+                            c = line.charAt(++i);
+                            if (c == 'n') {
+                                c = '\n';
+                            } else if (c == 't') {
+                                c = '\t';
+                            } else if (c == 'r') {
+                                c = '\r';
+                            } else if (c == 'u') {
+                                c = (char) Integer.parseInt(line.substring(i + 1, i + 5), 16);
+                                i += 4;
+                            }
+                        }
+                        value.append(c);
+                    }
+                    i++;
+                } else {
+                    while (line.charAt(i) != ',' && line.charAt(i) != '}') {
+                        value.append(line.charAt(i++));
+                    }
+                }
+                fields.put(key, value.toString());
+                i++;
+            }
+            return new Event(Long.parseLong(fields.get("seq")), Long.parseLong(fields.get("ts")),
+                Kind.valueOf(fields.get("op")), fields.get("entity"), fields.get("id"), fields.get("date"),
+                fields.get("description"), Double.parseDouble(fields.get("amount")), fields.get("type"),
+                Integer.parseInt(fields.get("vat")), fields.get("currency"), Double.parseDouble(fields.get("foreign_amount")));
+        }
+        
+        private static void appendField(StringBuilder out, String name, String value) {
+            out.append(",\"").append(name).append("\":\"");
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"': out.append("\\\""); break;
+                    case '\\': out.append("\\\\"); break;
+                    case '\n': out.append("\\n"); break;
+                    case '\r': out.append("\\r"); break;
+                    case '\t': out.append("\\t"); break;
+                    default:
+                        if (c < 0x20) {
+                            out.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            out.append(c);
+                        }
+                }
+            }
+            out.append('"');
+        }
+    }
+    
+    private File file;
+    private FileChannel channel;
+    private Thread writer;
+    private List<Event> pending = new ArrayList<>();
+    private long nextSequence = 1;
+    private long written;
+    private long batches;
+    private boolean closing;
+    private IOException failure;
+    private long dropped;
+    private Consumer<IOException> failureListener;
+    private Thread shutdownHook;
+    
+    // Starts publishing to the file, continuing its sequence if it has events
+    public synchronized void open(File file) throws IOException {
+        if (channel != null) {
+            throw new IllegalStateException("Change feed is already open on " + this.file.getName());
+        }
+        FileChannel opened = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long end = lastLineEnd(opened);
+            opened.truncate(end);
+            opened.position(end);
+            nextSequence = end == 0 ? 1 : lastSequence(opened, end) + 1;
+        } catch (IOException | RuntimeException e) {
+            opened.close();
+            throw e;
+        }
+        this.file = file;
+        channel = opened;
+        closing = false;
+        failure = null;
+        dropped = 0;
+        writer = new Thread(this::writeLoop, "change-feed");
+        writer.setDaemon(true);
+        writer.start();
+        if (shutdownHook == null) {
+            // Events still queued when the application exits are written
+            shutdownHook = new Thread(() -> {
+                try {
+                    close();
+                } catch (IOException e) {
+                    // Nothing left to report to
+                }
+            }, "change-feed-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+    }
+    
+    public synchronized boolean isOpen() {
+        return channel != null;
+    }
+    
+    public synchronized File getFile() {
+        return file;
+    }
+    
+    // Sequence number the next event will get
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+    
+    public synchronized long getWrittenCount() {
+        return written;
+    }
+    
+    public synchronized long getBatchCount() {
+        return batches;
+    }
+    
+    // The last write error, if the writer stopped because of one
+    public synchronized IOException getFailure() {
+        return failure;
+    }
+    
+    // Events not written because the writer had stopped
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+    
+    // Told, on the writer thread, when a write fails and the writer stops
+    public synchronized void setFailureListener(Consumer<IOException> listener) {
+        failureListener = listener;
+    }
+    
+    public void publish(Kind kind, String entity, Transaction t) {
+        publish(kind, entity, t.getId(), t.getDate(), t.getDescription(), t.getAmount(), t.getType(), t.getVatRate(),
+            t.getCurrency(), t.getForeignAmount());
+    }
+    
+    public synchronized void publish(Kind kind, String entity, String id, String date, String description,
+                                     double amount, String type, int vatRate, String currency, double foreignAmount) {
+        if (channel == null) {
+            return;
+        }
+        // Backpressure: the writer frees room as it takes each batch
+        while (failure == null && pending.size() >= MAX_PENDING) {
+            notifyAll();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (failure != null) {
+            dropped++;
+            return;
+        }
+        pending.add(new Event(nextSequence++, System.currentTimeMillis(), kind, entity, id, date,
+            description, amount, type, vatRate, currency, foreignAmount));
+        if (pending.size() >= BATCH_EVENTS) {
+            notifyAll();
+        }
+    }
+    
+    // Writes what is queued and stops the writer; the feed can be opened again
+    @Override
+    public void close() throws IOException {
+        Thread stopping;
+        synchronized (this) {
+            if (channel == null) {
+                return;
+            }
+            closing = true;
+            notifyAll();
+            stopping = writer;
+        }
+        try {
+            stopping.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            channel.close();
+            channel = null;
+            writer = null;
+        }
+    }
+    
+    private void writeLoop() {
+        FileChannel out;
+        synchronized (this) {
+            out = channel;
+        }
+        while (true) {
+            List<Event> batch;
+            boolean last;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + FLUSH_MILLIS;
+                while (!closing && pending.size() < BATCH_EVENTS) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        closing = true;
+                    }
+                }
+                batch = pending;
+                pending = new ArrayList<>(Math.min(batch.size() + 16, BATCH_EVENTS));
+                last = closing;
+                notifyAll();
+            }
+            if (!batch.isEmpty()) {
+                StringBuilder json = new StringBuilder(batch.size() * 160);
+                for (Event event : batch) {
+                    event.appendJson(json);
+                }
+                try {
+                    ByteBuffer bytes = ByteBuffer.wrap(json.toString().getBytes(StandardCharsets.UTF_8));
+                    while (bytes.hasRemaining()) {
+                        out.write(bytes);
+                    }
+                    synchronized (this) {
+                        written += batch.size();
+                        batches++;
+                    }
+                } catch (IOException e) {
+                    Consumer<IOException> listener;
+                    synchronized (this) {
+                        failure = e;
+                        dropped += batch.size() + pending.size();
+                        pending = new ArrayList<>();
+                        listener = failureListener;
+                        notifyAll();
+                    }
+                    if (listener != null) {
+                        listener.accept(e);
+                    }
+                    return;
+                }
+            }
+            if (last) {
+                return;
+            }
+        }
+    }
+    
+    // End of the last complete line; anything after it is a torn write
+    private static long lastLineEnd(FileChannel channel) throws IOException {
+        long position = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (position > 0) {
+            int length = (int) Math.min(buffer.capacity(), position);
+            buffer.clear().limit(length);
+            channel.read(buffer, position - length);
+            for (int i = length - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return position - length + i + 1;
+                }
+            }
+            position -= length;
+        }
+        return 0;
+    }
+    
+    private static long lastSequence(FileChannel channel, long end) throws IOException {
+        long start = lineStart(channel, end - 1);
+        ByteBuffer line = ByteBuffer.allocate((int) (end - start));
+        channel.read(line, start);
+        return Event.parse(new String(line.array(), StandardCharsets.UTF_8).trim()).getSequence();
+    }
+    
+    // Start of the line holding the byte at position
+    private static long lineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (position > 0) {
+            one.clear();
+            channel.read(one, position - 1);
+            if (one.get(0) == '\n') {
+                break;
+            }
+            position--;
+        }
+        return position;
+    }
+    
+    // Reads events from a feed file. Only complete lines are returned, so a
+    // reader can follow the file while it is being written.
+    public static class Reader implements Closeable {
+        private final RandomAccessFile in;
+        private long offset;
+        
+        // offset is a value from getOffset, or 0 for the start of the feed
+        public Reader(File file, long offset) throws IOException {
+            this.in = new RandomAccessFile(file, "r");
+            this.offset = offset;
+        }
+        
+        // Byte offset just after the last event returned
+        public long getOffset() {
+            return offset;
+        }
+        
+        // Offset of the first event with a sequence number above the given one,
+        // found by binary search over line starts
+        public static long offsetAfter(File file, long sequence) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long end = lastLineEnd(channel);
+                long low = 0;
+                long high = end;
+                while (low < high) {
+                    long start = lineStart(channel, low + (high - low) / 2);
+                    long next = nextLine(channel, start, end);
+                    ByteBuffer line = ByteBuffer.allocate((int) (next - start));
+                    channel.read(line, start);
+                    long lineSequence = Event.parse(new String(line.array(), StandardCharsets.UTF_8).trim()).getSequence();
+                    if (lineSequence <= sequence) {
+                        low = next;
+                    } else {
+                        high = start;
+                    }
+                }
+                return low;
+            }
+        }
+        
+        // Up to max events after the offset
+        public List<Event> poll(int max) throws IOException {
+            List<Event> events = new ArrayList<>();
+            in.seek(offset);
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            long position = offset;
+            byte[] buffer = new byte[8192];
+            int read;
+            while (events.size() < max && (read = in.read(buffer)) > 0) {
+                for (int i = 0; i < read && events.size() < max; i++) {
+                    position++;
+                    if (buffer[i] != '\n') {
+                        line.write(buffer[i]);
+                        continue;
+                    }
+                    events.add(Event.parse(new String(line.toByteArray(), StandardCharsets.UTF_8)));
+                    line.reset();
+                    offset = position;
+                }
+            }
+            return events;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+        
+        private static long nextLine(FileChannel channel, long start, long end) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(512);
+            long position = start;
+            while (position < end) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        return position + i + 1;
+                    }
+                }
+                position += read;
+            }
+            return end;
+        }
+    }
+    
+    // Prints the events after a sequence number, e.g. for a first look at a feed:
+    //   java -cp <classpath> framesLearn.ChangeFeed FILE [AFTER_SEQUENCE]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ChangeFeed FILE [AFTER_SEQUENCE]");
+            System.exit(2);
+        }
+        File file = new File(args[0]);
+        long after = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        try (Reader reader = new Reader(file, Reader.offsetAfter(file, after))) {
+            List<Event> events;
+            while (!(events = reader.poll(1000)).isEmpty()) {
+                for (Event event : events) {
+                    System.out.printf("%d %s %s %s %s %.2f %s%n", event.getSequence(), event.getKind(),
+                        event.getEntity(), event.getId(), event.getDate(), event.getAmount(), event.getType());
+                }
+            }
+            System.out.println("Next offset: " + reader.getOffset());
+        }
+    }
+}
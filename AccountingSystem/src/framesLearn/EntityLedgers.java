@@ -0,0 +1,365 @@
+package framesLearn;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import framesLearn.Application.Transaction;
+
+// The ledgers of several legal entities, one shard per entity. A shard owns
+// its transactions and everything derived from them, so shards share no
+// mutable state: the application edits the active shard on the EDT while
+// other shards load on their own threads. Consolidated figures are worked
+// out per shard in parallel from copies taken on the EDT and then merged, so
+// consolidation time follows the largest shard rather than the total.
+class EntityLedgers {
+    
+    // Below this many rows a shard's inventory rows are scanned on one thread
+    private static final int PARALLEL_ROWS = 10_000;
+    
+    public static class Shard {
+        private final String entity;
+        final Ledger transactions = new Ledger();
+        final List<PeriodArchive> archives = new ArrayList<>();
+        final RollupCube rollup = new RollupCube();
+        final RecurringSchedule recurring = new RecurringSchedule();
+        final BudgetRules budgets = new BudgetRules();
+        final QueryIndex queryIndex = new QueryIndex();
+        final AnomalyDetector anomalies = new AnomalyDetector();
+        final CashFlowForecast forecast = new CashFlowForecast();
+        final PeriodClose closes = new PeriodClose();
+        final Receivables receivables = new Receivables(LocalDate.now());
+        InventoryValuation.Result inventoryValuation;
+        // The movement file it was read from, read again when the costing method changes
+        File stockMovements;
+        private final ChangeFeed feed;
+        private final AuditLog audit;
+        // Set while a background load owns the shard
+        private volatile boolean loading;
+        
+        Shard(String entity, ChangeFeed feed, AuditLog audit) {
+            this.entity = entity;
+            this.feed = feed;
+            this.audit = audit;
+        }
+        
+        public String getEntity() { return entity; }
+        public boolean isLoading() { return loading; }
+        
+        // Records a change to the shard's rows in the change feed and the audit log
+        void publish(ChangeFeed.Kind kind, Transaction t) {
+            feed.publish(kind, entity, t);
+            if (audit != null) {
+                audit.append(kind, entity, t);
+            }
+        }
+        
+        // Rows of one type in the open period, oldest first, undated rows first;
+        // a copy, as QueryIndex.range gives
+        List<Transaction> openRows(String type) {
+            return EntityLedgers.openRows(queryIndex, closes, type);
+        }
+        
+        // Keeps the derived state in line with a row added to or removed from transactions
+        void rowAdded(Transaction t) {
+            rowAdded(t, ChangeFeed.Kind.ADD);
+        }
+        
+        // EDIT when the row replaces a recurring occurrence
+        void rowAdded(Transaction t, ChangeFeed.Kind kind) {
+            publish(kind, t);
+            queryIndex.add(t);
+            aggregate(t);
+        }
+        
+        void rowRemoved(Transaction t) {
+            rowRemoved(t, ChangeFeed.Kind.DELETE);
+        }
+        
+        // DELETE, or ARCHIVE when the row moves to a period archive
+        void rowRemoved(Transaction t, ChangeFeed.Kind kind) {
+            publish(kind, t);
+            queryIndex.remove(t);
+            unaggregate(t);
+        }
+        
+        // Everything derived from a row except the query index, which a
+        // LedgerBatch may rebuild in one go instead
+        void aggregate(Transaction t) {
+            rollup.add(t);
+            recurring.rowAdded(t.getId());
+            budgets.add(t);
+            anomalies.observe(t.getType(), t.getAmount());
+        }
+        
+        void unaggregate(Transaction t) {
+            rollup.remove(t);
+            recurring.rowRemoved(t.getId());
+            budgets.remove(t);
+            anomalies.forget(t.getType(), t.getAmount());
+            anomalies.unflag(t.getId());
+        }
+        
+        public LedgerBatch batch(String label) {
+            return new LedgerBatch(this, label);
+        }
+    }
+    
+    // Totals, inventory and receivables figures of one entity, or of all of them
+    public static class Summary {
+        private final String entity;
+        private final LedgerTotals totals;
+        private final double openingInventory;
+        private final double purchases;
+        private final double closingInventory;
+        private final double creditSales;
+        private final double averageReceivable;
+        
+        Summary(String entity, LedgerTotals totals, double openingInventory, double purchases, double closingInventory,
+                double creditSales, double averageReceivable) {
+            this.entity = entity;
+            this.totals = totals;
+            this.openingInventory = openingInventory;
+            this.purchases = purchases;
+            this.closingInventory = closingInventory;
+            this.creditSales = creditSales;
+            this.averageReceivable = averageReceivable;
+        }
+        
+        public String getEntity() { return entity; }
+        public LedgerTotals getTotals() { return totals; }
+        public double getOpeningInventory() { return openingInventory; }
+        public double getPurchases() { return purchases; }
+        public double getClosingInventory() { return closingInventory; }
+        // Invoiced and average receivable over the Receivables.TURNOVER_DAYS to the summary date
+        public double getCreditSales() { return creditSales; }
+        public double getAverageReceivable() { return averageReceivable; }
+        
+        // Entity figures add up; the result is named after the group
+        static Summary combine(String name, List<Summary> summaries) {
+            LedgerTotals totals = new LedgerTotals();
+            double opening = 0;
+            double purchases = 0;
+            double closing = 0;
+            double creditSales = 0;
+            double receivable = 0;
+            for (Summary s : summaries) {
+                totals.merge(s.totals);
+                opening += s.openingInventory;
+                purchases += s.purchases;
+                closing += s.closingInventory;
+                creditSales += s.creditSales;
+                receivable += s.averageReceivable;
+            }
+            return new Summary(name, totals, opening, purchases, closing, creditSales, receivable);
+        }
+    }
+    
+    // Inventory rows of a ledger, as performAllCalculations reads them: the last
+    // opening and closing rows win and purchases add up
+    static class InventoryScan {
+        int openingRow = -1;
+        double opening;
+        double purchases;
+        int closingRow = -1;
+        double closing;
+        
+        void add(int row, Transaction t) {
+            if (!t.getType().equals("Inventory")) {
+                return;
+            }
+            if (t.getDescription().contains("Opening")) {
+                openingRow = row;
+                opening = t.getAmount();
+            } else if (t.getDescription().contains("Purchase")) {
+                purchases += t.getAmount();
+            } else if (t.getDescription().contains("Closing")) {
+                closingRow = row;
+                closing = t.getAmount();
+            }
+        }
+        
+        public double getOpening() { return opening; }
+        public double getPurchases() { return purchases; }
+        public double getClosing() { return closing; }
+        
+        void merge(InventoryScan other) {
+            if (other.openingRow > openingRow) {
+                openingRow = other.openingRow;
+                opening = other.opening;
+            }
+            purchases += other.purchases;
+            if (other.closingRow > closingRow) {
+                closingRow = other.closingRow;
+                closing = other.closing;
+            }
+        }
+    }
+    
+    private final Map<String, Shard> shards = new LinkedHashMap<>();
+    private final ChangeFeed feed;
+    // Null when changes are not audited
+    private final AuditLog audit;
+    
+    // Changes are not audited and go nowhere until a feed is passed in and opened
+    public EntityLedgers() {
+        this(new ChangeFeed(), null);
+    }
+    
+    public EntityLedgers(ChangeFeed feed, AuditLog audit) {
+        this.feed = feed;
+        this.audit = audit;
+    }
+    
+    public ChangeFeed getFeed() {
+        return feed;
+    }
+    
+    public AuditLog getAudit() {
+        return audit;
+    }
+    
+    public Shard create(String entity) {
+        if (shards.containsKey(entity)) {
+            throw new IllegalArgumentException("Entity " + entity + " already exists");
+        }
+        Shard shard = new Shard(entity, feed, audit);
+        shards.put(entity, shard);
+        return shard;
+    }
+    
+    public Shard get(String entity) {
+        return shards.get(entity);
+    }
+    
+    public Collection<Shard> getShards() {
+        return Collections.unmodifiableCollection(shards.values());
+    }
+    
+    // Hands the shard to a loader thread; false if another load already owns it
+    public boolean startLoad(Shard shard) {
+        if (shard.loading) {
+            return false;
+        }
+        shard.loading = true;
+        return true;
+    }
+    
+    // Reads a file in the import CSV format into a shard claimed with startLoad,
+    // on the calling thread, and releases the shard. Foreign amounts are booked
+    // at the rates in fx; unparseable lines go to errors.
+    public int load(Shard shard, File file, FxRates fx, Consumer<String> errors) throws IOException {
+        int loaded = 0;
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            // Header
+            String line = in.readLine();
+            while ((line = in.readLine()) != null) {
+                String[] values = line.split(",");
+                if (values.length < 6) {
+                    continue;
+                }
+                try {
+                    Transaction t = fx.book(values[0].trim(), values[1].trim(), values[2].trim(),
+                        Double.parseDouble(values[3].trim()), values[4].trim(), Integer.parseInt(values[5].trim()),
+                        FxRates.currencyOf(values, 6));
+                    shard.closes.checkOpen(t);
+                    shard.transactions.add(t);
+                    shard.rowAdded(t);
+                    loaded++;
+                } catch (IllegalArgumentException e) {
+                    errors.accept(line);
+                }
+            }
+        } finally {
+            // A load is not an undoable edit of the entity
+            shard.transactions.clearHistory();
+            shard.loading = false;
+        }
+        return loaded;
+    }
+    
+    // Fills a shard claimed with startLoad with generated rows, on the calling
+    // thread, and releases the shard; rows dated in a closed period are skipped
+    public void generate(Shard shard, LedgerGenerator generator, long rows) {
+        try {
+            for (long i = 0; i < rows; i++) {
+                Transaction t = generator.next();
+                if (shard.closes.isLocked(t)) {
+                    continue;
+                }
+                shard.transactions.add(t);
+                shard.rowAdded(t);
+            }
+        } finally {
+            shard.transactions.clearHistory();
+            shard.loading = false;
+        }
+    }
+    
+    // Copies what consolidation reads from each shard that is not loading; call
+    // on the EDT. The returned task reads only those copies and immutable
+    // snapshots, so it can run on any thread while the shards keep changing.
+    // Figures are in currency: totals month by month at each month's average
+    // rate, stock and receivables at the rate of the through date.
+    public Supplier<List<Summary>> consolidation(LocalDate through, FxRates fx, String currency) {
+        double rate = fx.fromBase(currency, through.toEpochDay(), 1);
+        List<Supplier<Summary>> tasks = new ArrayList<>();
+        for (Shard shard : shards.values()) {
+            if (shard.loading) {
+                continue;
+            }
+            String entity = shard.entity;
+            // The closed months are what the closes carry forward
+            RollupCube cube = new RollupCube();
+            cube.merge(shard.rollup);
+            shard.closes.addHistoryTo(cube);
+            shard.recurring.addTo(cube, shard.closes.getOpenFrom(), through);
+            double carriedInventory = shard.closes.getCarriedInventory();
+            InventoryValuation.Result valuation = shard.inventoryValuation;
+            LocalDate from = through.minusDays(Receivables.TURNOVER_DAYS - 1);
+            double creditSales = shard.receivables.creditSales(from, through);
+            double receivable = shard.receivables.averageBalance(from, through);
+            // A closed shard reads its open period only
+            List<Transaction> rows = shard.closes.isClosed() ? shard.openRows("Inventory") : shard.transactions.snapshot();
+            tasks.add(() -> {
+                LedgerTotals totals = fx.convert(cube.byMonth(), currency);
+                if (valuation != null) {
+                    return new Summary(entity, totals, valuation.getOpeningValue() * rate, valuation.getPurchases() * rate,
+                        valuation.getClosingValue() * rate, creditSales * rate, receivable * rate);
+                }
+                InventoryScan inventory = scanInventory(rows, carriedInventory);
+                return new Summary(entity, totals, inventory.opening * rate, inventory.purchases * rate, inventory.closing * rate,
+                    creditSales * rate, receivable * rate);
+            });
+        }
+        return () -> tasks.parallelStream().map(Supplier::get).collect(Collectors.toList());
+    }
+    
+    // Rows of a type in an index that are undated or in the open period
+    static List<Transaction> openRows(QueryIndex index, PeriodClose closes, String type) {
+        List<Transaction> rows = index.range(type, Integer.MIN_VALUE, Integer.MIN_VALUE);
+        LocalDate from = closes.getOpenFrom();
+        rows.addAll(index.range(type, from != null ? from.toEpochDay() : Integer.MIN_VALUE + 1L, Long.MAX_VALUE));
+        return rows;
+    }
+    
+    // Without an opening row the stock opens at carriedOpening, the close's value
+    static InventoryScan scanInventory(List<Transaction> rows, double carriedOpening) {
+        IntStream range = IntStream.range(0, rows.size());
+        if (rows.size() >= PARALLEL_ROWS) {
+            range = range.parallel();
+        }
+        InventoryScan scan = range.collect(InventoryScan::new, (s, row) -> s.add(row, rows.get(row)), InventoryScan::merge);
+        if (scan.openingRow < 0) {
+            scan.opening = carriedOpening;
+        }
+        return scan;
+    }
+}
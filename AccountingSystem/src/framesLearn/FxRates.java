@@ -0,0 +1,282 @@
+package framesLearn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.function.Consumer;
+
+import framesLearn.Application.Transaction;
+
+// Exchange rates loaded from a local file, held per currency as a dense
+// array by day with weekends and holidays filled from the last quoted day,
+// so a rate lookup is one array read. The ledger books in ZAR: foreign rows
+// are converted at the rate of their date when they are entered. Reports in
+// another currency convert the monthly totals at each month's average rate
+// in one pass over arrays, and keep the converted totals per (currency,
+// month), so only the months that changed since the last report are
+// converted again.
+class FxRates {
+    
+    public static final String BASE = "ZAR";
+    public static final FxRates NONE = new FxRates(Collections.emptyMap());
+    
+    // ZAR per unit of one currency, for every day from the first quote to the last
+    private static class Series {
+        final long firstDay;
+        final double[] byDay;
+        
+        Series(long firstDay, double[] byDay) {
+            this.firstDay = firstDay;
+            this.byDay = byDay;
+        }
+        
+        long lastDay() {
+            return firstDay + byDay.length - 1;
+        }
+    }
+    
+    // One month converted to a reporting currency, and the ZAR totals it came from
+    private static class Converted {
+        final double income;
+        final double expense;
+        final double vat;
+        final LedgerTotals totals;
+        
+        Converted(double income, double expense, double vat, LedgerTotals totals) {
+            this.income = income;
+            this.expense = expense;
+            this.vat = vat;
+            this.totals = totals;
+        }
+    }
+    
+    private final Map<String, Series> series;
+    // Reporting currency -> month -> ZAR per unit averaged over the month
+    private final Map<String, Map<Integer, Double>> averages = new HashMap<>();
+    private final Map<String, Map<Integer, Converted>> converted = new HashMap<>();
+    
+    private FxRates(Map<String, Series> series) {
+        this.series = series;
+    }
+    
+    // Reads "Date,Currency,Rate" lines after a header, Rate being ZAR per unit
+    // of Currency; lines may come in any order and lines that are not valid
+    // quotes go to errors
+    public static FxRates fromCSV(BufferedReader in, Consumer<String> errors) throws IOException {
+        Map<String, TreeMap<Long, Double>> quotes = new TreeMap<>();
+        String line = in.readLine();
+        while ((line = in.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String[] values = line.split(",");
+            try {
+                if (values.length < 3) {
+                    throw new IllegalArgumentException("Expected Date,Currency,Rate");
+                }
+                long day = LocalDate.parse(values[0].trim()).toEpochDay();
+                String currency = values[1].trim().toUpperCase();
+                double rate = Double.parseDouble(values[2].trim());
+                if (!currency.matches("[A-Z]{3}") || currency.equals(BASE) || !(rate > 0) || Double.isInfinite(rate)) {
+                    throw new IllegalArgumentException("Invalid quote");
+                }
+                quotes.computeIfAbsent(currency, c -> new TreeMap<>()).put(day, rate);
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                errors.accept(line);
+            }
+        }
+        
+        Map<String, Series> series = new TreeMap<>();
+        for (Map.Entry<String, TreeMap<Long, Double>> entry : quotes.entrySet()) {
+            TreeMap<Long, Double> days = entry.getValue();
+            long first = days.firstKey();
+            double[] byDay = new double[(int) (days.lastKey() - first + 1)];
+            Iterator<Map.Entry<Long, Double>> quote = days.entrySet().iterator();
+            Map.Entry<Long, Double> current = quote.next();
+            Map.Entry<Long, Double> upcoming = quote.hasNext() ? quote.next() : null;
+            for (int i = 0; i < byDay.length; i++) {
+                if (upcoming != null && upcoming.getKey() == first + i) {
+                    current = upcoming;
+                    upcoming = quote.hasNext() ? quote.next() : null;
+                }
+                byDay[i] = current.getValue();
+            }
+            series.put(entry.getKey(), new Series(first, byDay));
+        }
+        return new FxRates(series);
+    }
+    
+    // ZAR first, then the loaded currencies in order
+    public List<String> getCurrencies() {
+        List<String> currencies = new ArrayList<>();
+        currencies.add(BASE);
+        currencies.addAll(series.keySet());
+        return currencies;
+    }
+    
+    public boolean isKnown(String currency) {
+        return BASE.equals(currency) || series.containsKey(currency);
+    }
+    
+    // ZAR per unit on a day: the last quote on or before it. Dates after the
+    // last quote take the last quote; dates before the first have no rate.
+    public double rate(String currency, long epochDay) {
+        if (BASE.equals(currency)) {
+            return 1;
+        }
+        Series s = series.get(currency);
+        if (s == null) {
+            throw new IllegalArgumentException("No exchange rates loaded for " + currency);
+        }
+        if (epochDay < s.firstDay) {
+            throw new IllegalArgumentException("No " + currency + " rate on or before " + LocalDate.ofEpochDay(epochDay));
+        }
+        return s.byDay[(int) Math.min(epochDay - s.firstDay, s.byDay.length - 1)];
+    }
+    
+    // A foreign amount in ZAR at the rate of its date, to the cent
+    public double toBase(String currency, long epochDay, double amount) {
+        return Math.round(amount * rate(currency, epochDay) * 100) / 100.0;
+    }
+    
+    // A ZAR amount in another currency for display, at the rate of its date;
+    // dates outside the quoted range take the nearest quote and undated
+    // amounts (Integer.MIN_VALUE) the latest
+    public double fromBase(String currency, long epochDay, double amount) {
+        if (BASE.equals(currency)) {
+            return amount;
+        }
+        Series s = series.get(currency);
+        if (s == null) {
+            throw new IllegalArgumentException("No exchange rates loaded for " + currency);
+        }
+        long day = epochDay == Integer.MIN_VALUE ? s.lastDay() : Math.max(s.firstDay, Math.min(epochDay, s.lastDay()));
+        return amount / s.byDay[(int) (day - s.firstDay)];
+    }
+    
+    // A ZAR amount of a RollupCube month at the month's average rate
+    public synchronized double fromBaseInMonth(String currency, int month, double amount) {
+        if (BASE.equals(currency)) {
+            return amount;
+        }
+        if (!series.containsKey(currency)) {
+            throw new IllegalArgumentException("No exchange rates loaded for " + currency);
+        }
+        return amount / averageRate(currency, month);
+    }
+    
+    // "R1,234.50" in ZAR, "USD 1,234.50" in another currency
+    public static String format(String currency, double amount) {
+        return BASE.equals(currency) ? String.format("R%,.2f", amount) : String.format("%s %,.2f", currency, amount);
+    }
+    
+    // A row entered in any currency, booked in ZAR at the rate of its date
+    public Transaction book(String id, String date, String description, double amount, String type, int vatRate,
+                            String currency) {
+        if (BASE.equals(currency)) {
+            return new Transaction(id, date, description, amount, type, vatRate);
+        }
+        long day;
+        try {
+            day = LocalDate.parse(date).toEpochDay();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("A " + currency + " amount needs a valid date, not " + date);
+        }
+        return new Transaction(id, date, description, toBase(currency, day, amount), type, vatRate, currency, amount);
+    }
+    
+    // The Currency column of an import line, ZAR when absent or blank
+    public static String currencyOf(String[] values, int column) {
+        String currency = values.length > column ? values[column].trim().toUpperCase() : "";
+        return currency.isEmpty() ? BASE : currency;
+    }
+    
+    // Totals of the given months, each ZAR month converted at its average rate;
+    // undated rows (RollupCube.UNKNOWN_MONTH) at the latest rate. Counts are
+    // not converted. Synchronized, as results are cached.
+    public synchronized LedgerTotals convert(SortedMap<Integer, LedgerTotals> byMonth, String currency) {
+        LedgerTotals result = new LedgerTotals();
+        if (BASE.equals(currency)) {
+            byMonth.values().forEach(result::merge);
+            return result;
+        }
+        if (!series.containsKey(currency)) {
+            throw new IllegalArgumentException("No exchange rates loaded for " + currency);
+        }
+        Map<Integer, Converted> cache = converted.computeIfAbsent(currency, c -> new HashMap<>());
+        
+        // Months not converted before, or whose ZAR totals changed since
+        int n = 0;
+        int[] months = new int[byMonth.size()];
+        double[] income = new double[months.length];
+        double[] expense = new double[months.length];
+        double[] vat = new double[months.length];
+        double[] factor = new double[months.length];
+        for (Map.Entry<Integer, LedgerTotals> entry : byMonth.entrySet()) {
+            LedgerTotals totals = entry.getValue();
+            Converted hit = cache.get(entry.getKey());
+            if (hit == null || !sameTotals(hit.totals, totals)) {
+                months[n] = entry.getKey();
+                income[n] = totals.getIncome();
+                expense[n] = totals.getExpense();
+                vat[n] = totals.getVAT();
+                factor[n] = 1 / averageRate(currency, entry.getKey());
+                n++;
+            }
+        }
+        // Straight-line loops over arrays, which the JIT vectorizes
+        for (int i = 0; i < n; i++) {
+            income[i] *= factor[i];
+        }
+        for (int i = 0; i < n; i++) {
+            expense[i] *= factor[i];
+        }
+        for (int i = 0; i < n; i++) {
+            vat[i] *= factor[i];
+        }
+        for (int i = 0; i < n; i++) {
+            cache.put(months[i], new Converted(income[i], expense[i], vat[i], copy(byMonth.get(months[i]))));
+        }
+        
+        for (Map.Entry<Integer, LedgerTotals> entry : byMonth.entrySet()) {
+            Converted c = cache.get(entry.getKey());
+            result.addAggregate(c.income, c.totals.getIncomeCount(), c.expense, c.vat, c.totals.getExpenseCount());
+        }
+        return result;
+    }
+    
+    // ZAR per unit averaged over the days of a RollupCube month; months outside
+    // the quoted range take the nearest quote
+    private double averageRate(String currency, int month) {
+        return averages.computeIfAbsent(currency, c -> new HashMap<>()).computeIfAbsent(month, m -> {
+            Series s = series.get(currency);
+            if (m == RollupCube.UNKNOWN_MONTH) {
+                return s.byDay[s.byDay.length - 1];
+            }
+            LocalDate start = LocalDate.of(Math.floorDiv(m, 12), Math.floorMod(m, 12) + 1, 1);
+            long from = Math.max(start.toEpochDay(), s.firstDay);
+            long to = Math.min(start.plusMonths(1).toEpochDay() - 1, s.lastDay());
+            if (from > to) {
+                return s.byDay[to < s.firstDay ? 0 : s.byDay.length - 1];
+            }
+            double sum = 0;
+            for (long day = from; day <= to; day++) {
+                sum += s.byDay[(int) (day - s.firstDay)];
+            }
+            return sum / (to - from + 1);
+        });
+    }
+    
+    private static boolean sameTotals(LedgerTotals a, LedgerTotals b) {
+        return a.getIncome() == b.getIncome() && a.getExpense() == b.getExpense() && a.getVAT() == b.getVAT()
+            && a.getIncomeCount() == b.getIncomeCount() && a.getExpenseCount() == b.getExpenseCount();
+    }
+    
+    private static LedgerTotals copy(LedgerTotals totals) {
+        LedgerTotals copy = new LedgerTotals();
+        copy.merge(totals);
+        return copy;
+    }
+}
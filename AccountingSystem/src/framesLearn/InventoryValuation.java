@@ -0,0 +1,273 @@
+package framesLearn;
+
+import java.io.*;
+import java.util.*;
+
+// Perpetual inventory valuation over a stream of stock movements.
+// Stock is held as cost lots per item, so memory grows with the number of
+// items and open lots, never with the number of movements read.
+public class InventoryValuation {
+    
+    public enum CostingMethod {
+        FIFO("FIFO"),
+        WEIGHTED_AVERAGE("Weighted Average");
+        
+        private final String label;
+        
+        CostingMethod(String label) {
+            this.label = label;
+        }
+        
+        @Override
+        public String toString() { return label; }
+    }
+    
+    private final CostingMethod method;
+    private final Map<String, ItemStock> stock = new HashMap<>();
+    
+    private double openingValue = 0;
+    private double purchases = 0;
+    private double cogs = 0;
+    private double onHandValue = 0;
+    private double shortfallQuantity = 0;
+    private long movementCount = 0;
+    private long rejectedCount = 0;
+    private long outOfOrderCount = 0;
+    private String lastDate = "";
+    
+    public InventoryValuation(CostingMethod method) {
+        this.method = method;
+    }
+    
+    // Reads "Date,Item,Movement,Quantity,UnitCost" lines (header first, in date order).
+    // Movement is Opening, Purchase or Sale; the unit cost of a sale is ignored.
+    public static InventoryValuation fromCSV(Reader reader, CostingMethod method) throws IOException {
+        InventoryValuation valuation = new InventoryValuation(method);
+        BufferedReader br = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        String line;
+        boolean headerSkipped = false;
+        
+        while ((line = br.readLine()) != null) {
+            if (!headerSkipped) {
+                headerSkipped = true;
+                continue;
+            }
+            valuation.applyCSVLine(line);
+        }
+        return valuation;
+    }
+    
+    private void applyCSVLine(String line) {
+        String[] values = line.split(",");
+        if (values.length < 4) {
+            rejectedCount++;
+            return;
+        }
+        
+        try {
+            String date = values[0].trim();
+            String item = values[1].trim();
+            String movement = values[2].trim();
+            double quantity = Double.parseDouble(values[3].trim());
+            double unitCost = values.length > 4 && !values[4].trim().isEmpty() ? Double.parseDouble(values[4].trim()) : 0;
+            
+            if (quantity < 0 || item.isEmpty()) {
+                rejectedCount++;
+                return;
+            }
+            
+            if (date.compareTo(lastDate) < 0) {
+                outOfOrderCount++;
+            } else {
+                lastDate = date;
+            }
+            
+            switch (movement) {
+                case "Opening":
+                    opening(item, quantity, unitCost);
+                    break;
+                case "Purchase":
+                    purchase(item, quantity, unitCost);
+                    break;
+                case "Sale":
+                    sale(item, quantity);
+                    break;
+                default:
+                    rejectedCount++;
+            }
+        } catch (NumberFormatException e) {
+            rejectedCount++;
+        }
+    }
+    
+    public void opening(String item, double quantity, double unitCost) {
+        itemStock(item).receive(quantity, unitCost);
+        double value = quantity * unitCost;
+        openingValue += value;
+        onHandValue += value;
+        movementCount++;
+    }
+    
+    public void purchase(String item, double quantity, double unitCost) {
+        itemStock(item).receive(quantity, unitCost);
+        double value = quantity * unitCost;
+        purchases += value;
+        onHandValue += value;
+        movementCount++;
+    }
+    
+    public void sale(String item, double quantity) {
+        ItemStock itemStock = itemStock(item);
+        if (quantity > itemStock.quantity) {
+            shortfallQuantity += quantity - itemStock.quantity;
+        }
+        
+        // A shortfall is treated as unrecorded stock received at the last known
+        // price, so closing = opening + purchases - COGS always holds
+        double valueBefore = itemStock.value;
+        double cost = itemStock.issue(quantity);
+        double issuedFromStock = valueBefore - itemStock.value;
+        purchases += cost - issuedFromStock;
+        cogs += cost;
+        onHandValue -= issuedFromStock;
+        movementCount++;
+    }
+    
+    private ItemStock itemStock(String item) {
+        return stock.computeIfAbsent(item, k -> new ItemStock(method == CostingMethod.WEIGHTED_AVERAGE));
+    }
+    
+    public Result getResult() {
+        return new Result(method, openingValue, purchases, cogs, Math.max(0, onHandValue),
+            movementCount, stock.size(), shortfallQuantity, rejectedCount, outOfOrderCount);
+    }
+    
+    // Cost lots for one item, oldest first, in a growable ring buffer
+    private static class ItemStock {
+        private final boolean average;
+        private double[] lotQuantity = new double[4];
+        private double[] lotCost = new double[4];
+        private int head = 0;
+        private int count = 0;
+        private double quantity = 0;
+        private double value = 0;
+        private double lastUnitCost = 0;
+        
+        ItemStock(boolean average) {
+            this.average = average;
+        }
+        
+        void receive(double qty, double unitCost) {
+            quantity += qty;
+            value += qty * unitCost;
+            lastUnitCost = unitCost;
+            
+            if (average || qty == 0) {
+                return;
+            }
+            
+            if (count > 0) {
+                int tail = (head + count - 1) % lotQuantity.length;
+                if (lotCost[tail] == unitCost) {
+                    lotQuantity[tail] += qty;
+                    return;
+                }
+            }
+            
+            if (count == lotQuantity.length) {
+                grow();
+            }
+            int tail = (head + count) % lotQuantity.length;
+            lotQuantity[tail] = qty;
+            lotCost[tail] = unitCost;
+            count++;
+        }
+        
+        double issue(double qty) {
+            double cost = 0;
+            double remaining = qty;
+            
+            if (average) {
+                double unitCost = quantity > 0 ? value / quantity : lastUnitCost;
+                double taken = Math.min(remaining, quantity);
+                cost = taken * unitCost;
+                value -= cost;
+                quantity -= taken;
+                remaining -= taken;
+            } else {
+                while (remaining > 0 && count > 0) {
+                    double taken = Math.min(remaining, lotQuantity[head]);
+                    cost += taken * lotCost[head];
+                    value -= taken * lotCost[head];
+                    quantity -= taken;
+                    remaining -= taken;
+                    lotQuantity[head] -= taken;
+                    if (lotQuantity[head] <= 0) {
+                        head = (head + 1) % lotQuantity.length;
+                        count--;
+                    }
+                }
+            }
+            
+            // Clear rounding residue once the item is fully issued
+            if (average ? quantity <= 0 : count == 0) {
+                quantity = 0;
+                value = 0;
+            }
+            
+            cost += remaining * lastUnitCost;
+            return cost;
+        }
+        
+        private void grow() {
+            double[] newQuantity = new double[lotQuantity.length * 2];
+            double[] newCost = new double[lotCost.length * 2];
+            for (int i = 0; i < count; i++) {
+                newQuantity[i] = lotQuantity[(head + i) % lotQuantity.length];
+                newCost[i] = lotCost[(head + i) % lotCost.length];
+            }
+            lotQuantity = newQuantity;
+            lotCost = newCost;
+            head = 0;
+        }
+    }
+    
+    public static class Result {
+        private final CostingMethod method;
+        private final double openingValue;
+        private final double purchases;
+        private final double cogs;
+        private final double closingValue;
+        private final long movementCount;
+        private final int itemCount;
+        private final double shortfallQuantity;
+        private final long rejectedCount;
+        private final long outOfOrderCount;
+        
+        Result(CostingMethod method, double openingValue, double purchases, double cogs, double closingValue,
+               long movementCount, int itemCount, double shortfallQuantity, long rejectedCount, long outOfOrderCount) {
+            this.method = method;
+            this.openingValue = openingValue;
+            this.purchases = purchases;
+            this.cogs = cogs;
+            this.closingValue = closingValue;
+            this.movementCount = movementCount;
+            this.itemCount = itemCount;
+            this.shortfallQuantity = shortfallQuantity;
+            this.rejectedCount = rejectedCount;
+            this.outOfOrderCount = outOfOrderCount;
+        }
+        
+        public CostingMethod getMethod() { return method; }
+        public double getOpeningValue() { return openingValue; }
+        public double getPurchases() { return purchases; }
+        public double getCOGS() { return cogs; }
+        public double getClosingValue() { return closingValue; }
+        public double getAverageInventory() { return (openingValue + closingValue) / 2; }
+        public long getMovementCount() { return movementCount; }
+        public int getItemCount() { return itemCount; }
+        public double getShortfallQuantity() { return shortfallQuantity; }
+        public long getRejectedCount() { return rejectedCount; }
+        public long getOutOfOrderCount() { return outOfOrderCount; }
+    }
+}
@@ -0,0 +1,200 @@
+package framesLearn;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import framesLearn.Application.Transaction;
+
+// The in-memory transaction list, kept as a sequence of PersistentList
+// versions. Edits are grouped into named steps; undoing or redoing a step
+// just switches back to the version it started or ended with, and
+// snapshot() hands out the current version as an immutable list that
+// background work can read while the ledger keeps changing. History is
+// unlimited until clearHistory(): a step edited in place shares structure
+// with its neighbours and costs about the rows it touched, while one rebuilt
+// by a LedgerBatch keeps a full version alive.
+class Ledger extends AbstractList<Transaction> {
+    
+    // One undoable edit: the versions on either side and the rows it touched
+    public static class Step {
+        private final String label;
+        private final PersistentList<Transaction> before;
+        private PersistentList<Transaction> after;
+        private final List<Transaction> added = new ArrayList<>();
+        private final List<Transaction> removed = new ArrayList<>();
+        
+        Step(String label, PersistentList<Transaction> before) {
+            this.label = label;
+            this.before = before;
+        }
+        
+        public String getLabel() { return label; }
+        public List<Transaction> getAdded() { return added; }
+        public List<Transaction> getRemoved() { return removed; }
+    }
+    
+    private PersistentList<Transaction> current = PersistentList.empty();
+    private final Deque<Step> undoSteps = new ArrayDeque<>();
+    private final Deque<Step> redoSteps = new ArrayDeque<>();
+    private Step openStep;
+    
+    // Starts a new undo step; edits made until the next call are undone together
+    public void beginStep(String label) {
+        closeStep();
+        openStep = new Step(label, current);
+    }
+    
+    public PersistentList<Transaction> snapshot() {
+        return current;
+    }
+    
+    public boolean canUndo() {
+        return (openStep != null && isChanged(openStep)) || !undoSteps.isEmpty();
+    }
+    
+    public boolean canRedo() {
+        return redoSteps.peek() != null && (openStep == null || !isChanged(openStep));
+    }
+    
+    // Returns the step that was undone, or null if there was none
+    public Step undo() {
+        closeStep();
+        Step step = undoSteps.poll();
+        if (step != null) {
+            current = step.before;
+            redoSteps.push(step);
+            modCount++;
+        }
+        return step;
+    }
+    
+    public Step redo() {
+        closeStep();
+        Step step = redoSteps.poll();
+        if (step != null) {
+            current = step.after;
+            undoSteps.push(step);
+            modCount++;
+        }
+        return step;
+    }
+    
+    // For changes that move rows out of the ledger for good, e.g. archiving
+    public void clearHistory() {
+        openStep = null;
+        undoSteps.clear();
+        redoSteps.clear();
+    }
+    
+    @Override
+    public int size() {
+        return current.size();
+    }
+    
+    @Override
+    public Transaction get(int index) {
+        return current.get(index);
+    }
+    
+    @Override
+    public Iterator<Transaction> iterator() {
+        return current.iterator();
+    }
+    
+    @Override
+    public boolean add(Transaction t) {
+        step().added.add(t);
+        current = current.plus(t);
+        modCount++;
+        return true;
+    }
+    
+    @Override
+    public void add(int index, Transaction t) {
+        step().added.add(t);
+        current = current.plus(index, t);
+        modCount++;
+    }
+    
+    @Override
+    public Transaction set(int index, Transaction t) {
+        Transaction old = current.get(index);
+        Step step = step();
+        step.removed.add(old);
+        step.added.add(t);
+        current = current.with(index, t);
+        modCount++;
+        return old;
+    }
+    
+    @Override
+    public Transaction remove(int index) {
+        Transaction old = current.get(index);
+        step().removed.add(old);
+        current = current.minus(index);
+        modCount++;
+        return old;
+    }
+    
+    // One O(n) rebuild instead of a path copy per removed row
+    @Override
+    public boolean removeIf(Predicate<? super Transaction> filter) {
+        List<Transaction> kept = new ArrayList<>(current.size());
+        List<Transaction> dropped = new ArrayList<>();
+        for (Transaction t : current) {
+            (filter.test(t) ? dropped : kept).add(t);
+        }
+        if (dropped.isEmpty()) {
+            return false;
+        }
+        step().removed.addAll(dropped);
+        current = PersistentList.of(kept);
+        modCount++;
+        return true;
+    }
+    
+    // Swaps in the rows built by a batch edit in one O(n) rebuild; removed and
+    // added are the rows it dropped and brought in, recorded for undo
+    public void commit(List<Transaction> rows, Collection<Transaction> removed, Collection<Transaction> added) {
+        if (removed.isEmpty() && added.isEmpty()) {
+            return;
+        }
+        Step step = step();
+        step.removed.addAll(removed);
+        step.added.addAll(added);
+        current = PersistentList.of(rows);
+        modCount++;
+    }
+    
+    @Override
+    public void clear() {
+        if (!current.isEmpty()) {
+            step().removed.addAll(current);
+            current = PersistentList.empty();
+            modCount++;
+        }
+    }
+    
+    private Step step() {
+        if (openStep == null) {
+            openStep = new Step("Edit", current);
+        }
+        if (!isChanged(openStep)) {
+            // A new edit makes the undone steps unreachable
+            redoSteps.clear();
+        }
+        return openStep;
+    }
+    
+    private void closeStep() {
+        if (openStep != null && isChanged(openStep)) {
+            openStep.after = current;
+            undoSteps.push(openStep);
+        }
+        openStep = null;
+    }
+    
+    private static boolean isChanged(Step step) {
+        return !step.added.isEmpty() || !step.removed.isEmpty();
+    }
+}
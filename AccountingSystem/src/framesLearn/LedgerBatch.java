@@ -0,0 +1,238 @@
+package framesLearn;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import framesLearn.Application.Transaction;
+
+// A set of changes to one shard's ledger applied together: rows to add, rows
+// to delete by ID or predicate, and rows whose type or VAT rate changes.
+// apply() makes one pass over the ledger and swaps in the result with a single
+// O(n) rebuild, so the cost does not depend on how many rows change; a batch
+// touching only a few existing rows edits them in place instead. The
+// derived state is updated row by row, except for the query index, which is
+// rebuilt once when a large share of the rows changed. The whole batch is one
+// undo step, and nothing is changed if any affected row is in a closed period.
+class LedgerBatch {
+    
+    // Above this share of changed rows the query index is rebuilt, not patched
+    private static final double REBUILD_SHARE = 0.25;
+    // Up to this many deleted or updated rows the ledger is edited in place, an
+    // O(log n) path copy each, rather than rebuilt
+    private static final int PATH_EDITS = 64;
+    
+    public static class Result {
+        private final int added;
+        private final int deleted;
+        private final int updated;
+        
+        Result(int added, int deleted, int updated) {
+            this.added = added;
+            this.deleted = deleted;
+            this.updated = updated;
+        }
+        
+        public int getAdded() { return added; }
+        public int getDeleted() { return deleted; }
+        public int getUpdated() { return updated; }
+        
+        public boolean isEmpty() {
+            return added == 0 && deleted == 0 && updated == 0;
+        }
+    }
+    
+    // A type and VAT rate change for the rows matching a predicate; null keeps the field
+    private static class Update {
+        final Predicate<? super Transaction> filter;
+        final String type;
+        final Integer vatRate;
+        
+        Update(Predicate<? super Transaction> filter, String type, Integer vatRate) {
+            this.filter = filter;
+            this.type = type;
+            this.vatRate = vatRate;
+        }
+    }
+    
+    private final EntityLedgers.Shard shard;
+    private final String label;
+    private final List<Transaction> additions = new ArrayList<>();
+    private final Set<String> deletedIds = new HashSet<>();
+    private final BitSet deletedPositions = new BitSet();
+    private final List<Predicate<? super Transaction>> deletions = new ArrayList<>();
+    private final List<Update> updates = new ArrayList<>();
+    private boolean applied;
+    
+    LedgerBatch(EntityLedgers.Shard shard, String label) {
+        this.shard = shard;
+        this.label = label;
+    }
+    
+    public LedgerBatch add(Transaction t) {
+        additions.add(t);
+        return this;
+    }
+    
+    public LedgerBatch addAll(Collection<Transaction> rows) {
+        additions.addAll(rows);
+        return this;
+    }
+    
+    // Every row with one of the IDs, duplicates included
+    public LedgerBatch deleteIds(Collection<String> ids) {
+        deletedIds.addAll(ids);
+        return this;
+    }
+    
+    // Rows by their position in the ledger when the batch was made, e.g. a
+    // table selection; a batch of these and additions alone needs no scan
+    public LedgerBatch deleteAt(int position) {
+        if (position < 0 || position >= shard.transactions.size()) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + shard.transactions.size());
+        }
+        deletedPositions.set(position);
+        return this;
+    }
+    
+    public LedgerBatch deleteIf(Predicate<? super Transaction> filter) {
+        deletions.add(filter);
+        return this;
+    }
+    
+    // Later updates win where they set the same field on the same row
+    public LedgerBatch update(Predicate<? super Transaction> filter, String type, Integer vatRate) {
+        if (type == null && vatRate == null) {
+            throw new IllegalArgumentException("An update must change the type or the VAT rate");
+        }
+        updates.add(new Update(filter, type, vatRate));
+        return this;
+    }
+    
+    // Deletions take precedence over updates of the same row; added rows are
+    // appended after the existing ones and are not deleted or updated
+    public Result apply() {
+        if (applied) {
+            throw new IllegalStateException("Batch " + label + " was already applied");
+        }
+        applied = true;
+        Ledger transactions = shard.transactions;
+        List<Transaction> deleted = new ArrayList<>();
+        List<Transaction> before = new ArrayList<>();
+        List<Transaction> after = new ArrayList<>();
+        // Ledger positions of the deleted (negated, less one) and updated rows, ascending
+        List<Integer> changed = new ArrayList<>();
+        // The rows after the batch, when they are rebuilt rather than edited in place
+        List<Transaction> rows = null;
+        boolean scan = !deletedIds.isEmpty() || !deletions.isEmpty() || !updates.isEmpty()
+            || deletedPositions.cardinality() > PATH_EDITS;
+        if (scan) {
+            rows = new ArrayList<>(transactions.size() + additions.size());
+            int index = 0;
+            for (Transaction t : transactions.snapshot()) {
+                if (deletedPositions.get(index) || isDeleted(t)) {
+                    deleted.add(t);
+                    changed.add(-index - 1);
+                } else {
+                    Transaction updated = update(t);
+                    if (updated != t) {
+                        before.add(t);
+                        after.add(updated);
+                        changed.add(index);
+                    }
+                    rows.add(updated);
+                }
+                index++;
+            }
+        } else {
+            for (int i = deletedPositions.nextSetBit(0); i >= 0; i = deletedPositions.nextSetBit(i + 1)) {
+                deleted.add(transactions.get(i));
+                changed.add(-i - 1);
+            }
+        }
+        
+        // Checked before anything changes, so a refused batch leaves no trace
+        for (List<Transaction> affected : List.of(deleted, before, additions)) {
+            for (Transaction t : affected) {
+                shard.closes.checkOpen(t);
+            }
+        }
+        if (deleted.isEmpty() && before.isEmpty() && additions.isEmpty()) {
+            return new Result(0, 0, 0);
+        }
+        List<Transaction> removed = new ArrayList<>(deleted.size() + before.size());
+        removed.addAll(deleted);
+        removed.addAll(before);
+        List<Transaction> added = new ArrayList<>(after.size() + additions.size());
+        added.addAll(after);
+        added.addAll(additions);
+        transactions.beginStep(label);
+        if (rows == null || changed.size() <= PATH_EDITS) {
+            // From the back, so the earlier positions still hold
+            int next = after.size();
+            for (int i = changed.size() - 1; i >= 0; i--) {
+                int position = changed.get(i);
+                if (position < 0) {
+                    transactions.remove(-position - 1);
+                } else {
+                    transactions.set(position, after.get(--next));
+                }
+            }
+            additions.forEach(transactions::add);
+        } else {
+            rows.addAll(additions);
+            transactions.commit(rows, removed, added);
+        }
+        
+        boolean rebuild = removed.size() + added.size() > REBUILD_SHARE * transactions.size();
+        for (Transaction t : deleted) {
+            shard.publish(ChangeFeed.Kind.DELETE, t);
+            shard.unaggregate(t);
+        }
+        for (int i = 0; i < before.size(); i++) {
+            shard.publish(ChangeFeed.Kind.EDIT, after.get(i));
+            shard.unaggregate(before.get(i));
+            shard.aggregate(after.get(i));
+        }
+        for (Transaction t : additions) {
+            shard.publish(ChangeFeed.Kind.ADD, t);
+            shard.aggregate(t);
+        }
+        if (rebuild) {
+            shard.queryIndex.rebuild(transactions);
+        } else {
+            deleted.forEach(shard.queryIndex::remove);
+            before.forEach(shard.queryIndex::remove);
+            added.forEach(shard.queryIndex::add);
+        }
+        return new Result(additions.size(), deleted.size(), before.size());
+    }
+    
+    private boolean isDeleted(Transaction t) {
+        if (deletedIds.contains(t.getId())) {
+            return true;
+        }
+        for (Predicate<? super Transaction> filter : deletions) {
+            if (filter.test(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // The row itself when nothing changes, so unchanged rows are not re-indexed
+    private Transaction update(Transaction t) {
+        String type = t.getType();
+        int vatRate = t.getVatRate();
+        for (Update u : updates) {
+            if (u.filter.test(t)) {
+                type = u.type != null ? u.type : type;
+                vatRate = u.vatRate != null ? u.vatRate : vatRate;
+            }
+        }
+        if (type.equals(t.getType()) && vatRate == t.getVatRate()) {
+            return t;
+        }
+        return new Transaction(t.getId(), t.getDate(), t.getDescription(), t.getAmount(), type, vatRate,
+            t.getCurrency(), t.getForeignAmount());
+    }
+}
@@ -0,0 +1,179 @@
+package framesLearn;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.util.*;
+
+import framesLearn.Application.Transaction;
+
+// Seeded generator of realistic ledgers for load and soak testing. The same
+// seed and settings always give the same rows. Rows are made one at a time,
+// so tens of millions can be streamed to a CSV file or into a ledger without
+// being held. Types, amounts and VAT rates follow a small-business mix;
+// dates lean towards December and month ends; some descriptions are long;
+// and CSV output can include malformed lines of the kinds real exports have.
+class LedgerGenerator {
+    
+    public static final String CSV_HEADER = "ID,Date,Description,Amount (ZAR),Type,VAT Rate";
+    
+    private static final String[] VENDORS = {
+        "Makro", "Takealot", "Telkom", "Eskom", "City of Cape Town", "Vodacom", "Builders Warehouse",
+        "Office National", "Engen", "Shell", "Pick n Pay", "Woolworths", "Incredible Connection", "Sage", "Microsoft"
+    };
+    private static final String[] EXPENSES = {
+        "Office Supplies", "Electricity", "Water and Rates", "Fuel", "Internet", "Cellphone Contract",
+        "Software License", "Cleaning", "Stationery", "Repairs and Maintenance", "Courier", "Insurance"
+    };
+    private static final String[] CLIENTS = {
+        "Acme Traders", "Blue Crane Logistics", "Karoo Farms", "Ubuntu Consulting", "Table Bay Foods",
+        "Highveld Motors", "Protea Hotels", "Umhlanga Retail", "Drakensberg Tours", "Soweto Bakery"
+    };
+    private static final String[] ITEMS = {
+        "Widgets", "Packaging", "Raw Materials", "Spare Parts", "Printer Paper", "Coffee Beans", "Cable Reels"
+    };
+    private static final String[] MEMO_WORDS = {
+        "as", "per", "quote", "approved", "by", "finance", "for", "the", "quarterly", "project", "including",
+        "delivery", "and", "installation", "at", "head", "office", "branch", "reference", "order", "number"
+    };
+    // Relative transaction volume per calendar month, January first
+    private static final double[] MONTH_WEIGHTS = {0.8, 0.9, 1.0, 1.0, 1.0, 0.95, 1.0, 1.0, 1.05, 1.1, 1.3, 1.6};
+    
+    private final Random random;
+    private final double malformedRate;
+    private final LocalDate start;
+    // Cumulative date weights, one per day from start
+    private final double[] dayWeights;
+    private long sequence;
+    
+    // Rows are dated over the given number of years from start; malformedRate is
+    // the share of CSV lines that cannot be imported as they are
+    public LedgerGenerator(long seed, LocalDate start, int years, double malformedRate) {
+        if (years <= 0) {
+            throw new IllegalArgumentException("At least one year of dates is required");
+        }
+        this.random = new Random(seed);
+        this.malformedRate = malformedRate;
+        this.start = start;
+        int days = (int) (start.plusYears(years).toEpochDay() - start.toEpochDay());
+        dayWeights = new double[days];
+        double total = 0;
+        for (int i = 0; i < days; i++) {
+            LocalDate date = start.plusDays(i);
+            double weight = MONTH_WEIGHTS[date.getMonthValue() - 1];
+            if (date.getDayOfMonth() >= date.lengthOfMonth() - 3) {
+                weight *= 1.5;
+            }
+            total += weight;
+            dayWeights[i] = total;
+        }
+    }
+    
+    public Transaction next() {
+        String id = String.format("GEN-%010d", ++sequence);
+        String date = nextDate().toString();
+        double roll = random.nextDouble();
+        if (roll < 0.30) {
+            String client = pick(CLIENTS);
+            return new Transaction(id, date, withMemo("Invoice payment - " + client), amount(8000, 0.9),
+                "Income", random.nextDouble() < 0.6 ? 15 : 0);
+        }
+        if (roll < 0.85) {
+            return new Transaction(id, date, withMemo(pick(EXPENSES) + " - " + pick(VENDORS)), amount(1200, 1.1),
+                "Expense", random.nextDouble() < 0.75 ? 15 : 0);
+        }
+        double kind = random.nextDouble();
+        String description = kind < 0.03 ? "Opening Inventory"
+            : kind < 0.06 ? "Closing Inventory"
+            : "Inventory Purchase - " + pick(ITEMS);
+        return new Transaction(id, date, description, amount(3000, 0.8), "Inventory", 15);
+    }
+    
+    // One CSV line; malformed at the configured rate
+    public String nextLine() {
+        String line = next().toCSV();
+        if (random.nextDouble() >= malformedRate) {
+            return line;
+        }
+        String[] values = line.split(",", -1);
+        switch (random.nextInt(5)) {
+            case 0:
+                // Truncated export
+                return values[0] + "," + values[1] + "," + values[2];
+            case 1:
+                // Thousands separator in the amount
+                values[3] = String.format("%,.2f", Double.parseDouble(values[3])).replace(',', ' ');
+                return String.join(",", values);
+            case 2:
+                values[5] = "fifteen";
+                return String.join(",", values);
+            case 3:
+                // Accepted on import, but the date never parses
+                values[1] = values[1].replace('-', '/');
+                return String.join(",", values);
+            default:
+                return "";
+        }
+    }
+    
+    // Writes a header and the given number of lines; returns the number of rows written
+    public long writeCSV(Writer out, long rows) throws IOException {
+        out.write(CSV_HEADER);
+        out.write('\n');
+        for (long i = 0; i < rows; i++) {
+            out.write(nextLine());
+            out.write('\n');
+        }
+        out.flush();
+        return rows;
+    }
+    
+    // Writes a CSV file for IMPORT CSV or load tests:
+    //   java -cp <classpath> framesLearn.LedgerGenerator ROWS FILE [SEED] [MALFORMED_RATE]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: LedgerGenerator ROWS FILE [SEED] [MALFORMED_RATE]");
+            System.exit(2);
+        }
+        long rows = Long.parseLong(args[0]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        double malformedRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.001;
+        LedgerGenerator generator = new LedgerGenerator(seed, LocalDate.of(2020, 1, 1), 5, malformedRate);
+        long start = System.nanoTime();
+        try (Writer out = new BufferedWriter(new FileWriter(args[1]), 1 << 16)) {
+            generator.writeCSV(out, rows);
+        }
+        System.out.printf("Wrote %,d rows to %s in %.1f s%n", rows, args[1], (System.nanoTime() - start) / 1e9);
+    }
+    
+    private LocalDate nextDate() {
+        double target = random.nextDouble() * dayWeights[dayWeights.length - 1];
+        int day = Arrays.binarySearch(dayWeights, target);
+        return start.plusDays(day >= 0 ? day : -day - 1);
+    }
+    
+    // Log-normal around the median, in cents
+    private double amount(double median, double sigma) {
+        double value = median * Math.exp(sigma * random.nextGaussian());
+        return Math.max(1, Math.round(value * 100)) / 100.0;
+    }
+    
+    // Some descriptions carry a long memo, as pasted from purchase orders
+    private String withMemo(String description) {
+        if (random.nextDouble() >= 0.05) {
+            return description;
+        }
+        StringBuilder memo = new StringBuilder(description).append(" -");
+        int length = 120 + random.nextInt(130);
+        while (memo.length() < length) {
+            memo.append(' ').append(pick(MEMO_WORDS));
+        }
+        return memo.toString();
+    }
+    
+    private String pick(String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
@@ -0,0 +1,595 @@
+package framesLearn;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+// Small query language over the transaction fields, e.g.
+//
+//   select sum, count where type = Expense and amount > R5,000 and vat = 15
+//       and date in 2023-Q3 and description contains 'license' group by month
+//
+// Conditions are joined with AND. The planner turns type conditions into a
+// choice of QueryIndex partitions and date conditions into one date range
+// within them; the other conditions are compiled into row filters, cheapest
+// first, and large inputs are filtered and aggregated in parallel. Rows the
+// index does not hold (recurring occurrences, off-heap storage) are scanned
+// with every condition as a filter.
+class LedgerQuery {
+    
+    public enum Aggregate { COUNT, SUM, AVG, MIN, MAX }
+    
+    public enum GroupBy { NONE, TYPE, MONTH, YEAR, VAT }
+    
+    interface Filter {
+        boolean test(TransactionSorter.Rows rows, int row);
+    }
+    
+    // Below this many rows a parallel scan costs more than it saves
+    private static final int PARALLEL_ROWS = 10_000;
+    
+    private static final int STRING = 1, OPERATOR = 2, PUNCTUATION = 3, PERIOD = 4, NUMBER = 5, WORD = 6;
+    
+    private static final Pattern TOKEN = Pattern.compile("\\s*(?:"
+        + "('[^']*'|\"[^\"]*\")"
+        + "|(<=|>=|!=|<>|=|<|>)"
+        + "|([(),])"
+        + "|(\\d{4}-(?:\\d{2}-\\d{2}|\\d{2}|[Qq][1-4]))(?![\\w-])"
+        // Thousands separators only after R, so "in (100,200)" is a list of two
+        + "|((?:R-?(?:\\d{1,3}(?:,\\d{3})+|\\d+)|-?\\d+)(?:\\.\\d+)?%?)(?![\\w.])"
+        + "|([^\\s(),'\"<>=!]+))");
+    
+    private static class Token {
+        final int kind;
+        final String text;
+        
+        Token(int kind, String text) {
+            this.kind = kind;
+            this.text = text;
+        }
+    }
+    
+    // A filter and a rough cost, so cheap numeric tests run before text searches
+    private static class Condition {
+        final Filter filter;
+        final int cost;
+        final String text;
+        
+        Condition(Filter filter, int cost, String text) {
+            this.filter = filter;
+            this.cost = cost;
+            this.text = text;
+        }
+    }
+    
+    private static class Accumulator {
+        long count;
+        long cents;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        
+        void add(long amount) {
+            count++;
+            cents += amount;
+            min = Math.min(min, amount);
+            max = Math.max(max, amount);
+        }
+        
+        void merge(Accumulator other) {
+            count += other.count;
+            cents += other.cents;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+    }
+    
+    public static class Result {
+        private final String[] columns;
+        private final List<Object[]> rows;
+        private final long examined;
+        private final long matched;
+        
+        Result(String[] columns, List<Object[]> rows, long examined, long matched) {
+            this.columns = columns;
+            this.rows = rows;
+            this.examined = examined;
+            this.matched = matched;
+        }
+        
+        public String[] getColumns() { return columns; }
+        public List<Object[]> getRows() { return rows; }
+        // Rows read after partition and date pruning
+        public long getExamined() { return examined; }
+        public long getMatched() { return matched; }
+    }
+    
+    private final List<Aggregate> aggregates = new ArrayList<>();
+    private GroupBy groupBy = GroupBy.NONE;
+    // Lower-case type names; null selects every type
+    private Set<String> types;
+    private final Set<String> excludedTypes = new HashSet<>();
+    private long fromDay = Long.MIN_VALUE;
+    private long toDay = Long.MAX_VALUE;
+    private boolean dated;
+    private final List<Condition> conditions = new ArrayList<>();
+    
+    private final List<Token> tokens = new ArrayList<>();
+    private int pos;
+    
+    private LedgerQuery() {
+    }
+    
+    public static LedgerQuery parse(String text) {
+        LedgerQuery query = new LedgerQuery();
+        query.tokenize(text);
+        query.parseQuery();
+        return query;
+    }
+    
+    // Copies the rows the query needs out of the index; call on the EDT
+    public List<TransactionSorter.Rows> read(QueryIndex index) {
+        List<TransactionSorter.Rows> partitions = new ArrayList<>();
+        for (String type : index.getTypes()) {
+            if (selects(type)) {
+                partitions.add(new TransactionTableModel.ListRows(index.range(type, fromDay, toDay)));
+            }
+        }
+        return partitions;
+    }
+    
+    // Runs over rows from read() plus rows outside the index; safe off the EDT
+    public Result execute(List<TransactionSorter.Rows> partitions, TransactionSorter.Rows unindexed) {
+        Filter[] filters = conditions.stream().map(c -> c.filter).toArray(Filter[]::new);
+        Map<Object, Accumulator> groups = new HashMap<>();
+        long examined = 0;
+        for (TransactionSorter.Rows rows : partitions) {
+            merge(groups, aggregate(rows, filters));
+            examined += rows.size();
+        }
+        if (unindexed != null && unindexed.size() > 0) {
+            merge(groups, aggregate(unindexed, scanFilters(filters)));
+            examined += unindexed.size();
+        }
+        
+        List<Object> keys = new ArrayList<>(groups.keySet());
+        keys.sort(LedgerQuery::compareKeys);
+        if (keys.isEmpty() && groupBy == GroupBy.NONE) {
+            keys.add("All");
+            groups.put("All", new Accumulator());
+        }
+        
+        int offset = groupBy == GroupBy.NONE ? 0 : 1;
+        String[] columns = new String[offset + aggregates.size()];
+        if (offset == 1) {
+            columns[0] = groupBy.name();
+        }
+        for (int i = 0; i < aggregates.size(); i++) {
+            columns[offset + i] = aggregates.get(i).name();
+        }
+        List<Object[]> rows = new ArrayList<>();
+        long matched = 0;
+        for (Object key : keys) {
+            Accumulator acc = groups.get(key);
+            matched += acc.count;
+            Object[] row = new Object[columns.length];
+            if (offset == 1) {
+                row[0] = label(key);
+            }
+            for (int i = 0; i < aggregates.size(); i++) {
+                row[offset + i] = value(aggregates.get(i), acc);
+            }
+            rows.add(row);
+        }
+        return new Result(columns, rows, examined, matched);
+    }
+    
+    // How the query reads the ledger, for the console
+    public String explain() {
+        StringBuilder plan = new StringBuilder();
+        plan.append("partitions ").append(types == null ? "all" : String.join(", ", types));
+        if (!excludedTypes.isEmpty()) {
+            plan.append(" except ").append(String.join(", ", excludedTypes));
+        }
+        if (dated) {
+            plan.append("; date index ").append(day(fromDay)).append("..").append(day(toDay));
+        }
+        if (!conditions.isEmpty()) {
+            plan.append("; filters ");
+            for (int i = 0; i < conditions.size(); i++) {
+                plan.append(i > 0 ? ", " : "").append(conditions.get(i).text);
+            }
+        }
+        if (groupBy != GroupBy.NONE) {
+            plan.append("; group by ").append(groupBy.name().toLowerCase());
+        }
+        return plan.toString();
+    }
+    
+    private boolean selects(String type) {
+        String key = type.toLowerCase();
+        return (types == null || types.contains(key)) && !excludedTypes.contains(key);
+    }
+    
+    // Unindexed rows need the type and date conditions as filters too
+    private Filter[] scanFilters(Filter[] filters) {
+        List<Filter> scan = new ArrayList<>();
+        if (dated) {
+            long from = fromDay;
+            long to = toDay;
+            scan.add((rows, row) -> rows.getEpochDay(row) >= from && rows.getEpochDay(row) <= to);
+        }
+        if (types != null || !excludedTypes.isEmpty()) {
+            scan.add((rows, row) -> selects(rows.getType(row)));
+        }
+        scan.addAll(Arrays.asList(filters));
+        return scan.toArray(new Filter[0]);
+    }
+    
+    private Map<Object, Accumulator> aggregate(TransactionSorter.Rows rows, Filter[] filters) {
+        IntStream range = IntStream.range(0, rows.size());
+        if (rows.size() >= PARALLEL_ROWS) {
+            range = range.parallel();
+        }
+        return range.collect(HashMap::new, (groups, row) -> {
+            for (Filter filter : filters) {
+                if (!filter.test(rows, row)) {
+                    return;
+                }
+            }
+            groups.computeIfAbsent(groupKey(rows, row), k -> new Accumulator()).add(Math.round(rows.getAmount(row) * 100));
+        }, LedgerQuery::merge);
+    }
+    
+    private static void merge(Map<Object, Accumulator> into, Map<Object, Accumulator> from) {
+        for (Map.Entry<Object, Accumulator> entry : from.entrySet()) {
+            into.merge(entry.getKey(), entry.getValue(), (a, b) -> {
+                a.merge(b);
+                return a;
+            });
+        }
+    }
+    
+    private Object groupKey(TransactionSorter.Rows rows, int row) {
+        switch (groupBy) {
+            case TYPE: return rows.getType(row);
+            case MONTH: return RollupCube.monthIndex(rows.getEpochDay(row));
+            case YEAR: {
+                int month = RollupCube.monthIndex(rows.getEpochDay(row));
+                return month == RollupCube.UNKNOWN_MONTH ? month : Math.floorDiv(month, 12);
+            }
+            case VAT: return rows.getVatRate(row);
+            default: return "All";
+        }
+    }
+    
+    private String label(Object key) {
+        switch (groupBy) {
+            case MONTH: return RollupCube.monthLabel((Integer) key);
+            case YEAR: return (Integer) key == RollupCube.UNKNOWN_MONTH ? "Unknown" : key.toString();
+            case VAT: return key + "%";
+            default: return key.toString();
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static int compareKeys(Object a, Object b) {
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+    
+    private static Object value(Aggregate aggregate, Accumulator acc) {
+        switch (aggregate) {
+            case COUNT: return acc.count;
+            case SUM: return String.format("R%,.2f", acc.cents / 100.0);
+            case AVG: return acc.count == 0 ? "" : String.format("R%,.2f", acc.cents / 100.0 / acc.count);
+            case MIN: return acc.count == 0 ? "" : String.format("R%,.2f", acc.min / 100.0);
+            default: return acc.count == 0 ? "" : String.format("R%,.2f", acc.max / 100.0);
+        }
+    }
+    
+    private static String day(long epochDay) {
+        if (epochDay <= Integer.MIN_VALUE + 1 || epochDay == Long.MAX_VALUE) {
+            return "";
+        }
+        return LocalDate.ofEpochDay(epochDay).toString();
+    }
+    
+    // Parsing
+    
+    private void tokenize(String text) {
+        String query = text.trim();
+        Matcher matcher = TOKEN.matcher(query);
+        int end = 0;
+        while (end < query.length()) {
+            matcher.region(end, query.length());
+            if (!matcher.lookingAt()) {
+                throw new IllegalArgumentException("Unexpected input at: " + query.substring(end));
+            }
+            for (int kind = STRING; kind <= WORD; kind++) {
+                String token = matcher.group(kind);
+                if (token != null) {
+                    tokens.add(new Token(kind, kind == STRING ? token.substring(1, token.length() - 1) : token));
+                    break;
+                }
+            }
+            end = matcher.end();
+        }
+    }
+    
+    private void parseQuery() {
+        if (accept("select")) {
+            do {
+                String name = word("aggregate");
+                try {
+                    aggregates.add(Aggregate.valueOf(name.toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown aggregate: " + name);
+                }
+                if (accept("(")) {
+                    expect("amount");
+                    expect(")");
+                }
+            } while (accept(","));
+        }
+        if (aggregates.isEmpty()) {
+            aggregates.add(Aggregate.COUNT);
+            aggregates.add(Aggregate.SUM);
+        }
+        
+        accept("where");
+        if (pos < tokens.size() && !peekWord("group")) {
+            do {
+                parseCondition();
+            } while (accept("and"));
+        }
+        
+        if (accept("group")) {
+            expect("by");
+            String field = word("group by field");
+            try {
+                groupBy = GroupBy.valueOf(field.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Cannot group by " + field);
+            }
+        }
+        if (pos < tokens.size()) {
+            throw new IllegalArgumentException("Unexpected: " + tokens.get(pos).text);
+        }
+        conditions.sort(Comparator.comparingInt(c -> c.cost));
+    }
+    
+    private void parseCondition() {
+        String field = word("field").toLowerCase();
+        switch (field) {
+            case "date": parseDate(); break;
+            case "type": parseType(); break;
+            case "amount": parseNumber(field, 1, (rows, row) -> Math.round(rows.getAmount(row) * 100), 100); break;
+            case "vat": parseNumber(field, 1, (rows, row) -> rows.getVatRate(row), 1); break;
+            case "id": parseText(field, 2, TransactionSorter.Rows::getId); break;
+            case "description": parseText(field, 3, TransactionSorter.Rows::getDescription); break;
+            default: throw new IllegalArgumentException("Unknown field: " + field);
+        }
+    }
+    
+    private interface LongColumn {
+        long get(TransactionSorter.Rows rows, int row);
+    }
+    
+    private interface TextColumn {
+        String get(TransactionSorter.Rows rows, int row);
+    }
+    
+    private void parseDate() {
+        // Every date value is a period; a plain date is a one-day period
+        long from;
+        long to;
+        if (accept("between")) {
+            from = period()[0];
+            expect("and");
+            to = period()[1];
+        } else if (accept("in")) {
+            long[] period = period();
+            from = period[0];
+            to = period[1];
+        } else {
+            String op = operator();
+            long[] period = period();
+            switch (op) {
+                case "=": from = period[0]; to = period[1]; break;
+                case "<": from = Long.MIN_VALUE; to = period[0] - 1; break;
+                case "<=": from = Long.MIN_VALUE; to = period[1]; break;
+                case ">": from = period[1] + 1; to = Long.MAX_VALUE; break;
+                case ">=": from = period[0]; to = Long.MAX_VALUE; break;
+                default:
+                    // Rows outside the period; undated ones (Integer.MIN_VALUE) never match, as below
+                    conditions.add(new Condition((rows, row) -> {
+                        long day = rows.getEpochDay(row);
+                        return day > Integer.MIN_VALUE && (day < period[0] || day > period[1]);
+                    }, 1, "date " + op + " " + day(period[0]) + ".." + day(period[1])));
+                    return;
+            }
+        }
+        dated = true;
+        // Unparseable dates never match a date condition
+        fromDay = Math.max(fromDay, Math.max(from, Integer.MIN_VALUE + 1L));
+        toDay = Math.min(toDay, to);
+    }
+    
+    private long[] period() {
+        Token token = next("date");
+        String text = token.text.toUpperCase();
+        try {
+            if (text.matches("\\d{4}-\\d{2}-\\d{2}")) {
+                long day = LocalDate.parse(text).toEpochDay();
+                return new long[]{day, day};
+            }
+            if (text.matches("\\d{4}-\\d{2}")) {
+                YearMonth month = YearMonth.parse(text);
+                return new long[]{month.atDay(1).toEpochDay(), month.atEndOfMonth().toEpochDay()};
+            }
+            if (text.matches("\\d{4}-Q[1-4]")) {
+                YearMonth first = YearMonth.of(Integer.parseInt(text.substring(0, 4)), (text.charAt(6) - '1') * 3 + 1);
+                return new long[]{first.atDay(1).toEpochDay(), first.plusMonths(2).atEndOfMonth().toEpochDay()};
+            }
+            if (text.matches("\\d{4}")) {
+                int year = Integer.parseInt(text);
+                return new long[]{LocalDate.of(year, 1, 1).toEpochDay(), LocalDate.of(year, 12, 31).toEpochDay()};
+            }
+        } catch (DateTimeParseException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid date or period: " + token.text);
+    }
+    
+    private void parseType() {
+        Set<String> values = new HashSet<>();
+        boolean negated = false;
+        if (accept("in")) {
+            expect("(");
+            do {
+                values.add(value("type").toLowerCase());
+            } while (accept(","));
+            expect(")");
+        } else {
+            String op = operator();
+            if (!op.equals("=") && !op.equals("!=")) {
+                throw new IllegalArgumentException("Type only supports =, != and in");
+            }
+            negated = op.equals("!=");
+            values.add(value("type").toLowerCase());
+        }
+        if (negated) {
+            excludedTypes.addAll(values);
+        } else if (types == null) {
+            types = new TreeSet<>(values);
+        } else {
+            types.retainAll(values);
+        }
+    }
+    
+    // Compares in fixed point: cents for amounts, whole percent for VAT
+    private void parseNumber(String field, int cost, LongColumn column, int scale) {
+        if (accept("between")) {
+            double lowNumber = number();
+            expect("and");
+            double highNumber = number();
+            long low = Math.round(lowNumber * scale);
+            long high = Math.round(highNumber * scale);
+            conditions.add(new Condition((rows, row) -> {
+                long v = column.get(rows, row);
+                return v >= low && v <= high;
+            }, cost, field + " between " + format(lowNumber) + " and " + format(highNumber)));
+            return;
+        }
+        if (accept("in")) {
+            expect("(");
+            Set<Long> values = new HashSet<>();
+            StringJoiner text = new StringJoiner(", ", field + " in (", ")");
+            do {
+                double number = number();
+                values.add(Math.round(number * scale));
+                text.add(format(number));
+            } while (accept(","));
+            expect(")");
+            conditions.add(new Condition((rows, row) -> values.contains(column.get(rows, row)), cost, text.toString()));
+            return;
+        }
+        String op = operator();
+        double number = number();
+        long value = Math.round(number * scale);
+        Filter filter;
+        switch (op) {
+            case "=": filter = (rows, row) -> column.get(rows, row) == value; break;
+            case "!=": filter = (rows, row) -> column.get(rows, row) != value; break;
+            case "<": filter = (rows, row) -> column.get(rows, row) < value; break;
+            case "<=": filter = (rows, row) -> column.get(rows, row) <= value; break;
+            case ">": filter = (rows, row) -> column.get(rows, row) > value; break;
+            default: filter = (rows, row) -> column.get(rows, row) >= value; break;
+        }
+        conditions.add(new Condition(filter, cost, field + " " + op + " " + format(number)));
+    }
+    
+    private static String format(double number) {
+        return number == Math.rint(number) ? Long.toString((long) number) : Double.toString(number);
+    }
+    
+    private void parseText(String field, int cost, TextColumn column) {
+        if (accept("contains")) {
+            String needle = value(field).toLowerCase();
+            conditions.add(new Condition((rows, row) -> {
+                String v = column.get(rows, row);
+                return v != null && v.toLowerCase().contains(needle);
+            }, cost + 1, field + " contains '" + needle + "'"));
+            return;
+        }
+        String op = operator();
+        if (!op.equals("=") && !op.equals("!=")) {
+            throw new IllegalArgumentException(field + " only supports =, != and contains");
+        }
+        String value = value(field);
+        boolean equal = op.equals("=");
+        conditions.add(new Condition((rows, row) -> value.equalsIgnoreCase(column.get(rows, row)) == equal,
+            cost, field + " " + op + " '" + value + "'"));
+    }
+    
+    private String operator() {
+        Token token = next("operator");
+        if (token.kind != OPERATOR) {
+            throw new IllegalArgumentException("Expected an operator but found: " + token.text);
+        }
+        return token.text.equals("<>") ? "!=" : token.text;
+    }
+    
+    private double number() {
+        Token token = next("number");
+        if (token.kind != NUMBER) {
+            throw new IllegalArgumentException("Expected a number but found: " + token.text);
+        }
+        return Double.parseDouble(token.text.replace("R", "").replace(",", "").replace("%", ""));
+    }
+    
+    private String value(String what) {
+        Token token = next(what);
+        if (token.kind == OPERATOR || token.kind == PUNCTUATION) {
+            throw new IllegalArgumentException("Expected " + what + " but found: " + token.text);
+        }
+        return token.text;
+    }
+    
+    private String word(String what) {
+        Token token = next(what);
+        if (token.kind != WORD) {
+            throw new IllegalArgumentException("Expected " + what + " but found: " + token.text);
+        }
+        return token.text;
+    }
+    
+    private Token next(String what) {
+        if (pos >= tokens.size()) {
+            throw new IllegalArgumentException("Expected " + what + " at end of query");
+        }
+        return tokens.get(pos++);
+    }
+    
+    private boolean peekWord(String word) {
+        return pos < tokens.size() && tokens.get(pos).kind == WORD && tokens.get(pos).text.equalsIgnoreCase(word);
+    }
+    
+    // Keywords and punctuation; quoted strings never match
+    private boolean accept(String text) {
+        if (pos < tokens.size() && tokens.get(pos).kind != STRING && tokens.get(pos).text.equalsIgnoreCase(text)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+    
+    private void expect(String text) {
+        if (!accept(text)) {
+            throw new IllegalArgumentException("Expected '" + text + "'" + (pos < tokens.size() ? " but found: " + tokens.get(pos).text : ""));
+        }
+    }
+}
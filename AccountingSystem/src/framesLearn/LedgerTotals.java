@@ -0,0 +1,51 @@
+package framesLearn;
+
+// Income, expense and VAT totals as shown on the dashboard and in reports.
+// VAT is only charged on expenses, matching the rest of the application.
+class LedgerTotals {
+    
+    private double income;
+    private double expense;
+    private double vat;
+    private long incomeCount;
+    private long expenseCount;
+    
+    void addIncome(double amount) {
+        income += amount;
+        incomeCount++;
+    }
+    
+    void addExpense(double amount, int vatRate) {
+        expense += amount;
+        vat += amount * vatRate / 100;
+        expenseCount++;
+    }
+    
+    void add(String type, double amount, int vatRate) {
+        if (type.equals("Income")) {
+            addIncome(amount);
+        } else if (type.equals("Expense")) {
+            addExpense(amount, vatRate);
+        }
+    }
+    
+    // Adds pre-aggregated figures, e.g. from archive block statistics
+    void addAggregate(double income, long incomeCount, double expense, double vat, long expenseCount) {
+        this.income += income;
+        this.incomeCount += incomeCount;
+        this.expense += expense;
+        this.vat += vat;
+        this.expenseCount += expenseCount;
+    }
+    
+    void merge(LedgerTotals other) {
+        addAggregate(other.income, other.incomeCount, other.expense, other.vat, other.expenseCount);
+    }
+    
+    public double getIncome() { return income; }
+    public double getExpense() { return expense; }
+    public double getVAT() { return vat; }
+    public double getNet() { return income - expense; }
+    public long getIncomeCount() { return incomeCount; }
+    public long getExpenseCount() { return expenseCount; }
+}
@@ -0,0 +1,535 @@
+package framesLearn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import framesLearn.Application.Transaction;
+
+// Transaction store that keeps every field outside the Java heap.
+// Rows are fixed-width records in direct (or memory-mapped) buffers and the
+// id/description text lives in a separate string area, so the garbage
+// collector never sees per-row objects no matter how large the ledger grows.
+// Reads go through a reusable Cursor instead of Transaction objects.
+//
+// Chunks start small and double up to their full size, so a small ledger
+// holds little memory. Rows are written on one thread at a time and read on
+// any: the row count is volatile and written after the row, so a reader
+// that sees a row also sees its bytes. Deleting marks rows in a tombstone
+// bitmap, and compact() then copies the rows after the first deleted one
+// to new chunks and swaps them in. A cursor keeps reading the chunks it was
+// created on, so a background reader sees the rows as they were when it
+// started however many are deleted meanwhile.
+class OffHeapLedger implements Closeable {
+    
+    // Row layout
+    private static final int AMOUNT = 0;             // double
+    private static final int EPOCH_DAY = 8;          // int
+    private static final int TYPE = 12;              // byte, index into the type dictionary
+    private static final int VAT_RATE = 13;          // byte
+    private static final int ID_LENGTH = 14;         // short
+    private static final int STRING_CHUNK = 16;      // int
+    private static final int STRING_OFFSET = 20;     // int
+    private static final int DESCRIPTION_LENGTH = 24; // int
+    private static final int CURRENCY = 28;          // byte, index into the currency dictionary
+    private static final int FOREIGN_AMOUNT = 32;    // double, the amount in the row's currency
+    private static final int ROW_BYTES = 40;
+    
+    private static final int FIRST_CHUNK_ROWS = 4096;
+    private static final int ROWS_PER_CHUNK = 1 << 20;
+    private static final int FIRST_STRING_CHUNK_BYTES = 256 << 10;
+    private static final int STRING_CHUNK_BYTES = 64 << 20;
+    
+    // The chunks of one generation of the ledger. Compaction starts a new
+    // one that shares the string chunks and the row chunks before the first
+    // deleted row; only full row chunks are shared, so appends never write
+    // to a chunk an older generation still reads.
+    private static class Store {
+        final List<ByteBuffer> rowChunks;
+        final List<ByteBuffer> stringChunks;
+        volatile int size;
+        
+        Store(List<ByteBuffer> rowChunks, List<ByteBuffer> stringChunks, int size) {
+            this.rowChunks = new CopyOnWriteArrayList<>(rowChunks);
+            this.stringChunks = new CopyOnWriteArrayList<>(stringChunks);
+            this.size = size;
+        }
+    }
+    
+    // Strings stored in rows as byte codes; read by cursors on any thread
+    private static class Dictionary {
+        final List<String> values = new CopyOnWriteArrayList<>();
+        final List<byte[]> bytes = new CopyOnWriteArrayList<>();
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final String kind;
+        
+        Dictionary(String kind) {
+            this.kind = kind;
+        }
+        
+        int code(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                if (values.size() > Byte.MAX_VALUE) {
+                    throw new IllegalArgumentException("Too many " + kind);
+                }
+                code = values.size();
+                bytes.add(value.getBytes(StandardCharsets.UTF_8));
+                values.add(value);
+                codes.put(value, code);
+            }
+            return code;
+        }
+    }
+    
+    private final File directory;
+    private final List<FileChannel> channels = new ArrayList<>();
+    // Files behind mapped chunks, and those replaced by compaction, removed on close
+    private final Map<ByteBuffer, File> chunkFiles = new IdentityHashMap<>();
+    private final List<File> replacedFiles = new ArrayList<>();
+    private final Dictionary types = new Dictionary("transaction types");
+    // ZAR is code 0
+    private final Dictionary currencies = new Dictionary("currencies");
+    private volatile Store store = new Store(Collections.emptyList(), Collections.emptyList(), 0);
+    // Rows deleted since the last compaction
+    private final BitSet deleted = new BitSet();
+    private int stringPosition = 0;
+    private int fileCount = 0;
+    
+    // Memory-only storage
+    OffHeapLedger() {
+        this(null);
+    }
+    
+    // File-backed storage; chunks are memory-mapped from files in the directory
+    OffHeapLedger(File directory) {
+        this.directory = directory;
+        currencies.code(FxRates.BASE);
+    }
+    
+    public int size() {
+        return store.size;
+    }
+    
+    public boolean isFileBacked() {
+        return directory != null;
+    }
+    
+    public void append(Transaction t) {
+        append(t.getId(), t.getDate(), t.getDescription(), t.getAmount(), t.getType(), t.getVatRate(),
+            t.getCurrency(), t.getForeignAmount());
+    }
+    
+    // amount is in ZAR, foreignAmount in currency as entered. Throws
+    // IllegalArgumentException when the date is not yyyy-MM-dd
+    public void append(String id, String date, String description, double amount, String type, int vatRate,
+                       String currency, double foreignAmount) {
+        long epochDay;
+        try {
+            epochDay = LocalDate.parse(date).toEpochDay();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date: " + date);
+        }
+        if (vatRate < 0 || vatRate > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid VAT rate: " + vatRate);
+        }
+        
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        byte[] descriptionBytes = description.getBytes(StandardCharsets.UTF_8);
+        if (idBytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Transaction ID too long");
+        }
+        
+        Store s = store;
+        int stringLength = idBytes.length + descriptionBytes.length;
+        ByteBuffer strings = reserveStrings(s, stringLength);
+        int stringChunk = s.stringChunks.size() - 1;
+        int stringOffset = stringPosition;
+        strings.put(stringOffset, idBytes);
+        strings.put(stringOffset + idBytes.length, descriptionBytes);
+        stringPosition += stringLength;
+        
+        int size = s.size;
+        int chunk = size / ROWS_PER_CHUNK;
+        int row = size % ROWS_PER_CHUNK;
+        if (chunk == s.rowChunks.size()) {
+            s.rowChunks.add(allocate("rows", FIRST_CHUNK_ROWS * ROW_BYTES));
+        } else if ((row + 1) * ROW_BYTES > s.rowChunks.get(chunk).capacity()) {
+            s.rowChunks.set(chunk, grow(s.rowChunks.get(chunk), Math.min(ROWS_PER_CHUNK, 2 * row) * ROW_BYTES));
+        }
+        ByteBuffer rows = s.rowChunks.get(chunk);
+        int base = row * ROW_BYTES;
+        rows.putDouble(base + AMOUNT, amount);
+        rows.putInt(base + EPOCH_DAY, (int) epochDay);
+        rows.put(base + TYPE, (byte) types.code(type));
+        rows.put(base + VAT_RATE, (byte) vatRate);
+        rows.putShort(base + ID_LENGTH, (short) idBytes.length);
+        rows.putInt(base + STRING_CHUNK, stringChunk);
+        rows.putInt(base + STRING_OFFSET, stringOffset);
+        rows.putInt(base + DESCRIPTION_LENGTH, descriptionBytes.length);
+        rows.put(base + CURRENCY, (byte) currencies.code(currency));
+        rows.putDouble(base + FOREIGN_AMOUNT, foreignAmount);
+        // Publishes the row to readers on other threads
+        s.size = size + 1;
+    }
+    
+    // Marks a row for deletion; it stays in place until compact()
+    public void delete(int row) {
+        if (row < 0 || row >= store.size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + store.size);
+        }
+        deleted.set(row);
+    }
+    
+    public int getDeletedCount() {
+        return deleted.cardinality();
+    }
+    
+    // Drops the rows marked for deletion and returns how many there were.
+    // Rows before the first of them stay where they are and the rest move
+    // down, so the cost is one copy of the rows after the first deleted row.
+    // The text of deleted rows is not reclaimed.
+    public int compact() {
+        int first = deleted.nextSetBit(0);
+        if (first < 0) {
+            return 0;
+        }
+        Store old = store;
+        int shared = first / ROWS_PER_CHUNK;
+        int live = old.size - deleted.cardinality();
+        Store next = new Store(old.rowChunks.subList(0, shared), old.stringChunks, shared * ROWS_PER_CHUNK);
+        int size = next.size;
+        
+        // Runs of surviving rows, each copied in pieces that stay inside one
+        // source chunk and one target chunk
+        for (int from = deleted.nextClearBit(size); from < old.size; from = deleted.nextClearBit(from)) {
+            int end = deleted.nextSetBit(from) < 0 ? old.size : deleted.nextSetBit(from);
+            while (from < end) {
+                int chunk = size / ROWS_PER_CHUNK;
+                if (chunk == next.rowChunks.size()) {
+                    // Sized for the rows left to copy, up to a full chunk
+                    int rows = Math.max(FIRST_CHUNK_ROWS, Math.min(ROWS_PER_CHUNK, live - size));
+                    next.rowChunks.add(allocate("rows", rows * ROW_BYTES));
+                }
+                ByteBuffer target = next.rowChunks.get(chunk);
+                int count = Math.min(end - from, Math.min(ROWS_PER_CHUNK - from % ROWS_PER_CHUNK,
+                    ROWS_PER_CHUNK - size % ROWS_PER_CHUNK));
+                target.put((size % ROWS_PER_CHUNK) * ROW_BYTES, old.rowChunks.get(from / ROWS_PER_CHUNK),
+                    (from % ROWS_PER_CHUNK) * ROW_BYTES, count * ROW_BYTES);
+                from += count;
+                size += count;
+            }
+        }
+        next.size = size;
+        
+        for (int chunk = shared; chunk < old.rowChunks.size(); chunk++) {
+            File file = chunkFiles.remove(old.rowChunks.get(chunk));
+            if (file != null) {
+                replacedFiles.add(file);
+            }
+        }
+        deleted.clear();
+        store = next;
+        return old.size - size;
+    }
+    
+    private ByteBuffer reserveStrings(Store s, int length) {
+        if (length > STRING_CHUNK_BYTES) {
+            throw new IllegalArgumentException("Transaction text too long");
+        }
+        int last = s.stringChunks.size() - 1;
+        if (last >= 0 && stringPosition + length <= STRING_CHUNK_BYTES) {
+            ByteBuffer chunk = s.stringChunks.get(last);
+            if (stringPosition + length > chunk.capacity()) {
+                chunk = grow(chunk, chunkBytes(chunk.capacity(), stringPosition + length, STRING_CHUNK_BYTES));
+                s.stringChunks.set(last, chunk);
+            }
+            return chunk;
+        }
+        s.stringChunks.add(allocate("strings", chunkBytes(FIRST_STRING_CHUNK_BYTES, length, STRING_CHUNK_BYTES)));
+        stringPosition = 0;
+        return s.stringChunks.get(last + 1);
+    }
+    
+    // Doubles from a starting size until the bytes needed fit, up to the limit
+    private static int chunkBytes(int bytes, int needed, int limit) {
+        while (bytes < needed) {
+            bytes *= 2;
+        }
+        return Math.min(bytes, limit);
+    }
+    
+    private ByteBuffer allocate(String kind, int bytes) {
+        if (directory == null) {
+            return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+        
+        File file = new File(directory, String.format("%s-%05d.bin", kind, fileCount++));
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channels.add(channel);
+            ByteBuffer chunk = map(channel, file, bytes);
+            chunkFiles.put(chunk, file);
+            return chunk;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map " + file, e);
+        }
+    }
+    
+    // A larger chunk with the same contents; a mapped chunk is mapped again
+    // over a longer stretch of its file, so the bytes are not copied
+    private ByteBuffer grow(ByteBuffer chunk, int bytes) {
+        File file = chunkFiles.remove(chunk);
+        if (file == null) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+            larger.put(0, chunk, 0, chunk.capacity());
+            return larger;
+        }
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channels.add(channel);
+            ByteBuffer larger = map(channel, file, bytes);
+            chunkFiles.put(larger, file);
+            return larger;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map " + file, e);
+        }
+    }
+    
+    private static ByteBuffer map(FileChannel channel, File file, int bytes) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes).order(ByteOrder.nativeOrder());
+    }
+    
+    public Cursor cursor() {
+        return new Cursor(store);
+    }
+    
+    // Writes rows in the same format as Transaction.toCSV without creating per-row objects:
+    // foreign rows give the amount in their currency, and the currency in a seventh column
+    public void writeCSV(OutputStream out) throws IOException {
+        byte[] line = new byte[256];
+        Cursor cursor = cursor();
+        int size = cursor.size();
+        
+        for (int row = 0; row < size; row++) {
+            cursor.moveTo(row);
+            int needed = cursor.textLength() + types.bytes.get(cursor.typeCode()).length + 64;
+            if (needed > line.length) {
+                line = new byte[Math.max(needed, line.length * 2)];
+            }
+            
+            int n = cursor.copyId(line, 0);
+            line[n++] = ',';
+            n = writeDate(line, n, cursor.getEpochDay());
+            line[n++] = ',';
+            n = cursor.copyDescription(line, n);
+            line[n++] = ',';
+            int currency = cursor.currencyCode();
+            n = writeAmount(line, n, currency != 0 ? cursor.getForeignAmount() : cursor.getAmount());
+            line[n++] = ',';
+            n = writeBytes(line, n, types.bytes.get(cursor.typeCode()));
+            line[n++] = ',';
+            n = writeLong(line, n, cursor.getVatRate());
+            if (currency != 0) {
+                line[n++] = ',';
+                n = writeBytes(line, n, currencies.bytes.get(currency));
+            }
+            line[n++] = '\n';
+            out.write(line, 0, n);
+        }
+    }
+    
+    public List<Transaction> toTransactions() {
+        Cursor cursor = cursor();
+        return cursor.toTransactions(cursor.size());
+    }
+    
+    @Override
+    public void close() throws IOException {
+        for (FileChannel channel : channels) {
+            channel.close();
+        }
+        channels.clear();
+        for (File file : chunkFiles.values()) {
+            file.delete();
+        }
+        chunkFiles.clear();
+        for (File file : replacedFiles) {
+            file.delete();
+        }
+        replacedFiles.clear();
+    }
+    
+    private static int writeBytes(byte[] buf, int n, byte[] bytes) {
+        System.arraycopy(bytes, 0, buf, n, bytes.length);
+        return n + bytes.length;
+    }
+    
+    private static int writeDate(byte[] buf, int n, long epochDay) {
+        // Civil date from day count (Howard Hinnant's algorithm)
+        long z = epochDay + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long day = doy - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        
+        n = writeLong(buf, n, year);
+        buf[n++] = '-';
+        buf[n++] = (byte) ('0' + month / 10);
+        buf[n++] = (byte) ('0' + month % 10);
+        buf[n++] = '-';
+        buf[n++] = (byte) ('0' + day / 10);
+        buf[n++] = (byte) ('0' + day % 10);
+        return n;
+    }
+    
+    private static int writeAmount(byte[] buf, int n, double amount) {
+        long cents = Math.round(amount * 100);
+        if (cents < 0) {
+            buf[n++] = '-';
+            cents = -cents;
+        }
+        n = writeLong(buf, n, cents / 100);
+        buf[n++] = '.';
+        buf[n++] = (byte) ('0' + (cents % 100) / 10);
+        buf[n++] = (byte) ('0' + cents % 10);
+        return n;
+    }
+    
+    private static int writeLong(byte[] buf, int n, long value) {
+        if (value < 0) {
+            buf[n++] = '-';
+            value = -value;
+        }
+        int start = n;
+        do {
+            buf[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = n - 1; i < j; i++, j--) {
+            byte tmp = buf[i];
+            buf[i] = buf[j];
+            buf[j] = tmp;
+        }
+        return n;
+    }
+    
+    // Flyweight view of one row; move it instead of allocating per row. It
+    // reads the rows as they were when it was created, plus later appends
+    // until the next compaction.
+    class Cursor {
+        private final Store store;
+        private ByteBuffer rows;
+        private int base;
+        
+        private Cursor(Store store) {
+            this.store = store;
+        }
+        
+        // Another cursor over the same rows, e.g. for another thread
+        public Cursor copy() {
+            return new Cursor(store);
+        }
+        
+        // False once rows were deleted after the cursor was created
+        public boolean isCurrent() {
+            return store == OffHeapLedger.this.store;
+        }
+        
+        public int size() {
+            return store.size;
+        }
+        
+        public Cursor moveTo(int row) {
+            int size = store.size;
+            if (row < 0 || row >= size) {
+                throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+            }
+            rows = store.rowChunks.get(row / ROWS_PER_CHUNK);
+            base = (row % ROWS_PER_CHUNK) * ROW_BYTES;
+            return this;
+        }
+        
+        public double getAmount() { return rows.getDouble(base + AMOUNT); }
+        public long getEpochDay() { return rows.getInt(base + EPOCH_DAY); }
+        public int getVatRate() { return rows.get(base + VAT_RATE); }
+        public String getType() { return types.values.get(typeCode()); }
+        public String getCurrency() { return currencies.values.get(currencyCode()); }
+        public double getForeignAmount() { return rows.getDouble(base + FOREIGN_AMOUNT); }
+        
+        public boolean isForeign() {
+            return currencyCode() != 0;
+        }
+        
+        public String getId() {
+            return readString(0, rows.getShort(base + ID_LENGTH));
+        }
+        
+        public String getDescription() {
+            return readString(rows.getShort(base + ID_LENGTH), rows.getInt(base + DESCRIPTION_LENGTH));
+        }
+        
+        public String getDate() {
+            return LocalDate.ofEpochDay(getEpochDay()).toString();
+        }
+        
+        public Transaction toTransaction() {
+            return new Transaction(getId(), getDate(), getDescription(), getAmount(), getType(), getVatRate(),
+                getCurrency(), getForeignAmount());
+        }
+        
+        // The first count rows, read through a copy so this cursor stays put
+        public List<Transaction> toTransactions(int count) {
+            Cursor cursor = copy();
+            List<Transaction> list = new ArrayList<>(count);
+            for (int row = 0; row < count; row++) {
+                list.add(cursor.moveTo(row).toTransaction());
+            }
+            return list;
+        }
+        
+        int typeCode() {
+            return rows.get(base + TYPE);
+        }
+        
+        int currencyCode() {
+            return rows.get(base + CURRENCY);
+        }
+        
+        int textLength() {
+            return rows.getShort(base + ID_LENGTH) + rows.getInt(base + DESCRIPTION_LENGTH);
+        }
+        
+        int copyId(byte[] dst, int n) {
+            return copyText(0, rows.getShort(base + ID_LENGTH), dst, n);
+        }
+        
+        int copyDescription(byte[] dst, int n) {
+            return copyText(rows.getShort(base + ID_LENGTH), rows.getInt(base + DESCRIPTION_LENGTH), dst, n);
+        }
+        
+        private int copyText(int skip, int length, byte[] dst, int n) {
+            ByteBuffer strings = store.stringChunks.get(rows.getInt(base + STRING_CHUNK));
+            strings.get(rows.getInt(base + STRING_OFFSET) + skip, dst, n, length);
+            return n + length;
+        }
+        
+        private String readString(int skip, int length) {
+            byte[] bytes = new byte[length];
+            copyText(skip, length, bytes, 0);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
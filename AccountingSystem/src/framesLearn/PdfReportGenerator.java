@@ -0,0 +1,259 @@
+package framesLearn;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+import com.itextpdf.kernel.geom.PageSize;
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfWriter;
+import com.itextpdf.layout.Document;
+import com.itextpdf.layout.element.Cell;
+import com.itextpdf.layout.element.Paragraph;
+import com.itextpdf.layout.element.Table;
+import com.itextpdf.layout.property.TextAlignment;
+import com.itextpdf.layout.property.UnitValue;
+
+import framesLearn.Application.Transaction;
+
+// Writes full-detail PDF reports with iText's large-table mode. Rows are
+// added to the table in small batches and flushed, so finished pages are
+// written to disk and released while the rest of the ledger is still being
+// read; memory stays flat regardless of the number of rows.
+class PdfReportGenerator {
+    
+    public enum ReportType {
+        TRANSACTIONS("Transaction Listing"),
+        VAT("VAT Return"),
+        SUMMARY("Financial Summary");
+        
+        private final String title;
+        
+        ReportType(String title) {
+            this.title = title;
+        }
+        
+        public String getTitle() { return title; }
+        
+        @Override
+        public String toString() { return title; }
+    }
+    
+    public interface ProgressListener {
+        void progress(long rowsDone, long rowsTotal);
+    }
+    
+    private static final int ROWS_PER_FLUSH = 200;
+    
+    private final List<Transaction> transactions;
+    private final OffHeapLedger.Cursor offHeapCursor;
+    private final int offHeapRows;
+    private final LedgerTotals totals;
+    private final Map<String, String> calculations;
+    private final FxRates fx;
+    private final String currency;
+    private volatile boolean cancelled;
+    
+    // transactions must not change while the report is written, so pass a
+    // Ledger snapshot; of the off-heap ledger, the rows present now are
+    // included, read through a cursor that later deletions do not move.
+    // Amounts are printed in currency, each row at the rate of its date.
+    // totals cover every period, closed ones included, whose rows may have
+    // moved to period archives and so are not listed; they must already be
+    // in currency, converted month by month.
+    PdfReportGenerator(List<Transaction> transactions, OffHeapLedger offHeapLedger,
+                       LedgerTotals totals, Map<String, String> calculations, FxRates fx, String currency) {
+        this.transactions = transactions;
+        this.offHeapCursor = offHeapLedger != null ? offHeapLedger.cursor() : null;
+        this.offHeapRows = offHeapCursor != null ? offHeapCursor.size() : 0;
+        this.totals = totals;
+        this.calculations = calculations;
+        this.fx = fx;
+        this.currency = currency;
+    }
+    
+    public void cancel() {
+        cancelled = true;
+    }
+    
+    public boolean isCancelled() {
+        return cancelled;
+    }
+    
+    public void generate(ReportType type, File file, ProgressListener listener) throws IOException {
+        try (PdfDocument pdf = new PdfDocument(new PdfWriter(file));
+             Document document = new Document(pdf, type == ReportType.SUMMARY ? PageSize.A4 : PageSize.A4.rotate())) {
+            
+            document.add(new Paragraph("E-19 ACCOUNTING SYSTEM - " + type.getTitle().toUpperCase()).setBold().setFontSize(16));
+            document.add(new Paragraph("Generated on: " + new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date())).setFontSize(9));
+            
+            switch (type) {
+                case TRANSACTIONS:
+                    writeTransactionListing(document, listener);
+                    break;
+                case VAT:
+                    writeVATReturn(document, listener);
+                    break;
+                default:
+                    writeSummary(document);
+                    listener.progress(1, 1);
+            }
+        }
+    }
+    
+    private void writeTransactionListing(Document document, ProgressListener listener) {
+        Table table = new Table(UnitValue.createPercentArray(new float[]{12, 10, 44, 14, 12, 8}), true);
+        table.setWidth(UnitValue.createPercentValue(100));
+        for (String header : new String[]{"ID", "DATE", "DESCRIPTION", "AMOUNT (" + currency + ")", "TYPE", "VAT %"}) {
+            table.addHeaderCell(new Cell().add(new Paragraph(header).setBold()).setFontSize(9));
+        }
+        document.add(table);
+        
+        long total = (long) transactions.size() + offHeapRows;
+        long[] done = {0};
+        RowVisitor visitor = (id, epochDay, date, description, amount, type, vatRate) -> {
+            table.addCell(cell(id));
+            table.addCell(cell(date));
+            table.addCell(cell(description));
+            table.addCell(cell(money(fx.fromBase(currency, epochDay, amount))).setTextAlignment(TextAlignment.RIGHT));
+            table.addCell(cell(type));
+            table.addCell(cell(vatRate + "%").setTextAlignment(TextAlignment.RIGHT));
+            return rowWritten(table, ++done[0], total, listener);
+        };
+        visitRows(visitor);
+        
+        table.complete();
+        listener.progress(done[0], total);
+        document.add(new Paragraph(String.format("%,d transactions", done[0])).setFontSize(9));
+    }
+    
+    private void writeVATReturn(Document document, ProgressListener listener) {
+        Table table = new Table(UnitValue.createPercentArray(new float[]{12, 10, 42, 14, 8, 14}), true);
+        table.setWidth(UnitValue.createPercentValue(100));
+        for (String header : new String[]{"ID", "DATE", "DESCRIPTION", "AMOUNT (" + currency + ")", "VAT %", "VAT (" + currency + ")"}) {
+            table.addHeaderCell(new Cell().add(new Paragraph(header).setBold()).setFontSize(9));
+        }
+        document.add(table);
+        
+        // Per-rate totals are small and kept for the closing summary
+        TreeMap<Integer, double[]> byRate = new TreeMap<>();
+        long total = (long) transactions.size() + offHeapRows;
+        long[] done = {0};
+        RowVisitor visitor = (id, epochDay, date, description, bookedAmount, type, vatRate) -> {
+            done[0]++;
+            if (!type.equals("Expense") || vatRate == 0) {
+                return rowWritten(table, done[0], total, listener);
+            }
+            
+            double amount = fx.fromBase(currency, epochDay, bookedAmount);
+            double vat = amount * vatRate / 100;
+            double[] rateTotals = byRate.computeIfAbsent(vatRate, k -> new double[2]);
+            rateTotals[0] += amount;
+            rateTotals[1] += vat;
+            
+            table.addCell(cell(id));
+            table.addCell(cell(date));
+            table.addCell(cell(description));
+            table.addCell(cell(money(amount)).setTextAlignment(TextAlignment.RIGHT));
+            table.addCell(cell(vatRate + "%").setTextAlignment(TextAlignment.RIGHT));
+            table.addCell(cell(money(vat)).setTextAlignment(TextAlignment.RIGHT));
+            return rowWritten(table, done[0], total, listener);
+        };
+        visitRows(visitor);
+        table.complete();
+        listener.progress(done[0], total);
+        
+        Table summary = new Table(UnitValue.createPercentArray(new float[]{30, 35, 35}));
+        summary.setMarginTop(12);
+        for (String header : new String[]{"VAT RATE", "EXPENSES (" + currency + ")", "VAT (" + currency + ")"}) {
+            summary.addHeaderCell(new Cell().add(new Paragraph(header).setBold()).setFontSize(9));
+        }
+        double totalVAT = 0;
+        for (Map.Entry<Integer, double[]> entry : byRate.entrySet()) {
+            summary.addCell(cell(entry.getKey() + "%"));
+            summary.addCell(cell(money(entry.getValue()[0])).setTextAlignment(TextAlignment.RIGHT));
+            summary.addCell(cell(money(entry.getValue()[1])).setTextAlignment(TextAlignment.RIGHT));
+            totalVAT += entry.getValue()[1];
+        }
+        document.add(summary);
+        document.add(new Paragraph("Total VAT on listed transactions: " + money(totalVAT)).setBold());
+        // Differs where closed periods were archived, or by the monthly average rates
+        if (Math.abs(totals.getVAT() - totalVAT) >= 0.005) {
+            String rates = currency.equals(FxRates.BASE) ? "" : ", months at average rates";
+            document.add(new Paragraph("Total VAT of all periods (closed and archived ones included" + rates + "): "
+                + money(totals.getVAT())).setFontSize(9));
+        }
+    }
+    
+    private void writeSummary(Document document) {
+        Table table = new Table(UnitValue.createPercentArray(new float[]{60, 40}));
+        table.setWidth(UnitValue.createPercentValue(100));
+        table.addHeaderCell(new Cell().add(new Paragraph("FIGURE").setBold()));
+        table.addHeaderCell(new Cell().add(new Paragraph("VALUE").setBold()));
+        
+        table.addCell(cell("Total Income"));
+        table.addCell(cell(money(totals.getIncome())).setTextAlignment(TextAlignment.RIGHT));
+        table.addCell(cell("Total Expenses"));
+        table.addCell(cell(money(totals.getExpense())).setTextAlignment(TextAlignment.RIGHT));
+        table.addCell(cell("Net Balance"));
+        table.addCell(cell(money(totals.getNet())).setTextAlignment(TextAlignment.RIGHT));
+        table.addCell(cell("Total VAT"));
+        table.addCell(cell(money(totals.getVAT())).setTextAlignment(TextAlignment.RIGHT));
+        table.addCell(cell("Income Transactions"));
+        table.addCell(cell(String.format("%,d", totals.getIncomeCount())).setTextAlignment(TextAlignment.RIGHT));
+        table.addCell(cell("Expense Transactions"));
+        table.addCell(cell(String.format("%,d", totals.getExpenseCount())).setTextAlignment(TextAlignment.RIGHT));
+        document.add(table);
+        
+        if (!calculations.isEmpty()) {
+            document.add(new Paragraph("Financial Calculations").setBold().setFontSize(13).setMarginTop(16));
+            Table calcTable = new Table(UnitValue.createPercentArray(new float[]{60, 40}));
+            calcTable.setWidth(UnitValue.createPercentValue(100));
+            for (Map.Entry<String, String> entry : calculations.entrySet()) {
+                calcTable.addCell(cell(entry.getKey()));
+                calcTable.addCell(cell(entry.getValue()).setTextAlignment(TextAlignment.RIGHT));
+            }
+            document.add(calcTable);
+        }
+    }
+    
+    private boolean rowWritten(Table table, long done, long total, ProgressListener listener) {
+        if (done % ROWS_PER_FLUSH == 0) {
+            // Lays out the buffered rows and writes any completed pages
+            table.flush();
+            listener.progress(done, total);
+        }
+        return !cancelled;
+    }
+    
+    private void visitRows(RowVisitor visitor) {
+        for (Transaction t : transactions) {
+            if (!visitor.visit(t.getId(), t.getEpochDay(), t.getDate(), t.getDescription(), t.getAmount(), t.getType(), t.getVatRate())) {
+                return;
+            }
+        }
+        if (offHeapCursor != null) {
+            OffHeapLedger.Cursor cursor = offHeapCursor.copy();
+            for (int row = 0; row < offHeapRows; row++) {
+                cursor.moveTo(row);
+                if (!visitor.visit(cursor.getId(), cursor.getEpochDay(), cursor.getDate(), cursor.getDescription(),
+                        cursor.getAmount(), cursor.getType(), cursor.getVatRate())) {
+                    return;
+                }
+            }
+        }
+    }
+    
+    private String money(double amount) {
+        return FxRates.format(currency, amount);
+    }
+    
+    private static Cell cell(String text) {
+        return new Cell().add(new Paragraph(text)).setFontSize(8);
+    }
+    
+    // Returns false to stop the scan
+    private interface RowVisitor {
+        boolean visit(String id, long epochDay, String date, String description, double amount, String type, int vatRate);
+    }
+}
@@ -0,0 +1,326 @@
+package framesLearn;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import framesLearn.Application.Transaction;
+
+// Compressed, read-only columnar archive of a closed period.
+//
+// Rows are sorted by date and cut into blocks. Inside a block each column is
+// stored separately: dates as varint deltas, amounts as zig-zag varint
+// cents, type, description and currency as dictionary codes, the amount in
+// its own currency as zig-zag varint cents for foreign rows only, and ids
+// front-coded against the previous id. Each block is then deflated. The footer holds the
+// dictionaries, the position and date range of each block, and the
+// archive's RollupCube: its totals by type and month, from which reports
+// answer any range of archived months without touching the compressed data.
+class PeriodArchive {
+    
+    private static final int MAGIC = 0x45313941; // "E19A"
+    private static final int VERSION = 4;
+    private static final int ROWS_PER_BLOCK = 8192;
+    
+    private final File file;
+    private final List<BlockStats> blocks;
+    private final long rowCount;
+    // Checksum of the footer, the same for every copy of one archive
+    private final long contentId;
+    private final RollupCube cube;
+    
+    private PeriodArchive(File file, List<BlockStats> blocks, RollupCube cube, byte[] footer) {
+        this.file = file;
+        this.blocks = blocks;
+        this.cube = cube;
+        long rows = 0;
+        for (BlockStats block : blocks) {
+            rows += block.rowCount;
+        }
+        this.rowCount = rows;
+        CRC32 crc = new CRC32();
+        crc.update(footer);
+        this.contentId = crc.getValue();
+    }
+    
+    // Writes the transactions to a new archive. Rows with unparseable dates are rejected.
+    public static PeriodArchive write(List<Transaction> transactions, File file) throws IOException {
+        List<Transaction> rows = new ArrayList<>(transactions.size());
+        long[] days = new long[transactions.size()];
+        for (Transaction t : transactions) {
+            try {
+                days[rows.size()] = LocalDate.parse(t.getDate()).toEpochDay();
+                rows.add(t);
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Cannot archive " + t.getId() + ": invalid date " + t.getDate());
+            }
+        }
+        
+        Integer[] order = new Integer[rows.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> days[i]));
+        
+        List<String> types = new ArrayList<>();
+        Map<String, Integer> typeCodes = new HashMap<>();
+        List<String> descriptions = new ArrayList<>();
+        Map<String, Integer> descriptionCodes = new HashMap<>();
+        // ZAR is code 0
+        List<String> currencies = new ArrayList<>(List.of(FxRates.BASE));
+        Map<String, Integer> currencyCodes = new HashMap<>(Map.of(FxRates.BASE, 0));
+        List<BlockStats> blocks = new ArrayList<>();
+        RollupCube cube = new RollupCube();
+        byte[] footerBytes;
+        
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            long position = 8;
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            
+            for (int start = 0; start < order.length; start += ROWS_PER_BLOCK) {
+                int end = Math.min(order.length, start + ROWS_PER_BLOCK);
+                BlockStats stats = new BlockStats();
+                stats.rowCount = end - start;
+                stats.minDay = days[order[start]];
+                stats.maxDay = days[order[end - 1]];
+                
+                ByteArrayOutputStream raw = new ByteArrayOutputStream();
+                long previousDay = stats.minDay;
+                writeVarLong(raw, zigZag(stats.minDay));
+                for (int i = start; i < end; i++) {
+                    long day = days[order[i]];
+                    writeVarLong(raw, day - previousDay);
+                    previousDay = day;
+                }
+                
+                for (int i = start; i < end; i++) {
+                    writeVarLong(raw, zigZag(Math.round(rows.get(order[i]).getAmount() * 100)));
+                }
+                
+                for (int i = start; i < end; i++) {
+                    Transaction t = rows.get(order[i]);
+                    Integer code = typeCodes.get(t.getType());
+                    if (code == null) {
+                        code = types.size();
+                        types.add(t.getType());
+                        typeCodes.put(t.getType(), code);
+                    }
+                    writeVarLong(raw, code);
+                    cube.add(t);
+                }
+                
+                for (int i = start; i < end; i++) {
+                    writeVarLong(raw, rows.get(order[i]).getVatRate());
+                }
+                
+                for (int i = start; i < end; i++) {
+                    String description = rows.get(order[i]).getDescription();
+                    Integer code = descriptionCodes.get(description);
+                    if (code == null) {
+                        code = descriptions.size();
+                        descriptions.add(description);
+                        descriptionCodes.put(description, code);
+                    }
+                    writeVarLong(raw, code);
+                }
+                
+                for (int i = start; i < end; i++) {
+                    String currency = rows.get(order[i]).getCurrency();
+                    Integer code = currencyCodes.get(currency);
+                    if (code == null) {
+                        code = currencies.size();
+                        currencies.add(currency);
+                        currencyCodes.put(currency, code);
+                    }
+                    writeVarLong(raw, code);
+                }
+                
+                for (int i = start; i < end; i++) {
+                    Transaction t = rows.get(order[i]);
+                    if (t.isForeign()) {
+                        writeVarLong(raw, zigZag(Math.round(t.getForeignAmount() * 100)));
+                    }
+                }
+                
+                byte[] previousId = new byte[0];
+                for (int i = start; i < end; i++) {
+                    byte[] id = rows.get(order[i]).getId().getBytes(StandardCharsets.UTF_8);
+                    int shared = 0;
+                    while (shared < id.length && shared < previousId.length && id[shared] == previousId[shared]) {
+                        shared++;
+                    }
+                    writeVarLong(raw, shared);
+                    writeVarLong(raw, id.length - shared);
+                    raw.write(id, shared, id.length - shared);
+                    previousId = id;
+                }
+                
+                byte[] input = raw.toByteArray();
+                deflater.reset();
+                deflater.setInput(input);
+                deflater.finish();
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(input.length / 4 + 64);
+                byte[] buffer = new byte[64 * 1024];
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    compressed.write(buffer, 0, n);
+                }
+                
+                stats.offset = position;
+                stats.compressedLength = compressed.size();
+                stats.rawLength = input.length;
+                compressed.writeTo(out);
+                position += compressed.size();
+                blocks.add(stats);
+            }
+            deflater.end();
+            
+            ByteArrayOutputStream footer = new ByteArrayOutputStream();
+            DataOutputStream footerOut = new DataOutputStream(footer);
+            writeStrings(footerOut, types);
+            writeStrings(footerOut, descriptions);
+            writeStrings(footerOut, currencies);
+            footerOut.writeInt(blocks.size());
+            for (BlockStats block : blocks) {
+                block.write(footerOut);
+            }
+            cube.write(footerOut);
+            footerOut.flush();
+            footer.writeTo(out);
+            out.writeLong(position);
+            footerBytes = footer.toByteArray();
+        }
+        
+        return new PeriodArchive(file, blocks, cube, footerBytes);
+    }
+    
+    public static PeriodArchive open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < 16 || raf.readInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a period archive");
+            }
+            int version = raf.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported archive version " + version);
+            }
+            
+            raf.seek(raf.length() - 8);
+            long footerOffset = raf.readLong();
+            if (footerOffset < 8 || footerOffset > raf.length() - 8) {
+                throw new IOException(file.getName() + " is corrupt: footer offset " + footerOffset);
+            }
+            raf.seek(footerOffset);
+            byte[] footer = new byte[(int) (raf.length() - 8 - footerOffset)];
+            raf.readFully(footer);
+            
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(footer));
+            // The type, description and currency dictionaries, which only the blocks need
+            readStrings(in);
+            readStrings(in);
+            readStrings(in);
+            int blockCount = checkCount(in, in.readInt());
+            List<BlockStats> blocks = new ArrayList<>(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                blocks.add(BlockStats.read(in));
+            }
+            RollupCube cube = RollupCube.read(in);
+            return new PeriodArchive(file, blocks, cube, footer);
+        }
+    }
+    
+    public File getFile() { return file; }
+    public long getRowCount() { return rowCount; }
+    public int getBlockCount() { return blocks.size(); }
+    public long getContentId() { return contentId; }
+    
+    public LocalDate getFirstDate() {
+        return blocks.isEmpty() ? null : LocalDate.ofEpochDay(blocks.get(0).minDay);
+    }
+    
+    public LocalDate getLastDate() {
+        return blocks.isEmpty() ? null : LocalDate.ofEpochDay(blocks.get(blocks.size() - 1).maxDay);
+    }
+    
+    public long getCompressedBytes() {
+        return file.length();
+    }
+    
+    public RollupCube getCube() {
+        return cube;
+    }
+    
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+    
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = checkCount(in, in.readInt());
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[checkCount(in, in.readInt())];
+            in.readFully(bytes);
+            strings.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return strings;
+    }
+    
+    // A count or length read from the footer, which cannot exceed the bytes left in it
+    private static int checkCount(DataInputStream in, int count) throws IOException {
+        if (count < 0 || count > in.available()) {
+            throw new IOException("Corrupt archive footer");
+        }
+        return count;
+    }
+    
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+    
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+    
+    private static class BlockStats {
+        private long offset;
+        private int compressedLength;
+        private int rawLength;
+        private int rowCount;
+        private long minDay;
+        private long maxDay;
+        
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(offset);
+            out.writeInt(compressedLength);
+            out.writeInt(rawLength);
+            out.writeInt(rowCount);
+            out.writeLong(minDay);
+            out.writeLong(maxDay);
+        }
+        
+        static BlockStats read(DataInputStream in) throws IOException {
+            BlockStats stats = new BlockStats();
+            stats.offset = in.readLong();
+            stats.compressedLength = in.readInt();
+            stats.rawLength = in.readInt();
+            stats.rowCount = in.readInt();
+            stats.minDay = in.readLong();
+            stats.maxDay = in.readLong();
+            return stats;
+        }
+    }
+}
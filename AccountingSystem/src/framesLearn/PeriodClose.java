@@ -0,0 +1,154 @@
+package framesLearn;
+
+import java.time.LocalDate;
+import java.time.Month;
+import java.util.*;
+
+import framesLearn.Application.Transaction;
+
+// Month-end and year-end closes of one ledger. A close snapshots the closing
+// balances through its date, locks everything dated up to then against
+// changes and moves the closed months out of the live rollup into a frozen
+// history cube. The next period opens from the carried-forward totals, so
+// everyday totals read the carried figures plus the open months only, however
+// many years have been closed. Rows whose dates cannot be parsed always stay
+// in the open period.
+class PeriodClose {
+    
+    public enum Kind {
+        MONTH_END("Month-end"),
+        YEAR_END("Year-end");
+        
+        private final String label;
+        
+        Kind(String label) {
+            this.label = label;
+        }
+        
+        @Override
+        public String toString() { return label; }
+    }
+    
+    // The snapshot taken by one close
+    public static class Close {
+        private final Kind kind;
+        private final LocalDate through;
+        private final LedgerTotals period;
+        private final LedgerTotals closing;
+        private final Map<String, Double> balances;
+        private final double closingInventory;
+        
+        Close(Kind kind, LocalDate through, LedgerTotals period, LedgerTotals closing,
+              Map<String, Double> balances, double closingInventory) {
+            this.kind = kind;
+            this.through = through;
+            this.period = period;
+            this.closing = closing;
+            this.balances = balances;
+            this.closingInventory = closingInventory;
+        }
+        
+        public Kind getKind() { return kind; }
+        public LocalDate getThrough() { return through; }
+        // Totals of the closed period alone
+        public LedgerTotals getPeriod() { return period; }
+        // Totals carried forward, from the first transaction through the close
+        public LedgerTotals getClosing() { return closing; }
+        // Carried-forward amount per transaction type
+        public Map<String, Double> getBalances() { return balances; }
+        // Stock value the next period opens with
+        public double getClosingInventory() { return closingInventory; }
+    }
+    
+    private final List<Close> closes = new ArrayList<>();
+    // Rollup cells of the closed months, recurring occurrences included
+    private final RollupCube history = new RollupCube();
+    private long closedThroughDay = Long.MIN_VALUE;
+    
+    public boolean isClosed() {
+        return !closes.isEmpty();
+    }
+    
+    public List<Close> getCloses() {
+        return Collections.unmodifiableList(closes);
+    }
+    
+    public Close getLast() {
+        return closes.isEmpty() ? null : closes.get(closes.size() - 1);
+    }
+    
+    // Last locked day, or null before the first close
+    public LocalDate getClosedThrough() {
+        return isClosed() ? getLast().through : null;
+    }
+    
+    // First day of the open period, or null before the first close
+    public LocalDate getOpenFrom() {
+        return isClosed() ? getLast().through.plusDays(1) : null;
+    }
+    
+    // Transaction reports unparseable dates as Integer.MIN_VALUE
+    public boolean isLocked(long epochDay) {
+        return epochDay > Integer.MIN_VALUE && epochDay <= closedThroughDay;
+    }
+    
+    public boolean isLocked(Transaction t) {
+        return isLocked(t.getEpochDay());
+    }
+    
+    // Refuses rows dated in a closed period
+    public void checkOpen(Transaction t) {
+        if (isLocked(t)) {
+            throw new IllegalArgumentException("Transaction " + t.getId() + " is dated in the period closed through "
+                + getClosedThrough());
+        }
+    }
+    
+    // Totals carried into the open period
+    public LedgerTotals carried() {
+        LedgerTotals totals = new LedgerTotals();
+        if (isClosed()) {
+            totals.merge(getLast().closing);
+        }
+        return totals;
+    }
+    
+    public double getCarriedInventory() {
+        return isClosed() ? getLast().closingInventory : 0;
+    }
+    
+    // Adds the closed months to a cube, for views that show history month by month
+    public void addHistoryTo(RollupCube cube) {
+        cube.merge(history);
+    }
+    
+    // Closes the period through a month end (31 December for a year end):
+    // moves the closed months out of rollup, snapshots the totals including
+    // recurring occurrences, and locks the period. closingInventory is the
+    // stock value the next period opens with.
+    public Close close(Kind kind, LocalDate through, RollupCube rollup, RecurringSchedule recurring, double closingInventory) {
+        if (through.getDayOfMonth() != through.lengthOfMonth()) {
+            throw new IllegalArgumentException("A period can only be closed at a month end, not " + through);
+        }
+        if (kind == Kind.YEAR_END && through.getMonth() != Month.DECEMBER) {
+            throw new IllegalArgumentException("A year-end close must be on 31 December, not " + through);
+        }
+        if (isClosed() && !through.isAfter(getClosedThrough())) {
+            throw new IllegalArgumentException("The period through " + getClosedThrough() + " is already closed");
+        }
+        
+        RollupCube closed = rollup.removeThrough(through.getYear() * 12 + through.getMonthValue() - 1);
+        recurring.addTo(closed, getOpenFrom(), through);
+        LedgerTotals period = closed.totals();
+        LedgerTotals closing = carried();
+        closing.merge(period);
+        Map<String, Double> balances = new TreeMap<>(isClosed() ? getLast().balances : Collections.emptyMap());
+        closed.amountsByType().forEach((type, amount) -> balances.merge(type, amount, Double::sum));
+        
+        history.merge(closed);
+        Close close = new Close(kind, through, period, closing, Collections.unmodifiableMap(balances), closingInventory);
+        closes.add(close);
+        closedThroughDay = through.toEpochDay();
+        return close;
+    }
+}
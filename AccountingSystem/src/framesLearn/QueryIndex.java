@@ -0,0 +1,73 @@
+package framesLearn;
+
+import java.util.*;
+
+import framesLearn.Application.Transaction;
+
+// Per-type partitions of the in-memory ledger, each ordered by date, so a
+// query reads only the partitions and the date range it asks for. The index
+// is kept current by the ledger hooks; bulk moves out of the ledger rebuild
+// it instead.
+class QueryIndex {
+    
+    private final Map<String, NavigableMap<Long, List<Transaction>>> partitions = new HashMap<>();
+    private int size;
+    
+    public void add(Transaction t) {
+        partitions.computeIfAbsent(t.getType(), type -> new TreeMap<>())
+            .computeIfAbsent(t.getEpochDay(), day -> new ArrayList<>(1))
+            .add(t);
+        size++;
+    }
+    
+    public void remove(Transaction t) {
+        NavigableMap<Long, List<Transaction>> partition = partitions.get(t.getType());
+        List<Transaction> day = partition != null ? partition.get(t.getEpochDay()) : null;
+        if (day == null) {
+            return;
+        }
+        // Rows are matched by identity, so duplicates of a row are kept
+        for (int i = 0; i < day.size(); i++) {
+            if (day.get(i) == t) {
+                day.remove(i);
+                size--;
+                break;
+            }
+        }
+        if (day.isEmpty()) {
+            partition.remove(t.getEpochDay());
+            if (partition.isEmpty()) {
+                partitions.remove(t.getType());
+            }
+        }
+    }
+    
+    public void rebuild(Iterable<Transaction> transactions) {
+        partitions.clear();
+        size = 0;
+        for (Transaction t : transactions) {
+            add(t);
+        }
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public Set<String> getTypes() {
+        return Collections.unmodifiableSet(partitions.keySet());
+    }
+    
+    // Rows of one type dated within [fromDay, toDay], oldest first, as a copy
+    // that can be read off the EDT
+    public List<Transaction> range(String type, long fromDay, long toDay) {
+        NavigableMap<Long, List<Transaction>> partition = partitions.get(type);
+        List<Transaction> rows = new ArrayList<>();
+        if (partition != null && fromDay <= toDay) {
+            for (List<Transaction> day : partition.subMap(fromDay, true, toDay, true).values()) {
+                rows.addAll(day);
+            }
+        }
+        return rows;
+    }
+}
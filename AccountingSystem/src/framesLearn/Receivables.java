@@ -0,0 +1,385 @@
+package framesLearn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.function.Consumer;
+
+// Accounts-receivable subledger: invoices, payments and the allocations
+// between them. Aging is kept incrementally. Each open invoice sits in one
+// bucket by days past due, and a schedule keyed by day says when it moves
+// on, so a day rolling over only touches the invoices that change bucket and
+// a payment only touches the invoices it settles. Balances are also posted
+// to Fenwick trees by day, so the average receivable and the credit sales
+// over any window cost O(log days) however many invoices there are.
+//
+// Amounts are kept in cents. Payments go to the named invoice first and then
+// to the customer's open invoices, earliest due first; money left over is
+// held as the customer's credit and settles their next invoice. Credit is
+// not part of the receivable balance.
+class Receivables {
+    
+    public enum Bucket {
+        CURRENT("0-29 days"),
+        DAYS_30("30-59 days"),
+        DAYS_60("60-89 days"),
+        DAYS_90("90+ days");
+        
+        private final String label;
+        
+        Bucket(String label) {
+            this.label = label;
+        }
+        
+        @Override
+        public String toString() { return label; }
+    }
+    
+    // Window of the AR turnover figures, ending on the day they are for
+    static final int TURNOVER_DAYS = 365;
+    // Days past due per bucket
+    private static final int BUCKET_DAYS = 30;
+    // Dates the balance trees cover
+    private static final long FIRST_DAY = LocalDate.of(1900, 1, 1).toEpochDay();
+    private static final long LAST_DAY = LocalDate.of(2099, 12, 31).toEpochDay();
+    
+    public static class Invoice {
+        private final String id;
+        private final String customer;
+        private final LocalDate issued;
+        private final LocalDate due;
+        private final long cents;
+        private final long sequence;
+        private long outstanding;
+        private Bucket bucket;
+        
+        Invoice(String id, String customer, LocalDate issued, LocalDate due, long cents, long sequence) {
+            this.id = id;
+            this.customer = customer;
+            this.issued = issued;
+            this.due = due;
+            this.cents = cents;
+            this.sequence = sequence;
+            this.outstanding = cents;
+        }
+        
+        public String getId() { return id; }
+        public String getCustomer() { return customer; }
+        public LocalDate getIssued() { return issued; }
+        public LocalDate getDue() { return due; }
+        public double getAmount() { return cents / 100.0; }
+        public double getOutstanding() { return outstanding / 100.0; }
+        public Bucket getBucket() { return bucket; }
+    }
+    
+    // Part of a payment (or of a customer's credit) applied to an invoice
+    public static class Allocation {
+        private final String paymentId;
+        private final String invoiceId;
+        private final double amount;
+        
+        Allocation(String paymentId, String invoiceId, double amount) {
+            this.paymentId = paymentId;
+            this.invoiceId = invoiceId;
+            this.amount = amount;
+        }
+        
+        public String getPaymentId() { return paymentId; }
+        public String getInvoiceId() { return invoiceId; }
+        public double getAmount() { return amount; }
+    }
+    
+    // Prefix sums over days since FIRST_DAY, allocated on first use
+    private static class Fenwick {
+        private double[] tree;
+        
+        void add(int index, double value) {
+            if (tree == null) {
+                tree = new double[(int) (LAST_DAY - FIRST_DAY) + 2];
+            }
+            for (int i = index + 1; i < tree.length; i += i & -i) {
+                tree[i] += value;
+            }
+        }
+        
+        // Sum of indices [0, index]
+        double sum(int index) {
+            double total = 0;
+            if (tree != null) {
+                for (int i = index + 1; i > 0; i -= i & -i) {
+                    total += tree[i];
+                }
+            }
+            return total;
+        }
+    }
+    
+    private final Map<String, Invoice> invoices = new HashMap<>();
+    private final Set<String> payments = new HashSet<>();
+    // Open invoices per customer, earliest due first
+    private final Map<String, TreeSet<Invoice>> open = new TreeMap<>();
+    private final Map<String, Long> credits = new HashMap<>();
+    // Outstanding cents per bucket, in total and per customer
+    private final long[] buckets = new long[Bucket.values().length];
+    private final Map<String, long[]> customerBuckets = new TreeMap<>();
+    // Invoices due to move to an older bucket, by the day they move
+    private final TreeMap<Long, List<Invoice>> schedule = new TreeMap<>();
+    // Receivable balance changes, as amounts and as amount x day, and invoiced amounts, by day
+    private final Fenwick balance = new Fenwick();
+    private final Fenwick balanceDays = new Fenwick();
+    private final Fenwick sales = new Fenwick();
+    private LocalDate asOf;
+    private long sequence;
+    
+    public Receivables(LocalDate asOf) {
+        this.asOf = asOf;
+    }
+    
+    public LocalDate getAsOf() {
+        return asOf;
+    }
+    
+    public int getInvoiceCount() {
+        return invoices.size();
+    }
+    
+    public Invoice getInvoice(String id) {
+        return invoices.get(id);
+    }
+    
+    public Invoice addInvoice(String id, String customer, LocalDate issued, int termsDays, double amount) {
+        if (invoices.containsKey(id)) {
+            throw new IllegalArgumentException("Invoice " + id + " already exists");
+        }
+        long cents = Math.round(amount * 100);
+        if (cents <= 0) {
+            throw new IllegalArgumentException("Invoice " + id + " must be for a positive amount");
+        }
+        if (termsDays < 0) {
+            throw new IllegalArgumentException("Invoice " + id + " has negative terms");
+        }
+        int day = dayIndex(issued);
+        Invoice invoice = new Invoice(id, customer, issued, issued.plusDays(termsDays), cents, ++sequence);
+        invoices.put(id, invoice);
+        sales.add(day, cents / 100.0);
+        post(day, cents);
+        invoice.bucket = bucketOn(invoice, asOf);
+        move(invoice, invoice.bucket, cents);
+        open.computeIfAbsent(customer, c -> new TreeSet<>(
+            Comparator.comparing(Invoice::getDue).thenComparingLong(i -> i.sequence))).add(invoice);
+        scheduleNext(invoice);
+        
+        Long credit = credits.remove(customer);
+        if (credit != null) {
+            long left = apply(invoice, credit, day, "CREDIT", null);
+            if (left > 0) {
+                credits.put(customer, left);
+            }
+        }
+        return invoice;
+    }
+    
+    // Records a payment and allocates it; invoiceId may be null
+    public List<Allocation> receivePayment(String id, String customer, LocalDate date, double amount, String invoiceId) {
+        if (payments.contains(id)) {
+            throw new IllegalArgumentException("Payment " + id + " already exists");
+        }
+        long cents = Math.round(amount * 100);
+        if (cents <= 0) {
+            throw new IllegalArgumentException("Payment " + id + " must be for a positive amount");
+        }
+        int day = dayIndex(date);
+        Invoice named = invoiceId != null ? invoices.get(invoiceId) : null;
+        if (invoiceId != null && (named == null || !named.customer.equals(customer))) {
+            throw new IllegalArgumentException("No invoice " + invoiceId + " for " + customer);
+        }
+        payments.add(id);
+        List<Allocation> allocations = new ArrayList<>();
+        if (named != null) {
+            cents = apply(named, cents, day, id, allocations);
+        }
+        TreeSet<Invoice> due = open.get(customer);
+        while (cents > 0 && due != null && !due.isEmpty()) {
+            cents = apply(due.first(), cents, day, id, allocations);
+        }
+        if (cents > 0) {
+            credits.merge(customer, cents, Long::sum);
+        }
+        return allocations;
+    }
+    
+    // Ages the open invoices up to the day; earlier days are ignored
+    public void advanceTo(LocalDate day) {
+        if (!day.isAfter(asOf)) {
+            return;
+        }
+        asOf = day;
+        long today = day.toEpochDay();
+        while (!schedule.isEmpty() && schedule.firstKey() <= today) {
+            for (Invoice invoice : schedule.pollFirstEntry().getValue()) {
+                // Settled invoices are dropped here rather than searched for when paid
+                if (invoice.outstanding > 0) {
+                    move(invoice, invoice.bucket, -invoice.outstanding);
+                    invoice.bucket = bucketOn(invoice, asOf);
+                    move(invoice, invoice.bucket, invoice.outstanding);
+                    scheduleNext(invoice);
+                }
+            }
+        }
+    }
+    
+    public double getOutstanding() {
+        return Arrays.stream(buckets).sum() / 100.0;
+    }
+    
+    public double getBucketTotal(Bucket bucket) {
+        return buckets[bucket.ordinal()] / 100.0;
+    }
+    
+    public double getCredit(String customer) {
+        return credits.getOrDefault(customer, 0L) / 100.0;
+    }
+    
+    // Outstanding per bucket for each customer with open invoices, by name
+    public Map<String, double[]> getAging() {
+        Map<String, double[]> aging = new LinkedHashMap<>();
+        customerBuckets.forEach((customer, cents) -> {
+            double[] amounts = new double[cents.length];
+            for (int i = 0; i < cents.length; i++) {
+                amounts[i] = cents[i] / 100.0;
+            }
+            aging.put(customer, amounts);
+        });
+        return aging;
+    }
+    
+    // Open invoices of a customer, earliest due first
+    public List<Invoice> getOpenInvoices(String customer) {
+        TreeSet<Invoice> due = open.get(customer);
+        return due != null ? new ArrayList<>(due) : Collections.emptyList();
+    }
+    
+    // Mean of the day-end receivable balances over [from, through]
+    public double averageBalance(LocalDate from, LocalDate through) {
+        int a = clampedIndex(from);
+        int b = clampedIndex(through);
+        if (b < a) {
+            return 0;
+        }
+        // Balance on day d is the sum of the changes up to d, so the sum over
+        // the window weights each change by the days it was in effect
+        double before = balance.sum(a - 1);
+        double inside = balance.sum(b) - before;
+        double insideDays = balanceDays.sum(b) - balanceDays.sum(a - 1);
+        double total = before * (b - a + 1) + inside * (b + 1) - insideDays;
+        return total / (b - a + 1);
+    }
+    
+    // Amount invoiced over [from, through]
+    public double creditSales(LocalDate from, LocalDate through) {
+        int a = clampedIndex(from);
+        int b = clampedIndex(through);
+        return b < a ? 0 : sales.sum(b) - sales.sum(a - 1);
+    }
+    
+    // Applies up to cents to the invoice; returns what is left
+    private long apply(Invoice invoice, long cents, int day, String paymentId, List<Allocation> allocations) {
+        long applied = Math.min(cents, invoice.outstanding);
+        if (applied <= 0) {
+            return cents;
+        }
+        invoice.outstanding -= applied;
+        move(invoice, invoice.bucket, -applied);
+        // A payment made before the invoice only reduces the balance from the invoice date
+        post(Math.max(day, dayIndex(invoice.issued)), -applied);
+        if (invoice.outstanding == 0) {
+            TreeSet<Invoice> due = open.get(invoice.customer);
+            due.remove(invoice);
+            if (due.isEmpty()) {
+                open.remove(invoice.customer);
+            }
+        }
+        if (allocations != null) {
+            allocations.add(new Allocation(paymentId, invoice.id, applied / 100.0));
+        }
+        return cents - applied;
+    }
+    
+    private void move(Invoice invoice, Bucket bucket, long cents) {
+        buckets[bucket.ordinal()] += cents;
+        long[] customer = customerBuckets.computeIfAbsent(invoice.customer, c -> new long[buckets.length]);
+        customer[bucket.ordinal()] += cents;
+        if (Arrays.stream(customer).allMatch(c -> c == 0)) {
+            customerBuckets.remove(invoice.customer);
+        }
+    }
+    
+    private void post(int day, long cents) {
+        balance.add(day, cents / 100.0);
+        balanceDays.add(day, (double) day * cents / 100.0);
+    }
+    
+    private void scheduleNext(Invoice invoice) {
+        if (invoice.bucket.ordinal() < Bucket.values().length - 1) {
+            long next = invoice.due.toEpochDay() + (long) BUCKET_DAYS * (invoice.bucket.ordinal() + 1);
+            schedule.computeIfAbsent(next, d -> new ArrayList<>()).add(invoice);
+        }
+    }
+    
+    private static Bucket bucketOn(Invoice invoice, LocalDate day) {
+        long pastDue = day.toEpochDay() - invoice.due.toEpochDay();
+        int index = (int) Math.max(0, Math.min(Bucket.values().length - 1, Math.floorDiv(pastDue, BUCKET_DAYS)));
+        return Bucket.values()[index];
+    }
+    
+    private static int dayIndex(LocalDate date) {
+        long day = date.toEpochDay();
+        if (day < FIRST_DAY || day > LAST_DAY) {
+            throw new IllegalArgumentException("Date " + date + " is outside 1900-2099");
+        }
+        return (int) (day - FIRST_DAY);
+    }
+    
+    private static int clampedIndex(LocalDate date) {
+        return (int) (Math.max(FIRST_DAY, Math.min(LAST_DAY, date.toEpochDay())) - FIRST_DAY);
+    }
+    
+    // Reads INVOICE,ID,Customer,Date,Amount,TermsDays and
+    // PAYMENT,ID,Customer,Date,Amount[,InvoiceID] lines after a header;
+    // lines that cannot be applied go to errors. Returns the lines applied.
+    public int importCSV(BufferedReader in, Consumer<String> errors) throws IOException {
+        int applied = 0;
+        String line = in.readLine();
+        while ((line = in.readLine()) != null) {
+            String[] values = line.split(",");
+            if (values.length < 5) {
+                if (!line.trim().isEmpty()) {
+                    errors.accept(line);
+                }
+                continue;
+            }
+            try {
+                String kind = values[0].trim().toUpperCase();
+                String id = values[1].trim();
+                String customer = values[2].trim();
+                LocalDate date = LocalDate.parse(values[3].trim());
+                double amount = Double.parseDouble(values[4].trim());
+                if (kind.equals("INVOICE")) {
+                    addInvoice(id, customer, date, values.length > 5 ? Integer.parseInt(values[5].trim()) : 30, amount);
+                } else if (kind.equals("PAYMENT")) {
+                    String invoiceId = values.length > 5 && !values[5].trim().isEmpty() ? values[5].trim() : null;
+                    receivePayment(id, customer, date, amount, invoiceId);
+                } else {
+                    errors.accept(line);
+                    continue;
+                }
+                applied++;
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                errors.accept(line);
+            }
+        }
+        return applied;
+    }
+}
@@ -0,0 +1,306 @@
+package framesLearn;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+import framesLearn.Application.Transaction;
+
+// Recurring transaction templates (rent, salaries, subscriptions) whose
+// occurrences are never stored. The n-th occurrence of a template is
+// computed from its start date, so counts and totals over a date range are
+// arithmetic per template and the table reads occurrences through a virtual
+// list that builds each row only when asked for it. Memory grows with the
+// number of templates, not occurrences.
+//
+// Occurrence ids are the template id plus "-n". An occurrence is hidden
+// while a ledger row carries its id (it was materialized by editing it) or
+// when it was skipped.
+class RecurringSchedule {
+    
+    public enum Frequency {
+        WEEKLY("Weekly"),
+        MONTHLY("Monthly"),
+        QUARTERLY("Quarterly"),
+        YEARLY("Yearly");
+        
+        private final String label;
+        
+        Frequency(String label) {
+            this.label = label;
+        }
+        
+        LocalDate occurrence(LocalDate start, int n) {
+            switch (this) {
+                case WEEKLY: return start.plusWeeks(n);
+                case MONTHLY: return start.plusMonths(n);
+                case QUARTERLY: return start.plusMonths(3L * n);
+                default: return start.plusYears(n);
+            }
+        }
+        
+        // Close to the index of the last occurrence on or before date
+        long estimate(LocalDate start, LocalDate date) {
+            switch (this) {
+                case WEEKLY: return ChronoUnit.DAYS.between(start, date) / 7;
+                case MONTHLY: return ChronoUnit.MONTHS.between(start, date);
+                case QUARTERLY: return ChronoUnit.MONTHS.between(start, date) / 3;
+                default: return ChronoUnit.YEARS.between(start, date);
+            }
+        }
+        
+        @Override
+        public String toString() { return label; }
+    }
+    
+    public static class Template {
+        private final String id;
+        private final String description;
+        private final double amount;
+        private final String type;
+        private final int vatRate;
+        private final Frequency frequency;
+        private final LocalDate start;
+        private final LocalDate end;
+        // Occurrence index -> number of reasons it is hidden
+        private final TreeMap<Integer, Integer> hidden = new TreeMap<>();
+        
+        // end may be null for templates that run indefinitely
+        public Template(String id, String description, double amount, String type, int vatRate,
+                        Frequency frequency, LocalDate start, LocalDate end) {
+            if (end != null && end.isBefore(start)) {
+                throw new IllegalArgumentException("End date is before the start date");
+            }
+            this.id = id;
+            this.description = description;
+            this.amount = amount;
+            this.type = type;
+            this.vatRate = vatRate;
+            this.frequency = frequency;
+            this.start = start;
+            this.end = end;
+        }
+        
+        public String getId() { return id; }
+        public String getDescription() { return description; }
+        public double getAmount() { return amount; }
+        public String getType() { return type; }
+        public int getVatRate() { return vatRate; }
+        public Frequency getFrequency() { return frequency; }
+        public LocalDate getStart() { return start; }
+        public LocalDate getEnd() { return end; }
+        
+        public LocalDate getDate(int n) {
+            return frequency.occurrence(start, n);
+        }
+        
+        public Transaction occurrence(int n) {
+            return new Transaction(id + "-" + (n + 1), getDate(n).toString(), description, amount, type, vatRate);
+        }
+        
+        // Occurrences dated on or before date, hidden ones included
+        int countThrough(LocalDate date) {
+            LocalDate last = end != null && end.isBefore(date) ? end : date;
+            if (last.isBefore(start)) {
+                return 0;
+            }
+            long n = Math.min(frequency.estimate(start, last), Integer.MAX_VALUE - 1);
+            while (n > 0 && getDate((int) n).isAfter(last)) {
+                n--;
+            }
+            while (!getDate((int) n + 1).isAfter(last)) {
+                n++;
+            }
+            return (int) n + 1;
+        }
+        
+        // Occurrence indices [first, last) dated within [from, through]; from may be null
+        int firstIndex(LocalDate from) {
+            return from == null ? 0 : countThrough(from.minusDays(1));
+        }
+        
+        int hiddenCount(int first, int last) {
+            return first >= last ? 0 : hidden.subMap(first, last).size();
+        }
+        
+        private void hide(int n, int delta) {
+            int count = hidden.getOrDefault(n, 0) + delta;
+            if (count > 0) {
+                hidden.put(n, count);
+            } else {
+                hidden.remove(n);
+            }
+        }
+    }
+    
+    private final List<Template> templates = new ArrayList<>();
+    private final Map<String, Template> byId = new HashMap<>();
+    private int modCount;
+    
+    public String nextId() {
+        String id;
+        int n = templates.size() + 1;
+        do {
+            id = String.format("REC-%03d", n++);
+        } while (byId.containsKey(id));
+        return id;
+    }
+    
+    public void addTemplate(Template template) {
+        if (byId.putIfAbsent(template.getId(), template) != null) {
+            throw new IllegalArgumentException("Duplicate template id " + template.getId());
+        }
+        templates.add(template);
+        modCount++;
+    }
+    
+    public List<Template> getTemplates() {
+        return Collections.unmodifiableList(templates);
+    }
+    
+    // Changes whenever the visible occurrences change
+    public int getModCount() {
+        return modCount;
+    }
+    
+    // Ledger rows carrying an occurrence id hide that occurrence
+    public void rowAdded(String id) {
+        hide(id, 1);
+    }
+    
+    public void rowRemoved(String id) {
+        hide(id, -1);
+    }
+    
+    // Drops one occurrence without materializing it
+    public void skip(String occurrenceId) {
+        hide(occurrenceId, 1);
+    }
+    
+    private void hide(String occurrenceId, int delta) {
+        int dash = occurrenceId.lastIndexOf('-');
+        if (dash <= 0 || templates.isEmpty()) {
+            return;
+        }
+        Template template = byId.get(occurrenceId.substring(0, dash));
+        if (template == null) {
+            return;
+        }
+        try {
+            int n = Integer.parseInt(occurrenceId.substring(dash + 1)) - 1;
+            if (n >= 0) {
+                template.hide(n, delta);
+                modCount++;
+            }
+        } catch (NumberFormatException e) {
+            // Not an occurrence id
+        }
+    }
+    
+    // Totals of the visible occurrences dated within [from, through]; from may be null
+    public LedgerTotals totals(LocalDate from, LocalDate through) {
+        LedgerTotals totals = new LedgerTotals();
+        for (Template template : templates) {
+            int first = template.firstIndex(from);
+            int last = template.countThrough(through);
+            int count = last - first - template.hiddenCount(first, last);
+            if (count > 0) {
+                addTo(totals, template, count);
+            }
+        }
+        return totals;
+    }
+    
+    // Adds the visible occurrences to the cube month by month, without expanding them
+    public void addTo(RollupCube cube, LocalDate from, LocalDate through) {
+        for (Template template : templates) {
+            LocalDate month = (from != null && from.isAfter(template.getStart()) ? from : template.getStart()).withDayOfMonth(1);
+            int first = template.firstIndex(from);
+            int last = template.countThrough(through);
+            while (first < last) {
+                LocalDate monthEnd = month.plusMonths(1).minusDays(1);
+                int upTo = Math.min(last, template.countThrough(monthEnd));
+                int count = upTo - first - template.hiddenCount(first, upTo);
+                if (count > 0) {
+                    cube.addAggregate(template.getType(), month.getYear() * 12 + month.getMonthValue() - 1,
+                        template.getVatRate(), template.getAmount(), count);
+                }
+                first = Math.max(first, upTo);
+                month = month.plusMonths(1);
+            }
+        }
+    }
+    
+    private static void addTo(LedgerTotals totals, Template template, int count) {
+        if (template.getType().equals("Income")) {
+            totals.addAggregate(template.getAmount() * count, count, 0, 0, 0);
+        } else if (template.getType().equals("Expense")) {
+            double amount = template.getAmount() * count;
+            totals.addAggregate(0, 0, amount, amount * template.getVatRate() / 100, count);
+        }
+    }
+    
+    // Read-only view of the visible occurrences dated within [from, through].
+    // It is fixed at creation, so later template changes do not affect it.
+    public Occurrences occurrences(LocalDate from, LocalDate through) {
+        return new Occurrences(templates, from, through);
+    }
+    
+    public static class Occurrences extends AbstractList<Transaction> {
+        private final Template[] templates;
+        private final int[] firstIndex;
+        // Visible occurrences before each template, plus the total at the end
+        private final int[] offsets;
+        // Hidden occurrence indices within each template's range, ascending
+        private final int[][] hidden;
+        
+        Occurrences(List<Template> source, LocalDate from, LocalDate through) {
+            int count = source.size();
+            templates = source.toArray(new Template[0]);
+            firstIndex = new int[count];
+            offsets = new int[count + 1];
+            hidden = new int[count][];
+            for (int i = 0; i < count; i++) {
+                Template template = templates[i];
+                int first = template.firstIndex(from);
+                int last = template.countThrough(through);
+                firstIndex[i] = first;
+                hidden[i] = first < last
+                    ? template.hidden.subMap(first, last).keySet().stream().mapToInt(Integer::intValue).toArray()
+                    : new int[0];
+                offsets[i + 1] = offsets[i] + Math.max(0, last - first - hidden[i].length);
+            }
+        }
+        
+        @Override
+        public int size() {
+            return offsets[templates.length];
+        }
+        
+        @Override
+        public Transaction get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+            }
+            int t = Arrays.binarySearch(offsets, index);
+            if (t < 0) {
+                t = -t - 2;
+            } else {
+                // Skip templates without visible occurrences
+                while (offsets[t + 1] == index) {
+                    t++;
+                }
+            }
+            
+            int n = firstIndex[t] + index - offsets[t];
+            for (int h : hidden[t]) {
+                if (h <= n) {
+                    n++;
+                } else {
+                    break;
+                }
+            }
+            return templates[t].occurrence(n);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package framesLearn;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+import framesLearn.Application.Transaction;
+
+// Materialized rollup of the ledger over (type, year-month, VAT rate). Each
+// cell holds the amount in cents and the row count; VAT follows from the
+// cell's rate, so it needs no separate accumulator and stays exact when rows
+// are removed again. The cube is kept up to date on every mutation, so
+// dashboard totals, reports and drill-downs cost O(cells), not O(rows).
+class RollupCube {
+    
+    // Month index for rows whose date could not be parsed
+    public static final int UNKNOWN_MONTH = Integer.MIN_VALUE;
+    
+    private final List<String> types = new ArrayList<>();
+    private final Map<String, Integer> typeCodes = new HashMap<>();
+    private final Map<Long, Cell> cells = new HashMap<>();
+    
+    private static class Cell {
+        long cents;
+        long count;
+    }
+    
+    public void add(Transaction t) {
+        update(t.getType(), t.getEpochDay(), t.getAmount(), t.getVatRate(), 1);
+    }
+    
+    public void remove(Transaction t) {
+        update(t.getType(), t.getEpochDay(), t.getAmount(), t.getVatRate(), -1);
+    }
+    
+    public void add(String type, String date, double amount, int vatRate) {
+        long epochDay;
+        try {
+            epochDay = LocalDate.parse(date).toEpochDay();
+        } catch (DateTimeParseException e) {
+            epochDay = Long.MIN_VALUE;
+        }
+        add(type, epochDay, amount, vatRate);
+    }
+    
+    public void add(String type, long epochDay, double amount, int vatRate) {
+        update(type, epochDay, amount, vatRate, 1);
+    }
+    
+    private void update(String type, long epochDay, double amount, int vatRate, int sign) {
+        int month = monthIndex(epochDay);
+        long key = key(typeCode(type), month, vatRate);
+        Cell cell = cells.computeIfAbsent(key, k -> new Cell());
+        cell.cents += sign * Math.round(amount * 100);
+        cell.count += sign;
+        if (cell.count == 0) {
+            cells.remove(key);
+        }
+    }
+    
+    // count rows of the same amount in one cell, e.g. recurring occurrences
+    public void addAggregate(String type, int month, int vatRate, double amount, long count) {
+        long key = key(typeCode(type), month, vatRate);
+        Cell cell = cells.computeIfAbsent(key, k -> new Cell());
+        cell.cents += count * Math.round(amount * 100);
+        cell.count += count;
+        if (cell.count == 0) {
+            cells.remove(key);
+        }
+    }
+    
+    public void merge(RollupCube other) {
+        for (Map.Entry<Long, Cell> entry : other.cells.entrySet()) {
+            long key = entry.getKey();
+            long local = key(typeCode(other.types.get(typeOf(key))), monthOf(key), vatOf(key));
+            Cell cell = cells.computeIfAbsent(local, k -> new Cell());
+            cell.cents += entry.getValue().cents;
+            cell.count += entry.getValue().count;
+            if (cell.count == 0) {
+                cells.remove(local);
+            }
+        }
+    }
+    
+    public int getCellCount() {
+        return cells.size();
+    }
+    
+    public LedgerTotals totals() {
+        LedgerTotals totals = new LedgerTotals();
+        for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+            addCell(totals, entry.getKey(), entry.getValue());
+        }
+        return totals;
+    }
+    
+    // Totals per month, oldest first; rows with unparseable dates come first under UNKNOWN_MONTH
+    public SortedMap<Integer, LedgerTotals> byMonth() {
+        SortedMap<Integer, LedgerTotals> months = new TreeMap<>();
+        for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+            long key = entry.getKey();
+            addCell(months.computeIfAbsent(monthOf(key), m -> new LedgerTotals()), key, entry.getValue());
+        }
+        return months;
+    }
+    
+    // Totals per VAT rate, for one month or, when month is null, for all of them
+    public SortedMap<Integer, LedgerTotals> byVatRate(Integer month) {
+        SortedMap<Integer, LedgerTotals> rates = new TreeMap<>();
+        for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+            long key = entry.getKey();
+            if (month == null || monthOf(key) == month) {
+                addCell(rates.computeIfAbsent(vatOf(key), r -> new LedgerTotals()), key, entry.getValue());
+            }
+        }
+        return rates;
+    }
+    
+    // Amount per month of one type, oldest first; rows with unparseable dates are left out
+    public SortedMap<Integer, Double> monthlyAmounts(String type) {
+        SortedMap<Integer, Double> months = new TreeMap<>();
+        Integer code = typeCodes.get(type);
+        if (code != null) {
+            for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+                long key = entry.getKey();
+                if (typeOf(key) == code && monthOf(key) != UNKNOWN_MONTH) {
+                    months.merge(monthOf(key), entry.getValue().cents / 100.0, Double::sum);
+                }
+            }
+        }
+        return months;
+    }
+    
+    // Amount per type over all cells
+    public Map<String, Double> amountsByType() {
+        Map<String, Double> amounts = new TreeMap<>();
+        for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+            amounts.merge(types.get(typeOf(entry.getKey())), entry.getValue().cents / 100.0, Double::sum);
+        }
+        return amounts;
+    }
+    
+    // Moves the cells of months up to and including the given one into a new
+    // cube; cells of unparseable dates stay
+    public RollupCube removeThrough(int month) {
+        RollupCube removed = new RollupCube();
+        Iterator<Map.Entry<Long, Cell>> it = cells.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Cell> entry = it.next();
+            long key = entry.getKey();
+            if (monthOf(key) != UNKNOWN_MONTH && monthOf(key) <= month) {
+                removed.cells.put(key(removed.typeCode(types.get(typeOf(key))), monthOf(key), vatOf(key)), entry.getValue());
+                it.remove();
+            }
+        }
+        return removed;
+    }
+    
+    private void addCell(LedgerTotals totals, long key, Cell cell) {
+        String type = types.get(typeOf(key));
+        if (type.equals("Income")) {
+            totals.addAggregate(cell.cents / 100.0, cell.count, 0, 0, 0);
+        } else if (type.equals("Expense")) {
+            totals.addAggregate(0, 0, cell.cents / 100.0, cell.cents * vatOf(key) / 10000.0, cell.count);
+        }
+    }
+    
+    public static String monthLabel(int month) {
+        if (month == UNKNOWN_MONTH) {
+            return "Unknown";
+        }
+        return String.format("%04d-%02d", Math.floorDiv(month, 12), Math.floorMod(month, 12) + 1);
+    }
+    
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(types.size());
+        for (String type : types) {
+            out.writeUTF(type);
+        }
+        out.writeInt(cells.size());
+        for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.writeLong(entry.getValue().cents);
+            out.writeLong(entry.getValue().count);
+        }
+    }
+    
+    public static RollupCube read(DataInput in) throws IOException {
+        RollupCube cube = new RollupCube();
+        int typeCount = in.readInt();
+        for (int i = 0; i < typeCount; i++) {
+            cube.typeCode(in.readUTF());
+        }
+        int cellCount = in.readInt();
+        for (int i = 0; i < cellCount; i++) {
+            long key = in.readLong();
+            if (typeOf(key) >= typeCount) {
+                throw new IOException("Corrupt rollup cell type " + typeOf(key));
+            }
+            Cell cell = new Cell();
+            cell.cents = in.readLong();
+            cell.count = in.readLong();
+            cube.cells.put(key, cell);
+        }
+        return cube;
+    }
+    
+    private int typeCode(String type) {
+        Integer code = typeCodes.get(type);
+        if (code == null) {
+            code = types.size();
+            types.add(type);
+            typeCodes.put(type, code);
+        }
+        return code;
+    }
+    
+    // Transaction reports unparseable dates as Integer.MIN_VALUE
+    static int monthIndex(long epochDay) {
+        if (epochDay <= Integer.MIN_VALUE || epochDay > Integer.MAX_VALUE) {
+            return UNKNOWN_MONTH;
+        }
+        LocalDate date = LocalDate.ofEpochDay(epochDay);
+        return date.getYear() * 12 + date.getMonthValue() - 1;
+    }
+    
+    // Key layout: type code (16 bits) | month index (32 bits) | VAT rate (16 bits)
+    private static long key(int typeCode, int month, int vatRate) {
+        return ((long) typeCode << 48) | ((month & 0xFFFFFFFFL) << 16) | (vatRate & 0xFFFF);
+    }
+    
+    private static int typeOf(long key) {
+        return (int) (key >>> 48);
+    }
+    
+    private static int monthOf(long key) {
+        return (int) (key >>> 16);
+    }
+    
+    private static int vatOf(long key) {
+        return (short) key;
+    }
+}
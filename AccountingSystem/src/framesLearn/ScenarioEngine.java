@@ -0,0 +1,361 @@
+package framesLearn;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Monte Carlo and one-at-a-time sensitivity analysis over a scenario model.
+// Samples are drawn on the common fork/join pool; every forked task gets its
+// own SplittableRandom split from the parent, so runs are reproducible for a
+// given seed no matter how the work is divided.
+class ScenarioEngine {
+    
+    // Evaluates the model for one set of inputs, writing one value per output
+    public interface Model {
+        void evaluate(double[] inputs, double[] outputs);
+    }
+    
+    private static final int LEAF_SIZE = 4096;
+    private static final int HISTOGRAM_BINS = 40;
+    public static final double[] PERCENTILES = {5, 25, 50, 75, 95};
+    
+    private final String[] inputNames;
+    private final Distribution[] inputs;
+    private final String[] outputNames;
+    private final Model model;
+    
+    ScenarioEngine(String[] inputNames, Distribution[] inputs, String[] outputNames, Model model) {
+        this.inputNames = inputNames;
+        this.inputs = inputs;
+        this.outputNames = outputNames;
+        this.model = model;
+    }
+    
+    public Result run(int iterations, long seed) {
+        double[][] samples = new double[outputNames.length][iterations];
+        ForkJoinPool.commonPool().invoke(new SampleTask(samples, 0, iterations, new SplittableRandom(seed)));
+        
+        OutputSummary[] summaries = new OutputSummary[outputNames.length];
+        for (int o = 0; o < outputNames.length; o++) {
+            summaries[o] = OutputSummary.of(outputNames[o], samples[o]);
+        }
+        return new Result(iterations, summaries, sensitivity());
+    }
+    
+    // Swings each input between its 10th and 90th percentile with the others at base value
+    private List<Sensitivity> sensitivity() {
+        double[] base = new double[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            base[i] = inputs[i].base();
+        }
+        double[] baseOutputs = new double[outputNames.length];
+        model.evaluate(base.clone(), baseOutputs);
+        
+        List<Sensitivity> rows = new ArrayList<>();
+        for (int i = 0; i < inputs.length; i++) {
+            if (inputs[i].isFixed()) {
+                continue;
+            }
+            double[] low = base.clone();
+            double[] high = base.clone();
+            low[i] = inputs[i].quantile(0.10);
+            high[i] = inputs[i].quantile(0.90);
+            double[] lowOutputs = new double[outputNames.length];
+            double[] highOutputs = new double[outputNames.length];
+            model.evaluate(low, lowOutputs);
+            model.evaluate(high, highOutputs);
+            rows.add(new Sensitivity(inputNames[i], low[i], high[i], baseOutputs, lowOutputs, highOutputs));
+        }
+        return rows;
+    }
+    
+    private class SampleTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final double[][] samples;
+        private final int from;
+        private final int to;
+        private final SplittableRandom random;
+        
+        SampleTask(double[][] samples, int from, int to, SplittableRandom random) {
+            this.samples = samples;
+            this.from = from;
+            this.to = to;
+            this.random = random;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_SIZE) {
+                double[] in = new double[inputs.length];
+                double[] out = new double[outputNames.length];
+                for (int n = from; n < to; n++) {
+                    for (int i = 0; i < inputs.length; i++) {
+                        in[i] = inputs[i].sample(random);
+                    }
+                    model.evaluate(in, out);
+                    for (int o = 0; o < out.length; o++) {
+                        samples[o][n] = out[o];
+                    }
+                }
+                return;
+            }
+            
+            int mid = (from + to) >>> 1;
+            invokeAll(new SampleTask(samples, from, mid, random.split()),
+                      new SampleTask(samples, mid, to, random));
+        }
+    }
+    
+    // Input distribution parsed from text:
+    //   "150"           fixed value
+    //   "120..180"      uniform between the bounds
+    //   "120/150/180"   triangular (min/mode/max)
+    //   "150~20"        normal (mean~standard deviation)
+    static class Distribution {
+        private enum Kind { FIXED, UNIFORM, TRIANGULAR, NORMAL }
+        
+        private final Kind kind;
+        private final double a;
+        private final double b;
+        private final double c;
+        
+        private Distribution(Kind kind, double a, double b, double c) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+        }
+        
+        static Distribution fixed(double value) {
+            return new Distribution(Kind.FIXED, value, value, value);
+        }
+        
+        static Distribution uniform(double min, double max) {
+            return new Distribution(Kind.UNIFORM, Math.min(min, max), Math.max(min, max), 0);
+        }
+        
+        // Throws IllegalArgumentException on malformed text
+        static Distribution parse(String text) {
+            String s = text.replace("R", "").replace(",", "").replace(" ", "").replace("±", "~");
+            try {
+                if (s.contains("..")) {
+                    String[] parts = s.split("\\.\\.");
+                    return uniform(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]));
+                }
+                if (s.contains("/")) {
+                    String[] parts = s.split("/");
+                    double min = Double.parseDouble(parts[0]);
+                    double mode = Double.parseDouble(parts[1]);
+                    double max = Double.parseDouble(parts[2]);
+                    if (!(min <= mode && mode <= max) || min == max) {
+                        throw new IllegalArgumentException("Triangular needs min <= mode <= max: " + text);
+                    }
+                    return new Distribution(Kind.TRIANGULAR, min, mode, max);
+                }
+                if (s.contains("~")) {
+                    String[] parts = s.split("~");
+                    double sd = Double.parseDouble(parts[1]);
+                    if (sd < 0) {
+                        throw new IllegalArgumentException("Negative standard deviation: " + text);
+                    }
+                    return new Distribution(Kind.NORMAL, Double.parseDouble(parts[0]), sd, 0);
+                }
+                return fixed(Double.parseDouble(s));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid scenario input: " + text);
+            }
+        }
+        
+        boolean isFixed() {
+            return kind == Kind.FIXED || (kind == Kind.NORMAL && b == 0) || (kind == Kind.UNIFORM && a == b);
+        }
+        
+        double base() {
+            switch (kind) {
+                case UNIFORM: return (a + b) / 2;
+                case TRIANGULAR: return b;
+                default: return a;
+            }
+        }
+        
+        double sample(SplittableRandom random) {
+            double p = random.nextDouble();
+            return quantile(p > 0 ? p : Double.MIN_VALUE);
+        }
+        
+        double quantile(double p) {
+            switch (kind) {
+                case UNIFORM:
+                    return a + p * (b - a);
+                case TRIANGULAR: {
+                    double f = (b - a) / (c - a);
+                    return p < f ? a + Math.sqrt(p * (c - a) * (b - a))
+                                 : c - Math.sqrt((1 - p) * (c - a) * (c - b));
+                }
+                case NORMAL:
+                    return a + b * inverseNormal(p);
+                default:
+                    return a;
+            }
+        }
+        
+        // Acklam's rational approximation of the standard normal quantile
+        private static double inverseNormal(double p) {
+            if (p <= 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            if (p >= 1) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+                          1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+            double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+                          6.680131188771972e+01, -1.328068155288572e+01};
+            double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+                          -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+            double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+                          3.754408661907416e+00};
+            double low = 0.02425;
+            if (p < low) {
+                double q = Math.sqrt(-2 * Math.log(p));
+                return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5]) /
+                       ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+            }
+            if (p > 1 - low) {
+                double q = Math.sqrt(-2 * Math.log(1 - p));
+                return -(((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5]) /
+                        ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+            }
+            double q = p - 0.5;
+            double r = q * q;
+            return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q /
+                   (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+        }
+    }
+    
+    static class OutputSummary {
+        private final String name;
+        private final double mean;
+        private final double[] percentiles;
+        private final long undefinedCount;
+        private final double histogramMin;
+        private final double histogramWidth;
+        private final long[] histogram;
+        
+        private OutputSummary(String name, double mean, double[] percentiles, long undefinedCount,
+                              double histogramMin, double histogramWidth, long[] histogram) {
+            this.name = name;
+            this.mean = mean;
+            this.percentiles = percentiles;
+            this.undefinedCount = undefinedCount;
+            this.histogramMin = histogramMin;
+            this.histogramWidth = histogramWidth;
+            this.histogram = histogram;
+        }
+        
+        // Compacts values in place; infinite and NaN results (e.g. no break-even) are counted separately
+        static OutputSummary of(String name, double[] values) {
+            int finite = 0;
+            for (double v : values) {
+                if (Double.isFinite(v)) {
+                    values[finite++] = v;
+                }
+            }
+            double[] sorted = Arrays.copyOf(values, finite);
+            Arrays.parallelSort(sorted);
+            
+            double sum = 0;
+            for (double v : sorted) {
+                sum += v;
+            }
+            
+            double[] percentiles = new double[PERCENTILES.length];
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                percentiles[i] = finite == 0 ? Double.NaN
+                    : sorted[(int) Math.min(finite - 1, Math.round(PERCENTILES[i] / 100 * (finite - 1)))];
+            }
+            
+            // Histogram over the 1st-99th percentile range so outliers do not flatten it
+            long[] histogram = new long[HISTOGRAM_BINS];
+            double min = 0;
+            double width = 0;
+            if (finite > 0) {
+                min = sorted[(int) ((finite - 1) * 0.01)];
+                double max = sorted[(int) ((finite - 1) * 0.99)];
+                width = max > min ? (max - min) / HISTOGRAM_BINS : 1;
+                for (double v : sorted) {
+                    // The 99th percentile itself falls in the last bin, not past it
+                    int bin = Math.min((int) ((v - min) / width), HISTOGRAM_BINS - 1);
+                    if (bin >= 0 && v <= max) {
+                        histogram[bin]++;
+                    }
+                }
+            }
+            
+            return new OutputSummary(name, finite == 0 ? Double.NaN : sum / finite, percentiles,
+                values.length - finite, min, width, histogram);
+        }
+        
+        public String getName() { return name; }
+        public double getMean() { return mean; }
+        public double[] getPercentiles() { return percentiles; }
+        public long getUndefinedCount() { return undefinedCount; }
+        public long[] getHistogram() { return histogram; }
+        
+        public double getBinStart(int bin) {
+            return histogramMin + bin * histogramWidth;
+        }
+        
+        // The bin start with enough decimals to tell neighbouring bins apart
+        public String getBinLabel(int bin) {
+            int decimals = (int) Math.max(1, Math.ceil(-Math.log10(histogramWidth)) + 1);
+            return String.format("%,." + Math.min(decimals, 12) + "f", getBinStart(bin));
+        }
+    }
+    
+    static class Sensitivity {
+        private final String input;
+        private final double lowInput;
+        private final double highInput;
+        private final double[] baseOutputs;
+        private final double[] lowOutputs;
+        private final double[] highOutputs;
+        
+        Sensitivity(String input, double lowInput, double highInput,
+                    double[] baseOutputs, double[] lowOutputs, double[] highOutputs) {
+            this.input = input;
+            this.lowInput = lowInput;
+            this.highInput = highInput;
+            this.baseOutputs = baseOutputs;
+            this.lowOutputs = lowOutputs;
+            this.highOutputs = highOutputs;
+        }
+        
+        public String getInput() { return input; }
+        public double getLowInput() { return lowInput; }
+        public double getHighInput() { return highInput; }
+        public double getBaseOutput(int output) { return baseOutputs[output]; }
+        public double getLowOutput(int output) { return lowOutputs[output]; }
+        public double getHighOutput(int output) { return highOutputs[output]; }
+        
+        public double getSwing(int output) {
+            return Math.abs(highOutputs[output] - lowOutputs[output]);
+        }
+    }
+    
+    static class Result {
+        private final int iterations;
+        private final OutputSummary[] outputs;
+        private final List<Sensitivity> sensitivities;
+        
+        Result(int iterations, OutputSummary[] outputs, List<Sensitivity> sensitivities) {
+            this.iterations = iterations;
+            this.outputs = outputs;
+            this.sensitivities = sensitivities;
+        }
+        
+        public int getIterations() { return iterations; }
+        public OutputSummary[] getOutputs() { return outputs; }
+        public List<Sensitivity> getSensitivities() { return sensitivities; }
+    }
+}
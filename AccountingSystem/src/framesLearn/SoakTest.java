@@ -0,0 +1,298 @@
+package framesLearn;
+
+import java.io.*;
+import java.time.LocalDate;
+import java.util.*;
+
+import framesLearn.Application.Transaction;
+
+// Soak harness for the ledger code behind the UI. It fills a ledger from
+// LedgerGenerator, then for the given time runs a weighted mix of the
+// operations the application performs: CSV import, add, delete, the
+// dashboard refresh (totals and forecast), reports (consolidation and a
+// query) and CSV and PDF export. Every interval it prints throughput,
+// latency percentiles per operation and the heap in use after a GC. Rows
+// are deleted whenever the ledger is above its starting size, so the live
+// data stays level and a growing heap points to a leak; imports add rows
+// much faster than single deletes remove them, so the DELETE count is the
+// largest in the printed mix.
+//
+//   java -cp <classpath> framesLearn.SoakTest [--rows N] [--hours H] [--seed S]
+//        [--interval SECONDS] [--csv FILE]
+class SoakTest {
+    
+    private enum Operation {
+        IMPORT(1), ADD(40), DELETE(50), REFRESH(6), REPORT(2), EXPORT(1);
+        
+        private final int weight;
+        
+        Operation(int weight) {
+            this.weight = weight;
+        }
+    }
+    
+    private static final int IMPORT_ROWS = 1_000;
+    private static final String REPORT_QUERY = "select count, sum where type = Expense and vat = 15 group by month";
+    
+    // Latencies in log-linear buckets, 16 per power of two (about 6% wide), so
+    // recording is O(1) and memory stays fixed however long the run
+    static class LatencyHistogram {
+        private final long[] counts = new long[1024];
+        private long total;
+        private long max;
+        
+        void record(long nanos) {
+            counts[bucket(Math.max(0, nanos))]++;
+            total++;
+            max = Math.max(max, nanos);
+        }
+        
+        void add(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+        
+        long getCount() { return total; }
+        long getMax() { return max; }
+        
+        // Lower bound of the bucket holding the q-th quantile
+        long percentile(double q) {
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return lowerBound(i);
+                }
+            }
+            return 0;
+        }
+        
+        private static int bucket(long value) {
+            if (value < 16) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return (exponent - 3) * 16 + (int) ((value >>> (exponent - 4)) & 15);
+        }
+        
+        private static long lowerBound(int bucket) {
+            if (bucket < 16) {
+                return bucket;
+            }
+            int exponent = bucket / 16 + 3;
+            return (16L + bucket % 16) << (exponent - 4);
+        }
+    }
+    
+    private final EntityLedgers entities = new EntityLedgers();
+    private final EntityLedgers.Shard ledger = entities.create("Soak");
+    private final LedgerGenerator generator;
+    private final Random random;
+    private final File workDir;
+    private final int targetRows;
+    private final Map<Operation, LatencyHistogram> interval = new EnumMap<>(Operation.class);
+    private final Map<Operation, LatencyHistogram> overall = new EnumMap<>(Operation.class);
+    
+    SoakTest(long seed, int targetRows, File workDir) {
+        this.generator = new LedgerGenerator(seed, LocalDate.of(2020, 1, 1), 5, 0.001);
+        this.random = new Random(seed);
+        this.targetRows = targetRows;
+        this.workDir = workDir;
+        for (Operation op : Operation.values()) {
+            interval.put(op, new LatencyHistogram());
+            overall.put(op, new LatencyHistogram());
+        }
+    }
+    
+    public static void main(String[] args) throws IOException {
+        int rows = 1_000_000;
+        double hours = 1;
+        long seed = 42;
+        int intervalSeconds = 60;
+        File csv = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--rows": rows = Integer.parseInt(args[i + 1]); break;
+                case "--hours": hours = Double.parseDouble(args[i + 1]); break;
+                case "--seed": seed = Long.parseLong(args[i + 1]); break;
+                case "--interval": intervalSeconds = Integer.parseInt(args[i + 1]); break;
+                case "--csv": csv = new File(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        
+        File workDir = java.nio.file.Files.createTempDirectory("e19-soak").toFile();
+        workDir.deleteOnExit();
+        for (String name : new String[]{"import.csv", "export.csv", "summary.pdf"}) {
+            new File(workDir, name).deleteOnExit();
+        }
+        SoakTest test = new SoakTest(seed, rows, workDir);
+        try (PrintWriter log = csv != null ? new PrintWriter(new FileWriter(csv)) : null) {
+            if (log != null) {
+                log.println("elapsed_s,operation,count,ops_per_s,p50_ms,p95_ms,p99_ms,max_ms,rows,heap_mb");
+            }
+            test.run((long) (hours * 3_600_000_000_000L), intervalSeconds * 1_000_000_000L, log);
+        }
+    }
+    
+    void run(long durationNanos, long intervalNanos, PrintWriter log) throws IOException {
+        long loadStart = System.nanoTime();
+        for (int i = 0; i < targetRows; i++) {
+            Transaction t = generator.next();
+            ledger.transactions.add(t);
+            ledger.rowAdded(t);
+        }
+        ledger.transactions.clearHistory();
+        double loadSeconds = (System.nanoTime() - loadStart) / 1e9;
+        long baseline = usedHeap();
+        System.out.printf("Generated %,d rows in %.1f s (%,.0f rows/s); heap %,.1f MB%n",
+            targetRows, loadSeconds, targetRows / loadSeconds, baseline / 1e6);
+        
+        long start = System.nanoTime();
+        long lastReport = start;
+        int totalWeight = Arrays.stream(Operation.values()).mapToInt(op -> op.weight).sum();
+        while (System.nanoTime() - start < durationNanos) {
+            Operation op = pick(totalWeight);
+            int size = ledger.transactions.size();
+            if ((op == Operation.ADD || op == Operation.IMPORT) && size > targetRows + IMPORT_ROWS) {
+                op = Operation.DELETE;
+            } else if (op == Operation.DELETE && size <= targetRows) {
+                op = Operation.ADD;
+            }
+            if (op == Operation.IMPORT) {
+                writeImportFile();
+            }
+            long opStart = System.nanoTime();
+            perform(op);
+            long now = System.nanoTime();
+            interval.get(op).record(now - opStart);
+            
+            if (now - lastReport >= intervalNanos) {
+                report((now - start) / 1e9, (now - lastReport) / 1e9, baseline, log);
+                // The report's GC is not part of the next interval
+                lastReport = System.nanoTime();
+            }
+        }
+        long now = System.nanoTime();
+        report((now - start) / 1e9, (now - lastReport) / 1e9, baseline, log);
+        
+        System.out.println("Whole run:");
+        for (Operation op : Operation.values()) {
+            LatencyHistogram h = overall.get(op);
+            System.out.printf("  %-8s %,12d ops  p50 %9.3f ms  p95 %9.3f ms  p99 %9.3f ms  max %9.3f ms%n", op, h.getCount(),
+                h.percentile(0.50) / 1e6, h.percentile(0.95) / 1e6, h.percentile(0.99) / 1e6, h.getMax() / 1e6);
+        }
+    }
+    
+    private Operation pick(int totalWeight) {
+        int roll = random.nextInt(totalWeight);
+        for (Operation op : Operation.values()) {
+            roll -= op.weight;
+            if (roll < 0) {
+                return op;
+            }
+        }
+        return Operation.ADD;
+    }
+    
+    private File importFile() {
+        return new File(workDir, "import.csv");
+    }
+    
+    private void writeImportFile() throws IOException {
+        try (Writer out = new BufferedWriter(new FileWriter(importFile()))) {
+            generator.writeCSV(out, IMPORT_ROWS);
+        }
+    }
+    
+    private void perform(Operation op) throws IOException {
+        switch (op) {
+            case IMPORT:
+                entities.startLoad(ledger);
+                entities.load(ledger, importFile(), FxRates.NONE, line -> { });
+                break;
+            case ADD: {
+                Transaction t = generator.next();
+                ledger.transactions.beginStep("Add " + t.getId());
+                ledger.anomalies.score(t.getType(), t.getAmount());
+                ledger.transactions.add(t);
+                ledger.rowAdded(t);
+                break;
+            }
+            case DELETE:
+                ledger.transactions.beginStep("Delete");
+                ledger.rowRemoved(ledger.transactions.remove(random.nextInt(ledger.transactions.size())));
+                break;
+            case REFRESH: {
+                // What refreshTransactions and updateForecast compute
+                LedgerTotals totals = ledger.rollup.totals();
+                totals.merge(ledger.recurring.totals(null, LocalDate.now()));
+                RollupCube cube = new RollupCube();
+                cube.merge(ledger.rollup);
+                ledger.recurring.addTo(cube, null, LocalDate.now());
+                Map<String, SortedMap<Integer, Double>> series = new HashMap<>();
+                series.put("Income", cube.monthlyAmounts("Income"));
+                series.put("Expense", cube.monthlyAmounts("Expense"));
+                ledger.forecast.project(series, totals.getNet(), 6);
+                break;
+            }
+            case REPORT: {
+                entities.consolidation(LocalDate.now(), FxRates.NONE, FxRates.BASE).get();
+                LedgerQuery query = LedgerQuery.parse(REPORT_QUERY);
+                query.execute(query.read(ledger.queryIndex), new TransactionTableModel.ListRows(Collections.emptyList()));
+                break;
+            }
+            default: {
+                List<Transaction> snapshot = ledger.transactions.snapshot();
+                File file = new File(workDir, "export.csv");
+                try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+                    writer.println(LedgerGenerator.CSV_HEADER);
+                    for (Transaction t : snapshot) {
+                        writer.println(t.toCSV());
+                    }
+                }
+                new PdfReportGenerator(snapshot, null, ledger.rollup.totals(), Collections.emptyMap(), FxRates.NONE, FxRates.BASE)
+                    .generate(PdfReportGenerator.ReportType.SUMMARY, new File(workDir, "summary.pdf"), (done, total) -> { });
+            }
+        }
+    }
+    
+    private void report(double elapsed, double seconds, long baseline, PrintWriter log) {
+        long heap = usedHeap();
+        int rows = ledger.transactions.size();
+        System.out.printf("[%6.0f s] rows %,d  heap %,.1f MB (%+,.1f MB since load)%n",
+            elapsed, rows, heap / 1e6, (heap - baseline) / 1e6);
+        for (Operation op : Operation.values()) {
+            LatencyHistogram h = interval.get(op);
+            if (h.getCount() == 0) {
+                continue;
+            }
+            double p50 = h.percentile(0.50) / 1e6;
+            double p95 = h.percentile(0.95) / 1e6;
+            double p99 = h.percentile(0.99) / 1e6;
+            double max = h.getMax() / 1e6;
+            System.out.printf("  %-8s %,10d ops %,12.1f/s  p50 %9.3f ms  p95 %9.3f ms  p99 %9.3f ms  max %9.3f ms%n",
+                op, h.getCount(), h.getCount() / seconds, p50, p95, p99, max);
+            if (log != null) {
+                log.printf(Locale.ROOT, "%.0f,%s,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%d,%.1f%n",
+                    elapsed, op, h.getCount(), h.getCount() / seconds, p50, p95, p99, max, rows, heap / 1e6);
+            }
+            overall.get(op).add(h);
+            interval.put(op, new LatencyHistogram());
+        }
+        if (log != null) {
+            log.flush();
+        }
+    }
+    
+    // Heap in use after a collection, so the figure is live data rather than garbage
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
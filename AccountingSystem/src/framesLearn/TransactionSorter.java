@@ -0,0 +1,305 @@
+package framesLearn;
+
+import java.awt.Cursor;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.*;
+import java.util.stream.IntStream;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import javax.swing.table.JTableHeader;
+import javax.swing.table.TableColumn;
+
+// Sorts the transaction table on the typed fields rather than the formatted
+// cell text. Each column is reduced to one int key per row (dates to epoch
+// days, amounts and text to their rank among the distinct values); the keys
+// are packed with the row index into longs and sorted in parallel on a
+// background thread. Permutations are cached per column and direction until
+// the data changes, and rows appended to a sorted view are merged into the
+// existing order instead of re-sorting everything.
+class TransactionSorter {
+    
+    // Typed access to the rows being sorted
+    interface Rows {
+        int size();
+        String getId(int row);
+        long getEpochDay(int row);
+        String getDescription(int row);
+        double getAmount(int row);
+        String getType(int row);
+        int getVatRate(int row);
+    }
+    
+    private static final int ID = 0, DATE = 1, DESCRIPTION = 2, AMOUNT = 3, TYPE = 4;
+    
+    private static final Comparator<String> TEXT_ORDER =
+        String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+    
+    // Appends larger than 1/MERGE_LIMIT of the sorted rows are re-sorted instead
+    private static final int MERGE_LIMIT = 4;
+    
+    private final TransactionTableModel model;
+    private final JTable table;
+    private final Map<Integer, int[]> keyCache = new HashMap<>();
+    private final Map<Integer, int[]> permutationCache = new HashMap<>();
+    private int sortColumn = -1;
+    private boolean ascending = true;
+    private int sortedRows;
+    private long version;
+    private boolean sorting;
+    
+    TransactionSorter(TransactionTableModel model, JTable table) {
+        this.model = model;
+        this.table = table;
+        this.sortedRows = model.getModelRowCount();
+        
+        JTableHeader header = table.getTableHeader();
+        header.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int viewColumn = header.columnAtPoint(e.getPoint());
+                if (viewColumn >= 0) {
+                    toggle(table.convertColumnIndexToModel(viewColumn));
+                }
+            }
+        });
+    }
+    
+    // Cycles a column through ascending, descending and unsorted
+    public void toggle(int column) {
+        if (column != sortColumn) {
+            sortColumn = column;
+            ascending = true;
+        } else if (ascending) {
+            ascending = false;
+        } else {
+            sortColumn = -1;
+        }
+        apply();
+    }
+    
+    // Call after rows were added to the end of the ledger
+    public void rowsAppended() {
+        int from = sortedRows;
+        int to = model.getModelRowCount();
+        int[] sorted = sortColumn >= 0 ? permutationCache.get(cacheKey(sortColumn, ascending)) : null;
+        invalidate();
+        
+        if (sortColumn < 0) {
+            model.setPermutation(null);
+        } else if (sorted != null && sorted.length == from && to - from <= Math.max(1, from / MERGE_LIMIT)) {
+            int[] merged = merge(model.rows(), sortColumn, ascending, sorted, from, to);
+            permutationCache.put(cacheKey(sortColumn, ascending), merged);
+            model.setPermutation(merged);
+        } else {
+            apply();
+        }
+    }
+    
+    // Call after rows were removed or replaced; falls back to ledger order until re-sorted
+    public void rowsChanged() {
+        invalidate();
+        model.setPermutation(null);
+        if (sortColumn >= 0) {
+            apply();
+        }
+    }
+    
+    private void invalidate() {
+        version++;
+        sortedRows = model.getModelRowCount();
+        keyCache.clear();
+        permutationCache.clear();
+    }
+    
+    private void apply() {
+        updateHeader();
+        if (sortColumn < 0) {
+            model.setPermutation(null);
+            return;
+        }
+        
+        int[] cached = permutationCache.get(cacheKey(sortColumn, ascending));
+        if (cached != null) {
+            model.setPermutation(cached);
+            return;
+        }
+        if (sorting) {
+            // The running sort re-checks the requested order when it finishes
+            return;
+        }
+        
+        int column = sortColumn;
+        boolean direction = ascending;
+        long requested = version;
+        int[] keys = keyCache.get(column);
+        Rows rows = model.snapshotRows();
+        setSorting(true);
+        
+        new Thread(() -> {
+            int[] columnKeys = null;
+            int[] permutation = null;
+            try {
+                columnKeys = keys != null ? keys : sortKeys(rows, column);
+                permutation = permutation(columnKeys, direction);
+            } finally {
+                // Posted even when the sort fails, so the header does not stay busy
+                int[] sortedKeys = columnKeys;
+                int[] sorted = permutation;
+                SwingUtilities.invokeLater(() -> {
+                    setSorting(false);
+                    if (sorted == null) {
+                        // The failure goes to the thread's uncaught exception handler
+                        return;
+                    }
+                    if (requested == version) {
+                        keyCache.put(column, sortedKeys);
+                        permutationCache.put(cacheKey(column, direction), sorted);
+                    }
+                    apply();
+                });
+            }
+        }, "transaction-sort").start();
+    }
+    
+    private void setSorting(boolean sorting) {
+        this.sorting = sorting;
+        table.getTableHeader().setCursor(sorting
+            ? Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR)
+            : Cursor.getDefaultCursor());
+    }
+    
+    private void updateHeader() {
+        for (int i = 0; i < table.getColumnCount(); i++) {
+            TableColumn column = table.getColumnModel().getColumn(i);
+            String name = model.getColumnName(column.getModelIndex());
+            if (column.getModelIndex() == sortColumn) {
+                name += ascending ? " ▲" : " ▼";
+            }
+            column.setHeaderValue(name);
+        }
+        table.getTableHeader().repaint();
+    }
+    
+    private static int cacheKey(int column, boolean ascending) {
+        return column * 2 + (ascending ? 0 : 1);
+    }
+    
+    // One int per row whose order matches the column's typed order
+    static int[] sortKeys(Rows rows, int column) {
+        int n = rows.size();
+        int[] keys = new int[n];
+        switch (column) {
+            case DATE:
+                IntStream.range(0, n).parallel().forEach(r -> keys[r] =
+                    (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, rows.getEpochDay(r))));
+                break;
+            case AMOUNT: {
+                double[] amounts = new double[n];
+                IntStream.range(0, n).parallel().forEach(r -> amounts[r] = rows.getAmount(r));
+                double[] distinct = amounts.clone();
+                Arrays.parallelSort(distinct);
+                int count = 0;
+                for (int i = 0; i < n; i++) {
+                    if (count == 0 || Double.compare(distinct[i], distinct[count - 1]) != 0) {
+                        distinct[count++] = distinct[i];
+                    }
+                }
+                int distinctCount = count;
+                IntStream.range(0, n).parallel().forEach(r ->
+                    keys[r] = Arrays.binarySearch(distinct, 0, distinctCount, amounts[r]));
+                break;
+            }
+            case ID:
+            case DESCRIPTION:
+            case TYPE: {
+                String[] values = new String[n];
+                IntStream.range(0, n).parallel().forEach(r -> values[r] = text(rows, column, r));
+                String[] distinct = Arrays.stream(values).parallel().distinct().toArray(String[]::new);
+                Arrays.parallelSort(distinct, TEXT_ORDER);
+                IntStream.range(0, n).parallel().forEach(r ->
+                    keys[r] = Arrays.binarySearch(distinct, values[r], TEXT_ORDER));
+                break;
+            }
+            default:
+                IntStream.range(0, n).parallel().forEach(r -> keys[r] = rows.getVatRate(r));
+        }
+        return keys;
+    }
+    
+    // Ties keep ledger order in both directions
+    static int[] permutation(int[] keys, boolean ascending) {
+        int n = keys.length;
+        long[] packed = new long[n];
+        IntStream.range(0, n).parallel().forEach(r ->
+            packed[r] = ((long) (ascending ? keys[r] : ~keys[r]) << 32) | r);
+        Arrays.parallelSort(packed);
+        
+        int[] permutation = new int[n];
+        IntStream.range(0, n).parallel().forEach(i -> permutation[i] = (int) packed[i]);
+        return permutation;
+    }
+    
+    // Inserts rows [from, to) into an existing permutation of rows [0, from):
+    // O(k log n) comparisons and one array copy, instead of a full sort
+    static int[] merge(Rows rows, int column, boolean ascending, int[] sorted, int from, int to) {
+        Integer[] added = new Integer[to - from];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = from + i;
+        }
+        Arrays.sort(added, (a, b) -> {
+            int c = compare(rows, column, ascending, a, b);
+            return c != 0 ? c : Integer.compare(a, b);
+        });
+        
+        int[] merged = new int[to];
+        int src = 0;
+        int dst = 0;
+        for (int row : added) {
+            // Every existing row has a lower index, so the new row goes after its equals
+            int lo = src;
+            int hi = sorted.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(rows, column, ascending, sorted[mid], row) <= 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            System.arraycopy(sorted, src, merged, dst, lo - src);
+            dst += lo - src;
+            src = lo;
+            merged[dst++] = row;
+        }
+        System.arraycopy(sorted, src, merged, dst, sorted.length - src);
+        return merged;
+    }
+    
+    private static int compare(Rows rows, int column, boolean ascending, int a, int b) {
+        int c;
+        switch (column) {
+            case DATE:
+                c = Long.compare(rows.getEpochDay(a), rows.getEpochDay(b));
+                break;
+            case AMOUNT:
+                c = Double.compare(rows.getAmount(a), rows.getAmount(b));
+                break;
+            case ID:
+            case DESCRIPTION:
+            case TYPE:
+                c = TEXT_ORDER.compare(text(rows, column, a), text(rows, column, b));
+                break;
+            default:
+                c = Integer.compare(rows.getVatRate(a), rows.getVatRate(b));
+        }
+        return ascending ? c : -c;
+    }
+    
+    private static String text(Rows rows, int column, int row) {
+        String value = column == ID ? rows.getId(row)
+            : column == DESCRIPTION ? rows.getDescription(row)
+            : rows.getType(row);
+        return value != null ? value : "";
+    }
+}
@@ -0,0 +1,234 @@
+package framesLearn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.swing.table.AbstractTableModel;
+
+import framesLearn.Application.Transaction;
+
+// Read-only table model that formats cells on demand, so only the rows the
+// table actually paints are ever turned into strings. Backed either by the
+// on-heap transaction list or by an OffHeapLedger. Virtual recurring
+// occurrences come first, so rows appended to the ledger stay at the end of
+// the model. An optional view-to-model permutation, supplied by
+// TransactionSorter, orders the rows for display.
+class TransactionTableModel extends AbstractTableModel {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private static final String[] COLUMNS = {"ID", "DATE", "DESCRIPTION", "AMOUNT (ZAR)", "TYPE", "VAT %"};
+    
+    private List<Transaction> transactions;
+    private OffHeapLedger offHeapLedger;
+    private OffHeapLedger.Cursor cursor;
+    private int[] viewToModel;
+    private List<Transaction> recurring = Collections.emptyList();
+    
+    TransactionTableModel(List<Transaction> transactions) {
+        this.transactions = transactions;
+    }
+    
+    public void setTransactions(List<Transaction> transactions) {
+        this.transactions = transactions;
+        this.offHeapLedger = null;
+        this.cursor = null;
+        this.viewToModel = null;
+        fireTableDataChanged();
+    }
+    
+    public void setOffHeapLedger(OffHeapLedger offHeapLedger) {
+        this.offHeapLedger = offHeapLedger;
+        this.cursor = offHeapLedger.cursor();
+        this.viewToModel = null;
+        fireTableDataChanged();
+    }
+    
+    // occurrences must not change afterwards, e.g. a RecurringSchedule.Occurrences view
+    public void setRecurring(List<Transaction> occurrences) {
+        this.recurring = occurrences;
+        this.viewToModel = null;
+        fireTableDataChanged();
+    }
+    
+    public int getRecurringRowCount() {
+        return recurring.size();
+    }
+    
+    public boolean isRecurringRow(int modelRow) {
+        return modelRow < recurring.size();
+    }
+    
+    public Transaction getRecurringRow(int modelRow) {
+        return recurring.get(modelRow);
+    }
+    
+    // Rows appended after the permutation was built stay hidden until the
+    // sorter merges them in, so the view never indexes past the permutation
+    public void setPermutation(int[] viewToModel) {
+        this.viewToModel = viewToModel;
+        fireTableDataChanged();
+    }
+    
+    public int convertRowIndexToModel(int viewRow) {
+        return viewToModel != null ? viewToModel[viewRow] : viewRow;
+    }
+    
+    public int getModelRowCount() {
+        return recurring.size() + (offHeapLedger != null ? offHeapLedger.size() : transactions.size());
+    }
+    
+    // Typed access to the current rows, for use on the EDT
+    TransactionSorter.Rows rows() {
+        if (offHeapLedger != null) {
+            return withRecurring(new OffHeapRows(offHeapLedger.cursor()));
+        }
+        return withRecurring(new ListRows(transactions));
+    }
+    
+    // A copy that a background thread can read while the EDT keeps changing
+    // the ledger; an off-heap cursor keeps reading the rows it started on
+    TransactionSorter.Rows snapshotRows() {
+        if (offHeapLedger != null) {
+            return withRecurring(new OffHeapRows(offHeapLedger.cursor()));
+        }
+        if (transactions instanceof Ledger) {
+            return withRecurring(new ListRows(((Ledger) transactions).snapshot()));
+        }
+        return withRecurring(new ListRows(new ArrayList<>(transactions)));
+    }
+    
+    // Rows that a QueryIndex over the in-memory ledger does not hold: the
+    // recurring occurrences, plus the off-heap ledger when it is in use
+    TransactionSorter.Rows unindexedRows() {
+        if (offHeapLedger != null) {
+            return snapshotRows();
+        }
+        return new ListRows(recurring);
+    }
+    
+    private TransactionSorter.Rows withRecurring(TransactionSorter.Rows ledger) {
+        return recurring.isEmpty() ? ledger : new RecurringFirstRows(new ListRows(recurring), ledger);
+    }
+    
+    @Override
+    public int getRowCount() {
+        return viewToModel != null ? viewToModel.length : getModelRowCount();
+    }
+    
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+    
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+    
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        return false;
+    }
+    
+    @Override
+    public Object getValueAt(int viewRow, int column) {
+        int row = convertRowIndexToModel(viewRow);
+        if (row < recurring.size()) {
+            return format(recurring.get(row), column);
+        }
+        row -= recurring.size();
+        
+        if (offHeapLedger != null) {
+            // Rows deleted since the last paint moved the rest down
+            if (!cursor.isCurrent()) {
+                cursor = offHeapLedger.cursor();
+            }
+            cursor.moveTo(row);
+            switch (column) {
+                case 0: return cursor.getId();
+                case 1: return cursor.getDate();
+                case 2: return cursor.getDescription();
+                case 3: return cursor.isForeign()
+                    ? String.format("R%,.2f (%s %,.2f)", cursor.getAmount(), cursor.getCurrency(), cursor.getForeignAmount())
+                    : String.format("R%,.2f", cursor.getAmount());
+                case 4: return cursor.getType();
+                default: return cursor.getVatRate() + "%";
+            }
+        }
+        
+        return format(transactions.get(row), column);
+    }
+    
+    private static Object format(Transaction t, int column) {
+        switch (column) {
+            case 0: return t.getId();
+            case 1: return t.getDate();
+            case 2: return t.getDescription();
+            case 3: return t.isForeign() ? String.format("R%,.2f (%s %,.2f)", t.getAmount(), t.getCurrency(), t.getForeignAmount())
+                : String.format("R%,.2f", t.getAmount());
+            case 4: return t.getType();
+            default: return t.getVatRate() + "%";
+        }
+    }
+    
+    static class ListRows implements TransactionSorter.Rows {
+        private final List<Transaction> transactions;
+        
+        ListRows(List<Transaction> transactions) {
+            this.transactions = transactions;
+        }
+        
+        public int size() { return transactions.size(); }
+        public String getId(int row) { return transactions.get(row).getId(); }
+        public long getEpochDay(int row) { return transactions.get(row).getEpochDay(); }
+        public String getDescription(int row) { return transactions.get(row).getDescription(); }
+        public double getAmount(int row) { return transactions.get(row).getAmount(); }
+        public String getType(int row) { return transactions.get(row).getType(); }
+        public int getVatRate(int row) { return transactions.get(row).getVatRate(); }
+    }
+    
+    private static class RecurringFirstRows implements TransactionSorter.Rows {
+        private final TransactionSorter.Rows recurring;
+        private final TransactionSorter.Rows ledger;
+        private final int split;
+        
+        RecurringFirstRows(TransactionSorter.Rows recurring, TransactionSorter.Rows ledger) {
+            this.recurring = recurring;
+            this.ledger = ledger;
+            this.split = recurring.size();
+        }
+        
+        public int size() { return split + ledger.size(); }
+        public String getId(int row) { return row < split ? recurring.getId(row) : ledger.getId(row - split); }
+        public long getEpochDay(int row) { return row < split ? recurring.getEpochDay(row) : ledger.getEpochDay(row - split); }
+        public String getDescription(int row) { return row < split ? recurring.getDescription(row) : ledger.getDescription(row - split); }
+        public double getAmount(int row) { return row < split ? recurring.getAmount(row) : ledger.getAmount(row - split); }
+        public String getType(int row) { return row < split ? recurring.getType(row) : ledger.getType(row - split); }
+        public int getVatRate(int row) { return row < split ? recurring.getVatRate(row) : ledger.getVatRate(row - split); }
+    }
+    
+    // One cursor per thread, as parallel key extraction reads rows
+    // concurrently; all of them over the rows of the one they are copied from
+    private static class OffHeapRows implements TransactionSorter.Rows {
+        private final int size;
+        private final ThreadLocal<OffHeapLedger.Cursor> cursors;
+        
+        OffHeapRows(OffHeapLedger.Cursor cursor) {
+            this.size = cursor.size();
+            this.cursors = ThreadLocal.withInitial(cursor::copy);
+        }
+        
+        private OffHeapLedger.Cursor at(int row) {
+            return cursors.get().moveTo(row);
+        }
+        
+        public int size() { return size; }
+        public String getId(int row) { return at(row).getId(); }
+        public long getEpochDay(int row) { return at(row).getEpochDay(); }
+        public String getDescription(int row) { return at(row).getDescription(); }
+        public double getAmount(int row) { return at(row).getAmount(); }
+        public String getType(int row) { return at(row).getType(); }
+        public int getVatRate(int row) { return at(row).getVatRate(); }
+    }
+}